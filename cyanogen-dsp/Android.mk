@@ -15,13 +15,22 @@ LOCAL_ARM_MODE := arm
 LOCAL_SRC_FILES := \
 	cyanogen-dsp.cpp \
 	Biquad.cpp \
+	Convolver.cpp \
 	Delay.cpp \
 	Effect.cpp \
 	EffectBassBoost.cpp \
+	EffectChain.cpp \
 	EffectCompression.cpp \
 	EffectEqualizer.cpp \
+	EffectLimiter.cpp \
+	EffectMultiband.cpp \
 	EffectVirtualizer.cpp \
+	FFT.cpp \
 	FIR16.cpp \
+	FeedbackDelayNetwork.cpp \
+	SessionAnalysis.cpp \
+	ShelfTable.cpp \
+	WavFile.cpp \
 # terminator
 
 LOCAL_C_INCLUDES += \
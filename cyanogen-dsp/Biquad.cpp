@@ -31,27 +31,38 @@ Biquad::~Biquad()
 {
 }
 
+static void toCoefficients(BiquadCoefficients& c, double a0, double a1, double a2, double b0, double b1, double b2)
+{
+    c.a1 = -toFixedPoint(a1/a0);
+    c.a2 = -toFixedPoint(a2/a0);
+    c.b0 = toFixedPoint(b0/a0);
+    c.b1 = toFixedPoint(b1/a0);
+    c.b2 = toFixedPoint(b2/a0);
+}
+
 void Biquad::setCoefficients(int32_t steps, double a0, double a1, double a2, double b0, double b1, double b2)
 {
-    int64_t A1 = -toFixedPoint(a1/a0);
-    int64_t A2 = -toFixedPoint(a2/a0);
-    int64_t B0 = toFixedPoint(b0/a0);
-    int64_t B1 = toFixedPoint(b1/a0);
-    int64_t B2 = toFixedPoint(b2/a0);
+    BiquadCoefficients c;
+    toCoefficients(c, a0, a1, a2, b0, b1, b2);
+    setCoefficients(steps, c);
+}
 
+/* Set coefficients that are already in fixed point, e.g. from a table. */
+void Biquad::setCoefficients(int32_t steps, const BiquadCoefficients& c)
+{
     if (steps == 0) {
-        mA1 = A1;
-        mA2 = A2;
-        mB0 = B0;
-        mB1 = B1;
-        mB2 = B2;
+        mA1 = c.a1;
+        mA2 = c.a2;
+        mB0 = c.b0;
+        mB1 = c.b1;
+        mB2 = c.b2;
         mInterpolationSteps = 0;
     } else {
-        mA1dif = (A1 - mA1) / steps;
-        mA2dif = (A2 - mA2) / steps;
-        mB0dif = (B0 - mB0) / steps;
-        mB1dif = (B1 - mB1) / steps;
-        mB2dif = (B2 - mB2) / steps;
+        mA1dif = (c.a1 - mA1) / steps;
+        mA2dif = (c.a2 - mA2) / steps;
+        mB0dif = (c.b0 - mB0) / steps;
+        mB1dif = (c.b1 - mB1) / steps;
+        mB2dif = (c.b2 - mB2) / steps;
         mInterpolationSteps = steps;
     }
 }
@@ -70,7 +81,22 @@ void Biquad::reset()
     mY2 = 0;
 }
 
+void Biquad::clearHistory()
+{
+    mX1 = 0;
+    mX2 = 0;
+    mY1 = 0;
+    mY2 = 0;
+}
+
 void Biquad::setHighShelf(int32_t steps, double center_frequency, double sampling_frequency, double gainDb, double slope, double overallGainDb)
+{
+    BiquadCoefficients c;
+    designHighShelf(c, center_frequency, sampling_frequency, gainDb, slope, overallGainDb);
+    setCoefficients(steps, c);
+}
+
+void Biquad::designHighShelf(BiquadCoefficients& c, double center_frequency, double sampling_frequency, double gainDb, double slope, double overallGainDb)
 {
     double w0 = 2 * M_PI * center_frequency / sampling_frequency;
     double A = pow(10, gainDb/40);
@@ -88,7 +114,23 @@ void Biquad::setHighShelf(int32_t steps, double center_frequency, double samplin
     b1 *= overallGain;
     b2 *= overallGain;
 
-    setCoefficients(steps, a0, a1, a2, b0, b1, b2);
+    toCoefficients(c, a0, a1, a2, b0, b1, b2);
+}
+
+void Biquad::designPeaking(BiquadCoefficients& c, double center_frequency, double sampling_frequency, double gainDb, double resonance)
+{
+    double w0 = 2 * M_PI * center_frequency / sampling_frequency;
+    double A = pow(10, gainDb/40);
+    double alpha = sin(w0) / (2*resonance);
+
+    double b0 =   1 + alpha*A;
+    double b1 =  -2*cos(w0);
+    double b2 =   1 - alpha*A;
+    double a0 =   1 + alpha/A;
+    double a1 =  -2*cos(w0);
+    double a2 =   1 - alpha/A;
+
+    toCoefficients(c, a0, a1, a2, b0, b1, b2);
 }
 
 void Biquad::setBandPass(int32_t steps, double center_frequency, double sampling_frequency, double resonance)
@@ -121,6 +163,36 @@ void Biquad::setLowPass(int32_t steps, double center_frequency, double sampling_
     setCoefficients(steps, a0, a1, a2, b0, b1, b2);
 }
 
+void Biquad::setHighPass(int32_t steps, double center_frequency, double sampling_frequency, double resonance)
+{
+    double w0 = 2 * M_PI * center_frequency / sampling_frequency;
+    double alpha = sin(w0) / (2*resonance);
+
+    double b0 =  (1 + cos(w0))/2;
+    double b1 = -(1 + cos(w0));
+    double b2 =  (1 + cos(w0))/2;
+    double a0 =   1 + alpha;
+    double a1 =  -2*cos(w0);
+    double a2 =   1 - alpha;
+
+    setCoefficients(steps, a0, a1, a2, b0, b1, b2);
+}
+
+void Biquad::setAllPass(int32_t steps, double center_frequency, double sampling_frequency, double resonance)
+{
+    double w0 = 2 * M_PI * center_frequency / sampling_frequency;
+    double alpha = sin(w0) / (2*resonance);
+
+    double b0 =   1 - alpha;
+    double b1 =  -2*cos(w0);
+    double b2 =   1 + alpha;
+    double a0 =   1 + alpha;
+    double a1 =  -2*cos(w0);
+    double a2 =   1 - alpha;
+
+    setCoefficients(steps, a0, a1, a2, b0, b1, b2);
+}
+
 int32_t Biquad::process(int32_t x0)
 {
     int64_t y0 = mB0 * x0
@@ -148,3 +220,29 @@ int32_t Biquad::process(int32_t x0)
 
     return y0;
 }
+
+void Biquad::process(int32_t* data, int32_t frames)
+{
+    if (mInterpolationSteps != 0) {
+        for (int32_t i = 0; i < frames; i ++) {
+            data[i] = process(data[i]);
+        }
+        return;
+    }
+
+    const int64_t b0 = mB0, b1 = mB1, b2 = mB2, a1 = mA1, a2 = mA2;
+    int32_t x1 = mX1, x2 = mX2, y1 = mY1, y2 = mY2;
+    for (int32_t i = 0; i < frames; i ++) {
+        int32_t x0 = data[i];
+        int32_t y0 = int32_t((b0 * x0 + b1 * x1 + b2 * x2 + a1 * y1 + a2 * y2) >> 32);
+        x2 = x1;
+        x1 = x0;
+        y2 = y1;
+        y1 = y0;
+        data[i] = y0;
+    }
+    mX1 = x1;
+    mX2 = x2;
+    mY1 = y1;
+    mY2 = y2;
+}
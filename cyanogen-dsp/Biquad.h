@@ -2,6 +2,12 @@
 
 #include <stdint.h>
 
+/* Normalized coefficients in 32.32 fixed point, with the feedback terms
+ * already negated, in the form Biquad::process() consumes them. */
+struct BiquadCoefficients {
+    int64_t b0, b1, b2, a1, a2;
+};
+
 class Biquad {
     protected:
     int32_t mX1, mX2;
@@ -15,9 +21,18 @@ class Biquad {
     public:
     Biquad();
     virtual ~Biquad();
+    static void designHighShelf(BiquadCoefficients& c, double cf, double sf, double gaindB, double slope, double overallGain);
+    static void designPeaking(BiquadCoefficients& c, double cf, double sf, double gaindB, double resonance);
+    void setCoefficients(int32_t steps, const BiquadCoefficients& c);
     void setHighShelf(int32_t steps, double cf, double sf, double gaindB, double slope, double overallGain);
     void setBandPass(int32_t steps, double cf, double sf, double resonance);
     void setLowPass(int32_t steps, double cf, double sf, double resonance);
+    void setHighPass(int32_t steps, double cf, double sf, double resonance);
+    void setAllPass(int32_t steps, double cf, double sf, double resonance);
     int32_t process(int32_t in);
+    /* Filter a block in place, with the state kept in registers. */
+    void process(int32_t* data, int32_t frames);
     void reset();
+    /* Forget past samples but keep the coefficients. */
+    void clearHistory();
 };
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "Convolver.h"
+
+#include <errno.h>
+#include <string.h>
+
+#define N (CONVOLVER_BLOCK * 2)
+
+Convolver::Convolver()
+    : mFFT(N), mPartitions(0), mFilterRe(0), mFilterIm(0),
+      mInputRe(0), mInputIm(0), mNewest(0), mPosition(0)
+{
+    reset();
+}
+
+Convolver::~Convolver()
+{
+    delete[] mFilterRe;
+    delete[] mFilterIm;
+    delete[] mInputRe;
+    delete[] mInputIm;
+}
+
+uint32_t Convolver::getMemoryUsage() const
+{
+    /* Four filter paths and two input channels, real and imaginary */
+    return mFFT.getMemoryUsage() + 2 * 6 * mPartitions * CONVOLVER_BINS * sizeof(float);
+}
+
+int32_t Convolver::setImpulseResponse(const float* ll, const float* lr, const float* rl, const float* rr, int32_t length, int32_t stride)
+{
+    if (length <= 0 || length > CONVOLVER_MAX_LENGTH) {
+        return -EINVAL;
+    }
+
+    delete[] mFilterRe;
+    delete[] mFilterIm;
+    delete[] mInputRe;
+    delete[] mInputIm;
+
+    mPartitions = (length + CONVOLVER_BLOCK - 1) / CONVOLVER_BLOCK;
+    int32_t filterSize = 4 * mPartitions * CONVOLVER_BINS;
+    mFilterRe = new float[filterSize];
+    mFilterIm = new float[filterSize];
+    mInputRe = new float[2 * mPartitions * CONVOLVER_BINS];
+    mInputIm = new float[2 * mPartitions * CONVOLVER_BINS];
+
+    /* The inverse FFT is unscaled; fold its 1/N into the filter. */
+    const float* paths[4] = { ll, lr, rl, rr };
+    for (int32_t path = 0; path < 4; path ++) {
+        for (int32_t p = 0; p < mPartitions; p ++) {
+            for (int32_t i = 0; i < N; i ++) {
+                int32_t tap = p * CONVOLVER_BLOCK + i;
+                mTimeRe[i] = i < CONVOLVER_BLOCK && tap < length ? paths[path][tap * stride] / N : 0;
+                mTimeIm[i] = 0;
+            }
+            mFFT.forward(mTimeRe, mTimeIm);
+            float* re = &mFilterRe[(path * mPartitions + p) * CONVOLVER_BINS];
+            float* im = &mFilterIm[(path * mPartitions + p) * CONVOLVER_BINS];
+            memcpy(re, mTimeRe, CONVOLVER_BINS * sizeof(float));
+            memcpy(im, mTimeIm, CONVOLVER_BINS * sizeof(float));
+        }
+    }
+
+    reset();
+    return 0;
+}
+
+void Convolver::reset()
+{
+    if (mInputRe != 0) {
+        memset(mInputRe, 0, 2 * mPartitions * CONVOLVER_BINS * sizeof(float));
+        memset(mInputIm, 0, 2 * mPartitions * CONVOLVER_BINS * sizeof(float));
+    }
+    memset(mWindowL, 0, sizeof(mWindowL));
+    memset(mWindowR, 0, sizeof(mWindowR));
+    memset(mOutputL, 0, sizeof(mOutputL));
+    memset(mOutputR, 0, sizeof(mOutputR));
+    mNewest = 0;
+    mPosition = 0;
+}
+
+void Convolver::processBlock()
+{
+    memcpy(mTimeRe, mWindowL, sizeof(mTimeRe));
+    memcpy(mTimeIm, mWindowR, sizeof(mTimeIm));
+    mFFT.forward(mTimeRe, mTimeIm);
+
+    /* Split the packed spectrum back into the two real-signal spectra,
+     * keeping only the non-redundant half. */
+    mNewest = (mNewest + mPartitions - 1) % mPartitions;
+    float* lRe = &mInputRe[mNewest * CONVOLVER_BINS];
+    float* lIm = &mInputIm[mNewest * CONVOLVER_BINS];
+    float* rRe = &mInputRe[(mPartitions + mNewest) * CONVOLVER_BINS];
+    float* rIm = &mInputIm[(mPartitions + mNewest) * CONVOLVER_BINS];
+    for (int32_t k = 0; k < CONVOLVER_BINS; k ++) {
+        int32_t nk = (N - k) & (N - 1);
+        lRe[k] = (mTimeRe[k] + mTimeRe[nk]) * 0.5f;
+        lIm[k] = (mTimeIm[k] - mTimeIm[nk]) * 0.5f;
+        rRe[k] = (mTimeIm[k] + mTimeIm[nk]) * 0.5f;
+        rIm[k] = (mTimeRe[nk] - mTimeRe[k]) * 0.5f;
+    }
+
+    memset(mAccRe, 0, sizeof(mAccRe));
+    memset(mAccIm, 0, sizeof(mAccIm));
+    for (int32_t p = 0; p < mPartitions; p ++) {
+        int32_t slot = (mNewest + p) % mPartitions;
+        const float* xlRe = &mInputRe[slot * CONVOLVER_BINS];
+        const float* xlIm = &mInputIm[slot * CONVOLVER_BINS];
+        const float* xrRe = &mInputRe[(mPartitions + slot) * CONVOLVER_BINS];
+        const float* xrIm = &mInputIm[(mPartitions + slot) * CONVOLVER_BINS];
+        const float* llRe = &mFilterRe[(0 * mPartitions + p) * CONVOLVER_BINS];
+        const float* llIm = &mFilterIm[(0 * mPartitions + p) * CONVOLVER_BINS];
+        const float* lrRe = &mFilterRe[(1 * mPartitions + p) * CONVOLVER_BINS];
+        const float* lrIm = &mFilterIm[(1 * mPartitions + p) * CONVOLVER_BINS];
+        const float* rlRe = &mFilterRe[(2 * mPartitions + p) * CONVOLVER_BINS];
+        const float* rlIm = &mFilterIm[(2 * mPartitions + p) * CONVOLVER_BINS];
+        const float* rrRe = &mFilterRe[(3 * mPartitions + p) * CONVOLVER_BINS];
+        const float* rrIm = &mFilterIm[(3 * mPartitions + p) * CONVOLVER_BINS];
+        for (int32_t k = 0; k < CONVOLVER_BINS; k ++) {
+            mAccRe[0][k] += xlRe[k] * llRe[k] - xlIm[k] * llIm[k]
+                          + xrRe[k] * rlRe[k] - xrIm[k] * rlIm[k];
+            mAccIm[0][k] += xlRe[k] * llIm[k] + xlIm[k] * llRe[k]
+                          + xrRe[k] * rlIm[k] + xrIm[k] * rlRe[k];
+            mAccRe[1][k] += xlRe[k] * lrRe[k] - xlIm[k] * lrIm[k]
+                          + xrRe[k] * rrRe[k] - xrIm[k] * rrIm[k];
+            mAccIm[1][k] += xlRe[k] * lrIm[k] + xlIm[k] * lrRe[k]
+                          + xrRe[k] * rrIm[k] + xrIm[k] * rrRe[k];
+        }
+    }
+
+    /* Pack both output spectra as left + i * right, so one inverse FFT
+     * yields the left output in the real part and right in the imaginary. */
+    for (int32_t k = 0; k < CONVOLVER_BINS; k ++) {
+        mTimeRe[k] = mAccRe[0][k] - mAccIm[1][k];
+        mTimeIm[k] = mAccIm[0][k] + mAccRe[1][k];
+        if (k != 0 && k != CONVOLVER_BLOCK) {
+            mTimeRe[N - k] = mAccRe[0][k] + mAccIm[1][k];
+            mTimeIm[N - k] = mAccRe[1][k] - mAccIm[0][k];
+        }
+    }
+    mFFT.inverse(mTimeRe, mTimeIm);
+
+    /* Overlap-save: only the second half is free of circular wraparound. */
+    memcpy(mOutputL, &mTimeRe[CONVOLVER_BLOCK], sizeof(mOutputL));
+    memcpy(mOutputR, &mTimeIm[CONVOLVER_BLOCK], sizeof(mOutputR));
+    memcpy(mWindowL, &mWindowL[CONVOLVER_BLOCK], CONVOLVER_BLOCK * sizeof(float));
+    memcpy(mWindowR, &mWindowR[CONVOLVER_BLOCK], CONVOLVER_BLOCK * sizeof(float));
+}
+
+void Convolver::process(const int32_t* inL, const int32_t* inR, int32_t* outL, int32_t* outR, int32_t frames)
+{
+    const float toFloat = 1.0f / (1 << 24);
+    const float toFixed = 1 << 24;
+    /* Largest 8.24 value that still fits in int32_t. */
+    const float limit = 127.99f;
+
+    while (frames > 0) {
+        int32_t n = CONVOLVER_BLOCK - mPosition;
+        if (n > frames) {
+            n = frames;
+        }
+
+        float* windowL = &mWindowL[CONVOLVER_BLOCK + mPosition];
+        float* windowR = &mWindowR[CONVOLVER_BLOCK + mPosition];
+        for (int32_t i = 0; i < n; i ++) {
+            windowL[i] = inL[i] * toFloat;
+            windowR[i] = inR[i] * toFloat;
+
+            float l = mOutputL[mPosition + i];
+            float r = mOutputR[mPosition + i];
+            l = l > limit ? limit : l < -limit ? -limit : l;
+            r = r > limit ? limit : r < -limit ? -limit : r;
+            outL[i] = int32_t(l * toFixed);
+            outR[i] = int32_t(r * toFixed);
+        }
+
+        inL += n;
+        inR += n;
+        outL += n;
+        outR += n;
+        frames -= n;
+        mPosition += n;
+        if (mPosition == CONVOLVER_BLOCK) {
+            processBlock();
+            mPosition = 0;
+        }
+    }
+}
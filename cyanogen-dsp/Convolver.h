@@ -0,0 +1,57 @@
+#pragma once
+
+#include <stdint.h>
+
+#include "FFT.h"
+
+/* Partition length. The engine adds this many frames of latency, and
+ * each partition costs one complex multiply-add per bin and path. */
+#define CONVOLVER_BLOCK 256
+#define CONVOLVER_BINS (CONVOLVER_BLOCK + 1)
+/* Longest impulse response accepted, in frames. */
+#define CONVOLVER_MAX_LENGTH 32768
+
+/* Uniformly partitioned overlap-save convolution of a stereo signal with
+ * a true-stereo impulse response (four paths: each input channel to each
+ * output channel). Input and output are 8.24 fixed point.
+ *
+ * Both input channels are transformed by one complex FFT (left in the real
+ * part, right in the imaginary part), and both outputs are recovered from
+ * one inverse FFT the same way. Per block of CONVOLVER_BLOCK frames the
+ * cost is two FFTs of twice the block length plus four complex
+ * multiply-adds per bin per partition. */
+class Convolver {
+    FFT mFFT;
+    int32_t mPartitions;
+
+    /* Filter spectra, [path][partition][bin]. Paths are LL, LR, RL, RR
+     * where the first letter is the input and the second the output. */
+    float* mFilterRe;
+    float* mFilterIm;
+
+    /* Frequency-domain delay line of input spectra, [channel][partition][bin].
+     * mNewest is the partition slot of the most recent block. */
+    float* mInputRe;
+    float* mInputIm;
+    int32_t mNewest;
+
+    float mWindowL[CONVOLVER_BLOCK * 2], mWindowR[CONVOLVER_BLOCK * 2];
+    float mTimeRe[CONVOLVER_BLOCK * 2], mTimeIm[CONVOLVER_BLOCK * 2];
+    float mAccRe[2][CONVOLVER_BINS], mAccIm[2][CONVOLVER_BINS];
+    float mOutputL[CONVOLVER_BLOCK], mOutputR[CONVOLVER_BLOCK];
+    int32_t mPosition;
+
+    void processBlock();
+
+    public:
+    Convolver();
+    ~Convolver();
+    /* Each path has length frames spaced stride floats apart, so
+     * interleaved multichannel data can be passed directly. */
+    int32_t setImpulseResponse(const float* ll, const float* lr, const float* rl, const float* rr, int32_t length, int32_t stride);
+    int32_t getPartitions() const { return mPartitions; }
+    /* Bytes allocated, not counting the object itself. */
+    uint32_t getMemoryUsage() const;
+    void reset();
+    void process(const int32_t* inL, const int32_t* inR, int32_t* outL, int32_t* outR, int32_t frames);
+};
@@ -18,34 +18,76 @@
 
 #include <string.h>
 
-Delay::Delay()
-    : mState(0), mIndex(0), mLength(0)
+/* The ring buffer is rounded up to a power of two, so the index wraps
+ * with a mask instead of a division. mIndex is the write position; the
+ * sample written mLength frames ago is at mIndex - mLength. */
+Delay::Delay(float maxTime)
+    : mIndex(0), mLength(0)
 {
+    int32_t capacity = 1;
+    while (capacity < int32_t(maxTime * DELAY_MAX_SAMPLING_RATE + 0.5f)) {
+        capacity <<= 1;
+    }
+    mMask = capacity - 1;
+    mState = new int32_t[capacity];
+    memset(mState, 0, capacity * sizeof(int32_t));
 }
 
 Delay::~Delay()
 {
-    if (mState != 0) {
-        delete[] mState;
-        mState = 0;
-    }
+    delete[] mState;
+    mState = 0;
 }
 
 void Delay::setParameters(float samplingFrequency, float time)
 {
     mLength = int32_t(time * samplingFrequency + 0.5f);
-    if (mState != 0) {
-        delete[] mState;
+    if (mLength > mMask + 1) {
+        mLength = mMask + 1;
     }
-    mState = new int32_t[mLength];
-    memset(mState, 0, mLength * sizeof(int32_t));
+    memset(mState, 0, (mMask + 1) * sizeof(int32_t));
     mIndex = 0;
 }
 
 int32_t Delay::process(int32_t x0)
 {
-    int32_t y0 = mState[mIndex];
+    int32_t y0 = mState[(mIndex - mLength) & mMask];
     mState[mIndex] = x0;
-    mIndex = (mIndex + 1) % mLength;
+    mIndex = (mIndex + 1) & mMask;
     return y0;
 }
+
+/* Copy out the next frames of delayed signal. This does not advance the
+ * line; write() must follow with the same number of frames. Because the
+ * samples must already be in the buffer, frames may not exceed the delay
+ * length. */
+void Delay::read(int32_t* out, int32_t frames)
+{
+    int32_t start = (mIndex - mLength) & mMask;
+    int32_t first = mMask + 1 - start;
+    if (first >= frames) {
+        memcpy(out, &mState[start], frames * sizeof(int32_t));
+    } else {
+        memcpy(out, &mState[start], first * sizeof(int32_t));
+        memcpy(out + first, mState, (frames - first) * sizeof(int32_t));
+    }
+}
+
+/* Append frames to the line and advance it. */
+void Delay::write(const int32_t* in, int32_t frames)
+{
+    int32_t first = mMask + 1 - mIndex;
+    if (first >= frames) {
+        memcpy(&mState[mIndex], in, frames * sizeof(int32_t));
+    } else {
+        memcpy(&mState[mIndex], in, first * sizeof(int32_t));
+        memcpy(mState, in + first, (frames - first) * sizeof(int32_t));
+    }
+    mIndex = (mIndex + frames) & mMask;
+}
+
+/* Fill the line with silence. */
+void Delay::clear()
+{
+    memset(mState, 0, (mMask + 1) * sizeof(int32_t));
+}
@@ -2,14 +2,25 @@
 
 #include <stdint.h>
 
+/* Highest sampling rate we promise to support. Delay lines size their
+ * storage for it up front so that reconfiguration never allocates. */
+#define DELAY_MAX_SAMPLING_RATE 192000
+
 class Delay {
     int32_t* mState;
+    int32_t mMask;
     int32_t mIndex;
     int32_t mLength;
 
     public:
-    Delay();
+    Delay(float maxTime);
     ~Delay();
     void setParameters(float rate, float time);
+    int32_t getLength() const { return mLength; }
     int32_t process(int32_t x0);
+    void read(int32_t* out, int32_t frames);
+    void write(const int32_t* in, int32_t frames);
+    void clear();
+    /* Bytes allocated, not counting the object itself. */
+    uint32_t getMemoryUsage() const { return (mMask + 1) * sizeof(int32_t); }
 };
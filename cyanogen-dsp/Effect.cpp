@@ -16,19 +16,244 @@
 
 #define LOG_TAG "DSP-Effect"
 
+#include <cutils/atomic.h>
 #include <cutils/log.h>
+#include <math.h>
+#include <string.h>
+#include <time.h>
 #include "Effect.h"
+#include "SessionAnalysis.h"
+
+static uint32_t bytesPerSample(audio_format_t format) {
+    return format == AUDIO_FORMAT_PCM_16_BIT ? 2 : 4;
+}
 
 Effect::Effect()
-    : mSamplingRate(44100)
+    : mAccessMode(EFFECT_BUFFER_ACCESS_WRITE), mInFormat(AUDIO_FORMAT_PCM_16_BIT),
+      mOutFormat(AUDIO_FORMAT_PCM_16_BIT), mSilentFrames(0), mIdle(false),
+      mAnalysis(0), mAnalysisConsumer(-1), mCostAverage(0), mCostPeak(0),
+      mCostBuffers(0), mBufferPeak(0), mBufferClipped(0), mLevelSamples(0),
+      mLevelClipped(0), mLevelPeak(0), mHeadroomEnable(0), mHeadroomMb(0),
+      mHeadroomGain(1 << 24), mClippedBuffers(0), mClearFrames(0), mSamplingRate(44100),
+      mChannels(2), mChannelMask(AUDIO_CHANNEL_OUT_STEREO),
+      mOutChannels(2), mOutChannelMask(AUDIO_CHANNEL_OUT_STEREO)
 {
 }
 
 Effect::~Effect() {
+    if (mAnalysis != 0) {
+	mAnalysis->detach(mAnalysisConsumer);
+    }
+}
+
+void Effect::setAnalysis(SessionAnalysis* analysis) {
+    mAnalysis = analysis;
+    mAnalysisConsumer = analysis->attach();
+}
+
+const SessionAnalysis& Effect::analyze(audio_buffer_t *in) {
+    if (!mAnalysis->startRound(mAnalysisConsumer, in->frameCount, mChannels, mSamplingRate)) {
+	return *mAnalysis;
+    }
+
+    mAnalysis->begin(mChannels, mSamplingRate);
+    if (mInFormat == AUDIO_FORMAT_PCM_8_24_BIT) {
+	mAnalysis->add(in->s32, in->frameCount);
+    } else {
+	int32_t block[ANALYSIS_BLOCK * EFFECT_MAX_CHANNELS];
+	for (uint32_t offset = 0; offset < in->frameCount; offset += ANALYSIS_BLOCK) {
+	    uint32_t frames = in->frameCount - offset;
+	    if (frames > ANALYSIS_BLOCK) {
+		frames = ANALYSIS_BLOCK;
+	    }
+	    for (uint32_t i = 0; i < frames * mChannels; i ++) {
+		block[i] = read(in, offset * mChannels + i);
+	    }
+	    mAnalysis->add(block, frames);
+	}
+    }
+    mAnalysis->end(in->frameCount);
+    return *mAnalysis;
+}
+
+/* Two reads of the vDSO clock per buffer are well below a microsecond, so
+ * this is always on. The average follows about the last 64 buffers; the
+ * peaks halve in about 180 buffers. */
+int32_t Effect::processAccounted(audio_buffer_t *in, audio_buffer_t *out) {
+    mBufferPeak = 0;
+    mBufferClipped = 0;
+
+    struct timespec start, end;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+    int32_t ret = process(in, out);
+    clock_gettime(CLOCK_MONOTONIC, &end);
+
+    if (in->frameCount == 0) {
+	return ret;
+    }
+
+    int64_t ns = int64_t(end.tv_sec - start.tv_sec) * 1000000000 + (end.tv_nsec - start.tv_nsec);
+    int64_t ps = ns * 1000 / in->frameCount;
+    int32_t cost = ps > 0x7fffffff ? 0x7fffffff : int32_t(ps);
+    mCostAverage += (cost - mCostAverage) >> 6;
+    mCostPeak -= mCostPeak >> 8;
+    if (cost > mCostPeak) {
+	mCostPeak = cost;
+    }
+    mCostBuffers ++;
+
+    mLevelSamples += in->frameCount * mOutChannels;
+    mLevelClipped += mBufferClipped;
+    mLevelPeak -= mLevelPeak >> 8;
+    if (mBufferPeak > mLevelPeak) {
+	mLevelPeak = mBufferPeak;
+    }
+    updateHeadroom(in->frameCount, mBufferClipped, mBufferPeak);
+    return ret;
+}
+
+/* Clipping in a few buffers in a row takes a step of gain off at once.
+ * The gain comes back a step at a time, each after the output has stayed
+ * clear of full scale by more than a step for the hold time. Steps happen
+ * at buffer boundaries and are small enough not to be heard as such. */
+void Effect::updateHeadroom(uint32_t frames, uint32_t clipped, int32_t peak) {
+    if (!android_atomic_acquire_load(&mHeadroomEnable)) {
+	if (mHeadroomMb != 0) {
+	    mHeadroomMb = 0;
+	    mHeadroomGain = 1 << 24;
+	}
+	mClippedBuffers = 0;
+	mClearFrames = 0;
+	return;
+    }
+
+    int32_t headroomMb = mHeadroomMb;
+    if (clipped != 0) {
+	mClearFrames = 0;
+	if (++ mClippedBuffers >= EFFECT_HEADROOM_ATTACK_BUFFERS) {
+	    mClippedBuffers = 0;
+	    headroomMb += EFFECT_HEADROOM_STEP_MB;
+	}
+    } else {
+	mClippedBuffers = 0;
+	/* A step up must not take the peak to full scale. */
+	static const int32_t clear = int32_t((1 << 23) * 0.944f);
+	if (peak < clear) {
+	    mClearFrames += frames;
+	} else {
+	    mClearFrames = 0;
+	}
+	if (headroomMb != 0 && mClearFrames >= EFFECT_HEADROOM_HOLD_TIME * mSamplingRate) {
+	    mClearFrames = 0;
+	    headroomMb -= EFFECT_HEADROOM_STEP_MB;
+	}
+    }
+
+    if (headroomMb > EFFECT_HEADROOM_MAX_MB) {
+	headroomMb = EFFECT_HEADROOM_MAX_MB;
+    }
+    if (headroomMb != mHeadroomMb) {
+	mHeadroomMb = headroomMb;
+	mHeadroomGain = int32_t(powf(10.f, -headroomMb / 2000.f) * (1 << 24) + 0.5f);
+    }
+}
+
+/* Fill in a GET_PARAM reply of int32 values, or its error if the reply
+ * would not fit. */
+static void replyValues(uint32_t *replySize, void *pReplyData, int32_t param, const int32_t *values, uint32_t count) {
+    uint32_t size = 16 + count * 4;
+    if (*replySize < size) {
+	ALOGE("GET_PARAM of %d needs %d bytes of reply, got %d", param, size, *replySize);
+	effect_param_t *rep = (effect_param_t *) pReplyData;
+	rep->status = -EINVAL;
+	rep->vsize = 0;
+	*replySize = sizeof(effect_param_t);
+	return;
+    }
+    int32_t *replyData = (int32_t *) pReplyData;
+    replyData[0] = 0;
+    replyData[1] = 4;
+    replyData[2] = count * 4;
+    replyData[3] = param;
+    memcpy(&replyData[4], values, count * 4);
+    *replySize = size;
+}
+
+/* The audio thread may update the figures meanwhile; each is one aligned
+ * word, so each is read whole. */
+bool Effect::libraryCommand(uint32_t cmdCode, uint32_t cmdSize, void *pCmdData, uint32_t *replySize, void *pReplyData) {
+    if (cmdCode != EFFECT_CMD_GET_PARAM && cmdCode != EFFECT_CMD_SET_PARAM) {
+	return false;
+    }
+    effect_param_t *cep = (effect_param_t *) pCmdData;
+    if (cmdSize < 16 || cep->psize != 4) {
+	return false;
+    }
+    int32_t param = ((int32_t *) cep)[3];
+
+    if (cmdCode == EFFECT_CMD_GET_PARAM && param == EFFECT_PARAM_COST) {
+	int32_t average = mCostAverage;
+	int32_t values[EFFECT_COST_VALUES] = {
+	    average,
+	    mCostPeak,
+	    int32_t(int64_t(average) * int64_t(mSamplingRate) / 1000000),
+	    int32_t(getMemoryUsage()),
+	    int32_t(mCostBuffers),
+	};
+	replyValues(replySize, pReplyData, param, values, EFFECT_COST_VALUES);
+	return true;
+    }
+
+    if (cmdCode == EFFECT_CMD_GET_PARAM && param == EFFECT_PARAM_LEVELS) {
+	int32_t values[EFFECT_LEVEL_VALUES] = {
+	    int32_t(mLevelSamples),
+	    int32_t(mLevelClipped),
+	    mLevelPeak,
+	    -mHeadroomMb,
+	};
+	replyValues(replySize, pReplyData, param, values, EFFECT_LEVEL_VALUES);
+	return true;
+    }
+
+    if (param == EFFECT_PARAM_AUTO_HEADROOM) {
+	if (cmdCode == EFFECT_CMD_SET_PARAM) {
+	    int32_t *replyData = (int32_t *) pReplyData;
+	    if (cep->vsize != 2 || cmdSize < sizeof(effect_param_t) + 4 + 2) {
+		*replyData = -EINVAL;
+		return true;
+	    }
+	    android_atomic_release_store(((int16_t *) cep)[8] != 0, &mHeadroomEnable);
+	    *replyData = 0;
+	    return true;
+	}
+	if (*replySize < 18) {
+	    effect_param_t *rep = (effect_param_t *) pReplyData;
+	    rep->status = -EINVAL;
+	    rep->vsize = 0;
+	    *replySize = sizeof(effect_param_t);
+	    return true;
+	}
+	int32_t *replyData = (int32_t *) pReplyData;
+	replyData[0] = 0;
+	replyData[1] = 4;
+	replyData[2] = 2;
+	replyData[3] = param;
+	((int16_t *) pReplyData)[8] = android_atomic_acquire_load(&mHeadroomEnable);
+	*replySize = 18;
+	return true;
+    }
+
+    return false;
+}
+
+bool Effect::isSupportedFormat(uint32_t format) {
+    return format == AUDIO_FORMAT_PCM_16_BIT
+	|| format == AUDIO_FORMAT_PCM_8_24_BIT
+	|| format == AUDIO_FORMAT_PCM_FLOAT;
 }
 
 /* Configure a bunch of general parameters. */
-int32_t Effect::configure(void* pCmdData) {
+int32_t Effect::configure(void* pCmdData, bool allowDownmix) {
     effect_config_t *cfg = (effect_config_t *) pCmdData;
     buffer_config_t in = cfg->inputCfg;
     buffer_config_t out = cfg->outputCfg;
@@ -44,25 +269,36 @@ int32_t Effect::configure(void* pCmdData) {
     }
 
     if (in.mask & EFFECT_CONFIG_CHANNELS && out.mask & EFFECT_CONFIG_CHANNELS) {
-	if (in.channels != AUDIO_CHANNEL_OUT_STEREO) {
+	int32_t inChannels = __builtin_popcount(in.channels);
+	int32_t outChannels = __builtin_popcount(out.channels);
+	if (inChannels < 1 || inChannels > EFFECT_MAX_CHANNELS) {
 	    ALOGE("Invalid input channel setup: 0x%x", in.channels);
 	    return -EINVAL;
 	}
-	if (out.channels != AUDIO_CHANNEL_OUT_STEREO) {
-	    ALOGE("Invalid output channel setup: 0x%x", in.channels);
+	if (out.channels != in.channels
+	    && !(allowDownmix && out.channels == AUDIO_CHANNEL_OUT_STEREO)) {
+	    ALOGE("Invalid output channel setup: 0x%x", out.channels);
 	    return -EINVAL;
 	}
+	mChannels = inChannels;
+	mChannelMask = in.channels;
+	mOutChannels = outChannels;
+	mOutChannelMask = out.channels;
     }
 
     if (in.mask & EFFECT_CONFIG_FORMAT) {
-	if (in.format != AUDIO_FORMAT_PCM_16_BIT) {
-	    ALOGE("Invalid input format (need 16-bit PCM): 0x%x", in.format);
+	if (!isSupportedFormat(in.format)) {
+	    ALOGE("Invalid input format (need 16-bit, 8.24 or float PCM): 0x%x", in.format);
+	    return -EINVAL;
 	}
+	mInFormat = (audio_format_t) in.format;
     }
     if (out.mask & EFFECT_CONFIG_FORMAT) {
-	if (out.format != AUDIO_FORMAT_PCM_16_BIT) {
-	    ALOGE("Invalid output format (need 16-bit PCM): 0x%x", out.format);
+	if (!isSupportedFormat(out.format)) {
+	    ALOGE("Invalid output format (need 16-bit, 8.24 or float PCM): 0x%x", out.format);
+	    return -EINVAL;
 	}
+	mOutFormat = (audio_format_t) out.format;
     }
     if (out.mask & EFFECT_CONFIG_ACC_MODE) {
 	mAccessMode = (effect_buffer_access_e) out.accessMode;
@@ -71,6 +307,88 @@ int32_t Effect::configure(void* pCmdData) {
     return 0;
 }
 
+/* Most buffers have sound in the first few samples, so this is cheap
+ * unless the input really is silent. */
+bool Effect::isSilent(audio_buffer_t *in) {
+    uint32_t samples = in->frameCount * mChannels;
+    switch (mInFormat) {
+    case AUDIO_FORMAT_PCM_8_24_BIT:
+	for (uint32_t i = 0; i < samples; i ++) {
+	    if (in->s32[i] != 0) {
+		return false;
+	    }
+	}
+	return true;
+    case AUDIO_FORMAT_PCM_FLOAT:
+	for (uint32_t i = 0; i < samples; i ++) {
+	    if (in->f32[i] != 0) {
+		return false;
+	    }
+	}
+	return true;
+    default:
+	for (uint32_t i = 0; i < samples; i ++) {
+	    if (in->s16[i] != 0) {
+		return false;
+	    }
+	}
+	return true;
+    }
+}
+
+bool Effect::isIdle(audio_buffer_t *in, int32_t tailFrames) {
+    if (!isSilent(in)) {
+	mSilentFrames = 0;
+	mIdle = false;
+	return false;
+    }
+    if (mIdle) {
+	return true;
+    }
+    /* The tail of the last sound still plays out in this buffer. */
+    if (mSilentFrames < tailFrames) {
+	mSilentFrames += in->frameCount;
+	return false;
+    }
+    clearHistory();
+    mIdle = true;
+    return true;
+}
+
+/* Input and output must have the same channels. */
+void Effect::bypass(audio_buffer_t *in, audio_buffer_t *out) {
+    if (!mIdle) {
+	clearHistory();
+	mIdle = true;
+    }
+    mSilentFrames = 0;
+    /* A bypassed effect has nothing to make room for. */
+    mHeadroomMb = 0;
+    mHeadroomGain = 1 << 24;
+
+    uint32_t samples = in->frameCount * mChannels;
+    if (mInFormat == mOutFormat && mAccessMode != EFFECT_BUFFER_ACCESS_ACCUMULATE) {
+	if (in->raw != out->raw) {
+	    memcpy(out->raw, in->raw, samples * bytesPerSample(mInFormat));
+	}
+	return;
+    }
+    for (uint32_t i = 0; i < samples; i ++) {
+	write(out, i, read(in, i));
+    }
+}
+
+/* The input is known to be silent, so in place there is nothing to do. */
+void Effect::silence(audio_buffer_t *in, audio_buffer_t *out) {
+    if (mAccessMode == EFFECT_BUFFER_ACCESS_ACCUMULATE) {
+	return;
+    }
+    if (in->raw == out->raw && mInFormat == mOutFormat && mChannels == mOutChannels) {
+	return;
+    }
+    memset(out->raw, 0, in->frameCount * mOutChannels * bytesPerSample(mOutFormat));
+}
+
 int32_t Effect::command(uint32_t cmdCode, uint32_t cmdSize, void *pCmdData, uint32_t *replySize, void* pReplyData)
 {
     switch (cmdCode) {
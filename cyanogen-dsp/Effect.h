@@ -4,6 +4,48 @@
 #include <system/audio.h>
 #include <hardware/audio_effect.h>
 
+/* Largest channel count an effect accepts; this sizes the per-channel
+ * state arrays of the effects. 7.1 is the widest layout the mixer makes. */
+#define EFFECT_MAX_CHANNELS 8
+
+/* GET_PARAM of any effect of the library, psize 4: what the effect costs.
+ * The value is EFFECT_COST_VALUES int32:
+ *   average time in process(), picoseconds per frame
+ *   peak time in process(), picoseconds per frame, decaying over seconds
+ *   average share of real time, parts per million
+ *   memory held by the effect, bytes
+ *   buffers processed, wrapping
+ * Time is measured with the monotonic clock around each process() call
+ * that comes through the library interface. */
+#define EFFECT_PARAM_COST 3000
+#define EFFECT_COST_VALUES 5
+
+/* GET_PARAM of any effect of the library, psize 4: the level of its output.
+ * The value is EFFECT_LEVEL_VALUES int32:
+ *   samples written, wrapping
+ *   of them, samples beyond 16-bit full scale, wrapping
+ *   peak magnitude, 8.24, decaying over seconds
+ *   automatic headroom gain now applied, millibels
+ * Samples beyond full scale are clamped in 16-bit output, and will be by
+ * whoever consumes the wider formats. */
+#define EFFECT_PARAM_LEVELS 3001
+#define EFFECT_LEVEL_VALUES 4
+
+/* SET_PARAM and GET_PARAM of any effect of the library, psize 4, int16 0
+ * or 1: automatic headroom. While on, sustained clipping at the output
+ * backs the gain of the effect off in EFFECT_HEADROOM_STEP_MB steps, down
+ * to EFFECT_HEADROOM_MAX_MB; once the output has stayed clear of full scale
+ * for EFFECT_HEADROOM_HOLD_TIME seconds, the gain is given back a step at
+ * a time. */
+#define EFFECT_PARAM_AUTO_HEADROOM 3002
+#define EFFECT_HEADROOM_STEP_MB 50
+#define EFFECT_HEADROOM_MAX_MB 1200
+#define EFFECT_HEADROOM_HOLD_TIME 5.0f
+/* Consecutive buffers with clipping that count as sustained */
+#define EFFECT_HEADROOM_ATTACK_BUFFERS 3
+
+class SessionAnalysis;
+
 static inline uint8_t prng() {
     static uint32_t seed;
     seed = seed * 1664525 + 1013904223;
@@ -13,10 +55,46 @@ static inline uint8_t prng() {
 class Effect {
     private:
     effect_buffer_access_e mAccessMode;
+    audio_format_t mInFormat;
+    audio_format_t mOutFormat;
+    /* Frames of digital silence at the input, counted up to the tail. */
+    int32_t mSilentFrames;
+    /* The history has been cleared, and no sound has come in since. */
+    bool mIdle;
+    /* Level meter shared with the other effects of the session */
+    SessionAnalysis* mAnalysis;
+    int32_t mAnalysisConsumer;
+    /* Cost of process(), written by the audio thread only */
+    int32_t mCostAverage;
+    int32_t mCostPeak;
+    uint32_t mCostBuffers;
+    /* Output levels, gathered by write() during one buffer and added to
+     * the totals after it */
+    int32_t mBufferPeak;
+    uint32_t mBufferClipped;
+    uint32_t mLevelSamples;
+    uint32_t mLevelClipped;
+    int32_t mLevelPeak;
+    /* Automatic headroom: enable, stored by the command thread with release
+     * and loaded by the audio thread with acquire semantics, then the gain
+     * reduction in millibels and the 8.24 gain write() applies for it */
+    volatile int32_t mHeadroomEnable;
+    int32_t mHeadroomMb;
+    int32_t mHeadroomGain;
+    int32_t mClippedBuffers;
+    int32_t mClearFrames;
+
+    void updateHeadroom(uint32_t frames, uint32_t clipped, int32_t peak);
 
     protected:
     bool mEnable;
     float mSamplingRate;
+    /* Interleaved channel count and layout of the input and the output.
+     * They are the same except for an effect that downmixes. */
+    int32_t mChannels;
+    uint32_t mChannelMask;
+    int32_t mOutChannels;
+    uint32_t mOutChannelMask;
     uint8_t mPreviousRandom;
 
     /* High-passed triangular probability density function.
@@ -28,31 +106,129 @@ class Effect {
         return rnd;
     }
 
-    /* AudioFlinger only gives us 16-bit PCM for now. */
+    /* Convert an input sample to 8.24 fixed point. 16-bit PCM is what
+     * AudioFlinger normally gives us; 8.24 and float come from mixers that
+     * run at higher resolution, and from our own chained stages. */
     inline int32_t read(audio_buffer_t *in, int32_t idx) {
-        return in->s16[idx] << 8;
+        switch (mInFormat) {
+        case AUDIO_FORMAT_PCM_8_24_BIT:
+            return in->s32[idx];
+        case AUDIO_FORMAT_PCM_FLOAT:
+            return fromFloat(in->f32[idx]);
+        default:
+            return in->s16[idx] << 8;
+        }
     }
 
-    /* AudioFlinger only expects 16-bit PCM for now. */
+    /* Store an 8.24 sample in the output format. Only 16-bit output is
+     * the end of the line, so only it pays for dither and clamping; the
+     * wider formats keep the headroom for whoever consumes them next.
+     * Every format is metered, and takes the automatic headroom gain. */
     inline void write(audio_buffer_t *out, int32_t idx, int32_t sample) {
-        if (mAccessMode == EFFECT_BUFFER_ACCESS_ACCUMULATE) {
-            sample += out->s16[idx] << 8;
+        if (mHeadroomGain != 1 << 24) {
+            sample = int32_t((int64_t(sample) * mHeadroomGain) >> 24);
         }
-        sample = (sample + triangularDither8()) >> 8;
-        if (sample > 32767) {
-            sample = 32767;
+        /* One's complement, as for the analysis: cannot overflow. */
+        int32_t magnitude = sample < 0 ? ~sample : sample;
+        if (magnitude > mBufferPeak) {
+            mBufferPeak = magnitude;
         }
-        if (sample < -32768) {
-            sample = -32768;
+        if (magnitude >= 1 << 23) {
+            mBufferClipped ++;
         }
-        out->s16[idx] = sample;
+
+        switch (mOutFormat) {
+        case AUDIO_FORMAT_PCM_8_24_BIT:
+            if (mAccessMode == EFFECT_BUFFER_ACCESS_ACCUMULATE) {
+                sample += out->s32[idx];
+            }
+            out->s32[idx] = sample;
+            break;
+
+        case AUDIO_FORMAT_PCM_FLOAT: {
+            float value = sample * (1.f / (1 << 23));
+            if (mAccessMode == EFFECT_BUFFER_ACCESS_ACCUMULATE) {
+                value += out->f32[idx];
+            }
+            out->f32[idx] = value;
+            break;
+        }
+
+        default:
+            if (mAccessMode == EFFECT_BUFFER_ACCESS_ACCUMULATE) {
+                sample += out->s16[idx] << 8;
+            }
+            sample = (sample + triangularDither8()) >> 8;
+            if (sample > 32767) {
+                sample = 32767;
+            }
+            if (sample < -32768) {
+                sample = -32768;
+            }
+            out->s16[idx] = sample;
+            break;
+        }
+    }
+
+    /* Our fixed point has 16-bit full scale at 1 << 23, the same as
+     * AUDIO_FORMAT_PCM_8_24_BIT. Float samples are nominally -1 .. 1 but may
+     * exceed that range; there is headroom up to +-256 before we clamp. */
+    static inline int32_t fromFloat(float value) {
+        value *= 1 << 23;
+        if (value > 2147483520.f) {
+            return 0x7fffff80;
+        }
+        if (value < -2147483648.f) {
+            return -0x7fffffff - 1;
+        }
+        return int32_t(value);
     }
 
-    int32_t configure(void *pCmdData);
+    /* Forget the signal history, so that processing resumes as if after
+     * endless silence. Called on the way into idle, see below. */
+    virtual void clearHistory() {
+    }
+
+    /* Levels of the input, as measured by this effect or by another one
+     * of the session that processed the same buffer before it. */
+    const SessionAnalysis& analyze(audio_buffer_t *in);
+
+    /* Fast paths for an effect that has nothing to do. An effect that is
+     * disabled and fully faded out calls bypass(), which copies the input
+     * as it is. Otherwise it asks isIdle() whether the input has been
+     * digital silence for longer than tailFrames, the time its own output
+     * takes to die away; if so, it calls silence() instead of processing.
+     * Both clear the history once, so that sound comes back from rest. */
+    bool isSilent(audio_buffer_t *in);
+    bool isIdle(audio_buffer_t *in, int32_t tailFrames);
+    void bypass(audio_buffer_t *in, audio_buffer_t *out);
+    void silence(audio_buffer_t *in, audio_buffer_t *out);
+
+    static bool isSupportedFormat(uint32_t format);
+    /* Effects that allow downmixing accept any supported input layout
+     * together with stereo output. */
+    int32_t configure(void *pCmdData, bool allowDownmix = false);
 
     public:
     Effect();
     virtual ~Effect();
+    /* Must be called before the first process(). The analysis must
+     * outlive the effect. */
+    void setAnalysis(SessionAnalysis* analysis);
     virtual int32_t process(audio_buffer_t *in, audio_buffer_t *out) = 0;
+    /* process(), accounting for the time it takes and the levels it
+     * writes, and adjusting the automatic headroom. */
+    int32_t processAccounted(audio_buffer_t *in, audio_buffer_t *out);
+    /* Bytes held by the effect, itself and what it allocated. */
+    virtual uint32_t getMemoryUsage() const = 0;
+    /* Answers the parameters every effect of the library has, see
+     * EFFECT_PARAM_COST and below. Returns false if the command is
+     * something else, for command() to handle. */
+    bool libraryCommand(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
+    /* The history is clear and no sound has come in since, so silence
+     * would come out as silence. */
+    bool isResting() const {
+        return mIdle;
+    }
     virtual int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData) = 0;
 };
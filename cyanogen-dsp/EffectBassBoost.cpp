@@ -17,6 +17,7 @@
 #define LOG_TAG "Effect-BassBoost"
 
 #include <cutils/log.h>
+#include <math.h>
 #include "EffectBassBoost.h"
 
 typedef struct {
@@ -36,9 +37,12 @@ typedef struct {
 } reply1x4_1x2_t;
 
 EffectBassBoost::EffectBassBoost()
-    : mStrength(0)
+    : mMixScale(1 << 28), mBoostGain(1 << 24)
 {
+    mParameters.edit().strength = 0;
+    mParameters.reset();
     refreshStrength();
+    refreshRelease();
 }
 
 int32_t EffectBassBoost::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
@@ -51,6 +55,11 @@ int32_t EffectBassBoost::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
             return 0;
         }
 
+        /* Stereo sums as before; other layouts are scaled to the same level. */
+        mMixScale = (2 << 28) / mChannels;
+        refreshStrength();
+        refreshRelease();
+
         int32_t *replyData = (int32_t *) pReplyData;
         *replyData = 0;
         return 0;
@@ -72,7 +81,7 @@ int32_t EffectBassBoost::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
                 reply1x4_1x2_t *replyData = (reply1x4_1x2_t *) pReplyData;
                 replyData->status = 0;
                 replyData->vsize = 2;
-                replyData->data = mStrength;
+                replyData->data = mParameters.edit().strength;
                 *replySize = sizeof(reply1x4_1x2_t);
                 return 0;
             }
@@ -90,10 +99,10 @@ int32_t EffectBassBoost::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
         effect_param_t *cep = (effect_param_t *) pCmdData;
         if (cep->psize == 4 && cep->vsize == 2) {
             int32_t cmd = ((int32_t *) cep)[3];
-            if (cmd == BASSBOOST_PARAM_STRENGTH) {
-                mStrength = ((int16_t *) cep)[8];
-                ALOGI("New strength: %d", mStrength);
-                refreshStrength();
+            if (cmd == BASSBOOST_PARAM_STRENGTH || cmd == CUSTOM_BASSBOOST_PARAM_PROFILE) {
+                mParameters.edit().strength = ((int16_t *) cep)[8];
+                mParameters.publish();
+                ALOGI("New strength: %d", mParameters.edit().strength);
                 int32_t *replyData = (int32_t *) pReplyData;
                 *replyData = 0;
                 return 0;
@@ -109,38 +118,130 @@ int32_t EffectBassBoost::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
     return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
 }
 
+/* Redesign the filters for the current strength. Audio thread only. */
 void EffectBassBoost::refreshStrength()
 {
+    mHighPass.setHighPass(0, BASSBOOST_HIGHPASS_FREQUENCY, mSamplingRate, 0.707f);
     /* Q = 0.5 .. 2.0 */
-    mBoost.setLowPass(0, 55.0f, mSamplingRate, 0.5f + mStrength / 666.0f);
+    mBoost.setLowPass(0, 55.0f, mSamplingRate, 0.5f + mParameters.current().strength / 666.0f);
+}
+
+void EffectBassBoost::refreshRelease()
+{
+    mRelease = int32_t((1.0f - expf(-BASSBOOST_BLOCK / (BASSBOOST_RELEASE_TIME * mSamplingRate))) * (1 << 24));
+}
+
+void EffectBassBoost::clearHistory()
+{
+    mHighPass.clearHistory();
+    mBoost.clearHistory();
+    mBoostGain = 1 << 24;
+}
+
+/* The compressor of the boost. Whatever the boost does to a frame must
+ * leave it under the ceiling on every channel; the block is in hand
+ * before any of it is written, so the gain can come down before the
+ * frame that needs it, and it does so at once. It comes back up slowly,
+ * ramping across the block, and never past what this block allows.
+ * Returns the 8.24 gain step per frame. */
+int32_t EffectBassBoost::limitBoost(int32_t frames)
+{
+    /* The frame that allows the least gain, room / boost, found by cross
+     * multiplying so that only it is divided. */
+    int32_t worstRoom = 1;
+    int32_t worstBoost = 0;
+    for (int32_t i = 0; i < frames; i ++) {
+        int32_t room = BASSBOOST_CEILING - mPeak[i];
+        int32_t boost = mBoostData[i] < 0 ? -mBoostData[i] : mBoostData[i];
+        if (boost > room && int64_t(room) * worstBoost < int64_t(worstRoom) * boost) {
+            worstRoom = room;
+            worstBoost = boost;
+        }
+    }
+
+    int32_t allowed = 1 << 24;
+    if (worstBoost != 0) {
+        allowed = worstRoom > 0 ? int32_t((int64_t(worstRoom) << 24) / worstBoost) : 0;
+    }
+
+    if (allowed <= mBoostGain) {
+        mBoostGain = allowed;
+        return 0;
+    }
+    int32_t target = mBoostGain + int32_t((int64_t((1 << 24) - mBoostGain) * mRelease) >> 24);
+    if (target > allowed) {
+        target = allowed;
+    }
+    return (target - mBoostGain) / frames;
 }
 
 int32_t EffectBassBoost::process(audio_buffer_t* in, audio_buffer_t* out)
 {
-    for (uint32_t i = 0; i < in->frameCount; i ++) {
-        int32_t dryL = read(in, i * 2);
-        int32_t dryR = read(in, i * 2 + 1);
-
-        /* Original LVM effect was far more involved than this one.
-         * This effect is mostly a placeholder until I port that, or
-         * something else. LVM process diagram was as follows:
-         *
-         * in -> [ HPF ] -+-> [ mono mix ] -> [ BPF ] -> [ compressor ] -> out
-         *                `-->------------------------------>--'
-         *
-         * High-pass filter was optional, and seemed to be
-         * tuned at 55 Hz and upwards. BPF is probably always tuned
-         * at the same frequency, as this would make sense.
-         *
-         * Additionally, a compressor element was used to limit the
-         * mixing of the boost (only!) to avoid clipping.
-         */
-        int32_t boost = mBoost.process(dryL + dryR);
-
-        write(out, i * 2, dryL + boost);
-        write(out, i * 2 + 1, dryR + boost);
+    if (mParameters.update()) {
+        refreshStrength();
     }
 
-    return mEnable ? 0 : -ENODATA;
+    /* There is no fade: the boost stops at once, as it always has. */
+    if (!mEnable) {
+        bypass(in, out);
+        return -ENODATA;
     }
 
+    if (isIdle(in, int32_t(mSamplingRate * BASSBOOST_TAIL_TIME))) {
+        silence(in, out);
+        return 0;
+    }
+
+    /* This is the LVM bass enhancement, minus its optional high-pass of
+     * the dry signal, which is left alone:
+     *
+     * in -> [ mono mix ] -> [ HPF ] -> [ BPF ] -> [ compressor ] -+-> out
+     *  `------------------------------------------------------>---'
+     *
+     * The high-pass takes subsonic content out of the boost, and with the
+     * resonant low-pass at 55 Hz makes the band-pass. The compressor
+     * limits the mixing of the boost (only!) to avoid clipping. */
+    for (uint32_t offset = 0; offset < in->frameCount; offset += BASSBOOST_BLOCK) {
+        int32_t frames = in->frameCount - offset;
+        if (frames > BASSBOOST_BLOCK) {
+            frames = BASSBOOST_BLOCK;
+        }
+
+        int32_t* dry = mDry;
+        for (int32_t i = 0; i < frames; i ++) {
+            int32_t mix = 0;
+            int32_t peak = 0;
+            for (int32_t ch = 0; ch < mChannels; ch ++) {
+                int32_t sample = read(in, (offset + i) * mChannels + ch);
+                *dry ++ = sample;
+                mix += sample;
+                /* One's complement, as for the analysis: cannot overflow. */
+                int32_t magnitude = sample < 0 ? ~sample : sample;
+                if (magnitude > peak) {
+                    peak = magnitude;
+                }
+            }
+            mPeak[i] = peak;
+            mBoostData[i] = (int64_t(mix) * mMixScale + (1 << 27)) >> 28;
+        }
+
+        for (int32_t i = 0; i < frames; i ++) {
+            mBoostData[i] = mBoost.process(mHighPass.process(mBoostData[i]));
+        }
+
+        int32_t step = limitBoost(frames);
+
+        int32_t gain = mBoostGain;
+        dry = mDry;
+        for (int32_t i = 0; i < frames; i ++) {
+            int32_t boost = int32_t((int64_t(mBoostData[i]) * gain) >> 24);
+            gain += step;
+            for (int32_t ch = 0; ch < mChannels; ch ++) {
+                write(out, (offset + i) * mChannels + ch, *dry ++ + boost);
+            }
+        }
+        mBoostGain = gain;
+    }
+
+    return 0;
+}
@@ -4,17 +4,58 @@
 
 #include "Biquad.h"
 #include "Effect.h"
+#include "ParameterBlock.h"
+
+/* Whole settings in one SET_PARAM: int16 strength. */
+#define CUSTOM_BASSBOOST_PARAM_PROFILE 2000
+
+/* Seconds for the boost at its highest Q to ring down below the 8.24 LSB. */
+#define BASSBOOST_TAIL_TIME 0.5f
+
+/* Frames per pass through the stages of the boost. */
+#define BASSBOOST_BLOCK 64
+/* Corner of the high-pass that keeps subsonic content out of the boost,
+ * low enough to leave the boost at 55 Hz as it was. */
+#define BASSBOOST_HIGHPASS_FREQUENCY 25.0f
+/* The boost is held back so that dry plus boost stays under this, 8.24:
+ * -0.5 dBFS. */
+#define BASSBOOST_CEILING int32_t(0.944f * (1 << 23))
+/* Time constant for the boost to come back after it was held back. */
+#define BASSBOOST_RELEASE_TIME 0.1f
+
+typedef struct {
+    int16_t strength;
+} BassBoostParameters;
 
 class EffectBassBoost : public Effect {
     private:
-    int16_t mStrength;
+    ParameterBlock<BassBoostParameters> mParameters;
+    Biquad mHighPass;
     Biquad mBoost;
+    /* 4.28 scale from the sum of all channels to the level of a stereo mix,
+     * fine enough that six channels, rounded, mix as exactly as stereo */
+    int32_t mMixScale;
+
+    /* 8.24 gain of the boost as the compressor left it, and the share of
+     * the way back to unity it recovers per block */
+    int32_t mBoostGain;
+    int32_t mRelease;
+
+    /* One block: the input, the boost, and the largest input magnitude
+     * of each frame */
+    int32_t mDry[BASSBOOST_BLOCK * EFFECT_MAX_CHANNELS];
+    int32_t mBoostData[BASSBOOST_BLOCK];
+    int32_t mPeak[BASSBOOST_BLOCK];
 
     void refreshStrength();
+    void refreshRelease();
+    void clearHistory();
+    int32_t limitBoost(int32_t frames);
 
     public:
     EffectBassBoost();
 
     int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
     int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    uint32_t getMemoryUsage() const { return sizeof(*this); }
 };
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "Effect-Chain"
+
+#include <cutils/log.h>
+#include <string.h>
+
+#include "EffectChain.h"
+
+/* Largest SET_PARAM/GET_PARAM block we forward to a stage. The impulse
+ * response path of the virtualizer is the biggest user. */
+#define CHAIN_MAX_PARAM 512
+
+typedef struct {
+    int32_t status;
+    uint32_t psize;
+    uint32_t vsize;
+    int32_t cmd;
+    int16_t data;
+} reply1x4_1x2_t;
+
+EffectChain::EffectChain()
+{
+    mStages[CHAIN_STAGE_COMPRESSION] = &mCompression;
+    mStages[CHAIN_STAGE_EQUALIZER] = &mEqualizer;
+    mStages[CHAIN_STAGE_BASSBOOST] = &mBassBoost;
+    mStages[CHAIN_STAGE_VIRTUALIZER] = &mVirtualizer;
+    mStages[CHAIN_STAGE_MULTIBAND] = &mMultiband;
+    mStages[CHAIN_STAGE_LIMITER] = &mLimiter;
+    for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+        mStages[i]->setAnalysis(&mAnalysis);
+        mParameters.edit().stageEnabled[i] = false;
+        mStageEnabled[i] = false;
+        mStageActive[i] = false;
+    }
+    mParameters.reset();
+}
+
+/* Every stage runs on our working buffer, so it reads and writes 8.24 in
+ * place regardless of what the framework handed to us. */
+int32_t EffectChain::configureStages(void* pCmdData)
+{
+    effect_config_t config = *(effect_config_t *) pCmdData;
+    config.inputCfg.format = AUDIO_FORMAT_PCM_8_24_BIT;
+    config.inputCfg.mask |= EFFECT_CONFIG_FORMAT;
+    config.outputCfg.format = AUDIO_FORMAT_PCM_8_24_BIT;
+    config.outputCfg.accessMode = EFFECT_BUFFER_ACCESS_WRITE;
+    config.outputCfg.mask |= EFFECT_CONFIG_FORMAT | EFFECT_CONFIG_ACC_MODE;
+
+    for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+        int32_t reply = 0;
+        uint32_t replySize = sizeof(reply);
+        mStages[i]->command(EFFECT_CMD_SET_CONFIG, sizeof(config), &config, &replySize, &reply);
+        if (reply != 0) {
+            ALOGE("Stage %d rejected configuration: %d", i, reply);
+            return reply;
+        }
+    }
+    return 0;
+}
+
+/* Called from process(), at a buffer boundary. */
+void EffectChain::setStageEnabled(int32_t stage, bool enabled)
+{
+    int32_t reply = 0;
+    uint32_t replySize = sizeof(reply);
+    mStages[stage]->command(enabled ? EFFECT_CMD_ENABLE : EFFECT_CMD_DISABLE, 0, NULL, &replySize, &reply);
+    mStageEnabled[stage] = enabled;
+    /* A disabled stage stays active until it reports that it has faded out. */
+    if (enabled) {
+        mStageActive[stage] = true;
+    }
+}
+
+/* Send a SET_PARAM with one int32 parameter word to a stage. */
+int32_t EffectChain::setStageParam(int32_t stage, int32_t param, const void* value, uint32_t vsize)
+{
+    int32_t cmd[CHAIN_MAX_PARAM / 4];
+    effect_param_t *cep = (effect_param_t *) cmd;
+    if (sizeof(effect_param_t) + 4 + vsize > sizeof(cmd)) {
+        return -EINVAL;
+    }
+    cep->psize = 4;
+    cep->vsize = vsize;
+    cmd[3] = param;
+    memcpy(&cmd[4], value, vsize);
+
+    int32_t reply = 0;
+    uint32_t replySize = sizeof(reply);
+    mStages[stage]->command(EFFECT_CMD_SET_PARAM, sizeof(effect_param_t) + 4 + vsize, cmd, &replySize, &reply);
+    return reply;
+}
+
+/* Hand each stage its own profile, and the enables to process(). */
+int32_t EffectChain::setProfile(const int16_t* values, const char* impulse, uint32_t impulseLength)
+{
+    int32_t ret = setStageParam(CHAIN_STAGE_COMPRESSION, CUSTOM_COMPRESSION_PARAM_PROFILE, &values[1], 2);
+    int32_t stageRet = setStageParam(CHAIN_STAGE_EQUALIZER, CUSTOM_EQ_PARAM_PROFILE, &values[2], 14);
+    ret = ret != 0 ? ret : stageRet;
+    stageRet = setStageParam(CHAIN_STAGE_BASSBOOST, CUSTOM_BASSBOOST_PARAM_PROFILE, &values[9], 2);
+    ret = ret != 0 ? ret : stageRet;
+
+    char virtualizer[CHAIN_MAX_PARAM];
+    if (4 + impulseLength > sizeof(virtualizer)) {
+        return -EINVAL;
+    }
+    memcpy(virtualizer, &values[10], 4);
+    memcpy(virtualizer + 4, impulse, impulseLength);
+    stageRet = setStageParam(CHAIN_STAGE_VIRTUALIZER, CUSTOM_VIRTUALIZER_PARAM_PROFILE, virtualizer, 4 + impulseLength);
+    ret = ret != 0 ? ret : stageRet;
+    stageRet = setStageParam(CHAIN_STAGE_MULTIBAND, CUSTOM_MULTIBAND_PARAM_PROFILE, &values[12], 2);
+    ret = ret != 0 ? ret : stageRet;
+
+    ChainParameters& parameters = mParameters.edit();
+    for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+        parameters.stageEnabled[i] = (values[0] & (1 << i)) != 0;
+    }
+    mParameters.publish();
+    return ret;
+}
+
+/* Strip the stage number off the parameter and pass the command on. */
+int32_t EffectChain::forwardParam(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
+{
+    effect_param_t *cep = (effect_param_t *) pCmdData;
+    int32_t id = cep->psize >= 4 ? ((int32_t *) cep)[3] : 0;
+    int32_t stage = (id >> 16) - 1;
+    int32_t param = id & 0xffff;
+
+    if (id == CHAIN_PARAM_PROFILE && cmdCode == EFFECT_CMD_SET_PARAM
+        && cep->psize == 4 && cep->vsize >= CHAIN_PROFILE_SIZE) {
+        int16_t *values = ((int16_t *) cep) + 8;
+        int32_t *replyData = (int32_t *) pReplyData;
+        *replyData = setProfile(values, ((char *) values) + CHAIN_PROFILE_SIZE, cep->vsize - CHAIN_PROFILE_SIZE);
+        return 0;
+    }
+
+    if (stage < 0 || stage >= CHAIN_STAGES || cmdSize > CHAIN_MAX_PARAM) {
+        ALOGE("Unknown parameter 0x%x, %d bytes", id, cmdSize);
+        if (cmdCode == EFFECT_CMD_GET_PARAM) {
+            effect_param_t *replyData = (effect_param_t *) pReplyData;
+            replyData->status = -EINVAL;
+            replyData->vsize = 0;
+            *replySize = sizeof(effect_param_t);
+        } else {
+            int32_t *replyData = (int32_t *) pReplyData;
+            *replyData = -EINVAL;
+        }
+        return 0;
+    }
+
+    if (param == CHAIN_STAGE_PARAM_ENABLE && cep->psize == 4) {
+        if (cmdCode == EFFECT_CMD_SET_PARAM && cep->vsize == 2) {
+            mParameters.edit().stageEnabled[stage] = ((int16_t *) cep)[8] != 0;
+            mParameters.publish();
+            int32_t *replyData = (int32_t *) pReplyData;
+            *replyData = 0;
+            return 0;
+        }
+        if (cmdCode == EFFECT_CMD_GET_PARAM) {
+            reply1x4_1x2_t *replyData = (reply1x4_1x2_t *) pReplyData;
+            replyData->status = 0;
+            replyData->vsize = 2;
+            replyData->cmd = id;
+            replyData->data = mParameters.edit().stageEnabled[stage];
+            *replySize = sizeof(reply1x4_1x2_t);
+            return 0;
+        }
+    }
+
+    int32_t stageCmd[CHAIN_MAX_PARAM / 4];
+    memcpy(stageCmd, pCmdData, cmdSize);
+    stageCmd[3] = param;
+    int32_t ret = mStages[stage]->command(cmdCode, cmdSize, stageCmd, replySize, pReplyData);
+    if (cmdCode == EFFECT_CMD_GET_PARAM && *replySize >= 16) {
+        ((int32_t *) pReplyData)[3] = id;
+    }
+    return ret;
+}
+
+/* The stages are members, so only what they allocated is added. */
+uint32_t EffectChain::getMemoryUsage() const
+{
+    return sizeof(*this)
+        + mCompression.getMemoryUsage() - sizeof(mCompression)
+        + mEqualizer.getMemoryUsage() - sizeof(mEqualizer)
+        + mBassBoost.getMemoryUsage() - sizeof(mBassBoost)
+        + mVirtualizer.getMemoryUsage() - sizeof(mVirtualizer)
+        + mMultiband.getMemoryUsage() - sizeof(mMultiband)
+        + mLimiter.getMemoryUsage() - sizeof(mLimiter);
+}
+
+int32_t EffectChain::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
+{
+    if (cmdCode == EFFECT_CMD_SET_CONFIG) {
+        int32_t *replyData = (int32_t *) pReplyData;
+        int32_t ret = Effect::configure(pCmdData);
+        if (ret == 0) {
+            ret = configureStages(pCmdData);
+        }
+        *replyData = ret;
+        return 0;
+    }
+
+    if (cmdCode == EFFECT_CMD_GET_PARAM || cmdCode == EFFECT_CMD_SET_PARAM) {
+        return forwardParam(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
+    }
+
+    if (cmdCode == EFFECT_CMD_RESET) {
+        for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+            uint32_t stageReplySize = 0;
+            mStages[i]->command(EFFECT_CMD_RESET, 0, NULL, &stageReplySize, NULL);
+        }
+    }
+
+    return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
+}
+
+/* Convert once into the working buffer, run every active stage over it in
+ * place, and convert once back out. Only the final write dithers. */
+int32_t EffectChain::process(audio_buffer_t* in, audio_buffer_t* out)
+{
+    if (mParameters.update()) {
+        const ChainParameters& parameters = mParameters.current();
+        for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+            if (parameters.stageEnabled[i] != mStageEnabled[i]) {
+                setStageEnabled(i, parameters.stageEnabled[i]);
+            }
+        }
+    }
+
+    /* With no stage running there is not even a format conversion to do.
+     * The stages detect silence themselves, and once all of them are at
+     * rest silence need not go through them, nor get dithered. */
+    bool active = false;
+    bool resting = true;
+    for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+        if (mStageActive[i]) {
+            active = true;
+            resting &= mStages[i]->isResting();
+        }
+    }
+    if (!mEnable || !active) {
+        bypass(in, out);
+        return mEnable ? 0 : -ENODATA;
+    }
+    if (resting && isSilent(in)) {
+        silence(in, out);
+        return 0;
+    }
+
+    for (uint32_t offset = 0; offset < in->frameCount; offset += CHAIN_BLOCK) {
+        uint32_t frames = in->frameCount - offset;
+        if (frames > CHAIN_BLOCK) {
+            frames = CHAIN_BLOCK;
+        }
+
+        uint32_t samples = frames * mChannels;
+        for (uint32_t i = 0; i < samples; i ++) {
+            mWork[i] = read(in, offset * mChannels + i);
+        }
+
+        audio_buffer_t work;
+        work.frameCount = frames;
+        work.s32 = mWork;
+        for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+            if (mStageActive[i] && mStages[i]->process(&work, &work) != 0 && !mStageEnabled[i]) {
+                mStageActive[i] = false;
+            }
+        }
+
+        for (uint32_t i = 0; i < samples; i ++) {
+            write(out, offset * mChannels + i, mWork[i]);
+        }
+    }
+
+    return mEnable ? 0 : -ENODATA;
+}
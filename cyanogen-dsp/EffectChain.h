@@ -0,0 +1,83 @@
+#pragma once
+
+#include "Effect.h"
+#include "EffectBassBoost.h"
+#include "EffectCompression.h"
+#include "EffectEqualizer.h"
+#include "EffectLimiter.h"
+#include "EffectMultiband.h"
+#include "EffectVirtualizer.h"
+#include "ParameterBlock.h"
+#include "SessionAnalysis.h"
+
+/* Frames converted to the working buffer per pass through the stages. */
+#define CHAIN_BLOCK 1024
+
+/* Stages, in processing order. */
+#define CHAIN_STAGE_COMPRESSION 0
+#define CHAIN_STAGE_EQUALIZER 1
+#define CHAIN_STAGE_BASSBOOST 2
+#define CHAIN_STAGE_VIRTUALIZER 3
+#define CHAIN_STAGE_MULTIBAND 4
+#define CHAIN_STAGE_LIMITER 5
+#define CHAIN_STAGES 6
+
+/* Parameters are addressed to a stage by putting the stage number + 1 into
+ * the high 16 bits of the first parameter word. The low 16 bits, and any
+ * further parameter words, are what the stage's own effect would accept. */
+#define CHAIN_PARAM(stage, param) ((((stage) + 1) << 16) | (param))
+
+/* Per-stage parameter (int16 0 or 1) standing in for EFFECT_CMD_ENABLE. */
+#define CHAIN_STAGE_PARAM_ENABLE 0xffff
+
+/* Settings of every stage in one SET_PARAM, addressed to the chain itself
+ * (stage bits zero). The value is CHAIN_PROFILE_SIZE bytes of int16:
+ *   stage enables, one bit per stage
+ *   compression strength
+ *   equalizer loudness correction reference, then levels of 6 bands
+ *   bass boost strength
+ *   virtualizer strength and mode
+ *   multiband compression strength
+ * followed by the virtualizer impulse response path, not terminated. The
+ * limiter has no settings besides its enable bit. An impulse response that
+ * fails to load does not fail the profile; the virtualizer stage reports it
+ * with CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE_STATUS. */
+#define CHAIN_PARAM_PROFILE 2000
+#define CHAIN_PROFILE_SIZE 26
+
+typedef struct {
+    bool stageEnabled[CHAIN_STAGES];
+} ChainParameters;
+
+class EffectChain : public Effect {
+    private:
+    /* Shared by the stages, so it is constructed before them. */
+    SessionAnalysis mAnalysis;
+    EffectCompression mCompression;
+    EffectEqualizer mEqualizer;
+    EffectBassBoost mBassBoost;
+    EffectVirtualizer mVirtualizer;
+    EffectMultiband mMultiband;
+    EffectLimiter mLimiter;
+    Effect* mStages[CHAIN_STAGES];
+
+    /* Stage enables are applied by process(), which owns the stages. */
+    ParameterBlock<ChainParameters> mParameters;
+    bool mStageEnabled[CHAIN_STAGES];
+    /* Stage is enabled, or still fading out after being disabled. */
+    bool mStageActive[CHAIN_STAGES];
+
+    int32_t mWork[CHAIN_BLOCK * EFFECT_MAX_CHANNELS];
+
+    int32_t configureStages(void* pCmdData);
+    int32_t setStageParam(int32_t stage, int32_t param, const void* value, uint32_t vsize);
+    int32_t setProfile(const int16_t* values, const char* impulse, uint32_t impulseLength);
+    int32_t forwardParam(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
+    void setStageEnabled(int32_t stage, bool enabled);
+
+    public:
+    EffectChain();
+    int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
+    int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    uint32_t getMemoryUsage() const;
+};
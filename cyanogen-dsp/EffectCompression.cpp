@@ -18,6 +18,8 @@
 
 #include <cutils/log.h>
 #include "EffectCompression.h"
+#include "FastMath.h"
+#include "SessionAnalysis.h"
 
 #include <math.h>
 
@@ -33,12 +35,15 @@ static int32_t max(int32_t a, int32_t b)
 }
 
 EffectCompression::EffectCompression()
-    : mCompressionRatio(2.0), mFade(0)
+    : mWasEnabled(false), mFade(0)
 {
-    for (int32_t i = 0; i < 2; i ++) {
+    CompressionParameters& parameters = mParameters.edit();
+    parameters.compressionRatio = 2.0f;
+    for (int32_t i = 0; i < EFFECT_MAX_CHANNELS; i ++) {
         mCurrentLevel[i] = 0;
-        mUserLevel[i] = 1 << 24;
+        parameters.userLevel[i] = 1 << 24;
     }
+    mParameters.reset();
 }
 
 int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
@@ -51,11 +56,6 @@ int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
             return 0;
         }
 
-        /* This filter gives a reasonable approximation of A- and C-weighting
-         * which is close to correct for 100 - 10 kHz. 10 dB gain must be added to result. */
-        mWeigherBP[0].setBandPass(0, 2200, mSamplingRate, 0.33);
-        mWeigherBP[1].setBandPass(0, 2200, mSamplingRate, 0.33);
-
         *replyData = 0;
         return 0;
     }
@@ -65,10 +65,11 @@ int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
         if (cep->psize == 4 && cep->vsize == 2) {
             int32_t *replyData = (int32_t *) pReplyData;
             cmd1x4_1x2_t *strength = (cmd1x4_1x2_t *) pCmdData;
-            if (strength->code == 0) {
+            if (strength->code == 0 || strength->code == CUSTOM_COMPRESSION_PARAM_PROFILE) {
                 /* 1.0 .. 11.0 */
-                mCompressionRatio = 1.f + strength->value / 100.f;
-                ALOGI("Compression factor set to: %f", mCompressionRatio);
+                mParameters.edit().compressionRatio = 1.f + strength->value / 100.f;
+                mParameters.publish();
+                ALOGI("Compression factor set to: %f", mParameters.edit().compressionRatio);
                 *replyData = 0;
                 return 0;
             }
@@ -78,14 +79,22 @@ int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
         return -1;
     }
 
-    if (cmdCode == EFFECT_CMD_SET_VOLUME && cmdSize == 8) {
+    if (cmdCode == EFFECT_CMD_SET_VOLUME && cmdSize >= 4) {
         ALOGI("Setting volumes");
 
         if (pReplyData != NULL) {
+            /* AudioFlinger sends left and right volume only. Channels past
+             * those that we were given get the average of them. */
             int32_t *userVols = (int32_t *) pCmdData;
-            for (uint32_t i = 0; i < cmdSize / 4; i ++) {
-                ALOGI("user volume on channel %d: %d", i, userVols[i]);
-                mUserLevel[i] = userVols[i];
+            uint32_t count = cmdSize / 4;
+            int64_t sum = 0;
+            for (uint32_t i = 0; i < count; i ++) {
+                sum += userVols[i];
+            }
+            int32_t *userLevel = mParameters.edit().userLevel;
+            for (int32_t i = 0; i < EFFECT_MAX_CHANNELS; i ++) {
+                userLevel[i] = uint32_t(i) < count ? userVols[i] : int32_t(sum / count);
+                ALOGI("user volume on channel %d: %d", i, userLevel[i]);
             }
 
             int32_t *myVols = (int32_t *) pReplyData;
@@ -95,65 +104,67 @@ int32_t EffectCompression::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
             }
         } else {
             /* We don't control volume. */
-            for (int32_t i = 0; i < 2; i ++) {
-                mUserLevel[i] = 1 << 24;
+            for (int32_t i = 0; i < EFFECT_MAX_CHANNELS; i ++) {
+                mParameters.edit().userLevel[i] = 1 << 24;
             }
         }
+        mParameters.publish();
 
         return 0;
     }
 
-    /* Init to current volume level on enabling effect to prevent
-     * initial fade in / other shite */
-    if (cmdCode == EFFECT_CMD_ENABLE) {
-        ALOGI("Copying user levels as initial loudness.");
-        /* Unfortunately Android calls SET_VOLUME after ENABLE for us.
-         * so we can't really use those volumes. It's safest just to fade in
-         * each time. */
-        for (int32_t i = 0; i < 2; i ++) {
-             mCurrentLevel[i] = 0;
-        }
-    }
-
     return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
 }
 
-/* Return fixed point 16.48 */
-uint64_t EffectCompression::estimateOneChannelLevel(audio_buffer_t *in, int32_t interleave, int32_t offset, Biquad& weigherBP)
+int32_t EffectCompression::process(audio_buffer_t *in, audio_buffer_t *out)
 {
-    uint64_t power = 0;
-    for (uint32_t i = 0; i < in->frameCount; i ++) {
-        int32_t tmp = read(in, offset);
-        tmp = weigherBP.process(tmp);
-
-        /* 2^24 * 2^24 = 48 */
-        power += int64_t(tmp) * int64_t(tmp);
-        offset += interleave;
+    mParameters.update();
+    const CompressionParameters& parameters = mParameters.current();
+
+    /* Init to current volume level on enabling effect to prevent
+     * initial fade in / other shite. Unfortunately Android calls
+     * SET_VOLUME after ENABLE for us, so we can't really use those
+     * volumes. It's safest just to fade in each time. */
+    if (mEnable && !mWasEnabled) {
+        for (int32_t i = 0; i < EFFECT_MAX_CHANNELS; i ++) {
+            mCurrentLevel[i] = 0;
+        }
     }
+    mWasEnabled = mEnable;
 
-    return (power / in->frameCount);
-}
+    if (!mEnable && mFade == 0) {
+        bypass(in, out);
+        return -ENODATA;
+    }
 
-int32_t EffectCompression::process(audio_buffer_t *in, audio_buffer_t *out)
-{
-    /* Analyze both channels separately, pick the maximum power measured. */
+    /* Silence stays silent at any gain. The gain is held, rather than
+     * rising to full boost while there is nothing to measure, and the
+     * fade has nothing to smooth. */
+    if (isIdle(in, 0)) {
+        mFade = mEnable ? 100 : 0;
+        silence(in, out);
+        return mEnable ? 0 : -ENODATA;
+    }
+
+    /* Analyze all channels separately, pick the maximum power measured. */
+    const SessionAnalysis& analysis = analyze(in);
     uint64_t maximumPowerSquared = 0;
-    for (uint32_t i = 0; i < 2; i ++) {
-        uint64_t candidatePowerSquared = estimateOneChannelLevel(in, 2, i, mWeigherBP[i]);
+    for (int32_t i = 0; i < mChannels; i ++) {
+        uint64_t candidatePowerSquared = analysis.getPower(i);
         if (candidatePowerSquared > maximumPowerSquared) {
             maximumPowerSquared = candidatePowerSquared;
         }
     }
 
     /* -100 .. 0 dB. */
-    float signalPowerDb = logf(maximumPowerSquared / float(int64_t(1) << 48) + 1e-10f) / logf(10.0f) * 10.0f;
+    float signalPowerDb = fastPowerToDb(maximumPowerSquared / float(int64_t(1) << 48) + 1e-10f);
 
     /* Target 83 dB SPL */
-    signalPowerDb += 96.0f - 83.0f + 10.0f;
+    signalPowerDb += 96.0f - 83.0f + ANALYSIS_WEIGHTING_DB;
 
     /* now we have an estimate of the signal power, with 0 level around 83 dB.
      * we now select the level to boost to. */
-    float desiredLevelDb = signalPowerDb / mCompressionRatio;
+    float desiredLevelDb = signalPowerDb / parameters.compressionRatio;
 
     /* turn back to multiplier */
     float correctionDb = desiredLevelDb - signalPowerDb;
@@ -169,15 +180,15 @@ int32_t EffectCompression::process(audio_buffer_t *in, audio_buffer_t *out)
 
     /* Reduce extreme boost by a smooth ramp.
      * New range -50 .. 0 dB */
-    correctionDb -= powf(correctionDb/100, 2.0f) * (100.0f / 2.0f);
+    correctionDb -= (correctionDb/100) * (correctionDb/100) * (100.0f / 2.0f);
 
     /* 40.24 */
-    int64_t correctionFactor = (1 << 24) * powf(10.0f, correctionDb / 20.0f);
+    int64_t correctionFactor = (1 << 24) * fastDbToGain(correctionDb);
 
     /* Now we have correction factor and user-desired sound level. */
-    for (uint32_t i = 0; i < 2; i ++) {
+    for (int32_t i = 0; i < mChannels; i ++) {
         /* 8.24 */
-        int32_t desiredLevel = mUserLevel[i] * correctionFactor >> 24;
+        int32_t desiredLevel = parameters.userLevel[i] * correctionFactor >> 24;
 
         /* 8.24 */
         int32_t volAdj = desiredLevel - mCurrentLevel[i];
@@ -200,9 +211,9 @@ int32_t EffectCompression::process(audio_buffer_t *in, audio_buffer_t *out)
         }
 
         for (uint32_t j = 0; j < in->frameCount; j ++) {
-             int32_t value = read(in, j * 2 + i);
+             int32_t value = read(in, j * mChannels + i);
              value = int64_t(value) * mCurrentLevel[i] >> 24;
-             write(out, j * 2 + i, value);
+             write(out, j * mChannels + i, value);
              mCurrentLevel[i] += volAdj;
         }
     }
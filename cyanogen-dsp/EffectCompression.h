@@ -1,22 +1,28 @@
 #pragma once
 
-#include "Biquad.h"
 #include "Effect.h"
+#include "ParameterBlock.h"
+
+/* Whole settings in one SET_PARAM: int16 strength. */
+#define CUSTOM_COMPRESSION_PARAM_PROFILE 2000
+
+typedef struct {
+    float compressionRatio;
+    int32_t userLevel[EFFECT_MAX_CHANNELS];
+} CompressionParameters;
 
 class EffectCompression : public Effect {
     private:
-    int32_t mUserLevel[2];
-    float mCompressionRatio;
+    ParameterBlock<CompressionParameters> mParameters;
+    /* mEnable as of the previous buffer */
+    bool mWasEnabled;
 
     int32_t mFade;
-    int32_t mCurrentLevel[2];
-
-    Biquad mWeigherBP[2];
-
-    uint64_t estimateOneChannelLevel(audio_buffer_t *in, int32_t interleave, int32_t offset, Biquad& WeigherBP);
+    int32_t mCurrentLevel[EFFECT_MAX_CHANNELS];
 
     public:
     EffectCompression();
     int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
     int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    uint32_t getMemoryUsage() const { return sizeof(*this); }
 };
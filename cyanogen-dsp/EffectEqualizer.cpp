@@ -18,6 +18,8 @@
 
 #include <cutils/log.h>
 #include "EffectEqualizer.h"
+#include "FastMath.h"
+#include "SessionAnalysis.h"
 
 #include <math.h>
 
@@ -61,12 +63,33 @@ static int64_t toFixedPoint(float in) {
 }
 
 EffectEqualizer::EffectEqualizer()
-    : mLoudnessAdjustment(10000.f), mLoudnessL(50.f), mLoudnessR(50.f),
-      mNextUpdate(0), mNextUpdateInterval(1000), mPowerSquaredL(0), mPowerSquaredR(0), mFade(0)
+    : mNextUpdate(0), mNextUpdateInterval(1000), mPowerFrames(0), mFade(0), mShelfSamplingRate(0), mPeakBands(0)
 {
+    EqualizerParameters& parameters = mParameters.edit();
     for (int32_t i = 0; i < 6; i ++) {
-        mBand[i] = 0;
+        parameters.band[i] = 0;
     }
+    parameters.loudnessAdjustment = 10000.f;
+    parameters.parametricBands = 0;
+    mParameters.reset();
+    for (int32_t ch = 0; ch < EFFECT_MAX_CHANNELS; ch ++) {
+        mLoudness[ch] = 50.f;
+        mPower[ch] = 0;
+        /* Impossible value, so that the first refresh designs all filters. */
+        for (int32_t i = 0; i < 6; i ++) {
+            mGain[ch][i] = EQ_GAIN_UNKNOWN;
+        }
+    }
+    refreshShelves();
+}
+
+uint32_t EffectEqualizer::getMemoryUsage() const
+{
+    uint32_t usage = sizeof(*this);
+    for (int32_t i = 0; i < 5; i ++) {
+        usage += mShelf[i].getMemoryUsage();
+    }
+    return usage;
 }
 
 int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
@@ -82,6 +105,7 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
 
         /* 100 updates per second. */
         mNextUpdateInterval = int32_t(mSamplingRate / 100.);
+        refreshShelves();
 
         int32_t *replyData = (int32_t *) pReplyData;
         *replyData = 0;
@@ -90,16 +114,34 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
 
     if (cmdCode == EFFECT_CMD_GET_PARAM) {
         effect_param_t *cep = (effect_param_t *) pCmdData;
+        const EqualizerParameters& parameters = mParameters.edit();
+        int32_t bands = parameters.parametricBands != 0 ? parameters.parametricBands : 6;
         if (cep->psize == 4) {
             int32_t cmd = ((int32_t *) cep)[3];
             if (cmd == EQ_PARAM_NUM_BANDS) {
                 reply1x4_1x2_t *replyData = (reply1x4_1x2_t *) pReplyData;
                 replyData->status = 0;
                 replyData->vsize = 2;
-                replyData->data = 6;
+                replyData->data = bands;
                 *replySize = sizeof(reply1x4_1x2_t);
                 return 0;
             }
+            if (cmd == CUSTOM_EQ_PARAM_PARAMETRIC
+                    && *replySize >= 18 + uint32_t(parameters.parametricBands) * 6) {
+                int32_t *replyData = (int32_t *) pReplyData;
+                int16_t *values = ((int16_t *) pReplyData) + 8;
+                values[0] = parameters.parametricBands;
+                for (int32_t i = 0; i < parameters.parametricBands; i ++) {
+                    const EqualizerBand& band = parameters.parametric[i];
+                    values[1 + i * 3] = int16_t(lrintf(band.frequency));
+                    values[2 + i * 3] = int16_t(lrintf(band.gain * 100));
+                    values[3 + i * 3] = int16_t(lrintf(band.q * 100));
+                }
+                replyData[0] = 0;
+                replyData[2] = 2 + parameters.parametricBands * 6;
+                *replySize = 16 + replyData[2];
+                return 0;
+            }
             if (cmd == EQ_PARAM_LEVEL_RANGE) {
                 reply1x4_2x2_t *replyData = (reply1x4_2x2_t *) pReplyData;
                 replyData->status = 0;
@@ -120,16 +162,17 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
         } else if (cep->psize == 8) {
             int32_t cmd = ((int32_t *) cep)[3];
             int32_t arg = ((int32_t *) cep)[4];
-            if (cmd == EQ_PARAM_BAND_LEVEL && arg >= 0 && arg < 6) {
+            if (cmd == EQ_PARAM_BAND_LEVEL && arg >= 0 && arg < bands) {
+                float level = parameters.parametricBands != 0 ? parameters.parametric[arg].gain : parameters.band[arg];
                 reply2x4_1x2_t *replyData = (reply2x4_1x2_t *) pReplyData;
                 replyData->status = 0;
                 replyData->vsize = 2;
-                replyData->data = int16_t(mBand[arg] * 100 + 0.5f);
+                replyData->data = int16_t(lrintf(level * 100));
                 *replySize = sizeof(reply2x4_1x2_t);
                 return 0;
             }
-            if (cmd == EQ_PARAM_CENTER_FREQ && arg >= 0 && arg < 6) {
-                float centerFrequency = 15.625f * powf(4, arg);
+            if (cmd == EQ_PARAM_CENTER_FREQ && arg >= 0 && arg < bands) {
+                float centerFrequency = parameters.parametricBands != 0 ? parameters.parametric[arg].frequency : 15.625f * powf(4, arg);
                 reply2x4_1x4_t *replyData = (reply2x4_1x4_t *) pReplyData;
                 replyData->status = 0;
                 replyData->vsize = 4;
@@ -156,8 +199,54 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
             int32_t cmd = ((int32_t *) cep)[3];
             if (cmd == CUSTOM_EQ_PARAM_LOUDNESS_CORRECTION) {
                 int16_t value = ((int16_t *) cep)[8];
-                mLoudnessAdjustment = value / 100.0f;
-                ALOGI("Setting loudness correction reference to %f dB", mLoudnessAdjustment);
+                mParameters.edit().loudnessAdjustment = value / 100.0f;
+                mParameters.publish();
+                ALOGI("Setting loudness correction reference to %f dB", value / 100.0f);
+                *replyData = 0;
+                return 0;
+            }
+        }
+
+        if (cep->psize == 4 && cep->vsize >= 2 && cep->vsize <= 14 && (cep->vsize & 1) == 0) {
+            int32_t cmd = ((int32_t *) cep)[3];
+            if (cmd == CUSTOM_EQ_PARAM_PROFILE) {
+                int16_t *values = ((int16_t *) cep) + 8;
+                EqualizerParameters& parameters = mParameters.edit();
+                parameters.loudnessAdjustment = values[0] / 100.0f;
+                for (uint32_t i = 1; i < cep->vsize / 2; i ++) {
+                    parameters.band[i - 1] = values[i] / 100.0f;
+                }
+                mParameters.publish();
+                ALOGI("Setting profile of %d bands", cep->vsize / 2 - 1);
+                *replyData = 0;
+                return 0;
+            }
+        }
+
+        if (cep->psize == 4 && cep->vsize >= 2 && (cep->vsize - 2) % 6 == 0) {
+            int32_t cmd = ((int32_t *) cep)[3];
+            int16_t *values = ((int16_t *) cep) + 8;
+            int32_t bands = (cep->vsize - 2) / 6;
+            if (cmd == CUSTOM_EQ_PARAM_PARAMETRIC && values[0] == bands && bands <= EQ_MAX_PARAMETRIC_BANDS) {
+                for (int32_t i = 0; i < bands; i ++) {
+                    int16_t frequency = values[1 + i * 3];
+                    int16_t level = values[2 + i * 3];
+                    int16_t q = values[3 + i * 3];
+                    if (frequency < EQ_MIN_FREQUENCY || level < -EQ_MAX_LEVEL || level > EQ_MAX_LEVEL || q < EQ_MIN_Q || q > EQ_MAX_Q) {
+                        ALOGE("Parametric band %d out of range: %d Hz, %d mB, Q %d", i, frequency, level, q);
+                        *replyData = -EINVAL;
+                        return 0;
+                    }
+                }
+                EqualizerParameters& parameters = mParameters.edit();
+                for (int32_t i = 0; i < bands; i ++) {
+                    parameters.parametric[i].frequency = values[1 + i * 3];
+                    parameters.parametric[i].gain = values[2 + i * 3] / 100.0f;
+                    parameters.parametric[i].q = values[3 + i * 3] / 100.0f;
+                }
+                parameters.parametricBands = bands;
+                mParameters.publish();
+                ALOGI("Setting %d parametric bands", bands);
                 *replyData = 0;
                 return 0;
             }
@@ -166,12 +255,19 @@ int32_t EffectEqualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdD
         if (cep->psize == 8 && cep->vsize == 2) {
             int32_t cmd = ((int32_t *) cep)[3];
             int32_t arg = ((int32_t *) cep)[4];
+            EqualizerParameters& parameters = mParameters.edit();
+            int32_t bands = parameters.parametricBands != 0 ? parameters.parametricBands : 6;
 
-            if (cmd == EQ_PARAM_BAND_LEVEL && arg >= 0 && arg < 6) {
+            if (cmd == EQ_PARAM_BAND_LEVEL && arg >= 0 && arg < bands) {
                 *replyData = 0;
                 int16_t value = ((int16_t *) cep)[10];
                 ALOGI("Setting band %d to %d", arg, value);
-                mBand[arg] = value / 100.0f;
+                if (parameters.parametricBands != 0) {
+                    parameters.parametric[arg].gain = value / 100.0f;
+                } else {
+                    parameters.band[arg] = value / 100.0f;
+                }
+                mParameters.publish();
                 return 0;
             }
         }
@@ -210,8 +306,10 @@ float EffectEqualizer::getAdjustedBand(int32_t band, float loudness) {
     const float adj_beg[6] = {  0.0,  0.0,  0.0,  0.0, -1.0, -1.5 };
     const float adj_end[6] = { 42.3, 28.0, 10.0,  0.0, -3.0,  8.0 };
 
+    const EqualizerParameters& parameters = mParameters.current();
+
     /* Add loudness adjustment */
-    float loudnessLevel = loudness + mLoudnessAdjustment;
+    float loudnessLevel = loudness + parameters.loudnessAdjustment;
     if (loudnessLevel > 100.f) {
         loudnessLevel = 100.f;
     }
@@ -221,32 +319,162 @@ float EffectEqualizer::getAdjustedBand(int32_t band, float loudness) {
     /* Maximum loudness = no adj (reference behavior at 100 dB) */
     loudnessLevel = (loudnessLevel - 20.0f) / (100.0f - 20.0f);
 
-    /* Read user setting */
-    float f = mBand[band];
+    /* Read user setting; parametric bands have filters of their own. */
+    float f = parameters.parametricBands != 0 ? 0 : parameters.band[band];
     /* Add compensation values */
     f += adj_beg[band] + (adj_end[band] - adj_beg[band]) * (1.0f - loudnessLevel);
     /* Account for effect smooth fade in/out */
     return f * (mFade / 100.f);
 }
 
-void EffectEqualizer::refreshBands()
+/* Tabulate the shelf designs for a new sampling rate. This is the only
+ * place where the design formulas run. */
+void EffectEqualizer::refreshShelves()
 {
+    if (mShelfSamplingRate == mSamplingRate) {
+        return;
+    }
     for (int32_t band = 0; band < 5; band ++) {
         /* 15.625, 62.5, 250, 1000, 4000, 16000 */
         float centerFrequency = 15.625f * powf(4, band);
+        mShelf[band].build(centerFrequency * 2.0f, mSamplingRate, 1.0f);
+    }
+    mShelfSamplingRate = mSamplingRate;
+    for (int32_t ch = 0; ch < EFFECT_MAX_CHANNELS; ch ++) {
+        for (int32_t i = 0; i < 6; i ++) {
+            mGain[ch][i] = EQ_GAIN_UNKNOWN;
+        }
+    }
+    /* The peaking filters are designed anew as well. */
+    mPeakBands = 0;
+    refreshTail();
+}
 
-        float dBL = getAdjustedBand(band + 1, mLoudnessL) - getAdjustedBand(band, mLoudnessL);
-        float overallGainL = band == 0 ? getAdjustedBand(0, mLoudnessL) : 0.0f;
-        mFilterL[band].setHighShelf(mNextUpdateInterval, centerFrequency * 2.0f, mSamplingRate, dBL, 1.0f, overallGainL);
+void EffectEqualizer::clearHistory()
+{
+    for (int32_t ch = 0; ch < mChannels; ch ++) {
+        for (int32_t j = 0; j < 5; j ++) {
+            mFilter[ch][j].clearHistory();
+        }
+        for (int32_t j = 0; j < mPeakBands; j ++) {
+            mPeak[ch][j].clearHistory();
+        }
+    }
+}
 
-        float dBR = getAdjustedBand(band + 1, mLoudnessR) - getAdjustedBand(band, mLoudnessR);
-        float overallGainR = band == 0 ? getAdjustedBand(0, mLoudnessR) : 0.0f;
-        mFilterR[band].setHighShelf(mNextUpdateInterval, centerFrequency * 2.0f, mSamplingRate, dBR, 1.0f, overallGainR);
+void EffectEqualizer::refreshBands()
+{
+    for (int32_t ch = 0; ch < mChannels; ch ++) {
+        refreshChannel(mFilter[ch], mGain[ch], mLoudness[ch]);
     }
+    refreshPeaks();
 }
 
-void EffectEqualizer::updateLoudnessEstimate(float& loudness, int64_t powerSquared) {
-    float signalPowerDb = 96.0f + logf(powerSquared / mNextUpdateInterval / float(int64_t(1) << 48) + 1e-10f) / logf(10.0f) * 10.0f;
+/* Each peaking filter is redesigned when its quantized gain changes, and
+ * glides there over the update interval like the shelves do. A band that
+ * is new, or has moved or changed its Q, is set at once instead: the
+ * coefficients of two different center frequencies do not interpolate
+ * into anything meaningful. */
+void EffectEqualizer::refreshPeaks()
+{
+    const EqualizerParameters& parameters = mParameters.current();
+    bool reshaped = false;
+
+    for (int32_t band = 0; band < parameters.parametricBands; band ++) {
+        const EqualizerBand& setting = parameters.parametric[band];
+        EqualizerBand& design = mPeakDesign[band];
+        bool moved = band >= mPeakBands || setting.frequency != design.frequency || setting.q != design.q;
+        int32_t quantized = int32_t(lrintf(setting.gain * (mFade / 100.f) * EQ_GAIN_STEPS_PER_DB));
+        if (!moved && quantized == mPeakGain[band]) {
+            continue;
+        }
+
+        /* Nothing is left to shape close to the Nyquist frequency. */
+        float frequency = setting.frequency;
+        if (frequency > mSamplingRate * 0.45f) {
+            frequency = mSamplingRate * 0.45f;
+        }
+        BiquadCoefficients c;
+        Biquad::designPeaking(c, frequency, mSamplingRate, quantized / float(EQ_GAIN_STEPS_PER_DB), setting.q);
+        /* Every channel, so that the designs hold for any configuration. */
+        for (int32_t ch = 0; ch < EFFECT_MAX_CHANNELS; ch ++) {
+            if (band >= mPeakBands) {
+                mPeak[ch][band].clearHistory();
+            }
+            mPeak[ch][band].setCoefficients(moved ? 0 : mNextUpdateInterval, c);
+        }
+        mPeakGain[band] = quantized;
+        reshaped |= moved;
+        design = setting;
+    }
+
+    if (reshaped || mPeakBands != parameters.parametricBands) {
+        mPeakBands = parameters.parametricBands;
+        refreshTail();
+    }
+}
+
+/* The shelves ring down within EQ_TAIL_TIME. A peaking filter decays by
+ * alpha / A per frame, which for a narrow band low down can take seconds;
+ * ln(2^24) time constants take it below the LSB. */
+void EffectEqualizer::refreshTail()
+{
+    float tail = mSamplingRate * EQ_TAIL_TIME;
+    for (int32_t band = 0; band < mPeakBands; band ++) {
+        const EqualizerBand& design = mPeakDesign[band];
+        float w0 = 2.0f * float(M_PI) * design.frequency / mSamplingRate;
+        if (w0 > 2.0f * float(M_PI) * 0.45f) {
+            w0 = 2.0f * float(M_PI) * 0.45f;
+        }
+        float A = powf(10.0f, fabsf(design.gain) / 40.0f);
+        float bandTail = 16.6f * 2.0f * design.q * A / sinf(w0);
+        if (bandTail > tail) {
+            tail = bandTail;
+        }
+    }
+    mTailFrames = int32_t(tail);
+}
+
+/* The first filter carries the overall gain, and each filter shelves up
+ * to the next band's level. */
+void EffectEqualizer::refreshChannel(Biquad* filters, int32_t* gains, float loudness)
+{
+    float adjusted[6];
+    for (int32_t band = 0; band < 6; band ++) {
+        adjusted[band] = getAdjustedBand(band, loudness);
+    }
+
+    int32_t quantized[6];
+    quantized[0] = int32_t(lrintf(adjusted[0] * EQ_GAIN_STEPS_PER_DB));
+    bool changed = quantized[0] != gains[0];
+    for (int32_t band = 0; band < 5; band ++) {
+        quantized[band + 1] = int32_t(lrintf((adjusted[band + 1] - adjusted[band]) * EQ_GAIN_STEPS_PER_DB));
+        changed |= quantized[band + 1] != gains[band + 1];
+    }
+    if (!changed) {
+        return;
+    }
+
+    for (int32_t band = 0; band < 5; band ++) {
+        BiquadCoefficients c;
+        mShelf[band].lookup(c, quantized[band + 1] / float(EQ_GAIN_STEPS_PER_DB));
+        if (band == 0) {
+            /* Scale in double: the numerator terms nearly cancel at low frequencies. */
+            double overallGain = fastDbToGain(quantized[0] / float(EQ_GAIN_STEPS_PER_DB));
+            c.b0 = int64_t(c.b0 * overallGain);
+            c.b1 = int64_t(c.b1 * overallGain);
+            c.b2 = int64_t(c.b2 * overallGain);
+        }
+        filters[band].setCoefficients(mNextUpdateInterval, c);
+    }
+    for (int32_t i = 0; i < 6; i ++) {
+        gains[i] = quantized[i];
+    }
+}
+
+/* power is the sum over frames of the weighted power, 1.0 at full scale. */
+void EffectEqualizer::updateLoudnessEstimate(float& loudness, float power, int32_t frames) {
+    float signalPowerDb = 96.0f + ANALYSIS_WEIGHTING_DB + fastPowerToDb(power / frames + 1e-10f);
     /* Immediate rise-time, and perceptibly linear 10 dB/s decay */
     if (loudness > signalPowerDb + 0.1f) {
         loudness -= 0.1f;
@@ -257,18 +485,45 @@ void EffectEqualizer::updateLoudnessEstimate(float& loudness, int64_t powerSquar
 
 int32_t EffectEqualizer::process(audio_buffer_t *in, audio_buffer_t *out)
 {
-    for (uint32_t i = 0; i < in->frameCount; i ++) {
+    /* Settings change at buffer boundaries; the filters follow at their
+     * next update. */
+    mParameters.update();
+
+    /* Fully faded out, the filters are flat. */
+    if (!mEnable && mFade == 0) {
+        bypass(in, out);
+        return -ENODATA;
+    }
+
+    /* Silence is not measured, so the loudness estimate holds. The fade
+     * completes at once, with nothing to hear it. */
+    if (isIdle(in, mTailFrames)) {
+        mFade = mEnable ? 100 : 0;
+        refreshBands();
+        silence(in, out);
+        return mEnable ? 0 : -ENODATA;
+    }
+
+    /* Signal loudness estimate in SPL, from the session's meter. */
+    const SessionAnalysis& analysis = analyze(in);
+    for (int32_t ch = 0; ch < mChannels; ch ++) {
+        mPower[ch] += analysis.getPower(ch) * (in->frameCount / float(int64_t(1) << 48));
+    }
+    mPowerFrames += in->frameCount;
+
+    for (uint32_t i = 0; i < in->frameCount; ) {
         /* Update EQ? */
         if (mNextUpdate == 0) {
             mNextUpdate = mNextUpdateInterval;
 
-            //ALOGI("powerSqL: %lld, powerSqR: %lld", mPowerSquaredL, mPowerSquaredR);
-            updateLoudnessEstimate(mLoudnessL, mPowerSquaredL);
-            updateLoudnessEstimate(mLoudnessR, mPowerSquaredR);
-            //ALOGI("loudnessL: %f, loudnessR: %f", mLoudnessL, mLoudnessR);
-            mPowerSquaredL = 0;
-            mPowerSquaredR = 0;
-
+            /* A buffer longer than the interval is measured only once. */
+            if (mPowerFrames != 0) {
+                for (int32_t ch = 0; ch < mChannels; ch ++) {
+                    updateLoudnessEstimate(mLoudness[ch], mPower[ch], mPowerFrames);
+                    mPower[ch] = 0;
+                }
+                mPowerFrames = 0;
+            }
 
             if (mEnable && mFade < 100) {
                 mFade += 1;
@@ -279,23 +534,36 @@ int32_t EffectEqualizer::process(audio_buffer_t *in, audio_buffer_t *out)
 
             refreshBands();
         }
-        mNextUpdate --;
 
-        int32_t tmpL = read(in, i * 2);
-        int32_t tmpR = read(in, i * 2 + 1);
+        /* Up to the next update, so that the filters hold still over the
+         * block but while they interpolate. */
+        int32_t frames = in->frameCount - i;
+        if (frames > mNextUpdate) {
+            frames = mNextUpdate;
+        }
+        if (frames > EQ_BLOCK) {
+            frames = EQ_BLOCK;
+        }
+        mNextUpdate -= frames;
 
-        /* Update signal loudness estimate in SPL */
-        mPowerSquaredL += int64_t(tmpL) * tmpL;
-        mPowerSquaredR += int64_t(tmpR) * tmpR;
+        for (int32_t ch = 0; ch < mChannels; ch ++) {
+            for (int32_t j = 0; j < frames; j ++) {
+                mBlock[j] = read(in, (i + j) * mChannels + ch);
+            }
 
-        /* Evaluate EQ filters */
-        for (int32_t j = 0; j < 5; j ++) {
-            tmpL = mFilterL[j].process(tmpL);
-            tmpR = mFilterR[j].process(tmpR);
-        }
+            /* Evaluate EQ filters */
+            for (int32_t j = 0; j < 5; j ++) {
+                mFilter[ch][j].process(mBlock, frames);
+            }
+            for (int32_t j = 0; j < mPeakBands; j ++) {
+                mPeak[ch][j].process(mBlock, frames);
+            }
 
-        write(out, i * 2, tmpL);
-        write(out, i * 2 + 1, tmpR);
+            for (int32_t j = 0; j < frames; j ++) {
+                write(out, (i + j) * mChannels + ch, mBlock[j]);
+            }
+        }
+        i += frames;
     }
 
     return mEnable || mFade != 0 ? 0 : -ENODATA;
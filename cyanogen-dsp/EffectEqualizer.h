@@ -4,34 +4,101 @@
 
 #include "Biquad.h"
 #include "Effect.h"
+#include "ParameterBlock.h"
+#include "ShelfTable.h"
 
 #define CUSTOM_EQ_PARAM_LOUDNESS_CORRECTION 1000
+/* Parametric bands: int16 number of bands, up to EQ_MAX_PARAMETRIC_BANDS,
+ * then for each band int16 center frequency in Hz, level in millibels and
+ * Q in hundredths. No bands goes back to the six shelves. While there are
+ * parametric bands, the standard band parameters address them. */
+#define CUSTOM_EQ_PARAM_PARAMETRIC 1001
+/* Whole settings in one SET_PARAM: int16 loudness correction reference,
+ * then int16 levels of up to 6 bands, from the lowest. */
+#define CUSTOM_EQ_PARAM_PROFILE 2000
 
+/* Filter gains are quantized to this many steps per dB. The filters are
+ * only redesigned when a quantized gain changes. */
+#define EQ_GAIN_STEPS_PER_DB 20
+#define EQ_GAIN_UNKNOWN 0x7fffffff
+
+#define EQ_MAX_PARAMETRIC_BANDS 31
+/* Accepted band settings: frequency in Hz, level in millibels and Q in
+ * hundredths. The level goes past EQ_PARAM_LEVEL_RANGE, as far as the
+ * DSPManager surface does. */
+#define EQ_MIN_FREQUENCY 10
+#define EQ_MAX_LEVEL 1500
+#define EQ_MIN_Q 10
+#define EQ_MAX_Q 1000
+/* Frames filtered at a time, each filter over the whole block */
+#define EQ_BLOCK 64
+
+/* Seconds for the lowest shelf to ring down below the 8.24 LSB. */
+#define EQ_TAIL_TIME 0.25f
+
+typedef struct {
+    float frequency;
+    float gain;
+    float q;
+} EqualizerBand;
+
+typedef struct {
+    float band[6];
+    float loudnessAdjustment;
+    /* With parametric bands, the shelves only carry the loudness
+     * compensation, and the band levels above are not used. */
+    int32_t parametricBands;
+    EqualizerBand parametric[EQ_MAX_PARAMETRIC_BANDS];
+} EqualizerParameters;
+
+/* Six band shelving equalizer with loudness compensation, or, given a set
+ * of parametric bands, loudness compensation followed by a peaking filter
+ * per band. Either way each filter runs over a block of a channel at a
+ * time, so the cost per frame is a biquad per band. */
 class EffectEqualizer : public Effect {
     private:
-    float mBand[6];
-    Biquad mFilterL[5], mFilterR[5];
+    ParameterBlock<EqualizerParameters> mParameters;
+    Biquad mFilter[EFFECT_MAX_CHANNELS][5];
+    Biquad mPeak[EFFECT_MAX_CHANNELS][EQ_MAX_PARAMETRIC_BANDS];
+    int32_t mBlock[EQ_BLOCK];
 
     /* Automatic equalizer */
-    float mLoudnessAdjustment;
-
-    float mLoudnessL;
-    float mLoudnessR;
+    float mLoudness[EFFECT_MAX_CHANNELS];
     int32_t mNextUpdate;
     int32_t mNextUpdateInterval;
-    int64_t mPowerSquaredL;
-    int64_t mPowerSquaredR;
+    /* Weighted power summed over frames since the last update */
+    float mPower[EFFECT_MAX_CHANNELS];
+    int32_t mPowerFrames;
 
     /* Smooth enable/disable */
     int32_t mFade;
 
+    /* Shelf designs for the current sampling rate */
+    ShelfTable mShelf[5];
+    float mShelfSamplingRate;
+    /* Last quantized overall gain and shelf gains, per channel */
+    int32_t mGain[EFFECT_MAX_CHANNELS][6];
+    /* Parametric bands as designed, and their last quantized gains, which
+     * are the same for every channel */
+    int32_t mPeakBands;
+    EqualizerBand mPeakDesign[EQ_MAX_PARAMETRIC_BANDS];
+    int32_t mPeakGain[EQ_MAX_PARAMETRIC_BANDS];
+    /* Frames for the filters to ring down below the 8.24 LSB */
+    int32_t mTailFrames;
+
     void setBand(int32_t idx, float dB);
     float getAdjustedBand(int32_t idx, float loudness);
+    void refreshShelves();
     void refreshBands();
-    void updateLoudnessEstimate(float& loudness, int64_t powerSquared);
+    void refreshChannel(Biquad* filters, int32_t* gains, float loudness);
+    void refreshPeaks();
+    void refreshTail();
+    void updateLoudnessEstimate(float& loudness, float power, int32_t frames);
+    void clearHistory();
 
     public:
     EffectEqualizer();
     int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
     int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    uint32_t getMemoryUsage() const;
 };
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "Effect-Limiter"
+
+#include <cutils/log.h>
+#include <math.h>
+#include <string.h>
+
+#include "EffectLimiter.h"
+
+#define LIMITER_MASK (LIMITER_RING - 1)
+
+EffectLimiter::EffectLimiter()
+    : mWasEnabled(false)
+{
+    refresh();
+}
+
+int32_t EffectLimiter::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
+{
+    if (cmdCode == EFFECT_CMD_SET_CONFIG) {
+        int32_t *replyData = (int32_t *) pReplyData;
+        int32_t ret = Effect::configure(pCmdData);
+        if (ret == 0) {
+            refresh();
+        }
+        *replyData = ret;
+        return 0;
+    }
+
+    /* The limiter has no parameters of its own; the ones every effect
+     * has never reach command(). */
+    if (cmdCode == EFFECT_CMD_GET_PARAM) {
+        ALOGE("Unknown GET_PARAM");
+        effect_param_t *replyData = (effect_param_t *) pReplyData;
+        replyData->status = -EINVAL;
+        replyData->vsize = 0;
+        *replySize = sizeof(effect_param_t);
+        return 0;
+    }
+
+    if (cmdCode == EFFECT_CMD_SET_PARAM) {
+        ALOGE("Unknown SET_PARAM");
+        int32_t *replyData = (int32_t *) pReplyData;
+        *replyData = -EINVAL;
+        return 0;
+    }
+
+    return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
+}
+
+/* Settings that follow from the sampling rate. Clears the history, whose
+ * window length they change. */
+void EffectLimiter::refresh()
+{
+    mLookahead = int32_t(LIMITER_LOOKAHEAD_TIME * mSamplingRate);
+    if (mLookahead < 1) {
+        mLookahead = 1;
+    }
+    if (mLookahead > LIMITER_RING - 4) {
+        mLookahead = LIMITER_RING - 4;
+    }
+    mAverage = ((int64_t(1) << 32) + mLookahead - 1) / mLookahead;
+    mCeiling = int32_t(powf(10.0f, LIMITER_CEILING_DB / 20.0f) * (1 << 23));
+    mRelease = int32_t((1.0f - expf(-1.0f / (LIMITER_RELEASE_TIME * mSamplingRate))) * (1 << 24));
+    clearHistory();
+}
+
+void EffectLimiter::clearHistory()
+{
+    memset(mRing, 0, sizeof(mRing));
+    mFrame = 0;
+    mDequeHead = 0;
+    mDequeTail = 0;
+    mTargetPeak = 0;
+    mTarget = 1 << 24;
+    mReleased = 1 << 24;
+    for (int32_t i = 0; i < LIMITER_RING; i ++) {
+        mGain[i] = 1 << 24;
+    }
+    mGainSum = int64_t(mLookahead) << 24;
+}
+
+/* Peak of frame - 1 in the ring, which is the latest one with a frame
+ * on both sides: its samples, and the points halfway to frame - 2. */
+int32_t EffectLimiter::framePeak(uint32_t frame)
+{
+    const int32_t* a = &mRing[((frame - 3) & LIMITER_MASK) * mChannels];
+    const int32_t* b = &mRing[((frame - 2) & LIMITER_MASK) * mChannels];
+    const int32_t* c = &mRing[((frame - 1) & LIMITER_MASK) * mChannels];
+    const int32_t* d = &mRing[(frame & LIMITER_MASK) * mChannels];
+
+    int64_t peak = 0;
+    for (int32_t ch = 0; ch < mChannels; ch ++) {
+        int64_t sample = c[ch];
+        int64_t half = (9 * (int64_t(b[ch]) + c[ch]) - a[ch] - d[ch]) >> 4;
+        if (sample < 0) {
+            sample = -sample;
+        }
+        if (half < 0) {
+            half = -half;
+        }
+        if (sample > peak) {
+            peak = sample;
+        }
+        if (half > peak) {
+            peak = half;
+        }
+    }
+    return peak > 0x7fffffff ? 0x7fffffff : int32_t(peak);
+}
+
+/* Add the peak of a frame to the window ending with it, and return the
+ * largest peak in the window. */
+int32_t EffectLimiter::windowPeak(uint32_t frame, int32_t peak)
+{
+    while (mDequeTail != mDequeHead && mDequePeak[(mDequeTail - 1) & LIMITER_MASK] <= peak) {
+        mDequeTail --;
+    }
+    mDequePeak[mDequeTail & LIMITER_MASK] = peak;
+    mDequeFrame[mDequeTail & LIMITER_MASK] = frame;
+    mDequeTail ++;
+
+    while (frame - mDequeFrame[mDequeHead & LIMITER_MASK] >= uint32_t(mLookahead)) {
+        mDequeHead ++;
+    }
+    return mDequePeak[mDequeHead & LIMITER_MASK];
+}
+
+int32_t EffectLimiter::process(audio_buffer_t* in, audio_buffer_t* out)
+{
+    if (!mEnable && !mWasEnabled) {
+        bypass(in, out);
+        return -ENODATA;
+    }
+
+    /* Switching on or off, the delayed and limited signal and the input
+     * as it is are crossfaded over one buffer, so that the delay neither
+     * drops nor repeats a millisecond of sound. */
+    bool fade = mEnable != mWasEnabled;
+    mWasEnabled = mEnable;
+    if (!fade && isIdle(in, mLookahead)) {
+        silence(in, out);
+        return 0;
+    }
+
+    int32_t fadeStep = fade ? (1 << 24) / int32_t(in->frameCount) : 0;
+    int32_t fadeFrom = mEnable ? 0 : 1 << 24;
+    if (!mEnable) {
+        fadeStep = -fadeStep;
+    }
+
+    for (uint32_t i = 0; i < in->frameCount; i ++) {
+        uint32_t frame = mFrame ++;
+        int32_t* input = &mRing[(frame & LIMITER_MASK) * mChannels];
+        for (int32_t ch = 0; ch < mChannels; ch ++) {
+            input[ch] = read(in, i * mChannels + ch);
+        }
+
+        /* The window peak changes seldom, so the division is cached. */
+        int32_t peak = windowPeak(frame - 1, framePeak(frame));
+        if (peak != mTargetPeak) {
+            mTargetPeak = peak;
+            mTarget = peak > mCeiling ? int32_t((int64_t(mCeiling) << 24) / peak) : 1 << 24;
+        }
+        int32_t target = mTarget;
+        if (target < mReleased) {
+            mReleased = target;
+        } else {
+            /* Rounded up, so that the gain gets all the way back. */
+            mReleased += int32_t((int64_t(target - mReleased) * mRelease + (1 << 24) - 1) >> 24);
+        }
+
+        mGainSum += mReleased - mGain[(frame - mLookahead) & LIMITER_MASK];
+        mGain[frame & LIMITER_MASK] = mReleased;
+        /* Rounding up keeps unity exact, and can add no more than an LSB
+         * to a reduced gain, far inside the margin of the ceiling. */
+        int32_t gain = int32_t((mGainSum * mAverage) >> 32);
+        if (gain > 1 << 24) {
+            gain = 1 << 24;
+        }
+
+        /* The frame whose peak entered the window a full window ago. */
+        const int32_t* delayed = &mRing[((frame - mLookahead) & LIMITER_MASK) * mChannels];
+        if (!fade) {
+            for (int32_t ch = 0; ch < mChannels; ch ++) {
+                write(out, i * mChannels + ch, int32_t((int64_t(delayed[ch]) * gain) >> 24));
+            }
+            continue;
+        }
+
+        int32_t wet = fadeFrom + fadeStep * int32_t(i);
+        for (int32_t ch = 0; ch < mChannels; ch ++) {
+            int32_t limited = int32_t((int64_t(delayed[ch]) * gain) >> 24);
+            int32_t sample = limited + int32_t(((int64_t(input[ch]) - limited) * ((1 << 24) - wet)) >> 24);
+            write(out, i * mChannels + ch, sample);
+        }
+    }
+
+    return mEnable ? 0 : -ENODATA;
+}
@@ -0,0 +1,76 @@
+#pragma once
+
+#include "Effect.h"
+
+/* Frames held by the ring buffers, a power of two. It must exceed the
+ * lookahead at the highest sampling rate, 192 at 192 kHz. */
+#define LIMITER_RING 256
+/* Delay through the limiter, and the time over which the gain comes
+ * down ahead of a peak. */
+#define LIMITER_LOOKAHEAD_TIME 0.001f
+/* Time constant for the gain to come back up after a peak. */
+#define LIMITER_RELEASE_TIME 0.05f
+/* The output stays under this, dBFS. The margin below full scale covers
+ * what the peak interpolation does not catch. */
+#define LIMITER_CEILING_DB -1.0f
+
+/* Lookahead brickwall limiter, meant to be the last effect of a session.
+ *
+ * The peak of each frame is the largest of its samples and of the sample
+ * points halfway to the frame before, interpolated with a 4-tap cubic, so
+ * that peaks between the samples are seen too. The largest peak over the
+ * lookahead window is kept in amortized O(1) per frame by a monotonic
+ * deque: a ring of frames, each louder than every frame after it, from
+ * which expired frames leave at the front and frames beaten by a new one
+ * leave at the back.
+ *
+ * The gain for the window peak, after a release filter that lets it rise
+ * only slowly, is averaged over the lookahead window and applied to the
+ * input delayed by that window. Every gain in the average is at most what
+ * the delayed frame needs, so no frame leaves over the ceiling, and the
+ * average ramps the gain down over the lookahead rather than in one step.
+ *
+ * Everything is in fixed size members: process() does not allocate. */
+class EffectLimiter : public Effect {
+    private:
+    /* mEnable as of the previous buffer */
+    bool mWasEnabled;
+    int32_t mLookahead;
+    /* 8.24 ceiling, and the share of the way to the target gain the
+     * release covers per frame */
+    int32_t mCeiling;
+    int32_t mRelease;
+    /* 32.32 reciprocal of mLookahead, rounded up, for the average */
+    int64_t mAverage;
+
+    /* Input frames, interleaved, and the count of frames written. */
+    int32_t mRing[LIMITER_RING * EFFECT_MAX_CHANNELS];
+    uint32_t mFrame;
+
+    /* The deque of frame peaks, with the frame number of each. */
+    int32_t mDequePeak[LIMITER_RING];
+    uint32_t mDequeFrame[LIMITER_RING];
+    uint32_t mDequeHead;
+    uint32_t mDequeTail;
+    /* Window peak the target gain was last computed for, and the gain */
+    int32_t mTargetPeak;
+    int32_t mTarget;
+
+    /* 8.24 gain after the release filter, its last mLookahead values and
+     * their sum */
+    int32_t mReleased;
+    int32_t mGain[LIMITER_RING];
+    int64_t mGainSum;
+
+    void refresh();
+    void clearHistory();
+    int32_t framePeak(uint32_t frame);
+    int32_t windowPeak(uint32_t frame, int32_t peak);
+
+    public:
+    EffectLimiter();
+
+    int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
+    int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    uint32_t getMemoryUsage() const { return sizeof(*this); }
+};
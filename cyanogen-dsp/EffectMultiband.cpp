@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "Effect-Multiband"
+
+#include <cutils/log.h>
+#include <math.h>
+
+#include "EffectMultiband.h"
+#include "FastMath.h"
+
+/* Q of the Butterworth sections; two in cascade make a Linkwitz-Riley. */
+#define BUTTERWORTH_Q 0.70710678
+
+typedef struct {
+    int32_t status;
+    uint32_t psize;
+    uint32_t vsize;
+    int32_t cmd;
+    int16_t data;
+} reply1x4_1x2_t;
+
+EffectMultiband::EffectMultiband()
+    : mWasEnabled(false)
+{
+    mParameters.edit().strength = 0;
+    mParameters.reset();
+    refreshStrength();
+    refreshFilters();
+}
+
+int32_t EffectMultiband::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
+{
+    if (cmdCode == EFFECT_CMD_SET_CONFIG) {
+        int32_t *replyData = (int32_t *) pReplyData;
+        int32_t ret = Effect::configure(pCmdData);
+        if (ret == 0) {
+            refreshFilters();
+        }
+        *replyData = ret;
+        return 0;
+    }
+
+    if (cmdCode == EFFECT_CMD_GET_PARAM) {
+        effect_param_t *cep = (effect_param_t *) pCmdData;
+        if (cep->psize == 4) {
+            int32_t cmd = ((int32_t *) cep)[3];
+            if (cmd == 0) {
+                reply1x4_1x2_t *replyData = (reply1x4_1x2_t *) pReplyData;
+                replyData->status = 0;
+                replyData->vsize = 2;
+                replyData->data = mParameters.edit().strength;
+                *replySize = sizeof(reply1x4_1x2_t);
+                return 0;
+            }
+        }
+
+        ALOGE("Unknown GET_PARAM of %d bytes", cep->psize);
+        effect_param_t *replyData = (effect_param_t *) pReplyData;
+        replyData->status = -EINVAL;
+        replyData->vsize = 0;
+        *replySize = sizeof(effect_param_t);
+        return 0;
+    }
+
+    if (cmdCode == EFFECT_CMD_SET_PARAM) {
+        effect_param_t *cep = (effect_param_t *) pCmdData;
+        if (cep->psize == 4 && cep->vsize == 2) {
+            int32_t cmd = ((int32_t *) cep)[3];
+            if (cmd == 0 || cmd == CUSTOM_MULTIBAND_PARAM_PROFILE) {
+                mParameters.edit().strength = ((int16_t *) cep)[8];
+                mParameters.publish();
+                ALOGI("New strength: %d", mParameters.edit().strength);
+                int32_t *replyData = (int32_t *) pReplyData;
+                *replyData = 0;
+                return 0;
+            }
+        }
+
+        ALOGE("Unknown SET_PARAM of %d, %d bytes", cep->psize, cep->vsize);
+        int32_t *replyData = (int32_t *) pReplyData;
+        *replyData = -EINVAL;
+        return 0;
+    }
+
+    return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
+}
+
+/* Ratio 1 .. MULTIBAND_MAX_RATIO. Audio thread only. */
+void EffectMultiband::refreshStrength()
+{
+    float ratio = 1.0f + (MULTIBAND_MAX_RATIO - 1.0f) * mParameters.current().strength / 1000.0f;
+    if (ratio < 1.0f) {
+        ratio = 1.0f;
+    }
+    mSlope = 1.0f - 1.0f / ratio;
+}
+
+/* Settings that follow from the sampling rate. Clears the history. */
+void EffectMultiband::refreshFilters()
+{
+    for (int32_t ch = 0; ch < EFFECT_MAX_CHANNELS; ch ++) {
+        for (int32_t k = 0; k < 2; k ++) {
+            mLowPass1[k][ch].setLowPass(0, MULTIBAND_LOW_CROSSOVER, mSamplingRate, BUTTERWORTH_Q);
+            mLowPass2[k][ch].setLowPass(0, MULTIBAND_HIGH_CROSSOVER, mSamplingRate, BUTTERWORTH_Q);
+            mAllPass2[k][ch].setAllPass(0, MULTIBAND_HIGH_CROSSOVER, mSamplingRate, BUTTERWORTH_Q);
+        }
+        mAllPass1[ch].setAllPass(0, MULTIBAND_LOW_CROSSOVER, mSamplingRate, BUTTERWORTH_Q);
+    }
+    mAverage = 1.0f - expf(-MULTIBAND_BLOCK / (MULTIBAND_RMS_TIME * mSamplingRate));
+    mAttack = 1.0f - expf(-MULTIBAND_BLOCK / (MULTIBAND_ATTACK_TIME * mSamplingRate));
+    mRelease = 1.0f - expf(-MULTIBAND_BLOCK / (MULTIBAND_RELEASE_TIME * mSamplingRate));
+    clearHistory();
+}
+
+void EffectMultiband::clearHistory()
+{
+    for (int32_t ch = 0; ch < EFFECT_MAX_CHANNELS; ch ++) {
+        for (int32_t k = 0; k < 2; k ++) {
+            mLowPass1[k][ch].clearHistory();
+            mLowPass2[k][ch].clearHistory();
+            mAllPass2[k][ch].clearHistory();
+        }
+        mAllPass1[ch].clearHistory();
+    }
+    for (int32_t b = 0; b < MULTIBAND_BANDS; b ++) {
+        mPower[b] = 0;
+        mGainDb[b] = 0;
+        mGain[b] = 1 << 24;
+    }
+}
+
+/* Split one block into the bands, and measure the power of the loudest
+ * channel of each band. Power is the mean square in 16-bit units. */
+void EffectMultiband::split(audio_buffer_t* in, uint32_t offset, int32_t frames, uint64_t* power)
+{
+    for (int32_t b = 0; b < MULTIBAND_BANDS; b ++) {
+        power[b] = 0;
+    }
+
+    for (int32_t ch = 0; ch < mChannels; ch ++) {
+        int32_t* low = mBand[0][ch];
+        int32_t* mid = mBand[1][ch];
+        int32_t* high = mBand[2][ch];
+
+        for (int32_t i = 0; i < frames; i ++) {
+            low[i] = mid[i] = read(in, (offset + i) * mChannels + ch);
+        }
+        mLowPass1[0][ch].process(low, frames);
+        mLowPass1[1][ch].process(low, frames);
+        mAllPass1[ch].process(mid, frames);
+        for (int32_t i = 0; i < frames; i ++) {
+            high[i] = mid[i] -= low[i];
+        }
+        mLowPass2[0][ch].process(mid, frames);
+        mLowPass2[1][ch].process(mid, frames);
+        mAllPass2[1][ch].process(high, frames);
+        mAllPass2[0][ch].process(low, frames);
+
+        /* 16-bit units squared leave room for a block of samples far
+         * over full scale. */
+        uint64_t sum[MULTIBAND_BANDS] = { 0, 0, 0 };
+        for (int32_t i = 0; i < frames; i ++) {
+            high[i] -= mid[i];
+            int64_t l = low[i] >> 8, m = mid[i] >> 8, h = high[i] >> 8;
+            sum[0] += l * l;
+            sum[1] += m * m;
+            sum[2] += h * h;
+        }
+        for (int32_t b = 0; b < MULTIBAND_BANDS; b ++) {
+            if (sum[b] > power[b]) {
+                power[b] = sum[b];
+            }
+        }
+    }
+
+    for (int32_t b = 0; b < MULTIBAND_BANDS; b ++) {
+        power[b] /= frames;
+    }
+}
+
+/* Follow the level of each band and work out the gain it should have at
+ * the end of the block. Returns the 8.24 gain step per frame of each. */
+void EffectMultiband::computeGains(const uint64_t* power, int32_t frames, int32_t* steps)
+{
+    for (int32_t b = 0; b < MULTIBAND_BANDS; b ++) {
+        /* Relative to a full scale square wave */
+        mPower[b] += (power[b] / float(1 << 30) - mPower[b]) * mAverage;
+        float over = fastPowerToDb(mPower[b] + 1e-10f) - MULTIBAND_THRESHOLD_DB;
+        float gainDb = over > 0 ? -over * mSlope : 0;
+        mGainDb[b] += (gainDb - mGainDb[b]) * (gainDb < mGainDb[b] ? mAttack : mRelease);
+
+        /* The last hundredth of a dB of the release is skipped, so that
+         * the gain gets back to exactly unity. */
+        int32_t target = 1 << 24;
+        if (mGainDb[b] < -0.01f) {
+            target = int32_t(fastDbToGain(mGainDb[b]) * (1 << 24));
+        }
+        steps[b] = (target - mGain[b]) / frames;
+    }
+}
+
+int32_t EffectMultiband::process(audio_buffer_t* in, audio_buffer_t* out)
+{
+    if (mParameters.update()) {
+        refreshStrength();
+    }
+
+    if (!mEnable && !mWasEnabled) {
+        bypass(in, out);
+        return -ENODATA;
+    }
+
+    /* The bands sum to an allpass of the input rather than the input
+     * itself, so switching on or off crossfades the two over a buffer. */
+    bool fade = mEnable != mWasEnabled;
+    mWasEnabled = mEnable;
+    if (!fade && isIdle(in, int32_t(mSamplingRate * MULTIBAND_TAIL_TIME))) {
+        silence(in, out);
+        return 0;
+    }
+
+    int32_t fadeStep = fade ? (1 << 24) / int32_t(in->frameCount) : 0;
+    int32_t fadeFrom = mEnable ? 0 : 1 << 24;
+    if (!mEnable) {
+        fadeStep = -fadeStep;
+    }
+
+    for (uint32_t offset = 0; offset < in->frameCount; offset += MULTIBAND_BLOCK) {
+        int32_t frames = in->frameCount - offset;
+        if (frames > MULTIBAND_BLOCK) {
+            frames = MULTIBAND_BLOCK;
+        }
+
+        uint64_t power[MULTIBAND_BANDS];
+        int32_t steps[MULTIBAND_BANDS];
+        split(in, offset, frames, power);
+        computeGains(power, frames, steps);
+
+        int32_t lowGain = mGain[0];
+        int32_t midGain = mGain[1];
+        int32_t highGain = mGain[2];
+        for (int32_t i = 0; i < frames; i ++) {
+            lowGain += steps[0];
+            midGain += steps[1];
+            highGain += steps[2];
+            for (int32_t ch = 0; ch < mChannels; ch ++) {
+                int32_t sample = int32_t((int64_t(mBand[0][ch][i]) * lowGain
+                        + int64_t(mBand[1][ch][i]) * midGain
+                        + int64_t(mBand[2][ch][i]) * highGain) >> 24);
+                if (fade) {
+                    int32_t wet = fadeFrom + fadeStep * int32_t(offset + i);
+                    int32_t dry = read(in, (offset + i) * mChannels + ch);
+                    sample += int32_t(((int64_t(dry) - sample) * ((1 << 24) - wet)) >> 24);
+                }
+                write(out, (offset + i) * mChannels + ch, sample);
+            }
+        }
+        mGain[0] = lowGain;
+        mGain[1] = midGain;
+        mGain[2] = highGain;
+    }
+
+    return mEnable ? 0 : -ENODATA;
+}
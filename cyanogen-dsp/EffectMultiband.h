@@ -0,0 +1,98 @@
+#pragma once
+
+#include "Biquad.h"
+#include "Effect.h"
+#include "ParameterBlock.h"
+
+/* Whole settings in one SET_PARAM: int16 strength, 0 .. 1000. Parameter 0
+ * sets the strength as well. */
+#define CUSTOM_MULTIBAND_PARAM_PROFILE 2000
+
+#define MULTIBAND_BANDS 3
+/* Crossovers between the bass and the mids, and the mids and the treble */
+#define MULTIBAND_LOW_CROSSOVER 200.0f
+#define MULTIBAND_HIGH_CROSSOVER 2500.0f
+/* Frames per gain step. The detectors measure a block, and the gains ramp
+ * linearly across that same block to what the measurement calls for. */
+#define MULTIBAND_BLOCK 32
+/* Time constant of the RMS detectors, longer than a period of the lowest
+ * bass, and those of the gain coming down and going back up. */
+#define MULTIBAND_RMS_TIME 0.02f
+#define MULTIBAND_ATTACK_TIME 0.005f
+#define MULTIBAND_RELEASE_TIME 0.15f
+/* RMS level above which each band is compressed, dBFS, and the ratio at
+ * full strength */
+#define MULTIBAND_THRESHOLD_DB -24.0f
+#define MULTIBAND_MAX_RATIO 5.0f
+/* Seconds for the crossovers to ring down below the 8.24 LSB. */
+#define MULTIBAND_TAIL_TIME 0.1f
+
+typedef struct {
+    int16_t strength;
+} MultibandParameters;
+
+/* Three band compressor. Each band has its own detector and gain, so
+ * that loud bass no longer pulls the mids and treble down with it, as
+ * the broadband gain of EffectCompression does.
+ *
+ * The bands are split by fourth order Linkwitz-Riley crossovers, whose
+ * low pass is two Butterworth biquads in cascade. Low and high pass of
+ * such a pair sum to a second order allpass, so the high pass is taken as
+ * that allpass less the low pass, one biquad instead of two:
+ *
+ *   in -+-> [ LP f1 ]^2 --------+-----> [ AP f2 ] ---------------> low
+ *       |                       | -
+ *       `-> [ AP f1 ] -------> (+) -+-> [ LP f2 ]^2 ------+------> mid
+ *                                   |                     | -
+ *                                   `-> [ AP f2 ] -----> (+) ----> high
+ *
+ * With the low band taken through the allpass of the second crossover as
+ * well, the bands at unity gain sum to the input through both allpasses,
+ * a flat response. The detectors are linked across channels, each band
+ * following its loudest channel, so that the stereo image holds still.
+ *
+ * The CPU budget, per channel and frame, is 7 biquads for the crossovers,
+ * each run over a whole block with its state in registers, 3 multiplies
+ * to apply the gains and a squaring per band for the detectors. The gain
+ * computer runs once per block, where the float math of the dB domain is
+ * cheap. */
+class EffectMultiband : public Effect {
+    private:
+    ParameterBlock<MultibandParameters> mParameters;
+    /* mEnable as of the previous buffer */
+    bool mWasEnabled;
+
+    Biquad mLowPass1[2][EFFECT_MAX_CHANNELS];
+    Biquad mAllPass1[EFFECT_MAX_CHANNELS];
+    Biquad mLowPass2[2][EFFECT_MAX_CHANNELS];
+    /* Allpass of the second crossover for the low band, and for the rest */
+    Biquad mAllPass2[2][EFFECT_MAX_CHANNELS];
+
+    /* Compression slope, 1 - 1 / ratio, and the share of the way to the
+     * new value the detectors and the gains cover per block */
+    float mSlope;
+    float mAverage;
+    float mAttack;
+    float mRelease;
+    /* Mean square of each band relative to full scale, its gain in dB
+     * and the 8.24 gain as applied at the end of the last block */
+    float mPower[MULTIBAND_BANDS];
+    float mGainDb[MULTIBAND_BANDS];
+    int32_t mGain[MULTIBAND_BANDS];
+
+    /* One block of each band and channel */
+    int32_t mBand[MULTIBAND_BANDS][EFFECT_MAX_CHANNELS][MULTIBAND_BLOCK];
+
+    void refreshStrength();
+    void refreshFilters();
+    void clearHistory();
+    void split(audio_buffer_t* in, uint32_t offset, int32_t frames, uint64_t* power);
+    void computeGains(const uint64_t* power, int32_t frames, int32_t* steps);
+
+    public:
+    EffectMultiband();
+
+    int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
+    int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    uint32_t getMemoryUsage() const { return sizeof(*this); }
+};
@@ -18,8 +18,10 @@
 
 #include <cutils/log.h>
 #include <math.h>
+#include <string.h>
 
 #include "EffectVirtualizer.h"
+#include "WavFile.h"
 
 typedef struct {
     int32_t status;
@@ -38,31 +40,74 @@ typedef struct {
 } reply1x4_1x2_t;
 
 EffectVirtualizer::EffectVirtualizer()
-    : mStrength(0)
+    : mReverbDelayL(0.029f), mReverbDelayR(0.023f),
+      mHeldConvolver(0), mPublishedConvolver(0)
 {
+    VirtualizerParameters& parameters = mParameters.edit();
+    parameters.strength = 0;
+    parameters.mode = VIRTUALIZER_MODE_ROOM;
+    parameters.convolver = 0;
+    mParameters.reset();
+
+    mImpulseResponsePath[0] = '\0';
+    mImpulseResponseStatus = 0;
+    mReverbDelayL.setParameters(mSamplingRate, 0.029f);
+    mReverbDelayR.setParameters(mSamplingRate, 0.023f);
+    mNetwork.setSamplingRate(mSamplingRate);
     refreshStrength();
+    refreshDownmix();
+}
+
+EffectVirtualizer::~EffectVirtualizer()
+{
+    if (mPublishedConvolver != mHeldConvolver) {
+        delete mPublishedConvolver;
+    }
+    delete mHeldConvolver;
+}
+
+/* Called from the command thread, which owns the convolvers. */
+uint32_t EffectVirtualizer::getMemoryUsage() const
+{
+    uint32_t usage = sizeof(*this) + mReverbDelayL.getMemoryUsage() + mReverbDelayR.getMemoryUsage()
+        + mNetwork.getMemoryUsage();
+    const Convolver* convolvers[2] = { mPublishedConvolver, mHeldConvolver };
+    for (int32_t i = 0; i < 2; i ++) {
+        if (convolvers[i] != 0 && (i == 0 || convolvers[i] != convolvers[0])) {
+            usage += sizeof(Convolver) + convolvers[i]->getMemoryUsage();
+        }
+    }
+    return usage;
 }
 
 int32_t EffectVirtualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData)
 {
     if (cmdCode == EFFECT_CMD_SET_CONFIG) {
-        int32_t ret = Effect::configure(pCmdData);
+        /* Multichannel input may come with stereo output: we are the
+         * natural place for a downmix to the headphones. */
+        int32_t ret = Effect::configure(pCmdData, true);
         if (ret != 0) {
             int32_t *replyData = (int32_t *) pReplyData;
             *replyData = ret;
             return 0;
         }
+        refreshDownmix();
 
         /* Haas effect delay -- slight difference between L & R
          * to reduce artificialness of the ping-pong. */
         mReverbDelayL.setParameters(mSamplingRate, 0.029f);
         mReverbDelayR.setParameters(mSamplingRate, 0.023f);
+        mNetwork.setSamplingRate(mSamplingRate);
+        refreshStrength();
         /* the -3 dB point is around 650 Hz, giving about 300 us to work with */
         mLocalization.setHighShelf(0, 800.0f, mSamplingRate, -11.0f, 0.72f, 0);
 
         mDelayDataL = 0;
         mDelayDataR = 0;
 
+        /* Impulse responses are recorded at one rate; reload to recheck it. */
+        mImpulseResponseStatus = loadImpulseResponse();
+
         int32_t *replyData = (int32_t *) pReplyData;
         *replyData = 0;
         return 0;
@@ -84,10 +129,26 @@ int32_t EffectVirtualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
                 reply1x4_1x2_t *replyData = (reply1x4_1x2_t *) pReplyData;
                 replyData->status = 0;
                 replyData->vsize = 2;
-                replyData->data = mStrength;
+                replyData->data = mParameters.edit().strength;
                 *replySize = sizeof(reply1x4_1x2_t);
                 return 0;
             }
+            if (cmd == CUSTOM_VIRTUALIZER_PARAM_MODE) {
+                reply1x4_1x2_t *replyData = (reply1x4_1x2_t *) pReplyData;
+                replyData->status = 0;
+                replyData->vsize = 2;
+                replyData->data = mParameters.edit().mode;
+                *replySize = sizeof(reply1x4_1x2_t);
+                return 0;
+            }
+            if (cmd == CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE_STATUS) {
+                reply1x4_1x4_t *replyData = (reply1x4_1x4_t *) pReplyData;
+                replyData->status = 0;
+                replyData->vsize = 4;
+                replyData->data = mImpulseResponseStatus;
+                *replySize = sizeof(reply1x4_1x4_t);
+                return 0;
+            }
         }
 
         ALOGE("Unknown GET_PARAM of %d bytes", cep->psize);
@@ -103,10 +164,44 @@ int32_t EffectVirtualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
         if (cep->psize == 4 && cep->vsize == 2) {
             int32_t cmd = ((int32_t *) cep)[3];
             if (cmd == VIRTUALIZER_PARAM_STRENGTH) {
-                mStrength = ((int16_t *) cep)[8];
-                refreshStrength();
+                mParameters.edit().strength = ((int16_t *) cep)[8];
+                publishParameters();
+                int32_t *replyData = (int32_t *) pReplyData;
+                *replyData = 0;
+                return 0;
+            }
+            if (cmd == CUSTOM_VIRTUALIZER_PARAM_MODE) {
+                mParameters.edit().mode = ((int16_t *) cep)[8];
+                publishParameters();
+                ALOGI("Setting mode to %d", mParameters.edit().mode);
+                int32_t *replyData = (int32_t *) pReplyData;
+                *replyData = 0;
+                return 0;
+            }
+        }
+
+        if (cep->psize == 4 && cep->vsize < sizeof(mImpulseResponsePath)) {
+            int32_t cmd = ((int32_t *) cep)[3];
+            if (cmd == CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE) {
+                int32_t *replyData = (int32_t *) pReplyData;
+                *replyData = setImpulseResponsePath(((char *) cep) + 16, cep->vsize);
+                return 0;
+            }
+        }
+
+        if (cep->psize == 4 && cep->vsize >= 4 && cep->vsize - 4 < sizeof(mImpulseResponsePath)) {
+            int32_t cmd = ((int32_t *) cep)[3];
+            if (cmd == CUSTOM_VIRTUALIZER_PARAM_PROFILE) {
+                VirtualizerParameters& parameters = mParameters.edit();
+                parameters.strength = ((int16_t *) cep)[8];
+                parameters.mode = ((int16_t *) cep)[9];
+                /* The impulse response is in place before the mode takes effect.
+                 * Failing to load it is no reason to refuse the rest. */
+                setImpulseResponsePath(((char *) cep) + 20, cep->vsize - 4);
+                publishParameters();
                 int32_t *replyData = (int32_t *) pReplyData;
                 *replyData = 0;
+                ALOGI("Setting profile: strength %d, mode %d", parameters.strength, parameters.mode);
                 return 0;
             }
         }
@@ -120,69 +215,428 @@ int32_t EffectVirtualizer::command(uint32_t cmdCode, uint32_t cmdSize, void* pCm
     return Effect::command(cmdCode, cmdSize, pCmdData, replySize, pReplyData);
 }
 
+/* Derive the room settings from the current strength. Audio thread only. */
 void EffectVirtualizer::refreshStrength()
 {
-    mDeep = mStrength != 0;
-    mWide = mStrength >= 500;
+    int16_t strength = mParameters.current().strength;
+    mDeep = strength != 0;
+    mWide = strength >= 500;
 
-    if (mStrength != 0) {
+    if (strength != 0) {
         float start = -15.0f;
         float end = -5.0f;
-        float attenuation = start + (end - start) * (mStrength / 1000.0f);
+        float attenuation = start + (end - start) * (strength / 1000.0f);
         float roomEcho = powf(10.0f, attenuation / 20.0f);
         mLevel = int64_t(roomEcho * (int64_t(1) << 32));
+
+        /* The network room also grows longer with strength. */
+        float decay = VIRTUALIZER_NETWORK_MIN_DECAY
+            + (VIRTUALIZER_NETWORK_MAX_DECAY - VIRTUALIZER_NETWORK_MIN_DECAY) * (strength / 1000.0f);
+        mNetwork.setDecay(decay, VIRTUALIZER_NETWORK_DAMPING);
     } else {
         mLevel = 0;
     }
 }
 
-int32_t EffectVirtualizer::process(audio_buffer_t* in, audio_buffer_t* out)
+/* Each input channel goes to the ear on its side of the listener, or to
+ * both ears at -3 dB if it is in the middle. Both ears of the output are
+ * placed on the front pair, and a mono output gets their average. */
+void EffectVirtualizer::refreshDownmix()
 {
-    for (uint32_t i = 0; i < in->frameCount; i ++) {
-        /* calculate reverb wet into dataL, dataR */
-        int32_t dryL = read(in, i * 2);
-        int32_t dryR = read(in, i * 2 + 1);
-        int32_t dataL = dryL;
-        int32_t dataR = dryR;
+    const int32_t full = 1 << 24;
+    const int32_t half = int32_t(0.70710678f * (1 << 24));
 
-        if (mDeep) {
-            /* Note: a pinking filter here would be good. */
-            dataL += mDelayDataR;
-            dataR += mDelayDataL;
+    int32_t ch = 0;
+    for (uint32_t bit = 1; ch < mChannels && bit != 0; bit <<= 1) {
+        if ((mChannelMask & bit) == 0) {
+            continue;
+        }
+        switch (bit) {
+        case AUDIO_CHANNEL_OUT_FRONT_LEFT:
+            mDownmixL[ch] = full;
+            mDownmixR[ch] = 0;
+            break;
+        case AUDIO_CHANNEL_OUT_FRONT_RIGHT:
+            mDownmixL[ch] = 0;
+            mDownmixR[ch] = full;
+            break;
+        case AUDIO_CHANNEL_OUT_BACK_LEFT:
+        case AUDIO_CHANNEL_OUT_SIDE_LEFT:
+        case AUDIO_CHANNEL_OUT_FRONT_LEFT_OF_CENTER:
+            mDownmixL[ch] = half;
+            mDownmixR[ch] = 0;
+            break;
+        case AUDIO_CHANNEL_OUT_BACK_RIGHT:
+        case AUDIO_CHANNEL_OUT_SIDE_RIGHT:
+        case AUDIO_CHANNEL_OUT_FRONT_RIGHT_OF_CENTER:
+            mDownmixL[ch] = 0;
+            mDownmixR[ch] = half;
+            break;
+        case AUDIO_CHANNEL_OUT_BACK_CENTER:
+            mDownmixL[ch] = full / 2;
+            mDownmixR[ch] = full / 2;
+            break;
+        default:
+            /* Front center, low frequency and anything we don't know */
+            mDownmixL[ch] = half;
+            mDownmixR[ch] = half;
+            break;
+        }
+        ch ++;
+    }
+    if (mChannels == 1) {
+        mDownmixL[0] = full;
+        mDownmixR[0] = full;
+    }
+
+    /* The front pair are the two lowest bits of the mask. */
+    mOutLeft = -1;
+    mOutRight = -1;
+    if (mOutChannels >= 2 && (mOutChannelMask & AUDIO_CHANNEL_OUT_STEREO) == AUDIO_CHANNEL_OUT_STEREO) {
+        mOutLeft = 0;
+        mOutRight = 1;
+    }
+}
+
+/* Mix a block of input into left and right ear feeds. */
+void EffectVirtualizer::downmix(audio_buffer_t *in, int32_t offset, int32_t frames, int32_t *left, int32_t *right)
+{
+    if (mChannels == 2 && mChannelMask == AUDIO_CHANNEL_OUT_STEREO) {
+        for (int32_t i = 0; i < frames; i ++) {
+            left[i] = read(in, (offset + i) * 2);
+            right[i] = read(in, (offset + i) * 2 + 1);
+        }
+        return;
+    }
+
+    for (int32_t i = 0; i < frames; i ++) {
+        int64_t sumL = 0;
+        int64_t sumR = 0;
+        for (int32_t ch = 0; ch < mChannels; ch ++) {
+            int32_t dry = read(in, (offset + i) * mChannels + ch);
+            sumL += int64_t(dry) * mDownmixL[ch];
+            sumR += int64_t(dry) * mDownmixR[ch];
+        }
+        left[i] = sumL >> 24;
+        right[i] = sumR >> 24;
+    }
+}
+
+/* Store a block of left and right ear signal in the output layout. */
+void EffectVirtualizer::writeBinaural(audio_buffer_t *out, int32_t offset, int32_t frames, const int32_t *left, const int32_t *right)
+{
+    if (mOutChannels == 2 && mOutLeft == 0) {
+        for (int32_t i = 0; i < frames; i ++) {
+            write(out, (offset + i) * 2, left[i]);
+            write(out, (offset + i) * 2 + 1, right[i]);
+        }
+        return;
+    }
+
+    for (int32_t i = 0; i < frames; i ++) {
+        int32_t frame = (offset + i) * mOutChannels;
+        if (mOutLeft < 0) {
+            /* Mono output */
+            write(out, frame, (left[i] + right[i]) >> 1);
+            for (int32_t ch = 1; ch < mOutChannels; ch ++) {
+                write(out, frame + ch, 0);
+            }
+            continue;
+        }
+        for (int32_t ch = 0; ch < mOutChannels; ch ++) {
+            int32_t sample = 0;
+            if (ch == mOutLeft) {
+                sample = left[i];
+            } else if (ch == mOutRight) {
+                sample = right[i];
+            }
+            write(out, frame + ch, sample);
+        }
+    }
+}
+
+/* Path is of a WAVE file, not necessarily terminated. The response is only
+ * reloaded if the path changed, or if the previous attempt failed. */
+int32_t EffectVirtualizer::setImpulseResponsePath(const char* path, uint32_t length)
+{
+    char terminated[sizeof(mImpulseResponsePath)];
+    memcpy(terminated, path, length);
+    terminated[length] = '\0';
+
+    if (strcmp(terminated, mImpulseResponsePath) == 0 && mParameters.edit().convolver != 0) {
+        return 0;
+    }
+    strcpy(mImpulseResponsePath, terminated);
+    mImpulseResponseStatus = loadImpulseResponse();
+    return mImpulseResponseStatus;
+}
+
+/* Load the configured impulse response for the current sampling rate.
+ * A stereo file holds the ipsilateral and contralateral ear responses of
+ * a symmetric speaker pair; a 4-channel file holds the LL, LR, RL and RR
+ * paths, named input first. */
+int32_t EffectVirtualizer::loadImpulseResponse()
+{
+    Convolver* convolver = 0;
+
+    if (mImpulseResponsePath[0] != '\0') {
+        WavFile wav;
+        int32_t ret = wav.open(mImpulseResponsePath);
+        if (ret != 0) {
+            return ret;
+        }
+        if (wav.getSamplingRate() != int32_t(mSamplingRate)) {
+            ALOGE("Impulse response is for %d Hz, but we run at %d Hz", wav.getSamplingRate(), int32_t(mSamplingRate));
+            return -EINVAL;
+        }
+        int32_t channels = wav.getChannels();
+        if (channels != 2 && channels != 4) {
+            ALOGE("Impulse response must have 2 or 4 channels, not %d", channels);
+            return -EINVAL;
+        }
+        int32_t frames = wav.getFrames();
+        if (frames > CONVOLVER_MAX_LENGTH) {
+            ALOGW("Truncating impulse response from %d to %d frames", frames, CONVOLVER_MAX_LENGTH);
+            frames = CONVOLVER_MAX_LENGTH;
         }
 
-        dataL = mReverbDelayL.process(dataL);
-        dataR = mReverbDelayR.process(dataR);
+        float* data = new float[frames * channels];
+        for (int32_t i = 0; i < frames; i ++) {
+            for (int32_t c = 0; c < channels; c ++) {
+                data[i * channels + c] = wav.getSample(i, c);
+            }
+        }
 
-        if (mWide) {
-            dataR = -dataR;
+        convolver = new Convolver();
+        if (channels == 4) {
+            ret = convolver->setImpulseResponse(data, data + 1, data + 2, data + 3, frames, 4);
+        } else {
+            ret = convolver->setImpulseResponse(data, data + 1, data + 1, data, frames, 2);
         }
+        delete[] data;
+        if (ret != 0) {
+            delete convolver;
+            return ret;
+        }
+        ALOGI("Loaded %d-frame impulse response in %d partitions", frames, convolver->getPartitions());
+    }
 
-        dataL = dataL * mLevel >> 32;
-        dataR = dataR * mLevel >> 32;
+    mParameters.edit().convolver = convolver;
+    publishParameters();
+    return 0;
+}
 
-        mDelayDataL = dataL;
-        mDelayDataR = dataR;
+/* Publish the edited parameters, and delete the engines process() can no
+ * longer reach. It holds the engine of the last publication it picked up,
+ * and may pick up the latest publication at any time; any other engine is
+ * unreachable. Loads can so follow one another with no wait for the audio
+ * thread, which may not be running at all. */
+void EffectVirtualizer::publishParameters()
+{
+    Convolver* previous = mPublishedConvolver;
+    Convolver* published = mParameters.edit().convolver;
+    Convolver* unreachable;
+    if (mParameters.publish()) {
+        /* process() moved on to the previous publication. */
+        unreachable = mHeldConvolver;
+        mHeldConvolver = previous;
+    } else {
+        /* The previous publication was replaced before process() saw it. */
+        unreachable = previous;
+    }
+    mPublishedConvolver = published;
+    if (unreachable != mHeldConvolver && unreachable != mPublishedConvolver) {
+        delete unreachable;
+    }
+}
 
-        /* Reverb wet done; mix with dry and do headphone virtualization */
-        dataL += dryL;
-        dataR += dryR;
+void EffectVirtualizer::clearHistory()
+{
+    mReverbDelayL.clear();
+    mReverbDelayR.clear();
+    mDelayDataL = 0;
+    mDelayDataR = 0;
+    mLocalization.clearHistory();
+    mNetwork.clear();
+    Convolver* convolver = mParameters.current().convolver;
+    if (convolver != 0) {
+        convolver->reset();
+    }
+}
 
-        /* Center channel. */
-        int32_t center  = (dataL + dataR) >> 1;
-        /* Direct radiation components. */
-        int32_t side = (dataL - dataR) >> 1;
+int32_t EffectVirtualizer::process(audio_buffer_t* in, audio_buffer_t* out)
+{
+    if (mParameters.update()) {
+        refreshStrength();
+    }
+
+    /* A downmix has to be done even when disabled, but nothing more. */
+    if (!mEnable) {
+        if (mOutChannels == mChannels) {
+            bypass(in, out);
+        } else {
+            processDownmix(in, out);
+        }
+        return -ENODATA;
+    }
 
-        /* Adjust derived center channel coloration to emphasize forward
-         * direction impression. (XXX: disabled until configurable). */
-        //center = mColorization.process(center);
-        /* Sound reaching ear from the opposite speaker */
-        side -= mLocalization.process(side);
+    const VirtualizerParameters& parameters = mParameters.current();
+    bool convolution = parameters.mode == VIRTUALIZER_MODE_CONVOLUTION && parameters.convolver != 0;
+    bool network = parameters.mode == VIRTUALIZER_MODE_NETWORK;
+    /* The convolver tail is its latency plus the impulse response. */
+    int32_t tailFrames = convolution
+        ? (parameters.convolver->getPartitions() + 1) * CONVOLVER_BLOCK
+        : int32_t(mSamplingRate * (network ? VIRTUALIZER_NETWORK_TAIL_TIME : VIRTUALIZER_ROOM_TAIL_TIME));
+    if (isIdle(in, tailFrames)) {
+        silence(in, out);
+        return mEnable ? 0 : -ENODATA;
+    }
 
-        write(out, i * 2, center + side);
-        write(out, i * 2 + 1, center - side);
+    if (convolution) {
+        processConvolution(in, out);
+    } else if (network) {
+        processNetwork(in, out);
+    } else {
+        processRoom(in, out);
     }
 
     return mEnable ? 0 : -ENODATA;
 }
 
+/* The input folded to the ears as is, with no room and no crossfeed. */
+void EffectVirtualizer::processDownmix(audio_buffer_t* in, audio_buffer_t* out)
+{
+    for (uint32_t offset = 0; offset < in->frameCount; offset += VIRTUALIZER_BLOCK) {
+        int32_t frames = in->frameCount - offset;
+        if (frames > VIRTUALIZER_BLOCK) {
+            frames = VIRTUALIZER_BLOCK;
+        }
+
+        downmix(in, offset, frames, mDryL, mDryR);
+        writeBinaural(out, offset, frames, mDryL, mDryR);
+    }
+}
+
+void EffectVirtualizer::processConvolution(audio_buffer_t* in, audio_buffer_t* out)
+{
+    Convolver* convolver = mParameters.current().convolver;
+
+    for (uint32_t offset = 0; offset < in->frameCount; offset += VIRTUALIZER_BLOCK) {
+        int32_t frames = in->frameCount - offset;
+        if (frames > VIRTUALIZER_BLOCK) {
+            frames = VIRTUALIZER_BLOCK;
+        }
+
+        downmix(in, offset, frames, mFeedL, mFeedR);
+        convolver->process(mFeedL, mFeedR, mWetL, mWetR, frames);
+        writeBinaural(out, offset, frames, mWetL, mWetR);
+    }
+}
+
+void EffectVirtualizer::processRoom(audio_buffer_t* in, audio_buffer_t* out)
+{
+    /* The cross-feedback reaches each line through the other one, so a
+     * block can be read out of the lines before it is written back as long
+     * as it is no longer than the shorter delay. */
+    int32_t blockLength = VIRTUALIZER_BLOCK;
+    if (blockLength > mReverbDelayL.getLength()) {
+        blockLength = mReverbDelayL.getLength();
+    }
+    if (blockLength > mReverbDelayR.getLength()) {
+        blockLength = mReverbDelayR.getLength();
+    }
+
+    for (uint32_t offset = 0; offset < in->frameCount; offset += blockLength) {
+        int32_t frames = in->frameCount - offset;
+        if (frames > blockLength) {
+            frames = blockLength;
+        }
+
+        downmix(in, offset, frames, mDryL, mDryR);
+        mReverbDelayL.read(mWetL, frames);
+        mReverbDelayR.read(mWetR, frames);
+
+        for (int32_t i = 0; i < frames; i ++) {
+            /* calculate reverb wet into dataL, dataR */
+            int32_t dryL = mDryL[i];
+            int32_t dryR = mDryR[i];
+            int32_t dataL = dryL;
+            int32_t dataR = dryR;
+            if (mDeep) {
+                /* Note: a pinking filter here would be good. */
+                dataL += mDelayDataR;
+                dataR += mDelayDataL;
+            }
+            mFeedL[i] = dataL;
+            mFeedR[i] = dataR;
+
+            int32_t wetL = mWetL[i];
+            int32_t wetR = mWetR[i];
+            if (mWide) {
+                wetR = -wetR;
+            }
+            wetL = wetL * mLevel >> 32;
+            wetR = wetR * mLevel >> 32;
+            mDelayDataL = wetL;
+            mDelayDataR = wetR;
+
+            /* Reverb wet done; mix with dry and do headphone virtualization */
+            dataL = wetL + dryL;
+            dataR = wetR + dryR;
+
+            /* Center channel. */
+            int32_t center  = (dataL + dataR) >> 1;
+            /* Direct radiation components. */
+            int32_t side = (dataL - dataR) >> 1;
+
+            /* Adjust derived center channel coloration to emphasize forward
+             * direction impression. (XXX: disabled until configurable). */
+            //center = mColorization.process(center);
+            /* Sound reaching ear from the opposite speaker */
+            side -= mLocalization.process(side);
+
+            /* The wet samples are used up; their slots take the output. */
+            mWetL[i] = center + side;
+            mWetR[i] = center - side;
+        }
+
+        mReverbDelayL.write(mFeedL, frames);
+        mReverbDelayR.write(mFeedR, frames);
+        writeBinaural(out, offset, frames, mWetL, mWetR);
+    }
+}
+
+/* The same headphone mix as processRoom(), with the room taken from the
+ * feedback delay network. Its outputs are already decorrelated, so there
+ * is no polarity trick for the wide setting. */
+void EffectVirtualizer::processNetwork(audio_buffer_t* in, audio_buffer_t* out)
+{
+    for (uint32_t offset = 0; offset < in->frameCount; offset += VIRTUALIZER_BLOCK) {
+        int32_t frames = in->frameCount - offset;
+        if (frames > VIRTUALIZER_BLOCK) {
+            frames = VIRTUALIZER_BLOCK;
+        }
+
+        downmix(in, offset, frames, mDryL, mDryR);
+        if (mDeep) {
+            mNetwork.process(mDryL, mDryR, mWetL, mWetR, frames);
+        } else {
+            memset(mWetL, 0, frames * sizeof(int32_t));
+            memset(mWetR, 0, frames * sizeof(int32_t));
+        }
+
+        for (int32_t i = 0; i < frames; i ++) {
+            int32_t dataL = mDryL[i] + (mWetL[i] * mLevel >> 32);
+            int32_t dataR = mDryR[i] + (mWetR[i] * mLevel >> 32);
+
+            int32_t center = (dataL + dataR) >> 1;
+            int32_t side = (dataL - dataR) >> 1;
+            side -= mLocalization.process(side);
+
+            mWetL[i] = center + side;
+            mWetR[i] = center - side;
+        }
+
+        writeBinaural(out, offset, frames, mWetL, mWetR);
+    }
+}
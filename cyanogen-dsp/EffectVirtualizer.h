@@ -3,13 +3,55 @@
 #include <audio_effects/effect_virtualizer.h>
 
 #include "Biquad.h"
+#include "Convolver.h"
 #include "Delay.h"
 #include "Effect.h"
 #include "FIR16.h"
+#include "FeedbackDelayNetwork.h"
+#include "ParameterBlock.h"
+
+/* Frames processed per pass through the reverb delay lines. */
+#define VIRTUALIZER_BLOCK 128
+
+/* Seconds for the room echo at its strongest to die away below the 8.24
+ * LSB: about 19 round trips through both delay lines at -10 dB each. */
+#define VIRTUALIZER_ROOM_TAIL_TIME 1.5f
+
+/* Decay time of the network room, from the least to the full strength,
+ * and the corner above which it decays faster. */
+#define VIRTUALIZER_NETWORK_MIN_DECAY 0.25f
+#define VIRTUALIZER_NETWORK_MAX_DECAY 0.9f
+#define VIRTUALIZER_NETWORK_DAMPING 5000.0f
+/* Seconds for the network room at its longest decay to fall from full
+ * scale below the 8.24 LSB: 138 dB at 60 dB per decay time. */
+#define VIRTUALIZER_NETWORK_TAIL_TIME 2.1f
+
+#define CUSTOM_VIRTUALIZER_PARAM_MODE 1000
+#define CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE 1001
+/* GET_PARAM only: int32 outcome of the last impulse response load, 0 or a
+ * negative errno. */
+#define CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE_STATUS 1002
+/* Whole settings in one SET_PARAM: int16 strength, int16 mode, then the
+ * impulse response path as for CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE.
+ * The settings are taken even if the impulse response fails to load; that
+ * is reported by CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE_STATUS. */
+#define CUSTOM_VIRTUALIZER_PARAM_PROFILE 2000
+
+/* Values for CUSTOM_VIRTUALIZER_PARAM_MODE. */
+#define VIRTUALIZER_MODE_ROOM 0
+#define VIRTUALIZER_MODE_CONVOLUTION 1
+/* Room from a feedback delay network instead of the two delays */
+#define VIRTUALIZER_MODE_NETWORK 2
+
+typedef struct {
+    int16_t strength;
+    int16_t mode;
+    Convolver* convolver;
+} VirtualizerParameters;
 
 class EffectVirtualizer : public Effect {
     private:
-    int16_t mStrength;
+    ParameterBlock<VirtualizerParameters> mParameters;
 
     bool mDeep, mWide;
     int64_t mLevel;
@@ -17,12 +59,44 @@ class EffectVirtualizer : public Effect {
     Delay mReverbDelayL, mReverbDelayR;
     int64_t mDelayDataL, mDelayDataR;
     Biquad mLocalization;
+    FeedbackDelayNetwork mNetwork;
+
+    /* 8.24 gain of each input channel into the left and right ear, and
+     * where the ears go in the output frame. */
+    int32_t mDownmixL[EFFECT_MAX_CHANNELS], mDownmixR[EFFECT_MAX_CHANNELS];
+    int32_t mOutLeft, mOutRight;
+
+    int32_t mDryL[VIRTUALIZER_BLOCK], mDryR[VIRTUALIZER_BLOCK];
+    int32_t mFeedL[VIRTUALIZER_BLOCK], mFeedR[VIRTUALIZER_BLOCK];
+    int32_t mWetL[VIRTUALIZER_BLOCK], mWetR[VIRTUALIZER_BLOCK];
+
+    /* Impulse response virtualization. An engine is only deleted once
+     * process() can no longer reach it: neither the one of the publication
+     * it last picked up, nor the one of the latest publication, which it may
+     * pick up at any time. Command thread only. */
+    char mImpulseResponsePath[256];
+    int32_t mImpulseResponseStatus;
+    Convolver* mHeldConvolver;
+    Convolver* mPublishedConvolver;
 
     void refreshStrength();
+    void refreshDownmix();
+    void clearHistory();
+    void downmix(audio_buffer_t *in, int32_t offset, int32_t frames, int32_t *left, int32_t *right);
+    void writeBinaural(audio_buffer_t *out, int32_t offset, int32_t frames, const int32_t *left, const int32_t *right);
+    int32_t setImpulseResponsePath(const char* path, uint32_t length);
+    int32_t loadImpulseResponse();
+    void publishParameters();
+    void processDownmix(audio_buffer_t *in, audio_buffer_t *out);
+    void processRoom(audio_buffer_t *in, audio_buffer_t *out);
+    void processNetwork(audio_buffer_t *in, audio_buffer_t *out);
+    void processConvolution(audio_buffer_t *in, audio_buffer_t *out);
 
     public:
     EffectVirtualizer();
+    ~EffectVirtualizer();
 
     int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData, uint32_t* replySize, void* pReplyData);
     int32_t process(audio_buffer_t *in, audio_buffer_t *out);
+    uint32_t getMemoryUsage() const;
 };
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "FFT.h"
+
+#include <math.h>
+
+FFT::FFT(int32_t size)
+    : mSize(size)
+{
+    int32_t bits = 0;
+    while ((1 << bits) < size) {
+        bits ++;
+    }
+
+    mBitReverse = new int32_t[size];
+    for (int32_t i = 0; i < size; i ++) {
+        int32_t r = 0;
+        for (int32_t b = 0; b < bits; b ++) {
+            if (i & (1 << b)) {
+                r |= 1 << (bits - 1 - b);
+            }
+        }
+        mBitReverse[i] = r;
+    }
+
+    /* Twiddles for the largest stage; smaller stages stride through them. */
+    mCos = new float[size / 2];
+    mSin = new float[size / 2];
+    for (int32_t i = 0; i < size / 2; i ++) {
+        mCos[i] = cos(2 * M_PI * i / size);
+        mSin[i] = sin(2 * M_PI * i / size);
+    }
+}
+
+FFT::~FFT()
+{
+    delete[] mBitReverse;
+    delete[] mCos;
+    delete[] mSin;
+}
+
+void FFT::transform(float* re, float* im, float direction)
+{
+    for (int32_t i = 0; i < mSize; i ++) {
+        int32_t j = mBitReverse[i];
+        if (j > i) {
+            float t = re[i];
+            re[i] = re[j];
+            re[j] = t;
+            t = im[i];
+            im[i] = im[j];
+            im[j] = t;
+        }
+    }
+
+    for (int32_t half = 1; half < mSize; half <<= 1) {
+        int32_t stride = mSize / (half * 2);
+        for (int32_t start = 0; start < mSize; start += half * 2) {
+            for (int32_t k = 0; k < half; k ++) {
+                float wr = mCos[k * stride];
+                float wi = direction * mSin[k * stride];
+                int32_t a = start + k;
+                int32_t b = a + half;
+                float tr = re[b] * wr - im[b] * wi;
+                float ti = re[b] * wi + im[b] * wr;
+                re[b] = re[a] - tr;
+                im[b] = im[a] - ti;
+                re[a] += tr;
+                im[a] += ti;
+            }
+        }
+    }
+}
+
+void FFT::forward(float* re, float* im)
+{
+    transform(re, im, -1.0f);
+}
+
+void FFT::inverse(float* re, float* im)
+{
+    transform(re, im, 1.0f);
+}
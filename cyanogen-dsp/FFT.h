@@ -0,0 +1,25 @@
+#pragma once
+
+#include <stdint.h>
+
+/* In-place radix-2 complex FFT of a fixed power-of-two size. Real and
+ * imaginary parts are kept in separate arrays, which keeps the butterflies
+ * simple for the compiler to vectorize. */
+class FFT {
+    int32_t mSize;
+    int32_t* mBitReverse;
+    float* mCos;
+    float* mSin;
+
+    void transform(float* re, float* im, float direction);
+
+    public:
+    FFT(int32_t size);
+    ~FFT();
+    int32_t getSize() const { return mSize; }
+    /* Bytes allocated, not counting the object itself. */
+    uint32_t getMemoryUsage() const { return mSize * sizeof(int32_t) + mSize * sizeof(float); }
+    void forward(float* re, float* im);
+    /* Unscaled inverse: result is mSize times the input signal. */
+    void inverse(float* re, float* im);
+};
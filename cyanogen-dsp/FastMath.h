@@ -0,0 +1,91 @@
+#pragma once
+
+#include <stdint.h>
+
+/* Approximations of log2 and exp2, and dB conversions built on them, for
+ * level detection and gain computation in the audio thread. They split
+ * the float into exponent and mantissa and use a small minimax polynomial
+ * for the mantissa. host/fastmath-check verifies these bounds against libm:
+ *
+ *   fastLog2(x)        absolute error < 2e-5 for positive normal x
+ *   fastExp2(x)        relative error < 5e-6 for -126 < x < 128
+ *   fastPowerToDb(x)   absolute error < 1e-4 dB
+ *   fastGainToDb(x)    absolute error < 2e-4 dB
+ *   fastDbToGain(x)    relative error < 1e-5 for -200 < x < 100 dB
+ *   fastDbToPower(x)   relative error < 1e-5 for -200 < x < 100 dB
+ *
+ * The dB bounds are wider than that of fastExp2 because the argument is
+ * scaled in float precision first. Zero and negative inputs to the log
+ * functions are not handled; callers add a small bias as with logf. */
+
+typedef union {
+    float f;
+    int32_t i;
+} FastMathFloatBits;
+
+static inline float fastLog2(float x)
+{
+    FastMathFloatBits bits;
+    bits.f = x;
+    float exponent = float(((bits.i >> 23) & 0xff) - 127);
+    /* Mantissa, scaled to 1 .. 2 */
+    bits.i = (bits.i & 0x007fffff) | 0x3f800000;
+    float m = bits.f - 1.0f;
+    /* log2(1 + m) for 0 <= m < 1 */
+    float p = 0.0448674073f;
+    p = p * m - 0.192180373f;
+    p = p * m + 0.413617042f;
+    p = p * m - 0.707988113f;
+    p = p * m + 1.44168401f;
+    p = p * m + 1.25489065e-5f;
+    return exponent + p;
+}
+
+static inline float fastExp2(float x)
+{
+    if (x < -126.0f) {
+        return 0.0f;
+    }
+    if (x > 127.0f) {
+        x = 127.0f;
+    }
+    int32_t integer = int32_t(x);
+    if (x < integer) {
+        integer --;
+    }
+    float f = x - integer;
+    /* 2^f for 0 <= f < 1 */
+    float p = 0.0136975762f;
+    p = p * f + 0.0516905355f;
+    p = p * f + 0.241638334f;
+    p = p * f + 0.692966145f;
+    p = p * f + 1.00000370f;
+    FastMathFloatBits bits;
+    bits.f = p;
+    bits.i += integer << 23;
+    return bits.f;
+}
+
+/* 10 * log10(power) */
+static inline float fastPowerToDb(float power)
+{
+    return 3.01029996f * fastLog2(power);
+}
+
+/* 20 * log10(gain) */
+static inline float fastGainToDb(float gain)
+{
+    return 6.02059991f * fastLog2(gain);
+}
+
+/* 10 ^ (dB / 20) */
+static inline float fastDbToGain(float dB)
+{
+    return fastExp2(dB * 0.166096405f);
+}
+
+/* 10 ^ (dB / 10) */
+static inline float fastDbToPower(float dB)
+{
+    return fastExp2(dB * 0.332192809f);
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "FeedbackDelayNetwork.h"
+
+#include <math.h>
+#include <string.h>
+
+/* Line lengths in seconds: a small room, spread so that no two lengths
+ * share a small common factor at the usual sampling rates. */
+static const float gLineTime[FDN_LINES] = {
+    0.0113f, 0.0131f, 0.0149f, 0.0167f, 0.0191f, 0.0211f, 0.0233f, 0.0263f,
+};
+
+FeedbackDelayNetwork::FeedbackDelayNetwork()
+    : mBlockLength(FDN_BLOCK), mSamplingRate(44100), mDampingPole(0)
+{
+    for (int32_t k = 0; k < FDN_LINES; k ++) {
+        mLines[k] = new Delay(gLineTime[k]);
+        mGain[k] = 0;
+        mDamped[k] = 0;
+    }
+    setSamplingRate(mSamplingRate);
+}
+
+FeedbackDelayNetwork::~FeedbackDelayNetwork()
+{
+    for (int32_t k = 0; k < FDN_LINES; k ++) {
+        delete mLines[k];
+    }
+}
+
+/* A block is read out of the lines before it is written back, so it may
+ * be no longer than the shortest line. */
+void FeedbackDelayNetwork::setSamplingRate(float samplingRate)
+{
+    mSamplingRate = samplingRate;
+    mBlockLength = FDN_BLOCK;
+    for (int32_t k = 0; k < FDN_LINES; k ++) {
+        mLines[k]->setParameters(samplingRate, gLineTime[k]);
+        if (mBlockLength > mLines[k]->getLength()) {
+            mBlockLength = mLines[k]->getLength();
+        }
+        mDamped[k] = 0;
+    }
+}
+
+/* Each line loses 60 dB over decayTime in proportion to its length, so
+ * every path through the network decays at the same rate. */
+void FeedbackDelayNetwork::setDecay(float decayTime, float dampingFrequency)
+{
+    float normalize = 1.0f / sqrtf(FDN_LINES);
+    for (int32_t k = 0; k < FDN_LINES; k ++) {
+        float length = mLines[k]->getLength() / mSamplingRate;
+        float gain = powf(10.0f, -3.0f * length / decayTime);
+        mGain[k] = int32_t(gain * normalize * (1 << 24));
+    }
+    mDampingPole = int32_t(expf(-2.0f * float(M_PI) * dampingFrequency / mSamplingRate) * (1 << 24));
+}
+
+void FeedbackDelayNetwork::clear()
+{
+    for (int32_t k = 0; k < FDN_LINES; k ++) {
+        mLines[k]->clear();
+        mDamped[k] = 0;
+    }
+}
+
+uint32_t FeedbackDelayNetwork::getMemoryUsage() const
+{
+    uint32_t usage = 0;
+    for (int32_t k = 0; k < FDN_LINES; k ++) {
+        usage += sizeof(Delay) + mLines[k]->getMemoryUsage();
+    }
+    return usage;
+}
+
+void FeedbackDelayNetwork::process(const int32_t* inL, const int32_t* inR, int32_t* outL, int32_t* outR, int32_t frames)
+{
+    const int32_t smoothing = (1 << 24) - mDampingPole;
+
+    for (int32_t offset = 0; offset < frames; offset += mBlockLength) {
+        int32_t n = frames - offset;
+        if (n > mBlockLength) {
+            n = mBlockLength;
+        }
+
+        for (int32_t k = 0; k < FDN_LINES; k ++) {
+            mLines[k]->read(mTap[k], n);
+        }
+
+        for (int32_t i = 0; i < n; i ++) {
+            int32_t x[FDN_LINES];
+            for (int32_t k = 0; k < FDN_LINES; k ++) {
+                int32_t tap = mTap[k][i];
+                x[k] = tap;
+                mDamped[k] += int32_t((int64_t(tap - mDamped[k]) * smoothing) >> 24);
+            }
+            /* Alternate signs keep the outputs apart at low frequencies. */
+            outL[offset + i] = (x[0] - x[2] + x[4] - x[6]) >> 1;
+            outR[offset + i] = (x[1] - x[3] + x[5] - x[7]) >> 1;
+
+            for (int32_t k = 0; k < FDN_LINES; k ++) {
+                x[k] = int32_t((int64_t(mDamped[k]) * mGain[k]) >> 24);
+            }
+
+            /* Fast Walsh-Hadamard transform, unnormalized */
+            for (int32_t k = 0; k < FDN_LINES; k += 2) {
+                int32_t a = x[k], b = x[k + 1];
+                x[k] = a + b;
+                x[k + 1] = a - b;
+            }
+            for (int32_t k = 0; k < FDN_LINES; k += 4) {
+                int32_t a0 = x[k], a1 = x[k + 1], b0 = x[k + 2], b1 = x[k + 3];
+                x[k] = a0 + b0;
+                x[k + 1] = a1 + b1;
+                x[k + 2] = a0 - b0;
+                x[k + 3] = a1 - b1;
+            }
+            for (int32_t k = 0; k < 4; k ++) {
+                int32_t a = x[k], b = x[k + 4];
+                x[k] = a + b;
+                x[k + 4] = a - b;
+            }
+
+            int32_t dryL = inL[offset + i];
+            int32_t dryR = inR[offset + i];
+            mFeed[0][i] = x[0] + dryL;
+            mFeed[1][i] = x[1] + dryR;
+            mFeed[2][i] = x[2] - dryL;
+            mFeed[3][i] = x[3] - dryR;
+            mFeed[4][i] = x[4] + dryL;
+            mFeed[5][i] = x[5] + dryR;
+            mFeed[6][i] = x[6] - dryL;
+            mFeed[7][i] = x[7] - dryR;
+        }
+
+        for (int32_t k = 0; k < FDN_LINES; k ++) {
+            mLines[k]->write(mFeed[k], n);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+#pragma once
+
+#include <stdint.h>
+
+#include "Delay.h"
+
+/* Delay lines of the network. The mixing matrix is a Hadamard matrix,
+ * and process() is written out for this size. */
+#define FDN_LINES 8
+/* Frames processed per pass; also limited by the shortest line. */
+#define FDN_BLOCK 128
+
+/* Stereo reverberator built from a feedback delay network: FDN_LINES
+ * delay lines whose outputs are damped, attenuated to the decay time, and
+ * mixed back into all of their inputs through a normalized Hadamard
+ * matrix. The matrix is lossless and maximally diffusing, so the echo
+ * density builds up quickly and no single round trip can ring the way a
+ * pair of cross-coupled delays does. Left input feeds the even lines and
+ * right input the odd ones; each output is the sum of its own lines, so
+ * the two outputs are decorrelated.
+ *
+ * Input and output are 8.24 fixed point. The fixed CPU budget per frame,
+ * whatever the settings, is:
+ *
+ *   FDN_LINES delay taps, read and written as block copies
+ *   FDN_LINES one-pole dampers, 1 multiply and 2 adds each
+ *   FDN_LINES decay gains, 1 multiply each
+ *   FDN_LINES * log2(FDN_LINES) adds for the fast Hadamard transform
+ *   FDN_LINES adds to inject the input, FDN_LINES to sum the output
+ *
+ * that is 16 multiplies and 56 adds at 8 lines. */
+class FeedbackDelayNetwork {
+    Delay* mLines[FDN_LINES];
+    int32_t mBlockLength;
+    float mSamplingRate;
+
+    /* Q24 feedback gain of each line, including the 1/sqrt(N) of the
+     * matrix, and the Q24 pole of the dampers */
+    int32_t mGain[FDN_LINES];
+    int32_t mDampingPole;
+    int32_t mDamped[FDN_LINES];
+
+    int32_t mTap[FDN_LINES][FDN_BLOCK];
+    int32_t mFeed[FDN_LINES][FDN_BLOCK];
+
+    public:
+    FeedbackDelayNetwork();
+    ~FeedbackDelayNetwork();
+    /* Sets the line lengths, and clears the network. */
+    void setSamplingRate(float samplingRate);
+    /* Time for the mid frequencies to decay by 60 dB, and the corner of
+     * the damping above which they decay faster. */
+    void setDecay(float decayTime, float dampingFrequency);
+    void clear();
+    /* Bytes allocated, not counting the object itself. */
+    uint32_t getMemoryUsage() const;
+    void process(const int32_t* inL, const int32_t* inR, int32_t* outL, int32_t* outR, int32_t frames);
+};
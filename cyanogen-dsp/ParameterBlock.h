@@ -0,0 +1,91 @@
+#pragma once
+
+#include <stdint.h>
+#include <cutils/atomic.h>
+
+/* Hands a block of parameters from the command thread to the audio thread
+ * without locks. The command thread edits its own copy and publishes it;
+ * process() picks up the latest published copy at a buffer boundary and
+ * sees it whole, never half of one update and half of another.
+ *
+ * There are three slots: the audio thread owns one, the command thread
+ * owns one, and the third holds the latest publication. Publishing and
+ * picking up swap a slot with the third one in a single atomic step, so
+ * neither side ever waits, and neither allocates. T must be copyable with
+ * plain assignment. There must be one command thread at a time, as
+ * AudioFlinger guarantees for an effect handle. */
+
+#define PARAMETER_BLOCK_FRESH 4
+
+template <typename T>
+class ParameterBlock {
+    T mSlot[3];
+    /* Latest slot, plus PARAMETER_BLOCK_FRESH if not yet picked up */
+    volatile int32_t mLatest;
+    /* Owned by the command thread */
+    int32_t mWrite;
+    T mPending;
+    /* Owned by the audio thread */
+    int32_t mRead;
+
+    public:
+    ParameterBlock()
+        : mLatest(1), mWrite(0), mRead(2)
+    {
+    }
+
+    /* Command thread: the parameters as last set, to modify or report. */
+    T& edit() {
+        return mPending;
+    }
+
+    /* Command thread: the parameters as last set, read only. */
+    const T& peek() const {
+        return mPending;
+    }
+
+    /* Command thread: make the edited parameters visible to process().
+     * Returns true if process() had picked up the previous publication, which
+     * it then holds until it picks up this one; false if that publication was
+     * replaced unseen, and process() still holds the one before it. Resources
+     * the parameters point to can be reclaimed by this. */
+    bool publish() {
+        mSlot[mWrite] = mPending;
+        int32_t latest;
+        do {
+            latest = mLatest;
+        } while (android_atomic_release_cas(latest, mWrite | PARAMETER_BLOCK_FRESH, &mLatest) != 0);
+        mWrite = latest & ~PARAMETER_BLOCK_FRESH;
+        return (latest & PARAMETER_BLOCK_FRESH) == 0;
+    }
+
+    /* Audio thread: take the latest publication, if there is a new one.
+     * Returns true if current() changed. */
+    bool update() {
+        if ((android_atomic_acquire_load(&mLatest) & PARAMETER_BLOCK_FRESH) == 0) {
+            return false;
+        }
+        int32_t latest;
+        do {
+            latest = mLatest;
+        } while (android_atomic_acquire_cas(latest, mRead, &mLatest) != 0);
+        mRead = latest & ~PARAMETER_BLOCK_FRESH;
+        return true;
+    }
+
+    /* Audio thread: the parameters to process with. */
+    const T& current() const {
+        return mSlot[mRead];
+    }
+
+    /* Either thread, before the other one runs: make the edited parameters
+     * current everywhere. Used at construction. */
+    void reset() {
+        for (int32_t i = 0; i < 3; i ++) {
+            mSlot[i] = mPending;
+        }
+        mLatest = 1;
+        mWrite = 0;
+        mRead = 2;
+    }
+};
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "DSP-Analysis"
+
+#include <cutils/log.h>
+#include <pthread.h>
+
+#include "SessionAnalysis.h"
+
+/* Effects are created and released on binder threads. */
+static pthread_mutex_t gRegistryLock = PTHREAD_MUTEX_INITIALIZER;
+static SessionAnalysis* gRegistry;
+
+SessionAnalysis::SessionAnalysis()
+    : mSessionId(0), mIoId(0), mReferences(0), mNext(0), mConsumers(0), mRound(0), mFresh(false),
+      mChannels(0), mSamplingRate(0), mFrames(0)
+{
+    for (int32_t i = 0; i < EFFECT_MAX_CHANNELS; i ++) {
+        mPowerSum[i] = 0;
+        mPower[i] = 0;
+        mPeak[i] = 0;
+    }
+}
+
+SessionAnalysis* SessionAnalysis::acquire(int32_t sessionId, int32_t ioId)
+{
+    pthread_mutex_lock(&gRegistryLock);
+    SessionAnalysis* analysis = gRegistry;
+    while (analysis != 0 && (analysis->mSessionId != sessionId || analysis->mIoId != ioId)) {
+        analysis = analysis->mNext;
+    }
+    if (analysis == 0) {
+        analysis = new SessionAnalysis();
+        analysis->mSessionId = sessionId;
+        analysis->mIoId = ioId;
+        analysis->mNext = gRegistry;
+        gRegistry = analysis;
+        ALOGI("Created analysis for session %d on output %d", sessionId, ioId);
+    }
+    analysis->mReferences ++;
+    pthread_mutex_unlock(&gRegistryLock);
+    return analysis;
+}
+
+void SessionAnalysis::release(SessionAnalysis* analysis)
+{
+    pthread_mutex_lock(&gRegistryLock);
+    if (-- analysis->mReferences == 0) {
+        SessionAnalysis** link = &gRegistry;
+        while (*link != analysis) {
+            link = &(*link)->mNext;
+        }
+        *link = analysis->mNext;
+        ALOGI("Deleted analysis for session %d on output %d", analysis->mSessionId, analysis->mIoId);
+        delete analysis;
+    }
+    pthread_mutex_unlock(&gRegistryLock);
+}
+
+int32_t SessionAnalysis::attach()
+{
+    pthread_mutex_lock(&gRegistryLock);
+    int32_t consumer = -1;
+    for (int32_t i = 0; i < ANALYSIS_MAX_CONSUMERS; i ++) {
+        if ((mConsumers & (1u << i)) == 0) {
+            mConsumers |= 1u << i;
+            consumer = i;
+            break;
+        }
+    }
+    pthread_mutex_unlock(&gRegistryLock);
+    return consumer;
+}
+
+void SessionAnalysis::detach(int32_t consumer)
+{
+    if (consumer < 0) {
+        return;
+    }
+    pthread_mutex_lock(&gRegistryLock);
+    mConsumers &= ~(1u << consumer);
+    pthread_mutex_unlock(&gRegistryLock);
+}
+
+/* A consumer that was already seen in this round starts the next one.
+ * Measurements of another buffer size or layout are not reused. */
+bool SessionAnalysis::startRound(int32_t consumer, uint32_t frames, int32_t channels, float samplingRate)
+{
+    uint32_t bit = consumer >= 0 ? 1u << consumer : 0;
+    if (bit == 0 || (mRound & bit) != 0) {
+        mRound = 0;
+        mFresh = false;
+    }
+    mRound |= bit;
+    return !mFresh || frames != mFrames || channels != mChannels || samplingRate != mSamplingRate;
+}
+
+void SessionAnalysis::begin(int32_t channels, float samplingRate)
+{
+    if (channels != mChannels || samplingRate != mSamplingRate) {
+        for (int32_t i = 0; i < channels; i ++) {
+            mWeigher[i].setBandPass(0, 2200, samplingRate, 0.33);
+            mWeigher[i].clearHistory();
+        }
+        mChannels = channels;
+        mSamplingRate = samplingRate;
+    }
+    for (int32_t i = 0; i < mChannels; i ++) {
+        mPowerSum[i] = 0;
+        mPeak[i] = 0;
+    }
+}
+
+/* Interleaved 8.24 frames of mChannels channels. */
+void SessionAnalysis::add(const int32_t* samples, uint32_t frames)
+{
+    for (int32_t ch = 0; ch < mChannels; ch ++) {
+        Biquad& weigher = mWeigher[ch];
+        uint64_t power = 0;
+        int32_t peak = mPeak[ch];
+        int32_t idx = ch;
+        for (uint32_t i = 0; i < frames; i ++) {
+            int32_t sample = samples[idx];
+            /* One's complement: cannot overflow, and a LSB off is nothing. */
+            int32_t magnitude = sample < 0 ? ~sample : sample;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+
+            int32_t tmp = weigher.process(sample);
+            /* 2^24 * 2^24 = 48 */
+            power += int64_t(tmp) * int64_t(tmp);
+            idx += mChannels;
+        }
+        mPowerSum[ch] += power;
+        mPeak[ch] = peak;
+    }
+}
+
+void SessionAnalysis::end(uint32_t frames)
+{
+    for (int32_t i = 0; i < mChannels; i ++) {
+        mPower[i] = frames != 0 ? mPowerSum[i] / frames : 0;
+    }
+    mFrames = frames;
+    mFresh = true;
+}
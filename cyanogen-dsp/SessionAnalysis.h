@@ -0,0 +1,81 @@
+#pragma once
+
+#include <stdint.h>
+
+#include "Biquad.h"
+#include "Effect.h"
+
+/* Frames converted to 8.24 per pass when the input is in another format. */
+#define ANALYSIS_BLOCK 256
+
+/* Most consumers one analysis tells apart; any further ones measure for
+ * themselves every time. */
+#define ANALYSIS_MAX_CONSUMERS 32
+
+/* The weighting band-pass takes about 10 dB off broadband program
+ * material; add this to a weighted level in dB to compare it with an
+ * unweighted one. */
+#define ANALYSIS_WEIGHTING_DB 10.0f
+
+/* Level meter shared by the effects of one audio session. The compressor
+ * and the loudness compensation of the equalizer both need the power of
+ * the same audio; the first of them to process a buffer measures it, and
+ * the others reuse that measurement instead of repeating the per-sample
+ * work. Levels are per channel, over a whole buffer:
+ *
+ *   power  mean square of the weighted signal, 16.48 fixed point
+ *   peak   largest magnitude of the unweighted signal, 8.24
+ *
+ * The weighting is a broad band-pass around 2.2 kHz, which is close to A-
+ * and C-weighting from 100 Hz to 10 kHz.
+ *
+ * A round is a sequence of calls to Effect::analyze() in which no consumer
+ * appears twice. The first call of a round measures, and the rest of the
+ * round reuses it. All consumers of an analysis must process on the same
+ * thread, as the effects of a session on one output do. A session, the
+ * output mix above all, can be on several outputs at once, each with its
+ * own thread: an analysis is for one session on one output. */
+class SessionAnalysis {
+    /* Registry */
+    int32_t mSessionId;
+    int32_t mIoId;
+    int32_t mReferences;
+    SessionAnalysis* mNext;
+    /* Consumer bits handed out, and those seen in the current round */
+    uint32_t mConsumers;
+    uint32_t mRound;
+    bool mFresh;
+
+    int32_t mChannels;
+    float mSamplingRate;
+    uint32_t mFrames;
+    Biquad mWeigher[EFFECT_MAX_CHANNELS];
+    uint64_t mPowerSum[EFFECT_MAX_CHANNELS];
+    uint64_t mPower[EFFECT_MAX_CHANNELS];
+    int32_t mPeak[EFFECT_MAX_CHANNELS];
+
+    public:
+    SessionAnalysis();
+
+    /* The analysis of a session on an output, created on first use. Every
+     * acquire() must be matched by a release(). */
+    static SessionAnalysis* acquire(int32_t sessionId, int32_t ioId);
+    static void release(SessionAnalysis* analysis);
+
+    /* Consumer bit for a new consumer, or -1 if there are too many. */
+    int32_t attach();
+    void detach(int32_t consumer);
+
+    /* Returns true if the consumer must measure this buffer. */
+    bool startRound(int32_t consumer, uint32_t frames, int32_t channels, float samplingRate);
+    void begin(int32_t channels, float samplingRate);
+    void add(const int32_t* samples, uint32_t frames);
+    void end(uint32_t frames);
+
+    uint64_t getPower(int32_t channel) const {
+        return mPower[channel];
+    }
+    int32_t getPeak(int32_t channel) const {
+        return mPeak[channel];
+    }
+};
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "ShelfTable.h"
+
+ShelfTable::ShelfTable()
+    : mEntries((SHELF_TABLE_MAX_DB - SHELF_TABLE_MIN_DB) * SHELF_TABLE_STEPS_PER_DB + 1)
+{
+    mTable = new BiquadCoefficients[mEntries];
+}
+
+ShelfTable::~ShelfTable()
+{
+    delete[] mTable;
+}
+
+void ShelfTable::build(double centerFrequency, double samplingRate, double slope)
+{
+    for (int32_t i = 0; i < mEntries; i ++) {
+        double gainDb = SHELF_TABLE_MIN_DB + double(i) / SHELF_TABLE_STEPS_PER_DB;
+        Biquad::designHighShelf(mTable[i], centerFrequency, samplingRate, gainDb, slope, 0);
+    }
+}
+
+/* Coefficients are smooth in the gain, and any blend of two stable
+ * biquads is stable, so linear interpolation is safe here. */
+void ShelfTable::lookup(BiquadCoefficients& c, float gainDb) const
+{
+    float position = (gainDb - SHELF_TABLE_MIN_DB) * SHELF_TABLE_STEPS_PER_DB;
+    if (position <= 0) {
+        c = mTable[0];
+        return;
+    }
+    if (position >= mEntries - 1) {
+        c = mTable[mEntries - 1];
+        return;
+    }
+
+    int32_t idx = int32_t(position);
+    /* 16-bit fraction; coefficient differences are small enough not to overflow. */
+    int64_t frac = int64_t((position - idx) * 65536.f);
+    const BiquadCoefficients& x = mTable[idx];
+    const BiquadCoefficients& y = mTable[idx + 1];
+    c.b0 = x.b0 + ((y.b0 - x.b0) * frac >> 16);
+    c.b1 = x.b1 + ((y.b1 - x.b1) * frac >> 16);
+    c.b2 = x.b2 + ((y.b2 - x.b2) * frac >> 16);
+    c.a1 = x.a1 + ((y.a1 - x.a1) * frac >> 16);
+    c.a2 = x.a2 + ((y.a2 - x.a2) * frac >> 16);
+}
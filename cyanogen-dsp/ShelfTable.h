@@ -0,0 +1,27 @@
+#pragma once
+
+#include <stdint.h>
+
+#include "Biquad.h"
+
+/* Range and resolution of the tabulated shelf gains. Lookups interpolate
+ * linearly between entries, and clamp outside of the range. */
+#define SHELF_TABLE_MIN_DB -48
+#define SHELF_TABLE_MAX_DB 48
+#define SHELF_TABLE_STEPS_PER_DB 2
+
+/* High shelf coefficients for one corner frequency and sampling rate,
+ * tabulated over gain so that they can be looked up without evaluating
+ * the design formulas in the audio thread. */
+class ShelfTable {
+    BiquadCoefficients* mTable;
+    int32_t mEntries;
+
+    public:
+    ShelfTable();
+    ~ShelfTable();
+    void build(double centerFrequency, double samplingRate, double slope);
+    void lookup(BiquadCoefficients& c, float gainDb) const;
+    /* Bytes allocated, not counting the object itself. */
+    uint32_t getMemoryUsage() const { return mEntries * sizeof(BiquadCoefficients); }
+};
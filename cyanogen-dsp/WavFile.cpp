@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "DSP-WavFile"
+
+#include <cutils/log.h>
+#include "WavFile.h"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#define WAVE_FORMAT_PCM 1
+#define WAVE_FORMAT_IEEE_FLOAT 3
+#define WAVE_FORMAT_EXTENSIBLE 0xfffe
+
+static uint32_t le32(const uint8_t* p)
+{
+    return p[0] | (p[1] << 8) | (p[2] << 16) | (uint32_t(p[3]) << 24);
+}
+
+static uint16_t le16(const uint8_t* p)
+{
+    return p[0] | (p[1] << 8);
+}
+
+WavFile::WavFile()
+    : mMap(0), mMapLength(0), mData(0), mFormat(0), mChannels(0),
+      mSamplingRate(0), mBitsPerSample(0), mFrames(0)
+{
+}
+
+WavFile::~WavFile()
+{
+    close();
+}
+
+void WavFile::close()
+{
+    if (mMap != 0) {
+        munmap(mMap, mMapLength);
+        mMap = 0;
+    }
+    mData = 0;
+    mFrames = 0;
+}
+
+int32_t WavFile::open(const char* path)
+{
+    close();
+
+    int fd = ::open(path, O_RDONLY);
+    if (fd < 0) {
+        ALOGE("Can't open %s: %s", path, strerror(errno));
+        return -errno;
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0 || st.st_size < 12) {
+        ::close(fd);
+        return -EINVAL;
+    }
+    mMapLength = st.st_size;
+    mMap = mmap(0, mMapLength, PROT_READ, MAP_PRIVATE, fd, 0);
+    ::close(fd);
+    if (mMap == MAP_FAILED) {
+        mMap = 0;
+        return -ENOMEM;
+    }
+
+    const uint8_t* p = (const uint8_t*) mMap;
+    const uint8_t* end = p + mMapLength;
+    if (memcmp(p, "RIFF", 4) != 0 || memcmp(p + 8, "WAVE", 4) != 0) {
+        ALOGE("%s is not a RIFF/WAVE file", path);
+        close();
+        return -EINVAL;
+    }
+
+    uint32_t dataLength = 0;
+    for (p += 12; p + 8 <= end; ) {
+        uint32_t chunkLength = le32(p + 4);
+        const uint8_t* chunk = p + 8;
+        if (chunkLength > size_t(end - chunk)) {
+            chunkLength = end - chunk;
+        }
+        if (memcmp(p, "fmt ", 4) == 0 && chunkLength >= 16) {
+            mFormat = le16(chunk);
+            mChannels = le16(chunk + 2);
+            mSamplingRate = le32(chunk + 4);
+            mBitsPerSample = le16(chunk + 14);
+            if (mFormat == WAVE_FORMAT_EXTENSIBLE && chunkLength >= 26) {
+                mFormat = le16(chunk + 24);
+            }
+        } else if (memcmp(p, "data", 4) == 0) {
+            mData = chunk;
+            dataLength = chunkLength;
+        }
+        /* Chunks are padded to even length. */
+        p = chunk + chunkLength + (chunkLength & 1);
+    }
+
+    bool pcm16 = mFormat == WAVE_FORMAT_PCM && mBitsPerSample == 16;
+    bool float32 = mFormat == WAVE_FORMAT_IEEE_FLOAT && mBitsPerSample == 32;
+    if (mData == 0 || mChannels <= 0 || !(pcm16 || float32)) {
+        ALOGE("%s: unsupported WAVE format %d/%d bits", path, mFormat, mBitsPerSample);
+        close();
+        return -EINVAL;
+    }
+
+    mFrames = dataLength / (mChannels * mBitsPerSample / 8);
+    return 0;
+}
+
+float WavFile::getSample(int32_t frame, int32_t channel) const
+{
+    int32_t idx = frame * mChannels + channel;
+    if (mBitsPerSample == 16) {
+        return int16_t(le16(mData + idx * 2)) / 32768.0f;
+    }
+    uint32_t bits = le32(mData + idx * 4);
+    float value;
+    memcpy(&value, &bits, sizeof(value));
+    return value;
+}
@@ -0,0 +1,29 @@
+#pragma once
+
+#include <stddef.h>
+#include <stdint.h>
+
+/* Read-only view of a RIFF/WAVE file mapped into memory. Samples are
+ * decoded on access, so the file contents are never copied. 16-bit PCM
+ * and 32-bit float data are understood. */
+class WavFile {
+    void* mMap;
+    size_t mMapLength;
+    const uint8_t* mData;
+    int32_t mFormat;
+    int32_t mChannels;
+    int32_t mSamplingRate;
+    int32_t mBitsPerSample;
+    int32_t mFrames;
+
+    public:
+    WavFile();
+    ~WavFile();
+    int32_t open(const char* path);
+    void close();
+    int32_t getChannels() const { return mChannels; }
+    int32_t getSamplingRate() const { return mSamplingRate; }
+    int32_t getFrames() const { return mFrames; }
+    /* Sample value scaled to -1 .. 1. */
+    float getSample(int32_t frame, int32_t channel) const;
+};
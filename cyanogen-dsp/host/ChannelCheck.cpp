@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Runs every effect over mono, stereo, 5.1 and 7.1 buffers and checks that
+ * the wider layouts behave like stereo where they should: a stereo signal
+ * on the front pair of a wider layout, with the other channels silent,
+ * must come out of the front pair as it does from a stereo buffer. Runs in
+ * 8.24 so that no dither gets in the way of exact comparison. */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <audio_effects/effect_bassboost.h>
+#include <audio_effects/effect_equalizer.h>
+#include <audio_effects/effect_virtualizer.h>
+
+#include "EffectChain.h"
+#include "HostEffect.h"
+
+#define RATE 44100
+#define BUFFER_FRAMES 512
+#define BUFFERS 200
+
+static const audio_channel_mask_t gLayouts[] = {
+    AUDIO_CHANNEL_OUT_MONO,
+    AUDIO_CHANNEL_OUT_STEREO,
+    AUDIO_CHANNEL_OUT_5POINT1,
+    AUDIO_CHANNEL_OUT_7POINT1,
+};
+#define LAYOUTS int32_t(sizeof(gLayouts) / sizeof(gLayouts[0]))
+
+static const char* gEffects[] = {
+    "Compression", "Equalizer", "Bass", "Virtualization", "Multiband", "Limiter", "Effect Chain",
+};
+#define EFFECTS int32_t(sizeof(gEffects) / sizeof(gEffects[0]))
+
+static int32_t gFailures;
+
+static void report(const char* effect, const char* what, int32_t channels, bool ok, const char* detail)
+{
+    printf("%-16s %-34s %d ch  %s%s\n", effect, what, channels, ok ? "ok" : "FAIL", detail);
+    if (!ok) {
+        gFailures ++;
+    }
+}
+
+/* Same settings as dspbench uses. */
+static void applyProfile(HostEffect& effect, const char* name)
+{
+    bool fused = strcmp(name, "Effect Chain") == 0;
+    if (fused || strcmp(name, "Compression") == 0) {
+        effect.setParameter(fused ? CHAIN_PARAM(CHAIN_STAGE_COMPRESSION, 0) : 0, int16_t(100));
+    }
+    if (fused || strcmp(name, "Equalizer") == 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_EQUALIZER, 0) : 0;
+        const int16_t rock[6] = { 450, 450, 275, -50, 275, 400 };
+        for (int32_t i = 0; i < 6; i ++) {
+            effect.setParameter(stage | EQ_PARAM_BAND_LEVEL, i, rock[i]);
+        }
+        effect.setParameter(stage | 1000, int16_t(4000));
+    }
+    if (fused || strcmp(name, "Bass") == 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_BASSBOOST, 0) : 0;
+        effect.setParameter(stage | BASSBOOST_PARAM_STRENGTH, int16_t(1000));
+    }
+    if (fused || strcmp(name, "Virtualization") == 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_VIRTUALIZER, 0) : 0;
+        effect.setParameter(stage | VIRTUALIZER_PARAM_STRENGTH, int16_t(1000));
+    }
+    if (fused || strcmp(name, "Multiband") == 0) {
+        effect.setParameter(fused ? CHAIN_PARAM(CHAIN_STAGE_MULTIBAND, 0) : 0, int16_t(1000));
+    }
+    if (fused) {
+        for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+            effect.setParameter(CHAIN_PARAM(i, CHAIN_STAGE_PARAM_ENABLE), int16_t(1));
+        }
+    }
+}
+
+/* White noise at -12 dBFS, in 8.24. */
+static int32_t noise(uint32_t& seed)
+{
+    seed = seed * 1664525 + 1013904223;
+    return int32_t(seed) >> 10;
+}
+
+/* Fill frames of input: the given channels get independent noise, the
+ * others silence. */
+static void fill(int32_t* data, int32_t frames, int32_t channels, uint32_t activeMask, uint32_t& seed)
+{
+    for (int32_t i = 0; i < frames; i ++) {
+        for (int32_t c = 0; c < channels; c ++) {
+            data[i * channels + c] = (activeMask & (1 << c)) ? noise(seed) : 0;
+        }
+    }
+}
+
+/* Create, configure and process a whole signal in place. Returns nonzero
+ * if the effect rejected the configuration. */
+static int32_t render(const char* name, audio_channel_mask_t inMask, audio_channel_mask_t outMask,
+        const int32_t* input, int32_t* output, bool enabled = true)
+{
+    int32_t inChannels = audio_channel_count_from_out_mask(inMask);
+    int32_t outChannels = audio_channel_count_from_out_mask(outMask);
+    HostEffect effect;
+    if (effect.create(name) != 0) {
+        return -ENOENT;
+    }
+    int32_t ret = effect.configure(RATE, inMask, AUDIO_FORMAT_PCM_8_24_BIT,
+            EFFECT_BUFFER_ACCESS_WRITE, outMask);
+    if (ret != 0) {
+        return ret;
+    }
+    applyProfile(effect, name);
+    effect.setEnabled(enabled);
+
+    int32_t buffer[BUFFER_FRAMES * EFFECT_MAX_CHANNELS];
+    for (int32_t b = 0; b < BUFFERS; b ++) {
+        memcpy(buffer, &input[b * BUFFER_FRAMES * inChannels], BUFFER_FRAMES * inChannels * sizeof(int32_t));
+        audio_buffer_t in;
+        in.frameCount = BUFFER_FRAMES;
+        in.s32 = buffer;
+        effect.process(&in, &in);
+        memcpy(&output[b * BUFFER_FRAMES * outChannels], buffer, BUFFER_FRAMES * outChannels * sizeof(int32_t));
+    }
+    return 0;
+}
+
+/* Largest difference between channels of two renders, in 16-bit LSB. */
+static double compare(const int32_t* a, int32_t aChannels, int32_t aChannel,
+        const int32_t* b, int32_t bChannels, int32_t bChannel)
+{
+    int32_t worst = 0;
+    for (int32_t i = 0; i < BUFFERS * BUFFER_FRAMES; i ++) {
+        int32_t difference = abs(a[i * aChannels + aChannel] - b[i * bChannels + bChannel]);
+        if (difference > worst) {
+            worst = difference;
+        }
+    }
+    return worst / 256.0;
+}
+
+/* Output must have signal, and stay within the 8.24 headroom. */
+static bool sane(const int32_t* data, int32_t channels, int32_t channel)
+{
+    int64_t energy = 0;
+    for (int32_t i = 0; i < BUFFERS * BUFFER_FRAMES; i ++) {
+        int32_t sample = data[i * channels + channel];
+        if (sample > (1 << 30) || sample < -(1 << 30)) {
+            return false;
+        }
+        energy += int64_t(sample >> 8) * (sample >> 8);
+    }
+    return energy != 0;
+}
+
+int main()
+{
+    const int32_t samples = BUFFERS * BUFFER_FRAMES * EFFECT_MAX_CHANNELS;
+    int32_t* input = new int32_t[samples];
+    int32_t* output = new int32_t[samples];
+    int32_t* stereo = new int32_t[samples];
+    int32_t* front = new int32_t[samples];
+    char detail[64];
+
+    for (int32_t e = 0; e < EFFECTS; e ++) {
+        const char* name = gEffects[e];
+        bool virtualizer = strcmp(name, "Virtualization") == 0;
+        bool bass = strcmp(name, "Bass") == 0;
+        bool chain = strcmp(name, "Effect Chain") == 0;
+
+        /* Reference: the same noise on a stereo buffer. */
+        uint32_t seed = 1;
+        fill(input, BUFFERS * BUFFER_FRAMES, 2, 0x3, seed);
+        render(name, AUDIO_CHANNEL_OUT_STEREO, AUDIO_CHANNEL_OUT_STEREO, input, stereo);
+
+        for (int32_t l = 0; l < LAYOUTS; l ++) {
+            audio_channel_mask_t mask = gLayouts[l];
+            int32_t channels = audio_channel_count_from_out_mask(mask);
+
+            /* Noise on every channel. */
+            seed = 2;
+            fill(input, BUFFERS * BUFFER_FRAMES, channels, 0xff, seed);
+            int32_t ret = render(name, mask, mask, input, output);
+            report(name, "configure", channels, ret == 0, "");
+            if (ret != 0) {
+                continue;
+            }
+            /* The virtualizer renders to the front pair only. */
+            bool ok = true;
+            for (int32_t c = 0; c < channels; c ++) {
+                bool expectSignal = !(virtualizer || chain) || c < 2;
+                ok &= sane(output, channels, c) == expectSignal;
+            }
+            report(name, "all channels processed", channels, ok, "");
+
+            /* Stereo on the front pair. Bass boost mixes all channels, so
+             * the silent ones lower its level: skip it here. */
+            if (channels > 2 && !bass && !chain) {
+                seed = 1;
+                fill(front, BUFFERS * BUFFER_FRAMES, 2, 0x3, seed);
+                for (int32_t i = 0; i < BUFFERS * BUFFER_FRAMES; i ++) {
+                    for (int32_t c = 0; c < channels; c ++) {
+                        input[i * channels + c] = c < 2 ? front[i * 2 + c] : 0;
+                    }
+                }
+                render(name, mask, mask, input, output);
+                double worst = compare(output, channels, 0, stereo, 2, 0);
+                double right = compare(output, channels, 1, stereo, 2, 1);
+                if (right > worst) {
+                    worst = right;
+                }
+                snprintf(detail, sizeof(detail), " (%.3g LSB)", worst);
+                report(name, "front pair matches stereo", channels, worst == 0, detail);
+
+                if (virtualizer) {
+                    render(name, mask, AUDIO_CHANNEL_OUT_STEREO, input, output);
+                    worst = compare(output, 2, 0, stereo, 2, 0);
+                    right = compare(output, 2, 1, stereo, 2, 1);
+                    if (right > worst) {
+                        worst = right;
+                    }
+                    snprintf(detail, sizeof(detail), " (%.3g LSB)", worst);
+                    report(name, "downmix to stereo matches stereo", channels, worst == 0, detail);
+
+                    /* Disabled, it downmixes and does nothing else. */
+                    render(name, mask, AUDIO_CHANNEL_OUT_STEREO, input, output, false);
+                    worst = compare(output, 2, 0, front, 2, 0);
+                    right = compare(output, 2, 1, front, 2, 1);
+                    if (right > worst) {
+                        worst = right;
+                    }
+                    snprintf(detail, sizeof(detail), " (%.3g LSB)", worst);
+                    report(name, "disabled downmix is dry", channels, worst == 0, detail);
+                }
+            }
+
+            /* The same signal on every channel looks like a centered
+             * stereo signal to the bass boost. */
+            if (bass && channels != 2) {
+                seed = 3;
+                for (int32_t i = 0; i < BUFFERS * BUFFER_FRAMES; i ++) {
+                    int32_t value = noise(seed);
+                    for (int32_t c = 0; c < channels; c ++) {
+                        input[i * channels + c] = value;
+                    }
+                }
+                render(name, mask, mask, input, output);
+                for (int32_t i = 0; i < BUFFERS * BUFFER_FRAMES; i ++) {
+                    front[i * 2] = input[i * channels];
+                    front[i * 2 + 1] = input[i * channels];
+                }
+                render(name, AUDIO_CHANNEL_OUT_STEREO, AUDIO_CHANNEL_OUT_STEREO, front, stereo);
+                double worst = 0;
+                for (int32_t c = 0; c < channels; c ++) {
+                    double difference = compare(output, channels, c, stereo, 2, 0);
+                    if (difference > worst) {
+                        worst = difference;
+                    }
+                }
+                snprintf(detail, sizeof(detail), " (%.3g LSB)", worst);
+                /* The mix scale of 2 / channels is rounded for 6 channels. */
+                report(name, "centered signal matches stereo", channels, worst <= 4, detail);
+            }
+        }
+    }
+
+    /* Surround channels must reach the ears through the downmix. */
+    uint32_t seed = 4;
+    int32_t channels = audio_channel_count_from_out_mask(AUDIO_CHANNEL_OUT_7POINT1);
+    for (int32_t c = 2; c < channels; c ++) {
+        fill(input, BUFFERS * BUFFER_FRAMES, channels, 1 << c, seed);
+        render("Virtualization", AUDIO_CHANNEL_OUT_7POINT1, AUDIO_CHANNEL_OUT_STEREO, input, output);
+        snprintf(detail, sizeof(detail), " (channel %d)", c);
+        report("Virtualization", "surround channel is heard", channels,
+                sane(output, 2, 0) || sane(output, 2, 1), detail);
+    }
+
+    delete[] front;
+    delete[] stereo;
+    delete[] output;
+    delete[] input;
+    return gFailures != 0;
+}
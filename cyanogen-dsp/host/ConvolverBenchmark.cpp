@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Measures the partitioned convolution engine against impulse response
+ * length, next to a direct-form FIR of the same length for reference. */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include "Convolver.h"
+
+#define SAMPLING_RATE 44100
+#define SECONDS 5
+#define CALL_FRAMES 512
+
+static double now()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec * 1e-9;
+}
+
+static double benchmarkConvolver(const float* ir, int32_t length, const int32_t* input, int32_t frames)
+{
+    Convolver convolver;
+    convolver.setImpulseResponse(ir, ir + 1, ir + 2, ir + 3, length, 4);
+    int32_t outL[CALL_FRAMES], outR[CALL_FRAMES];
+
+    double start = now();
+    for (int32_t i = 0; i + CALL_FRAMES <= frames; i += CALL_FRAMES) {
+        convolver.process(&input[i], &input[frames + i], outL, outR, CALL_FRAMES);
+    }
+    return (now() - start) / frames;
+}
+
+static double benchmarkDirect(const float* ir, int32_t length, const int32_t* input, int32_t frames)
+{
+    volatile float sink = 0;
+    double start = now();
+    for (int32_t n = length; n < frames; n ++) {
+        float yl = 0, yr = 0;
+        for (int32_t k = 0; k < length; k ++) {
+            float xl = input[n - k];
+            float xr = input[frames + n - k];
+            yl += xl * ir[k * 4] + xr * ir[k * 4 + 2];
+            yr += xl * ir[k * 4 + 1] + xr * ir[k * 4 + 3];
+        }
+        sink = sink + yl + yr;
+    }
+    return (now() - start) / (frames - length);
+}
+
+int main()
+{
+    int32_t frames = SAMPLING_RATE * SECONDS;
+    int32_t* input = new int32_t[frames * 2];
+    for (int32_t i = 0; i < frames * 2; i ++) {
+        input[i] = (rand() % 65536 - 32768) << 8;
+    }
+    float* ir = new float[CONVOLVER_MAX_LENGTH * 4];
+    for (int32_t i = 0; i < CONVOLVER_MAX_LENGTH * 4; i ++) {
+        ir[i] = (rand() / float(RAND_MAX) - 0.5f) * 0.01f;
+    }
+
+    printf("%8s %12s %10s %12s\n", "taps", "ns/frame", "realtime", "direct ns/f");
+    for (int32_t length = 256; length <= CONVOLVER_MAX_LENGTH; length *= 2) {
+        double perFrame = benchmarkConvolver(ir, length, input, frames);
+        printf("%8d %12.1f %9.0fx", length, perFrame * 1e9, 1.0 / (perFrame * SAMPLING_RATE));
+        if (length <= 4096) {
+            printf(" %12.1f", benchmarkDirect(ir, length, input, frames / 4) * 1e9);
+        }
+        printf("\n");
+    }
+
+    delete[] input;
+    delete[] ir;
+    return 0;
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Runs every effect of the library, and all of them chained in the
+ * order audioflinger would, over test signals. Reports the cost per
+ * frame, how much faster than realtime that is, how many allocations
+ * process() made, and the cpuLoad value the effect descriptor should
+ * carry for a CPU of the given clock. Each effect's own account of its
+ * cost and memory, as the settings screen shows it, is printed along. */
+
+#include <new>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include <audio_effects/effect_bassboost.h>
+#include <audio_effects/effect_equalizer.h>
+#include <audio_effects/effect_virtualizer.h>
+
+#include "EffectChain.h"
+#include "HostEffect.h"
+#include "Stimulus.h"
+
+static bool gCountAllocations;
+static uint32_t gAllocations;
+
+void* operator new(size_t size)
+{
+    if (gCountAllocations) {
+        gAllocations ++;
+    }
+    void* p = malloc(size);
+    if (p == 0) {
+        throw std::bad_alloc();
+    }
+    return p;
+}
+
+void* operator new[](size_t size)
+{
+    return operator new(size);
+}
+
+void operator delete(void* p) throw()
+{
+    free(p);
+}
+
+void operator delete[](void* p) throw()
+{
+    free(p);
+}
+
+static double now()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec * 1e-9;
+}
+
+static bool isFusedChain(const HostEffect& effect)
+{
+    return strstr(effect.getDescriptor().name, "Effect Chain") != 0;
+}
+
+/* Settings close to what HeadsetService sends for a busy profile. The
+ * fused chain gets the same settings for every one of its stages. */
+static void applyProfile(HostEffect& effect)
+{
+    const char* name = effect.getDescriptor().name;
+    bool fused = isFusedChain(effect);
+    if (fused || strstr(name, "Dynamic Range Compression") != 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_COMPRESSION, 0) : 0;
+        effect.setParameter(stage, int16_t(100));
+    }
+    if (fused || strstr(name, "Equalizer") != 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_EQUALIZER, 0) : 0;
+        const int16_t rock[6] = { 450, 450, 275, -50, 275, 400 };
+        for (int32_t i = 0; i < 6; i ++) {
+            effect.setParameter(stage | EQ_PARAM_BAND_LEVEL, i, rock[i]);
+        }
+        effect.setParameter(stage | 1000, int16_t(4000));
+    }
+    if (fused || strstr(name, "Bass") != 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_BASSBOOST, 0) : 0;
+        effect.setParameter(stage | BASSBOOST_PARAM_STRENGTH, int16_t(1000));
+    }
+    if (fused || strstr(name, "Virtualization") != 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_VIRTUALIZER, 0) : 0;
+        effect.setParameter(stage | VIRTUALIZER_PARAM_STRENGTH, int16_t(1000));
+    }
+    if (fused || strstr(name, "Multiband") != 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_MULTIBAND, 0) : 0;
+        effect.setParameter(stage, int16_t(1000));
+    }
+    if (fused) {
+        for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+            effect.setParameter(CHAIN_PARAM(i, CHAIN_STAGE_PARAM_ENABLE), int16_t(1));
+        }
+    }
+}
+
+struct Result {
+    double nsPerFrame;
+    uint32_t allocations;
+};
+
+/* The average ns per frame and the memory the effect reports for itself
+ * through EFFECT_PARAM_COST. */
+static void getCost(HostEffect& effect, double& nsPerFrame, double& kilobytes)
+{
+    int32_t param = EFFECT_PARAM_COST;
+    int32_t cost[EFFECT_COST_VALUES];
+    uint32_t vsize = sizeof(cost);
+    if (effect.getParameter(&param, sizeof(param), cost, &vsize) != 0 || vsize != sizeof(cost)) {
+        nsPerFrame = -1;
+        kilobytes = -1;
+        return;
+    }
+    nsPerFrame = cost[0] / 1000.0;
+    kilobytes = cost[3] / 1024.0;
+}
+
+/* Position of an effect in an audioflinger insert chain. */
+static int32_t insertOrder(const HostEffect& effect)
+{
+    switch (effect.getDescriptor().flags & EFFECT_FLAG_INSERT_EXCLUSIVE) {
+    case EFFECT_FLAG_INSERT_FIRST: return 0;
+    case EFFECT_FLAG_INSERT_LAST: return 2;
+    default: return 1;
+    }
+}
+
+/* Time count effects processing the stimulus in place, one after the
+ * other, for the given number of seconds of audio. */
+static Result run(HostEffect** effects, int32_t count, const Stimulus& stimulus,
+        int32_t samplingRate, int32_t bufferFrames, double seconds, audio_format_t format)
+{
+    int32_t channels = stimulus.getChannels();
+    /* Big enough for any of the sample formats. */
+    int32_t* buffer = new int32_t[bufferFrames * channels];
+    int32_t total = int32_t(seconds * samplingRate);
+    int32_t position = 0;
+    double elapsed = 0;
+    Result result = { 0, 0 };
+
+    /* First pass warms up caches and filter state, and is not timed. */
+    for (int32_t pass = 0; pass < 2; pass ++) {
+        for (int32_t done = 0; done < total; done += bufferFrames) {
+            audio_buffer_t in;
+            in.frameCount = bufferFrames;
+            in.s32 = buffer;
+            for (int32_t i = 0; i < bufferFrames; i ++) {
+                const int16_t* frame = &stimulus.getData()[position * channels];
+                for (int32_t c = 0; c < channels; c ++) {
+                    int32_t idx = i * channels + c;
+                    switch (format) {
+                    case AUDIO_FORMAT_PCM_8_24_BIT: in.s32[idx] = frame[c] << 8; break;
+                    case AUDIO_FORMAT_PCM_FLOAT: in.f32[idx] = frame[c] / 32768.f; break;
+                    default: in.s16[idx] = frame[c]; break;
+                    }
+                }
+                position = (position + 1) % stimulus.getFrames();
+            }
+
+            gAllocations = 0;
+            gCountAllocations = pass == 1;
+            double start = now();
+            for (int32_t e = 0; e < count; e ++) {
+                effects[e]->process(&in, &in);
+            }
+            if (pass == 1) {
+                elapsed += now() - start;
+            }
+            gCountAllocations = false;
+            result.allocations += gAllocations;
+        }
+    }
+
+    delete[] buffer;
+    result.nsPerFrame = elapsed * 1e9 / total;
+    return result;
+}
+
+static void usage()
+{
+    fprintf(stderr, "usage: dspbench [-r rate] [-b frames] [-s seconds] [-m MHz] [-f 16|8.24|float] [-c 1|2|6|8]\n"
+            "        [stimulus ...]\n"
+            "stimulus is noise, sweep, silence or a .wav file (default: noise sweep)\n");
+    exit(1);
+}
+
+int main(int argc, char** argv)
+{
+    int32_t samplingRate = 44100;
+    int32_t bufferFrames = 512;
+    double seconds = 10;
+    double mhz = 1000;
+    audio_format_t format = AUDIO_FORMAT_PCM_16_BIT;
+    audio_channel_mask_t channelMask = AUDIO_CHANNEL_OUT_STEREO;
+
+    int opt;
+    while ((opt = getopt(argc, argv, "r:b:s:m:f:c:")) != -1) {
+        switch (opt) {
+        case 'r': samplingRate = atoi(optarg); break;
+        case 'b': bufferFrames = atoi(optarg); break;
+        case 's': seconds = atof(optarg); break;
+        case 'm': mhz = atof(optarg); break;
+        case 'f':
+            if (!strcmp(optarg, "16")) {
+                format = AUDIO_FORMAT_PCM_16_BIT;
+            } else if (!strcmp(optarg, "8.24")) {
+                format = AUDIO_FORMAT_PCM_8_24_BIT;
+            } else if (!strcmp(optarg, "float")) {
+                format = AUDIO_FORMAT_PCM_FLOAT;
+            } else {
+                usage();
+            }
+            break;
+        case 'c':
+            switch (atoi(optarg)) {
+            case 1: channelMask = AUDIO_CHANNEL_OUT_MONO; break;
+            case 2: channelMask = AUDIO_CHANNEL_OUT_STEREO; break;
+            case 6: channelMask = AUDIO_CHANNEL_OUT_5POINT1; break;
+            case 8: channelMask = AUDIO_CHANNEL_OUT_7POINT1; break;
+            default: usage();
+            }
+            break;
+        default: usage();
+        }
+    }
+
+    const char* defaults[] = { "noise", "sweep" };
+    const char** kinds = (const char**) &argv[optind];
+    int32_t kindCount = argc - optind;
+    if (kindCount == 0) {
+        kinds = defaults;
+        kindCount = 2;
+    }
+
+    uint32_t effectCount = hostEffectCount();
+    HostEffect* effects = new HostEffect[effectCount];
+    HostEffect** chain = new HostEffect*[effectCount];
+
+    int32_t channels = audio_channel_count_from_out_mask(channelMask);
+    printf("%d Hz, %d channels, %d-frame buffers, format 0x%x, cpuLoad in 0.1 MIPS at %.0f MHz and one instruction per cycle\n",
+            samplingRate, channels, bufferFrames, format, mhz);
+    printf("%-12s %-42s %10s %10s %7s %8s %10s %8s\n", "stimulus", "effect", "ns/frame", "realtime", "allocs", "cpuLoad",
+            "self", "kB");
+
+    for (int32_t k = 0; k < kindCount; k ++) {
+        Stimulus stimulus;
+        if (stimulus.create(kinds[k], samplingRate, channels, samplingRate * 5) != 0) {
+            fprintf(stderr, "Can't create stimulus %s\n", kinds[k]);
+            return 1;
+        }
+
+        for (uint32_t e = 0; e < effectCount; e ++) {
+            effects[e].create(e);
+            if (effects[e].configure(samplingRate, channelMask, format) != 0) {
+                fprintf(stderr, "%s rejected format 0x%x, channels 0x%x\n",
+                        effects[e].getDescriptor().name, format, channelMask);
+                return 1;
+            }
+            applyProfile(effects[e]);
+            effects[e].setEnabled(true);
+        }
+        /* The fused chain already contains every other effect, so it goes
+         * last and is left out of the chained run. */
+        int32_t chained = 0;
+        for (int32_t order = 0; order < 3; order ++) {
+            for (uint32_t e = 0; e < effectCount; e ++) {
+                if (insertOrder(effects[e]) == order && !isFusedChain(effects[e])) {
+                    chain[chained ++] = &effects[e];
+                }
+            }
+        }
+        for (uint32_t e = 0, fused = chained; e < effectCount; e ++) {
+            if (isFusedChain(effects[e])) {
+                chain[fused ++] = &effects[e];
+            }
+        }
+
+        for (uint32_t e = 0; e <= effectCount; e ++) {
+            bool all = e == effectCount;
+            Result r = all ? run(chain, chained, stimulus, samplingRate, bufferFrames, seconds, format)
+                    : run(&chain[e], 1, stimulus, samplingRate, bufferFrames, seconds, format);
+            double cyclesPerSecond = r.nsPerFrame * 1e-9 * samplingRate * mhz * 1e6;
+            printf("%-12s %-42s %10.1f %9.0fx %7u %8.0f", stimulus.getName(),
+                    all ? "(all effects chained)" : chain[e]->getDescriptor().name,
+                    r.nsPerFrame, 1e9 / (r.nsPerFrame * samplingRate), r.allocations,
+                    cyclesPerSecond / 1e5);
+            if (all) {
+                printf("\n");
+            } else {
+                double selfNsPerFrame, kilobytes;
+                getCost(*chain[e], selfNsPerFrame, kilobytes);
+                printf(" %10.1f %8.1f\n", selfNsPerFrame, kilobytes);
+            }
+        }
+    }
+
+    delete[] chain;
+    delete[] effects;
+    return 0;
+}
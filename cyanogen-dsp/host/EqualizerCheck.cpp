@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Checks the parametric mode of the equalizer in 8.24, with 31 third
+ * octave bands. A tone at the center of a band must come out at the band's
+ * level, flat bands must leave the program alone, and the settings must
+ * read back as they were sent, through the parametric parameter as well
+ * as the standard ones. Levels are measured over the last second, after
+ * the fade in. */
+
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
+
+#include "EffectEqualizer.h"
+#include "HostEffect.h"
+
+#define RATE 44100
+#define BUFFER_FRAMES 512
+#define SECONDS 2
+#define FRAMES (SECONDS * RATE / BUFFER_FRAMES * BUFFER_FRAMES)
+#define MEASURE_FROM (FRAMES - RATE)
+#define BANDS 31
+/* Third octave bandwidth */
+#define THIRD_OCTAVE_Q 432
+
+static const int16_t gCenters[BANDS] = {
+    20, 25, 31, 40, 50, 63, 80, 100, 125, 160, 200, 250, 315, 400, 500, 630,
+    800, 1000, 1250, 1600, 2000, 2500, 3150, 4000, 5000, 6300, 8000, 10000,
+    12500, 16000, 20000,
+};
+
+static int32_t gFailures;
+
+static void report(const char* what, bool ok, const char* detail)
+{
+    printf("%-40s %s  %s\n", what, ok ? "ok" : "FAIL", detail);
+    if (!ok) {
+        gFailures ++;
+    }
+}
+
+/* The parametric setting: count, then frequency, level and Q per band. */
+static int32_t setBands(HostEffect& effect, const int16_t* levels, int32_t bands, int16_t q)
+{
+    int16_t value[1 + BANDS * 3];
+    value[0] = bands;
+    for (int32_t i = 0; i < bands; i ++) {
+        value[1 + i * 3] = gCenters[i];
+        value[2 + i * 3] = levels[i];
+        value[3 + i * 3] = q;
+    }
+    int32_t param = CUSTOM_EQ_PARAM_PARAMETRIC;
+    return effect.setParameter(&param, sizeof(param), value, (1 + bands * 3) * sizeof(int16_t));
+}
+
+static void create(HostEffect& effect)
+{
+    effect.create("Equalizer");
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_8_24_BIT);
+}
+
+/* Run stereo 8.24 through the equalizer as set, in place. */
+static void render(HostEffect& effect, int32_t* data)
+{
+    effect.setEnabled(true);
+    for (int32_t offset = 0; offset < FRAMES; offset += BUFFER_FRAMES) {
+        audio_buffer_t buffer;
+        buffer.frameCount = BUFFER_FRAMES;
+        buffer.s32 = data + offset * 2;
+        effect.process(&buffer, &buffer);
+    }
+}
+
+static void tone(int32_t* data, float frequency, float dbfs)
+{
+    double amplitude = pow(10, dbfs / 20) * (1 << 23);
+    double w = 2 * M_PI * frequency / RATE;
+    for (int32_t i = 0; i < FRAMES; i ++) {
+        int32_t value = int32_t(amplitude * sin(w * i));
+        data[i * 2] = value;
+        data[i * 2 + 1] = value;
+    }
+}
+
+/* RMS of the left channel over the measured part, dB. */
+static double level(const int32_t* data)
+{
+    double sum = 0;
+    for (int32_t i = MEASURE_FROM; i < FRAMES; i ++) {
+        double x = data[i * 2] / double(1 << 23);
+        sum += x * x;
+    }
+    return 10 * log10(sum / (FRAMES - MEASURE_FROM) + 1e-20);
+}
+
+/* Change in level of a tone through the equalizer as set, against the
+ * shelves alone. At their reference loudness these still carry the top of
+ * the compensation curve, a dB or so off the treble. */
+static double response(HostEffect& effect, int32_t* data, float frequency)
+{
+    HostEffect shelves;
+    create(shelves);
+    tone(data, frequency, -20);
+    render(shelves, data);
+    double before = level(data);
+    tone(data, frequency, -20);
+    render(effect, data);
+    return level(data) - before;
+}
+
+int main()
+{
+    int32_t* data = new int32_t[FRAMES * 2];
+    int16_t levels[BANDS];
+    char detail[80];
+
+    /* Flat bands: every peaking filter reduces to unity. */
+    memset(levels, 0, sizeof(levels));
+    static const float probes[] = { 45, 700, 7000 };
+    for (uint32_t p = 0; p < sizeof(probes) / sizeof(probes[0]); p ++) {
+        HostEffect effect;
+        create(effect);
+        setBands(effect, levels, BANDS, THIRD_OCTAVE_Q);
+        double change = response(effect, data, probes[p]);
+        snprintf(detail, sizeof(detail), "(%.0f Hz: %+.3f dB)", probes[p], change);
+        report("flat bands leave the program alone", fabs(change) < 0.01, detail);
+    }
+
+    /* One band at a time off zero, each measured at its center. */
+    static const int32_t bands[] = { 5, 17, 27 };
+    static const int16_t boosts[] = { -600, 600, 900 };
+    for (uint32_t b = 0; b < sizeof(bands) / sizeof(bands[0]); b ++) {
+        HostEffect effect;
+        create(effect);
+        memset(levels, 0, sizeof(levels));
+        levels[bands[b]] = boosts[b];
+        setBands(effect, levels, BANDS, THIRD_OCTAVE_Q);
+        double change = response(effect, data, gCenters[bands[b]]);
+        snprintf(detail, sizeof(detail), "(%d Hz set to %+.1f dB: %+.2f dB)",
+                gCenters[bands[b]], boosts[b] / 100.0, change);
+        report("band center is at the band's level", fabs(change - boosts[b] / 100.0) < 0.1, detail);
+    }
+
+    /* Settings read back through the parametric and the standard
+     * parameters alike. */
+    HostEffect effect;
+    create(effect);
+    for (int32_t i = 0; i < BANDS; i ++) {
+        levels[i] = int16_t((i % 7 - 3) * 150);
+    }
+    setBands(effect, levels, BANDS, THIRD_OCTAVE_Q);
+    int16_t readBack[1 + BANDS * 3];
+    uint32_t vsize = sizeof(readBack);
+    int32_t param = CUSTOM_EQ_PARAM_PARAMETRIC;
+    bool same = effect.getParameter(&param, sizeof(param), readBack, &vsize) == 0
+            && vsize == sizeof(readBack) && readBack[0] == BANDS;
+    for (int32_t i = 0; same && i < BANDS; i ++) {
+        same = readBack[1 + i * 3] == gCenters[i] && readBack[2 + i * 3] == levels[i]
+                && readBack[3 + i * 3] == THIRD_OCTAVE_Q;
+    }
+    report("parametric bands read back", same, "");
+
+    param = EQ_PARAM_NUM_BANDS;
+    int16_t count = 0;
+    vsize = sizeof(count);
+    effect.getParameter(&param, sizeof(param), &count, &vsize);
+    int32_t centerParam[2] = { EQ_PARAM_CENTER_FREQ, 17 };
+    int32_t center = 0;
+    vsize = sizeof(center);
+    effect.getParameter(centerParam, sizeof(centerParam), &center, &vsize);
+    snprintf(detail, sizeof(detail), "(%d bands, band 17 at %d mHz)", count, center);
+    report("standard parameters see the bands", count == BANDS && center == 1000000, detail);
+
+    /* A Q of zero in the last band is refused, and leaves all the bands
+     * as they were. */
+    param = CUSTOM_EQ_PARAM_PARAMETRIC;
+    int16_t refusedValue[1 + BANDS * 3];
+    memcpy(refusedValue, readBack, sizeof(refusedValue));
+    for (int32_t i = 0; i < BANDS; i ++) {
+        refusedValue[2 + i * 3] = 0;
+    }
+    refusedValue[BANDS * 3] = 0;
+    bool refused = effect.setParameter(&param, sizeof(param), refusedValue, sizeof(refusedValue)) != 0;
+    vsize = sizeof(readBack);
+    effect.getParameter(&param, sizeof(param), readBack, &vsize);
+    report("band out of range is refused", refused && readBack[2] == levels[0], "");
+
+    setBands(effect, levels, 0, THIRD_OCTAVE_Q);
+    param = EQ_PARAM_NUM_BANDS;
+    vsize = sizeof(count);
+    effect.getParameter(&param, sizeof(param), &count, &vsize);
+    snprintf(detail, sizeof(detail), "(%d bands)", count);
+    report("no bands goes back to the shelves", count == 6, detail);
+
+    delete[] data;
+    return gFailures != 0;
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Compares FastMath.h against libm over the ranges the effects use, fails
+ * if any documented bound is exceeded, and times the per-buffer gain
+ * computation of EffectCompression both ways. */
+
+#include <math.h>
+#include <stdio.h>
+#include <time.h>
+
+#include "FastMath.h"
+
+static double now()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec * 1e-9;
+}
+
+static int32_t gFailures;
+
+static void report(const char* name, const char* range, double error, double bound, const char* unit)
+{
+    bool ok = error < bound;
+    printf("%-14s %-24s max error %10.3g %-9s (bound %g) %s\n", name, range, error, unit, bound, ok ? "ok" : "FAIL");
+    if (!ok) {
+        gFailures ++;
+    }
+}
+
+/* Absolute error of a log function, over log-spaced arguments. */
+static double logError(float (*fast)(float), double (*exact)(double), double lo, double hi)
+{
+    double worst = 0;
+    for (double x = lo; x < hi; x *= 1.0001) {
+        double error = fabs(fast(float(x)) - exact(float(x)));
+        if (error > worst) {
+            worst = error;
+        }
+    }
+    return worst;
+}
+
+/* Relative error of an exp function, over linearly spaced arguments. */
+static double expError(float (*fast)(float), double (*exact)(double), double lo, double hi)
+{
+    double worst = 0;
+    for (double x = lo; x < hi; x += (hi - lo) * 1e-6) {
+        double reference = exact(float(x));
+        double error = fabs(fast(float(x)) - reference) / reference;
+        if (error > worst) {
+            worst = error;
+        }
+    }
+    return worst;
+}
+
+static double exactPowerToDb(double x) { return 10 * log10(x); }
+static double exactGainToDb(double x) { return 20 * log10(x); }
+static double exactDbToGain(double x) { return pow(10, x / 20); }
+static double exactDbToPower(double x) { return pow(10, x / 10); }
+
+/* EffectCompression's gain computation for one buffer, from the measured
+ * power to the 8.24 correction factor. */
+static int64_t compressionGainLibm(float power, float ratio)
+{
+    float signalPowerDb = logf(power + 1e-10f) / logf(10.0f) * 10.0f + 23.0f;
+    float correctionDb = signalPowerDb / ratio - signalPowerDb;
+    correctionDb -= powf(correctionDb / 100, 2.0f) * (100.0f / 2.0f);
+    return int64_t((1 << 24) * powf(10.0f, correctionDb / 20.0f));
+}
+
+static int64_t compressionGainFast(float power, float ratio)
+{
+    float signalPowerDb = fastPowerToDb(power + 1e-10f) + 23.0f;
+    float correctionDb = signalPowerDb / ratio - signalPowerDb;
+    correctionDb -= (correctionDb / 100) * (correctionDb / 100) * (100.0f / 2.0f);
+    return int64_t((1 << 24) * fastDbToGain(correctionDb));
+}
+
+static float conversionsLibm(float x)
+{
+    return powf(10.0f, logf(x) / logf(10.0f));
+}
+
+static float conversionsFast(float x)
+{
+    return fastDbToGain(fastGainToDb(x));
+}
+
+static double timeConversions(float (*conversions)(float), float& sink)
+{
+    const int32_t count = 2000000;
+    double start = now();
+    for (int32_t i = 0; i < count; i ++) {
+        sink += conversions(float((i & 0xffff) + 1) * (1.f / 65536.f));
+    }
+    return (now() - start) * 1e9 / count;
+}
+
+static double timeGain(int64_t (*gain)(float, float), int64_t& sink)
+{
+    const int32_t count = 2000000;
+    double start = now();
+    for (int32_t i = 0; i < count; i ++) {
+        sink += gain(float(i & 0xffff) * (1.f / 65536.f), 2.0f);
+    }
+    return (now() - start) * 1e9 / count;
+}
+
+int main()
+{
+    /* Powers are normalized to full scale, with 1e-10 added as floor, and
+     * 8.24 gives up to 48 dB of headroom. */
+    report("fastLog2", "1e-10 .. 1e5", logError(fastLog2, log2, 1e-10, 1e5), 2e-5, "");
+    report("fastPowerToDb", "1e-10 .. 1e5", logError(fastPowerToDb, exactPowerToDb, 1e-10, 1e5), 1e-4, "dB");
+    report("fastGainToDb", "1e-5 .. 300", logError(fastGainToDb, exactGainToDb, 1e-5, 300), 2e-4, "dB");
+    report("fastExp2", "-126 .. 127", expError(fastExp2, exp2, -126, 127), 5e-6, "relative");
+    report("fastDbToGain", "-200 .. 100 dB", expError(fastDbToGain, exactDbToGain, -200, 100), 1e-5, "relative");
+    report("fastDbToPower", "-200 .. 100 dB", expError(fastDbToPower, exactDbToPower, -200, 100), 1e-5, "relative");
+
+    /* Whole gain computation, as correction factor error in dB. */
+    double worst = 0;
+    for (int32_t i = 1; i <= 100000; i ++) {
+        float power = powf(10, -10 + i * 1e-4f);
+        for (float ratio = 1.5f; ratio <= 4.0f; ratio += 2.5f) {
+            double exact = compressionGainLibm(power, ratio);
+            double error = fabs(20 * log10(compressionGainFast(power, ratio) / exact));
+            if (error > worst) {
+                worst = error;
+            }
+        }
+    }
+    report("compression", "-100 .. 0 dB", worst, 1e-3, "dB");
+
+    int64_t sink = 0;
+    double libm = timeGain(compressionGainLibm, sink);
+    double fast = timeGain(compressionGainFast, sink);
+    printf("compression gain per buffer: libm %.1f ns, fast %.1f ns (%lld)\n", libm, fast, (long long) (sink & 1));
+
+    float floatSink = 0;
+    libm = timeConversions(conversionsLibm, floatSink);
+    fast = timeConversions(conversionsFast, floatSink);
+    printf("log and exp pair: libm %.1f ns, fast %.1f ns (%d)\n", libm, fast, floatSink > 0);
+
+    return gFailures != 0;
+}
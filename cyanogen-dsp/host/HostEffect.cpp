@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "HostEffect.h"
+
+#include <string.h>
+
+extern "C" audio_effect_library_t AUDIO_EFFECT_LIBRARY_INFO_SYM;
+
+uint32_t hostEffectCount()
+{
+    uint32_t num = 0;
+    AUDIO_EFFECT_LIBRARY_INFO_SYM.query_num_effects(&num);
+    return num;
+}
+
+HostEffect::HostEffect()
+    : mHandle(0)
+{
+    memset(&mDescriptor, 0, sizeof(mDescriptor));
+}
+
+HostEffect::~HostEffect()
+{
+    release();
+}
+
+int32_t HostEffect::create(uint32_t index, int32_t sessionId)
+{
+    release();
+    int32_t ret = AUDIO_EFFECT_LIBRARY_INFO_SYM.query_effect(index, &mDescriptor);
+    if (ret != 0) {
+        return ret;
+    }
+    ret = AUDIO_EFFECT_LIBRARY_INFO_SYM.create_effect(&mDescriptor.uuid, sessionId, 0, &mHandle);
+    if (ret != 0) {
+        mHandle = 0;
+        return ret;
+    }
+    return command(EFFECT_CMD_INIT, 0, 0);
+}
+
+int32_t HostEffect::create(const char* name, int32_t sessionId)
+{
+    uint32_t count = hostEffectCount();
+    for (uint32_t i = 0; i < count; i ++) {
+        effect_descriptor_t descriptor;
+        AUDIO_EFFECT_LIBRARY_INFO_SYM.query_effect(i, &descriptor);
+        if (strstr(descriptor.name, name) != 0) {
+            return create(i, sessionId);
+        }
+    }
+    return -ENOENT;
+}
+
+void HostEffect::release()
+{
+    if (mHandle != 0) {
+        AUDIO_EFFECT_LIBRARY_INFO_SYM.release_effect(mHandle);
+        mHandle = 0;
+    }
+}
+
+int32_t HostEffect::command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData)
+{
+    int32_t reply = 0;
+    uint32_t replySize = sizeof(reply);
+    int32_t ret = (*mHandle)->command(mHandle, cmdCode, cmdSize, pCmdData, &replySize, &reply);
+    return ret != 0 ? ret : reply;
+}
+
+int32_t HostEffect::configure(uint32_t samplingRate, uint32_t channels, uint8_t format, uint8_t accessMode,
+        uint32_t outChannels)
+{
+    effect_config_t config;
+    memset(&config, 0, sizeof(config));
+    config.inputCfg.samplingRate = samplingRate;
+    config.inputCfg.channels = channels;
+    config.inputCfg.format = format;
+    config.inputCfg.accessMode = EFFECT_BUFFER_ACCESS_READ;
+    config.inputCfg.mask = EFFECT_CONFIG_ALL;
+    config.outputCfg = config.inputCfg;
+    config.outputCfg.accessMode = accessMode;
+    if (outChannels != 0) {
+        config.outputCfg.channels = outChannels;
+    }
+    return command(EFFECT_CMD_SET_CONFIG, sizeof(config), &config);
+}
+
+int32_t HostEffect::setEnabled(bool enabled)
+{
+    return command(enabled ? EFFECT_CMD_ENABLE : EFFECT_CMD_DISABLE, 0, 0);
+}
+
+int32_t HostEffect::setParameter(int32_t param, int16_t value)
+{
+    return setParameter(&param, sizeof(param), &value, sizeof(value));
+}
+
+int32_t HostEffect::setParameter(int32_t param, int32_t arg, int16_t value)
+{
+    int32_t p[2] = { param, arg };
+    return setParameter(p, sizeof(p), &value, sizeof(value));
+}
+
+int32_t HostEffect::setParameter(const void* param, uint32_t psize, const void* value, uint32_t vsize)
+{
+    /* Values start at the next 32-bit boundary after the parameter. */
+    uint32_t padded = (psize + 3) & ~3;
+    uint32_t size = sizeof(effect_param_t) + padded + vsize;
+    uint32_t buffer[(size + 3) / 4];
+    effect_param_t* cep = (effect_param_t*) buffer;
+    cep->status = 0;
+    cep->psize = psize;
+    cep->vsize = vsize;
+    memcpy(cep->data, param, psize);
+    memcpy(cep->data + padded, value, vsize);
+    return command(EFFECT_CMD_SET_PARAM, size, cep);
+}
+
+int32_t HostEffect::getParameter(const void* param, uint32_t psize, void* value, uint32_t* vsize)
+{
+    uint32_t padded = (psize + 3) & ~3;
+    uint32_t size = sizeof(effect_param_t) + padded + *vsize;
+    uint32_t buffer[(size + 3) / 4];
+    effect_param_t* cep = (effect_param_t*) buffer;
+    cep->status = 0;
+    cep->psize = psize;
+    cep->vsize = *vsize;
+    memcpy(cep->data, param, psize);
+
+    uint32_t replySize = size;
+    int32_t ret = (*mHandle)->command(mHandle, EFFECT_CMD_GET_PARAM, size, cep, &replySize, cep);
+    if (ret != 0) {
+        return ret;
+    }
+    if (cep->status != 0) {
+        return cep->status;
+    }
+    if (cep->vsize < *vsize) {
+        *vsize = cep->vsize;
+    }
+    memcpy(value, cep->data + padded, *vsize);
+    return 0;
+}
+
+int32_t HostEffect::process(audio_buffer_t* in, audio_buffer_t* out)
+{
+    return (*mHandle)->process(mHandle, in, out);
+}
@@ -0,0 +1,36 @@
+#pragma once
+
+#include <stdint.h>
+#include <hardware/audio_effect.h>
+
+/* Drives one effect of the library the way audioflinger would, through
+ * AUDIO_EFFECT_LIBRARY_INFO_SYM and the effect's interface table. */
+class HostEffect {
+    effect_handle_t mHandle;
+    effect_descriptor_t mDescriptor;
+
+    int32_t command(uint32_t cmdCode, uint32_t cmdSize, void* pCmdData);
+
+    public:
+    HostEffect();
+    ~HostEffect();
+
+    /* Create by descriptor index, or by a substring of the effect name. */
+    int32_t create(uint32_t index, int32_t sessionId = 1);
+    int32_t create(const char* name, int32_t sessionId = 1);
+    void release();
+    const effect_descriptor_t& getDescriptor() const { return mDescriptor; }
+
+    /* outChannels of 0 means the same layout as the input. */
+    int32_t configure(uint32_t samplingRate, uint32_t channels, uint8_t format,
+            uint8_t accessMode = EFFECT_BUFFER_ACCESS_WRITE, uint32_t outChannels = 0);
+    int32_t setEnabled(bool enabled);
+    int32_t setParameter(int32_t param, int16_t value);
+    int32_t setParameter(int32_t param, int32_t arg, int16_t value);
+    int32_t setParameter(const void* param, uint32_t psize, const void* value, uint32_t vsize);
+    int32_t getParameter(const void* param, uint32_t psize, void* value, uint32_t* vsize);
+    int32_t process(audio_buffer_t* in, audio_buffer_t* out);
+};
+
+/* Number of effects in the library. */
+uint32_t hostEffectCount();
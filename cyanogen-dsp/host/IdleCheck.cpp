@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Checks the fast paths of every effect when it has nothing to do. Once
+ * disabled and faded out, the output must be the input, bit for bit even
+ * in 16-bit where processing would dither. After some seconds of digital
+ * silence the output must be digital silence too, at a fraction of the
+ * cost of processing, and sound must come back without a burst. */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include <audio_effects/effect_bassboost.h>
+#include <audio_effects/effect_equalizer.h>
+#include <audio_effects/effect_virtualizer.h>
+
+#include "EffectChain.h"
+#include "HostEffect.h"
+
+#define RATE 44100
+#define BUFFER_FRAMES 256
+#define SOUND_BUFFERS 200
+/* Long enough for the tails of all chain stages one after another. */
+#define SILENT_BUFFERS (4 * RATE / BUFFER_FRAMES)
+
+static const char* gEffects[] = {
+    "Compression", "Equalizer", "Bass", "Virtualization", "Multiband", "Limiter", "Effect Chain",
+};
+#define EFFECTS int32_t(sizeof(gEffects) / sizeof(gEffects[0]))
+
+static int32_t gFailures;
+
+static double now()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec * 1e-9;
+}
+
+static void report(const char* effect, const char* what, bool ok, const char* detail)
+{
+    printf("%-16s %-30s %s  %s\n", effect, what, ok ? "ok" : "FAIL", detail);
+    if (!ok) {
+        gFailures ++;
+    }
+}
+
+/* Same settings as dspbench uses. */
+static void applyProfile(HostEffect& effect, const char* name)
+{
+    bool fused = strcmp(name, "Effect Chain") == 0;
+    if (fused || strcmp(name, "Compression") == 0) {
+        effect.setParameter(fused ? CHAIN_PARAM(CHAIN_STAGE_COMPRESSION, 0) : 0, int16_t(100));
+    }
+    if (fused || strcmp(name, "Equalizer") == 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_EQUALIZER, 0) : 0;
+        const int16_t rock[6] = { 450, 450, 275, -50, 275, 400 };
+        for (int32_t i = 0; i < 6; i ++) {
+            effect.setParameter(stage | EQ_PARAM_BAND_LEVEL, i, rock[i]);
+        }
+        effect.setParameter(stage | 1000, int16_t(4000));
+    }
+    if (fused || strcmp(name, "Bass") == 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_BASSBOOST, 0) : 0;
+        effect.setParameter(stage | BASSBOOST_PARAM_STRENGTH, int16_t(1000));
+    }
+    if (fused || strcmp(name, "Virtualization") == 0) {
+        int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_VIRTUALIZER, 0) : 0;
+        effect.setParameter(stage | VIRTUALIZER_PARAM_STRENGTH, int16_t(1000));
+    }
+    if (fused || strcmp(name, "Multiband") == 0) {
+        effect.setParameter(fused ? CHAIN_PARAM(CHAIN_STAGE_MULTIBAND, 0) : 0, int16_t(1000));
+    }
+    if (fused) {
+        for (int32_t i = 0; i < CHAIN_STAGES; i ++) {
+            effect.setParameter(CHAIN_PARAM(i, CHAIN_STAGE_PARAM_ENABLE), int16_t(1));
+        }
+    }
+}
+
+/* White noise at -12 dBFS, or silence. */
+static void fill(int16_t* data, bool sound, uint32_t& seed)
+{
+    for (int32_t i = 0; i < BUFFER_FRAMES * 2; i ++) {
+        seed = seed * 1664525 + 1013904223;
+        data[i] = sound ? int16_t(int32_t(seed) >> 18) : 0;
+    }
+}
+
+static int32_t peak(const int16_t* data)
+{
+    int32_t peak = 0;
+    for (int32_t i = 0; i < BUFFER_FRAMES * 2; i ++) {
+        if (abs(data[i]) > peak) {
+            peak = abs(data[i]);
+        }
+    }
+    return peak;
+}
+
+/* Process one buffer in place, adding its duration to time. */
+static int32_t process(HostEffect& effect, int16_t* data, double& time)
+{
+    audio_buffer_t buffer;
+    buffer.frameCount = BUFFER_FRAMES;
+    buffer.s16 = data;
+    double start = now();
+    int32_t ret = effect.process(&buffer, &buffer);
+    time += now() - start;
+    return ret;
+}
+
+static void checkBypass(const char* name)
+{
+    HostEffect effect;
+    effect.create(name);
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_16_BIT);
+    applyProfile(effect, name);
+    effect.setEnabled(true);
+
+    int16_t data[BUFFER_FRAMES * 2];
+    int16_t input[BUFFER_FRAMES * 2];
+    uint32_t seed = 1;
+    double time = 0;
+    for (int32_t b = 0; b < SOUND_BUFFERS; b ++) {
+        fill(data, true, seed);
+        process(effect, data, time);
+    }
+
+    /* Disabled effects fade out before they report that they are done. */
+    effect.setEnabled(false);
+    int32_t fadeBuffers = 0;
+    do {
+        fill(data, true, seed);
+        fadeBuffers ++;
+    } while (process(effect, data, time) == 0 && fadeBuffers < 1000);
+
+    int32_t differences = 0;
+    for (int32_t b = 0; b < 10; b ++) {
+        fill(input, true, seed);
+        memcpy(data, input, sizeof(data));
+        process(effect, data, time);
+        differences += memcmp(data, input, sizeof(data)) != 0;
+    }
+
+    char detail[64];
+    snprintf(detail, sizeof(detail), "(faded out in %d buffers)", fadeBuffers);
+    report(name, "bypass is exact when disabled", fadeBuffers < 1000 && differences == 0, detail);
+}
+
+static void checkSilence(const char* name)
+{
+    HostEffect effect;
+    effect.create(name);
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_16_BIT);
+    applyProfile(effect, name);
+    effect.setEnabled(true);
+
+    int16_t data[BUFFER_FRAMES * 2];
+    uint32_t seed = 1;
+    double soundTime = 0;
+    int32_t soundPeak = 0;
+    for (int32_t b = 0; b < SOUND_BUFFERS; b ++) {
+        fill(data, true, seed);
+        process(effect, data, soundTime);
+        if (peak(data) > soundPeak) {
+            soundPeak = peak(data);
+        }
+    }
+
+    /* The tail must have ended by the last few buffers. */
+    double silentTime = 0;
+    int32_t audible = 0;
+    for (int32_t b = 0; b < SILENT_BUFFERS; b ++) {
+        fill(data, false, seed);
+        double time = 0;
+        process(effect, data, time);
+        if (b >= SILENT_BUFFERS - SOUND_BUFFERS) {
+            silentTime += time;
+            audible += peak(data) != 0;
+        }
+    }
+    char detail[64];
+    snprintf(detail, sizeof(detail), "(%.2f us per buffer, %.2f us idle)",
+            soundTime * 1e6 / SOUND_BUFFERS, silentTime * 1e6 / SOUND_BUFFERS);
+    report(name, "silence after the tail", audible == 0 && silentTime < soundTime, detail);
+
+    double time = 0;
+    fill(data, true, seed);
+    process(effect, data, time);
+    int32_t resumePeak = peak(data);
+    snprintf(detail, sizeof(detail), "(peak %d, steady %d)", resumePeak, soundPeak);
+    report(name, "sound resumes without a burst", resumePeak > 0 && resumePeak <= soundPeak * 2, detail);
+}
+
+int main()
+{
+    for (int32_t e = 0; e < EFFECTS; e ++) {
+        checkBypass(gEffects[e]);
+        checkSilence(gEffects[e]);
+    }
+    return gFailures != 0;
+}
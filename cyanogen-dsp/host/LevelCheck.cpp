@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Checks the output level telemetry and the automatic headroom. A loud
+ * bass tone through strong equalizer gain clips; the effects must count
+ * that, and with automatic headroom on they must back off until it stops,
+ * then give the gain back once the program gets quiet. The bass boost
+ * limits itself, so it must not clip at all. */
+
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
+
+#include <audio_effects/effect_bassboost.h>
+#include <audio_effects/effect_equalizer.h>
+
+#include "EffectChain.h"
+#include "HostEffect.h"
+
+#define RATE 44100
+#define BUFFER_FRAMES 512
+
+static const char* gEffects[] = {
+    "Equalizer", "Effect Chain",
+};
+#define EFFECTS int32_t(sizeof(gEffects) / sizeof(gEffects[0]))
+
+static int32_t gFailures;
+
+static void report(const char* effect, const char* what, bool ok, const char* detail)
+{
+    printf("%-16s %-36s %s  %s\n", effect, what, ok ? "ok" : "FAIL", detail);
+    if (!ok) {
+        gFailures ++;
+    }
+}
+
+/* Strong bass, by the low equalizer bands. */
+static void applyProfile(HostEffect& effect, const char* name)
+{
+    bool fused = strcmp(name, "Effect Chain") == 0;
+    int32_t stage = fused ? CHAIN_PARAM(CHAIN_STAGE_EQUALIZER, 0) : 0;
+    const int16_t levels[6] = { 900, 900, 300, 0, 0, 0 };
+    for (int32_t i = 0; i < 6; i ++) {
+        effect.setParameter(stage | EQ_PARAM_BAND_LEVEL, i, levels[i]);
+    }
+    if (fused) {
+        effect.setParameter(CHAIN_PARAM(CHAIN_STAGE_EQUALIZER, CHAIN_STAGE_PARAM_ENABLE), int16_t(1));
+    }
+}
+
+static bool getLevels(HostEffect& effect, int32_t* levels)
+{
+    int32_t param = EFFECT_PARAM_LEVELS;
+    uint32_t vsize = EFFECT_LEVEL_VALUES * 4;
+    return effect.getParameter(&param, sizeof(param), levels, &vsize) == 0
+        && vsize == EFFECT_LEVEL_VALUES * 4;
+}
+
+/* Play a 60 Hz tone at the given level, and return the samples clipped. */
+static uint32_t play(HostEffect& effect, float dbfs, float seconds, double& phase)
+{
+    int32_t before[EFFECT_LEVEL_VALUES];
+    getLevels(effect, before);
+
+    int16_t data[BUFFER_FRAMES * 2];
+    float amplitude = 32767 * powf(10, dbfs / 20);
+    int32_t buffers = int32_t(seconds * RATE / BUFFER_FRAMES);
+    for (int32_t b = 0; b < buffers; b ++) {
+        for (int32_t i = 0; i < BUFFER_FRAMES; i ++) {
+            int16_t sample = int16_t(amplitude * sin(phase));
+            phase += 2 * M_PI * 60 / RATE;
+            data[i * 2] = sample;
+            data[i * 2 + 1] = sample;
+        }
+        audio_buffer_t buffer;
+        buffer.frameCount = BUFFER_FRAMES;
+        buffer.s16 = data;
+        effect.process(&buffer, &buffer);
+    }
+
+    int32_t after[EFFECT_LEVEL_VALUES];
+    getLevels(effect, after);
+    return uint32_t(after[1]) - uint32_t(before[1]);
+}
+
+static void check(const char* name)
+{
+    HostEffect effect;
+    effect.create(name);
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_16_BIT);
+    applyProfile(effect, name);
+    effect.setEnabled(true);
+
+    int32_t levels[EFFECT_LEVEL_VALUES];
+    char detail[80];
+    double phase = 0;
+
+    /* Without headroom, the tone clips all the time. */
+    uint32_t clipped = play(effect, -1, 4, phase);
+    bool ok = getLevels(effect, levels);
+    snprintf(detail, sizeof(detail), "(%u clipped, peak %.1f dBFS)",
+            clipped, 20 * log10(levels[2] / double(1 << 23)));
+    report(name, "clipping is counted", ok && clipped > 0 && levels[2] >= 1 << 23 && levels[3] == 0, detail);
+
+    /* Headroom has backed off enough within some seconds. */
+    effect.setParameter(EFFECT_PARAM_AUTO_HEADROOM, int16_t(1));
+    play(effect, -1, 4, phase);
+    clipped = play(effect, -1, 2, phase);
+    getLevels(effect, levels);
+    snprintf(detail, sizeof(detail), "(%u clipped after 4 s, headroom %d mB)", clipped, levels[3]);
+    report(name, "headroom stops sustained clipping", clipped == 0 && levels[3] < 0
+            && levels[3] >= -EFFECT_HEADROOM_MAX_MB, detail);
+
+    /* Quiet program gets the gain back. */
+    int32_t steps = -levels[3] / EFFECT_HEADROOM_STEP_MB;
+    play(effect, -30, (steps + 1) * EFFECT_HEADROOM_HOLD_TIME, phase);
+    getLevels(effect, levels);
+    snprintf(detail, sizeof(detail), "(headroom %d mB)", levels[3]);
+    report(name, "gain is given back when quiet", levels[3] == 0, detail);
+
+    /* Turned off, the gain is unity at once. */
+    play(effect, -1, 1, phase);
+    effect.setParameter(EFFECT_PARAM_AUTO_HEADROOM, int16_t(0));
+    play(effect, -1, 0.1f, phase);
+    getLevels(effect, levels);
+    snprintf(detail, sizeof(detail), "(headroom %d mB)", levels[3]);
+    report(name, "unity gain when turned off", levels[3] == 0, detail);
+}
+
+/* Full boost of a loud tone holds the boost back short of full scale,
+ * and still boosts a quiet one. */
+static void checkBass()
+{
+    HostEffect effect;
+    effect.create("Bass");
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_16_BIT);
+    effect.setParameter(BASSBOOST_PARAM_STRENGTH, int16_t(1000));
+    effect.setEnabled(true);
+
+    int32_t levels[EFFECT_LEVEL_VALUES];
+    char detail[80];
+    double phase = 0;
+
+    play(effect, -1, 1, phase);
+    uint32_t clipped = play(effect, -1, 4, phase);
+    bool ok = getLevels(effect, levels);
+    double peak = 20 * log10(levels[2] / double(1 << 23));
+    snprintf(detail, sizeof(detail), "(%u clipped, peak %.1f dBFS)", clipped, peak);
+    report("Bass", "full boost does not clip", ok && clipped == 0 && levels[2] < 1 << 23, detail);
+
+    /* Let the peak meter forget the loud tone first. */
+    play(effect, -20, 10, phase);
+    play(effect, -20, 1, phase);
+    getLevels(effect, levels);
+    peak = 20 * log10(levels[2] / double(1 << 23));
+    snprintf(detail, sizeof(detail), "(peak %.1f dBFS)", peak);
+    report("Bass", "quiet tone is boosted", peak > -20 + 3, detail);
+}
+
+int main()
+{
+    for (int32_t e = 0; e < EFFECTS; e ++) {
+        check(gEffects[e]);
+    }
+    checkBass();
+    return gFailures != 0;
+}
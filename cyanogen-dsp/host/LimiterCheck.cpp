@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Checks the limiter in 8.24, where nothing clamps its output. Program
+ * under the ceiling must pass unchanged but for the lookahead delay; over
+ * it, no sample and no point between samples may go over, and the gain
+ * must come all the way back once the program is quiet again. Peaks
+ * between samples are found by interpolating the output 8 times with a
+ * windowed sinc. The first buffer is a crossfade from the input as it is
+ * to the limited signal, and is left out. */
+
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
+
+#include "EffectLimiter.h"
+#include "HostEffect.h"
+
+#define RATE 44100
+#define BUFFER_FRAMES 512
+#define SECONDS 5
+#define FRAMES (SECONDS * RATE / BUFFER_FRAMES * BUFFER_FRAMES)
+#define OVERSAMPLE 8
+#define SINC_TAPS 32
+
+static int32_t gFailures;
+
+static void report(const char* what, bool ok, const char* detail)
+{
+    printf("%-40s %s  %s\n", what, ok ? "ok" : "FAIL", detail);
+    if (!ok) {
+        gFailures ++;
+    }
+}
+
+/* Run stereo 8.24 through a fresh limiter, in place. */
+static void render(int32_t* data, int32_t frames)
+{
+    HostEffect effect;
+    effect.create("Limiter");
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_8_24_BIT);
+    effect.setEnabled(true);
+    for (int32_t offset = 0; offset < frames; offset += BUFFER_FRAMES) {
+        audio_buffer_t buffer;
+        buffer.frameCount = BUFFER_FRAMES;
+        buffer.s32 = data + offset * 2;
+        effect.process(&buffer, &buffer);
+    }
+}
+
+/* Largest magnitude of one channel, at the samples and between them,
+ * relative to full scale. */
+static double truePeak(const int32_t* data, int32_t frames, int32_t channel)
+{
+    double peak = 0;
+    for (int32_t i = BUFFER_FRAMES + SINC_TAPS; i < frames - SINC_TAPS; i ++) {
+        for (int32_t phase = 0; phase < OVERSAMPLE; phase ++) {
+            double t = phase / double(OVERSAMPLE);
+            double sum = 0;
+            for (int32_t k = -SINC_TAPS + 1; k <= SINC_TAPS; k ++) {
+                double x = k - t;
+                double sinc = x == 0 ? 1 : sin(M_PI * x) / (M_PI * x);
+                double window = 0.5 + 0.5 * cos(M_PI * x / SINC_TAPS);
+                sum += data[(i + k) * 2 + channel] * sinc * window;
+            }
+            if (fabs(sum) > peak) {
+                peak = fabs(sum);
+            }
+        }
+    }
+    return peak / (1 << 23);
+}
+
+static double samplePeak(const int32_t* data, int32_t from, int32_t to)
+{
+    int32_t peak = 0;
+    for (int32_t i = from * 2; i < to * 2; i ++) {
+        int32_t magnitude = data[i] < 0 ? -data[i] : data[i];
+        if (magnitude > peak) {
+            peak = magnitude;
+        }
+    }
+    return peak / double(1 << 23);
+}
+
+static void noise(int32_t* data, int32_t from, int32_t to, float dbfs, uint32_t& seed)
+{
+    /* Uniform noise, peak at the given level */
+    double scale = powf(10, dbfs / 20) * (1 << 23) / 2147483648.0;
+    for (int32_t i = from * 2; i < to * 2; i ++) {
+        seed = seed * 1664525 + 1013904223;
+        data[i] = int32_t(int32_t(seed) * scale);
+    }
+}
+
+int main()
+{
+    int32_t* input = new int32_t[FRAMES * 2];
+    int32_t* data = new int32_t[FRAMES * 2];
+    int32_t lookahead = int32_t(LIMITER_LOOKAHEAD_TIME * RATE);
+    double ceiling = pow(10, LIMITER_CEILING_DB / 20);
+    char detail[80];
+
+    /* Under the ceiling: delayed, otherwise bit exact. */
+    uint32_t seed = 1;
+    noise(input, 0, FRAMES, -6, seed);
+    memcpy(data, input, FRAMES * 2 * sizeof(int32_t));
+    render(data, FRAMES);
+    int32_t differences = 0;
+    for (int32_t i = BUFFER_FRAMES * 2; i < (FRAMES - lookahead) * 2; i ++) {
+        differences += data[i + lookahead * 2] != input[i];
+    }
+    snprintf(detail, sizeof(detail), "(%d samples differ, delay %d frames)", differences, lookahead);
+    report("program under the ceiling is untouched", differences == 0, detail);
+
+    /* Loud and quiet sections in turn: noise up to 12 dB over full
+     * scale, then quiet for the gain to come back. */
+    seed = 2;
+    int32_t section = RATE / 2;
+    for (int32_t s = 0; s * section < FRAMES; s ++) {
+        int32_t end = (s + 1) * section < FRAMES ? (s + 1) * section : FRAMES;
+        noise(input, s * section, end, (s & 1) || s > 4 ? -20 : 6 * (s / 2), seed);
+    }
+    memcpy(data, input, FRAMES * 2 * sizeof(int32_t));
+    render(data, FRAMES);
+    double peak = samplePeak(data, BUFFER_FRAMES, FRAMES);
+    snprintf(detail, sizeof(detail), "(peak %.2f dBFS, ceiling %.1f)", 20 * log10(peak), LIMITER_CEILING_DB);
+    report("no sample over the ceiling", peak <= ceiling, detail);
+
+    /* The last 100 ms, 2 s into the quiet */
+    differences = 0;
+    for (int32_t i = (FRAMES - RATE / 10) * 2; i < FRAMES * 2; i ++) {
+        differences += data[i] != input[i - lookahead * 2];
+    }
+    snprintf(detail, sizeof(detail), "(%d samples differ in the last 100 ms)", differences);
+    report("gain comes back after a peak", differences == 0, detail);
+
+    /* Tones at the phase where the samples miss the peak by the most. */
+    static const float frequencies[] = { 1000, 5000, 9000 };
+    for (uint32_t f = 0; f < sizeof(frequencies) / sizeof(frequencies[0]); f ++) {
+        double w = 2 * M_PI * frequencies[f] / RATE;
+        for (int32_t i = 0; i < FRAMES; i ++) {
+            int32_t value = int32_t(2.0 * (1 << 23) * sin(w * (i + 0.5)));
+            data[i * 2] = value;
+            data[i * 2 + 1] = value;
+        }
+        render(data, RATE / 2);
+        peak = truePeak(data, RATE / 2, 0);
+        snprintf(detail, sizeof(detail), "(%.0f Hz at +6 dBFS: true peak %.2f dBFS)", frequencies[f], 20 * log10(peak));
+        report("no peak between samples over full scale", peak <= 1.0, detail);
+    }
+
+    delete[] input;
+    delete[] data;
+    return gFailures != 0;
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Checks the multiband compressor in 8.24. At unity gain the crossovers
+ * must sum to a flat response, tones under the threshold must pass at
+ * their level, a loud band must come down by the ratio, and a loud band
+ * must leave a quiet one alone. Levels are measured over the last second,
+ * when the detectors have settled. */
+
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
+
+#include "EffectMultiband.h"
+#include "HostEffect.h"
+
+#define RATE 44100
+#define BUFFER_FRAMES 512
+#define SECONDS 2
+#define FRAMES (SECONDS * RATE / BUFFER_FRAMES * BUFFER_FRAMES)
+#define MEASURE_FROM (FRAMES - RATE)
+
+static int32_t gFailures;
+
+static void report(const char* what, bool ok, const char* detail)
+{
+    printf("%-40s %s  %s\n", what, ok ? "ok" : "FAIL", detail);
+    if (!ok) {
+        gFailures ++;
+    }
+}
+
+/* Run stereo 8.24 through a fresh compressor, in place. */
+static void render(int32_t* data, int16_t strength)
+{
+    HostEffect effect;
+    effect.create("Multiband");
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_8_24_BIT);
+    effect.setParameter(CUSTOM_MULTIBAND_PARAM_PROFILE, strength);
+    effect.setEnabled(true);
+    for (int32_t offset = 0; offset < FRAMES; offset += BUFFER_FRAMES) {
+        audio_buffer_t buffer;
+        buffer.frameCount = BUFFER_FRAMES;
+        buffer.s32 = data + offset * 2;
+        effect.process(&buffer, &buffer);
+    }
+}
+
+/* Add a tone to both channels, amplitude in dBFS. */
+static void tone(int32_t* data, float frequency, float dbfs)
+{
+    double amplitude = pow(10, dbfs / 20) * (1 << 23);
+    double w = 2 * M_PI * frequency / RATE;
+    for (int32_t i = 0; i < FRAMES; i ++) {
+        int32_t value = int32_t(amplitude * sin(w * i));
+        data[i * 2] += value;
+        data[i * 2 + 1] += value;
+    }
+}
+
+/* RMS of the left channel over the measured part, dB relative to a full
+ * scale square wave, as the detectors count it. */
+static double level(const int32_t* data)
+{
+    double sum = 0;
+    for (int32_t i = MEASURE_FROM; i < FRAMES; i ++) {
+        double x = data[i * 2] / double(1 << 23);
+        sum += x * x;
+    }
+    return 10 * log10(sum / (FRAMES - MEASURE_FROM) + 1e-20);
+}
+
+int main()
+{
+    int32_t* data = new int32_t[FRAMES * 2];
+    int32_t* other = new int32_t[FRAMES * 2];
+    char detail[80];
+
+    /* At unity gain only the allpass of the crossovers is left. */
+    static const float frequencies[] = { 50, 200, 1000, 2500, 10000 };
+    for (uint32_t f = 0; f < sizeof(frequencies) / sizeof(frequencies[0]); f ++) {
+        for (int32_t strength = 0; strength <= 1000; strength += 1000) {
+            /* Loud at zero strength, under the threshold at full. */
+            float dbfs = strength == 0 ? -6 : -30;
+            memset(data, 0, FRAMES * 2 * sizeof(int32_t));
+            tone(data, frequencies[f], dbfs);
+            double before = level(data);
+            render(data, strength);
+            double change = level(data) - before;
+            snprintf(detail, sizeof(detail), "(%.0f Hz at %.0f dBFS, strength %d: %+.3f dB)",
+                    frequencies[f], dbfs, strength, change);
+            report(strength == 0 ? "bands sum flat at unity" : "program under the threshold passes",
+                    fabs(change) < 0.05, detail);
+        }
+    }
+
+    /* A loud band comes down by the ratio: the level over the threshold
+     * shrinks to 1 / MULTIBAND_MAX_RATIO at full strength. */
+    memset(data, 0, FRAMES * 2 * sizeof(int32_t));
+    tone(data, 60, -3);
+    double in = level(data);
+    render(data, 1000);
+    double out = level(data);
+    double expected = MULTIBAND_THRESHOLD_DB + (in - MULTIBAND_THRESHOLD_DB) / MULTIBAND_MAX_RATIO;
+    snprintf(detail, sizeof(detail), "(%.1f dB in, %.1f dB out, %.1f expected)", in, out, expected);
+    report("loud band is compressed by the ratio", fabs(out - expected) < 1.0, detail);
+
+    /* Quiet treble under loud bass: what the treble adds to the output
+     * must be the treble at its own level. */
+    memset(data, 0, FRAMES * 2 * sizeof(int32_t));
+    tone(data, 60, -3);
+    memcpy(other, data, FRAMES * 2 * sizeof(int32_t));
+    tone(data, 6000, -40);
+    render(data, 1000);
+    render(other, 1000);
+    for (int32_t i = 0; i < FRAMES * 2; i ++) {
+        data[i] -= other[i];
+    }
+    memset(other, 0, FRAMES * 2 * sizeof(int32_t));
+    tone(other, 6000, -40);
+    double change = level(data) - level(other);
+    snprintf(detail, sizeof(detail), "(6 kHz at -40 dBFS under 60 Hz at -3: %+.2f dB)", change);
+    report("loud bass leaves quiet treble alone", fabs(change) < 0.2, detail);
+
+    delete[] data;
+    delete[] other;
+    return gFailures != 0;
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Hammers the command interface from one thread while another processes
+ * audio, the way a settings UI and the mixer would. First ParameterBlock
+ * alone, where every snapshot the reader sees must be one the writer
+ * published whole; then every effect, whose output must stay within the
+ * 8.24 headroom while its parameters change under it; then the virtualizer
+ * swapping impulse responses back to back, whose engines must not be
+ * deleted while process() may still use them. */
+
+#include <math.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include <audio_effects/effect_bassboost.h>
+#include <audio_effects/effect_equalizer.h>
+#include <audio_effects/effect_virtualizer.h>
+
+#include "EffectChain.h"
+#include "EffectVirtualizer.h"
+#include "HostEffect.h"
+#include "ParameterBlock.h"
+
+#define RATE 44100
+#define BUFFER_FRAMES 256
+#define SECONDS 1.0
+
+static int32_t gFailures;
+static volatile int32_t gStop;
+
+static double now()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec * 1e-9;
+}
+
+static void report(const char* name, bool ok, const char* detail)
+{
+    printf("%-28s %s  %s\n", name, ok ? "ok" : "FAIL", detail);
+    if (!ok) {
+        gFailures ++;
+    }
+}
+
+/* Every word holds the same publication number, so a torn snapshot
+ * shows up as words that differ. */
+typedef struct {
+    int32_t word[16];
+} Snapshot;
+
+static ParameterBlock<Snapshot> gBlock;
+
+static void* publishSnapshots(void*)
+{
+    int32_t serial = 0;
+    while (!android_atomic_acquire_load(&gStop)) {
+        serial ++;
+        Snapshot& snapshot = gBlock.edit();
+        for (int32_t i = 0; i < 16; i ++) {
+            snapshot.word[i] = serial;
+        }
+        gBlock.publish();
+    }
+    return 0;
+}
+
+static void checkParameterBlock()
+{
+    for (int32_t i = 0; i < 16; i ++) {
+        gBlock.edit().word[i] = 0;
+    }
+    gBlock.reset();
+
+    gStop = 0;
+    pthread_t writer;
+    pthread_create(&writer, 0, publishSnapshots, 0);
+
+    int32_t torn = 0;
+    int32_t backwards = 0;
+    int32_t updates = 0;
+    int32_t last = 0;
+    double end = now() + SECONDS;
+    while (now() < end) {
+        if (!gBlock.update()) {
+            continue;
+        }
+        updates ++;
+        const Snapshot& snapshot = gBlock.current();
+        for (int32_t i = 1; i < 16; i ++) {
+            if (snapshot.word[i] != snapshot.word[0]) {
+                torn ++;
+                break;
+            }
+        }
+        if (snapshot.word[0] < last) {
+            backwards ++;
+        }
+        last = snapshot.word[0];
+    }
+
+    android_atomic_release_store(1, &gStop);
+    pthread_join(writer, 0);
+
+    char detail[96];
+    snprintf(detail, sizeof(detail), "%d updates, %d torn, %d out of order, last %d",
+            updates, torn, backwards, last);
+    report("ParameterBlock", torn == 0 && backwards == 0 && updates > 0, detail);
+}
+
+struct Target {
+    HostEffect* effect;
+    const char* name;
+    int32_t commands;
+};
+
+/* Settings as the UI would send them, with random values in range. */
+static void* sendCommands(void* arg)
+{
+    Target* target = (Target*) arg;
+    HostEffect& effect = *target->effect;
+    bool fused = strcmp(target->name, "Effect Chain") == 0;
+    uint32_t seed = 1;
+
+    while (!android_atomic_acquire_load(&gStop)) {
+        seed = seed * 1664525 + 1013904223;
+        int16_t value = (seed >> 16) % 1001;
+        int32_t kind = (seed >> 8) % 6;
+        int32_t stage = 0;
+
+        if (fused || strcmp(target->name, "Compression") == 0) {
+            stage = fused ? CHAIN_PARAM(CHAIN_STAGE_COMPRESSION, 0) : 0;
+            effect.setParameter(stage, int16_t(value / 10));
+        }
+        if (fused || strcmp(target->name, "Equalizer") == 0) {
+            stage = fused ? CHAIN_PARAM(CHAIN_STAGE_EQUALIZER, 0) : 0;
+            effect.setParameter(stage | EQ_PARAM_BAND_LEVEL, kind, int16_t(value - 500));
+            effect.setParameter(stage | 1000, int16_t(value * 10));
+        }
+        if (fused || strcmp(target->name, "Bass") == 0) {
+            stage = fused ? CHAIN_PARAM(CHAIN_STAGE_BASSBOOST, 0) : 0;
+            effect.setParameter(stage | BASSBOOST_PARAM_STRENGTH, value);
+        }
+        if (fused || strcmp(target->name, "Virtualization") == 0) {
+            stage = fused ? CHAIN_PARAM(CHAIN_STAGE_VIRTUALIZER, 0) : 0;
+            effect.setParameter(stage | VIRTUALIZER_PARAM_STRENGTH, value);
+        }
+        if (fused || strcmp(target->name, "Multiband") == 0) {
+            stage = fused ? CHAIN_PARAM(CHAIN_STAGE_MULTIBAND, 0) : 0;
+            effect.setParameter(stage, value);
+        }
+        if (fused) {
+            effect.setParameter(CHAIN_PARAM(kind % CHAIN_STAGES, CHAIN_STAGE_PARAM_ENABLE),
+                    int16_t(value & 1));
+        }
+
+        int32_t param = stage | BASSBOOST_PARAM_STRENGTH;
+        int16_t reply;
+        uint32_t replySize = sizeof(reply);
+        effect.getParameter(&param, sizeof(param), &reply, &replySize);
+        target->commands ++;
+    }
+    return 0;
+}
+
+static void checkEffect(const char* name)
+{
+    HostEffect effect;
+    effect.create(name);
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_8_24_BIT);
+    effect.setEnabled(true);
+
+    Target target = { &effect, name, 0 };
+    gStop = 0;
+    pthread_t commander;
+    pthread_create(&commander, 0, sendCommands, &target);
+
+    int32_t buffer[BUFFER_FRAMES * 2];
+    uint32_t seed = 2;
+    int32_t buffers = 0;
+    int32_t peak = 0;
+    double end = now() + SECONDS;
+    while (now() < end) {
+        for (int32_t i = 0; i < BUFFER_FRAMES * 2; i ++) {
+            seed = seed * 1664525 + 1013904223;
+            buffer[i] = int32_t(seed) >> 10;
+        }
+        audio_buffer_t in;
+        in.frameCount = BUFFER_FRAMES;
+        in.s32 = buffer;
+        effect.process(&in, &in);
+        for (int32_t i = 0; i < BUFFER_FRAMES * 2; i ++) {
+            int32_t magnitude = abs(buffer[i]);
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+        buffers ++;
+    }
+
+    android_atomic_release_store(1, &gStop);
+    pthread_join(commander, 0);
+
+    /* -12 dBFS noise stays well below +30 dBFS under any of these
+     * settings; an unstable, half-updated filter does not. */
+    char detail[96];
+    snprintf(detail, sizeof(detail), "%d buffers, %d commands, peak %.1f dBFS",
+            buffers, target.commands, 20 * log10(peak / double(1 << 23) + 1e-20));
+    report(name, buffers > 0 && target.commands > 0 && peak < (1 << 28), detail);
+}
+
+/* A stereo 16-bit impulse response of decaying noise. */
+static bool writeImpulseResponse(const char* path, int32_t frames, uint32_t seed)
+{
+    FILE* file = fopen(path, "wb");
+    if (file == 0) {
+        return false;
+    }
+    uint32_t dataLength = frames * 4;
+    uint8_t header[44] = {
+        'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'A', 'V', 'E',
+        'f', 'm', 't', ' ', 16, 0, 0, 0, 1, 0, 2, 0,
+        0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 16, 0,
+        'd', 'a', 't', 'a', 0, 0, 0, 0,
+    };
+    uint32_t fields[4][2] = { { 4, 36 + dataLength }, { 24, RATE }, { 28, RATE * 4 }, { 40, dataLength } };
+    for (int32_t f = 0; f < 4; f ++) {
+        for (int32_t b = 0; b < 4; b ++) {
+            header[fields[f][0] + b] = uint8_t(fields[f][1] >> (b * 8));
+        }
+    }
+    fwrite(header, 1, sizeof(header), file);
+    for (int32_t i = 0; i < frames * 2; i ++) {
+        seed = seed * 1664525 + 1013904223;
+        int16_t sample = int16_t((int32_t(seed) >> 18) * (frames * 2 - i) / (frames * 2));
+        fputc(sample & 0xff, file);
+        fputc((sample >> 8) & 0xff, file);
+    }
+    return fclose(file) == 0;
+}
+
+struct Swapper {
+    HostEffect* effect;
+    const char* paths[3];
+    int32_t loads;
+    int32_t failures;
+};
+
+/* Reload as fast as commands go, so that loads often land before process()
+ * has picked up the previous one. */
+static void* swapImpulseResponses(void* arg)
+{
+    Swapper* swapper = (Swapper*) arg;
+    int32_t param = CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE;
+    while (!android_atomic_acquire_load(&gStop)) {
+        const char* path = swapper->paths[swapper->loads % 3];
+        if (swapper->effect->setParameter(&param, sizeof(param), path, strlen(path)) != 0) {
+            swapper->failures ++;
+        }
+        swapper->loads ++;
+    }
+    return 0;
+}
+
+static void checkImpulseResponseSwaps()
+{
+    char pathA[] = "/tmp/parameter-stress-a.XXXXXX";
+    char pathB[] = "/tmp/parameter-stress-b.XXXXXX";
+    int32_t fdA = mkstemp(pathA);
+    int32_t fdB = mkstemp(pathB);
+    if (fdA < 0 || fdB < 0) {
+        report("Impulse response swaps", false, "can't create impulse response files");
+        return;
+    }
+    close(fdA);
+    close(fdB);
+    bool written = writeImpulseResponse(pathA, 2048, 3) && writeImpulseResponse(pathB, 6000, 4);
+
+    HostEffect effect;
+    effect.create("Virtualization");
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_8_24_BIT);
+    effect.setParameter(VIRTUALIZER_PARAM_STRENGTH, int16_t(1000));
+    effect.setParameter(CUSTOM_VIRTUALIZER_PARAM_MODE, int16_t(VIRTUALIZER_MODE_CONVOLUTION));
+    effect.setEnabled(true);
+
+    /* The empty path drops the engine, so process() also sees none. */
+    Swapper swapper = { &effect, { pathA, pathB, "" }, 0, 0 };
+    gStop = 0;
+    pthread_t commander;
+    pthread_create(&commander, 0, swapImpulseResponses, &swapper);
+
+    int32_t buffer[BUFFER_FRAMES * 2];
+    uint32_t seed = 5;
+    int32_t buffers = 0;
+    int32_t peak = 0;
+    double end = now() + SECONDS;
+    while (now() < end) {
+        for (int32_t i = 0; i < BUFFER_FRAMES * 2; i ++) {
+            seed = seed * 1664525 + 1013904223;
+            buffer[i] = int32_t(seed) >> 10;
+        }
+        audio_buffer_t in;
+        in.frameCount = BUFFER_FRAMES;
+        in.s32 = buffer;
+        effect.process(&in, &in);
+        for (int32_t i = 0; i < BUFFER_FRAMES * 2; i ++) {
+            int32_t magnitude = abs(buffer[i]);
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+        buffers ++;
+    }
+
+    android_atomic_release_store(1, &gStop);
+    pthread_join(commander, 0);
+    unlink(pathA);
+    unlink(pathB);
+
+    char detail[96];
+    snprintf(detail, sizeof(detail), "%d buffers, %d loads, %d failed, peak %.1f dBFS",
+            buffers, swapper.loads, swapper.failures, 20 * log10(peak / double(1 << 23) + 1e-20));
+    report("Impulse response swaps", written && buffers > 0 && swapper.loads > 0
+            && swapper.failures == 0 && peak < (1 << 28), detail);
+}
+
+int main()
+{
+    checkParameterBlock();
+
+    const char* effects[] = {
+        "Compression", "Equalizer", "Bass", "Virtualization", "Multiband", "Effect Chain",
+    };
+    for (uint32_t e = 0; e < sizeof(effects) / sizeof(effects[0]); e ++) {
+        checkEffect(effects[e]);
+    }
+    checkImpulseResponseSwaps();
+
+    return gFailures != 0;
+}
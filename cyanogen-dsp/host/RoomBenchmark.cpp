@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* Compares the room engines of the virtualizer: the two cross-coupled
+ * delays and the feedback delay network. For each engine and strength it
+ * reports the cost per frame, and from the impulse response of the room
+ * alone (the response at zero strength subtracted):
+ *
+ *   decay      reverberation time, from the Schroeder integral
+ *   density    normalized echo density over 50 .. 150 ms; 1 is as dense
+ *              as noise, a sparse train of echoes is near 0
+ *   ic         interaural correlation of the tail over 50 .. 300 ms
+ *   level      energy of the room relative to the direct sound, dB */
+
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
+
+#include <audio_effects/effect_virtualizer.h>
+
+#include "EffectVirtualizer.h"
+#include "HostEffect.h"
+
+#define RATE 44100
+#define BUFFER_FRAMES 512
+#define RESPONSE_FRAMES (3 * RATE)
+#define BENCH_SECONDS 10
+
+static double now()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec * 1e-9;
+}
+
+static void setup(HostEffect& effect, int16_t mode, int16_t strength)
+{
+    effect.create("Virtualization");
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_8_24_BIT);
+    effect.setParameter(CUSTOM_VIRTUALIZER_PARAM_MODE, mode);
+    effect.setParameter(VIRTUALIZER_PARAM_STRENGTH, strength);
+    effect.setEnabled(true);
+}
+
+/* Response of both ears to a half scale impulse in the left input. */
+static void response(int16_t mode, int16_t strength, double* left, double* right)
+{
+    HostEffect effect;
+    setup(effect, mode, strength);
+
+    int32_t data[BUFFER_FRAMES * 2];
+    for (int32_t offset = 0; offset < RESPONSE_FRAMES; offset += BUFFER_FRAMES) {
+        memset(data, 0, sizeof(data));
+        if (offset == 0) {
+            data[0] = 1 << 22;
+        }
+        audio_buffer_t buffer;
+        buffer.frameCount = BUFFER_FRAMES;
+        buffer.s32 = data;
+        effect.process(&buffer, &buffer);
+        for (int32_t i = 0; i < BUFFER_FRAMES && offset + i < RESPONSE_FRAMES; i ++) {
+            left[offset + i] = data[i * 2] / double(1 << 22);
+            right[offset + i] = data[i * 2 + 1] / double(1 << 22);
+        }
+    }
+}
+
+/* ns per frame on stereo noise, 16-bit as audioflinger would give it. */
+static double cost(int16_t mode, int16_t strength)
+{
+    HostEffect effect;
+    effect.create("Virtualization");
+    effect.configure(RATE, AUDIO_CHANNEL_OUT_STEREO, AUDIO_FORMAT_PCM_16_BIT);
+    effect.setParameter(CUSTOM_VIRTUALIZER_PARAM_MODE, mode);
+    effect.setParameter(VIRTUALIZER_PARAM_STRENGTH, strength);
+    effect.setEnabled(true);
+
+    int16_t data[BUFFER_FRAMES * 2];
+    uint32_t seed = 1;
+    int32_t buffers = BENCH_SECONDS * RATE / BUFFER_FRAMES;
+    double elapsed = 0;
+    for (int32_t b = 0; b < buffers; b ++) {
+        for (int32_t i = 0; i < BUFFER_FRAMES * 2; i ++) {
+            seed = seed * 1664525 + 1013904223;
+            data[i] = int16_t(int32_t(seed) >> 19);
+        }
+        audio_buffer_t buffer;
+        buffer.frameCount = BUFFER_FRAMES;
+        buffer.s16 = data;
+        double start = now();
+        effect.process(&buffer, &buffer);
+        elapsed += now() - start;
+    }
+    return elapsed * 1e9 / (buffers * BUFFER_FRAMES);
+}
+
+/* Time for the energy decay curve to fall from -5 to -25 dB, times 3. */
+static double decayTime(const double* left, const double* right)
+{
+    double* curve = new double[RESPONSE_FRAMES];
+    double sum = 0;
+    for (int32_t i = RESPONSE_FRAMES - 1; i >= 0; i --) {
+        sum += left[i] * left[i] + right[i] * right[i];
+        curve[i] = sum;
+    }
+    int32_t start = -1, end = -1;
+    for (int32_t i = 0; i < RESPONSE_FRAMES && end < 0; i ++) {
+        double db = 10 * log10(curve[i] / curve[0] + 1e-30);
+        if (start < 0 && db <= -5) {
+            start = i;
+        }
+        if (db <= -25) {
+            end = i;
+        }
+    }
+    delete[] curve;
+    return start >= 0 && end >= 0 ? 3.0 * (end - start) / RATE : -1;
+}
+
+/* Abel and Huang: share of samples outside one standard deviation of a
+ * window, over the share for a Gaussian. */
+static double echoDensity(const double* left, int32_t from, int32_t to)
+{
+    double energy = 0;
+    for (int32_t i = from; i < to; i ++) {
+        energy += left[i] * left[i];
+    }
+    double sigma = sqrt(energy / (to - from));
+    int32_t outside = 0;
+    for (int32_t i = from; i < to; i ++) {
+        outside += fabs(left[i]) > sigma;
+    }
+    return outside / double(to - from) / erfc(1 / sqrt(2.0));
+}
+
+static double correlation(const double* left, const double* right, int32_t from, int32_t to)
+{
+    double lr = 0, ll = 0, rr = 0;
+    for (int32_t i = from; i < to; i ++) {
+        lr += left[i] * right[i];
+        ll += left[i] * left[i];
+        rr += right[i] * right[i];
+    }
+    return lr / sqrt(ll * rr + 1e-30);
+}
+
+int main()
+{
+    static const struct {
+        const char* name;
+        int16_t mode;
+    } engines[] = {
+        { "two delays", VIRTUALIZER_MODE_ROOM },
+        { "network", VIRTUALIZER_MODE_NETWORK },
+    };
+    static const int16_t strengths[] = { 250, 500, 1000 };
+
+    double* dryL = new double[RESPONSE_FRAMES];
+    double* dryR = new double[RESPONSE_FRAMES];
+    double* left = new double[RESPONSE_FRAMES];
+    double* right = new double[RESPONSE_FRAMES];
+    response(VIRTUALIZER_MODE_ROOM, 0, dryL, dryR);
+    double dryEnergy = 0;
+    for (int32_t i = 0; i < RESPONSE_FRAMES; i ++) {
+        dryEnergy += dryL[i] * dryL[i] + dryR[i] * dryR[i];
+    }
+
+    printf("%-12s %8s %10s %8s %8s %8s %8s\n", "engine", "strength", "ns/frame", "decay", "density", "ic", "level");
+    for (uint32_t e = 0; e < sizeof(engines) / sizeof(engines[0]); e ++) {
+        for (uint32_t s = 0; s < sizeof(strengths) / sizeof(strengths[0]); s ++) {
+            response(engines[e].mode, strengths[s], left, right);
+            double energy = 0;
+            for (int32_t i = 0; i < RESPONSE_FRAMES; i ++) {
+                left[i] -= dryL[i];
+                right[i] -= dryR[i];
+                energy += left[i] * left[i] + right[i] * right[i];
+            }
+            printf("%-12s %8d %10.1f %7.2fs %8.2f %8.2f %7.1fdB\n", engines[e].name, strengths[s],
+                    cost(engines[e].mode, strengths[s]), decayTime(left, right),
+                    echoDensity(left, RATE / 20, RATE * 3 / 20),
+                    correlation(left, right, RATE / 20, RATE * 3 / 10),
+                    10 * log10(energy / dryEnergy));
+        }
+    }
+
+    delete[] dryL;
+    delete[] dryR;
+    delete[] left;
+    delete[] right;
+    return 0;
+}
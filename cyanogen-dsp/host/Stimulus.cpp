@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "Stimulus.h"
+#include "WavFile.h"
+
+#include <errno.h>
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
+
+Stimulus::Stimulus()
+    : mData(0), mFrames(0), mChannels(0)
+{
+    mName[0] = '\0';
+}
+
+Stimulus::~Stimulus()
+{
+    delete[] mData;
+}
+
+int32_t Stimulus::create(const char* kind, int32_t samplingRate, int32_t channels, int32_t frames)
+{
+    delete[] mData;
+    mData = 0;
+    snprintf(mName, sizeof(mName), "%s", kind);
+
+    const char* ext = strrchr(kind, '.');
+    if (ext != 0 && strcmp(ext, ".wav") == 0) {
+        WavFile wav;
+        int32_t ret = wav.open(kind);
+        if (ret != 0) {
+            return ret;
+        }
+        const char* base = strrchr(kind, '/');
+        snprintf(mName, sizeof(mName), "%s", base != 0 ? base + 1 : kind);
+        mFrames = wav.getFrames();
+        mChannels = channels;
+        mData = new int16_t[mFrames * channels];
+        for (int32_t i = 0; i < mFrames; i ++) {
+            for (int32_t c = 0; c < channels; c ++) {
+                float v = wav.getSample(i, c % wav.getChannels()) * 32768.0f;
+                mData[i * channels + c] = int16_t(v > 32767 ? 32767 : v < -32768 ? -32768 : v);
+            }
+        }
+        return 0;
+    }
+
+    mFrames = frames;
+    mChannels = channels;
+    mData = new int16_t[frames * channels];
+    if (strcmp(kind, "silence") == 0) {
+        memset(mData, 0, frames * channels * sizeof(int16_t));
+        return 0;
+    }
+    if (strcmp(kind, "noise") == 0) {
+        /* White noise at -12 dBFS peak, independent per channel. */
+        uint32_t seed = 1;
+        for (int32_t i = 0; i < frames * channels; i ++) {
+            seed = seed * 1664525 + 1013904223;
+            mData[i] = int16_t(seed >> 16) >> 2;
+        }
+        return 0;
+    }
+    if (strcmp(kind, "sweep") == 0) {
+        /* Logarithmic sine sweep from 20 Hz to 20 kHz at -6 dBFS. */
+        double f0 = 20, f1 = 20000;
+        double k = log(f1 / f0) / frames;
+        for (int32_t i = 0; i < frames; i ++) {
+            double phase = 2 * M_PI * f0 / samplingRate * (exp(k * i) - 1) / k;
+            int16_t v = int16_t(16384 * sin(phase));
+            for (int32_t c = 0; c < channels; c ++) {
+                mData[i * channels + c] = v;
+            }
+        }
+        return 0;
+    }
+
+    delete[] mData;
+    mData = 0;
+    return -EINVAL;
+}
@@ -0,0 +1,22 @@
+#pragma once
+
+#include <stdint.h>
+
+/* Interleaved 16-bit test signal, either synthesized or read from a WAVE
+ * file. */
+class Stimulus {
+    int16_t* mData;
+    int32_t mFrames;
+    int32_t mChannels;
+    char mName[64];
+
+    public:
+    Stimulus();
+    ~Stimulus();
+    /* kind is one of "silence", "noise" or "sweep", or a path to a .wav file. */
+    int32_t create(const char* kind, int32_t samplingRate, int32_t channels, int32_t frames);
+    const char* getName() const { return mName; }
+    int32_t getFrames() const { return mFrames; }
+    int32_t getChannels() const { return mChannels; }
+    const int16_t* getData() const { return mData; }
+};
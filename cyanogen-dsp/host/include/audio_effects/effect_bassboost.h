@@ -0,0 +1,13 @@
+#pragma once
+
+/* Minimal host stand-in for the AOSP header of the same name, covering
+ * what cyanogen-dsp uses. */
+
+#include <hardware/audio_effect.h>
+
+extern const effect_uuid_t * const SL_IID_BASSBOOST;
+
+typedef enum {
+    BASSBOOST_PARAM_STRENGTH_SUPPORTED,
+    BASSBOOST_PARAM_STRENGTH
+} t_bassboost_params;
@@ -0,0 +1,21 @@
+#pragma once
+
+/* Minimal host stand-in for the AOSP header of the same name, covering
+ * what cyanogen-dsp uses. */
+
+#include <hardware/audio_effect.h>
+
+extern const effect_uuid_t * const SL_IID_EQUALIZER;
+
+typedef enum {
+    EQ_PARAM_NUM_BANDS,
+    EQ_PARAM_LEVEL_RANGE,
+    EQ_PARAM_BAND_LEVEL,
+    EQ_PARAM_CENTER_FREQ,
+    EQ_PARAM_BAND_FREQ_RANGE,
+    EQ_PARAM_GET_BAND,
+    EQ_PARAM_CUR_PRESET,
+    EQ_PARAM_GET_NUM_OF_PRESETS,
+    EQ_PARAM_GET_PRESET_NAME,
+    EQ_PARAM_PROPERTIES
+} t_equalizer_params;
@@ -0,0 +1,28 @@
+#pragma once
+
+/* Minimal host stand-in for the libcutils header of the same name, covering
+ * what cyanogen-dsp uses. The GCC builtins are full barriers, which is
+ * stronger than the acquire and release the names promise. */
+
+#include <stdint.h>
+
+static inline int32_t android_atomic_acquire_load(volatile const int32_t* addr)
+{
+    return __atomic_load_n(addr, __ATOMIC_ACQUIRE);
+}
+
+static inline void android_atomic_release_store(int32_t value, volatile int32_t* addr)
+{
+    __atomic_store_n(addr, value, __ATOMIC_RELEASE);
+}
+
+/* Return 0 if *addr held oldvalue and was replaced with newvalue. */
+static inline int android_atomic_acquire_cas(int32_t oldvalue, int32_t newvalue, volatile int32_t* addr)
+{
+    return !__sync_bool_compare_and_swap(addr, oldvalue, newvalue);
+}
+
+static inline int android_atomic_release_cas(int32_t oldvalue, int32_t newvalue, volatile int32_t* addr)
+{
+    return !__sync_bool_compare_and_swap(addr, oldvalue, newvalue);
+}
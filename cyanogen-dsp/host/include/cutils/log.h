@@ -0,0 +1,19 @@
+#pragma once
+
+#include <stdio.h>
+
+/* The host build keeps effect logging quiet unless asked for; the
+ * effects log on every parameter change, which would drown benchmark
+ * output. */
+#ifdef DSP_HOST_LOG
+#define DSP_HOST_PRINT(level, ...) \
+    do { fprintf(stderr, "%s/%s: ", level, LOG_TAG); fprintf(stderr, __VA_ARGS__); fputc('\n', stderr); } while (0)
+#else
+#define DSP_HOST_PRINT(level, ...) do { } while (0)
+#endif
+
+#define ALOGV(...) DSP_HOST_PRINT("V", __VA_ARGS__)
+#define ALOGD(...) DSP_HOST_PRINT("D", __VA_ARGS__)
+#define ALOGI(...) DSP_HOST_PRINT("I", __VA_ARGS__)
+#define ALOGW(...) DSP_HOST_PRINT("W", __VA_ARGS__)
+#define ALOGE(...) DSP_HOST_PRINT("E", __VA_ARGS__)
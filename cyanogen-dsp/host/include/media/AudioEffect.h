@@ -0,0 +1,5 @@
+#pragma once
+
+/* The effect library only needs the OpenSL ES type UUIDs, which the
+ * audio_effects headers already declare. */
+#include <hardware/audio_effect.h>
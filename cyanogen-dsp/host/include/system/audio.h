@@ -0,0 +1,43 @@
+#pragma once
+
+/* Minimal host stand-in for the AOSP header of the same name, covering
+ * what cyanogen-dsp uses. */
+
+#include <stdint.h>
+
+typedef uint32_t audio_format_t;
+typedef uint32_t audio_channel_mask_t;
+
+enum {
+    AUDIO_FORMAT_PCM_16_BIT = 0x1,
+    AUDIO_FORMAT_PCM_8_BIT = 0x2,
+    AUDIO_FORMAT_PCM_32_BIT = 0x3,
+    AUDIO_FORMAT_PCM_8_24_BIT = 0x4,
+    AUDIO_FORMAT_PCM_FLOAT = 0x5,
+};
+
+enum {
+    AUDIO_CHANNEL_OUT_FRONT_LEFT = 0x1,
+    AUDIO_CHANNEL_OUT_FRONT_RIGHT = 0x2,
+    AUDIO_CHANNEL_OUT_FRONT_CENTER = 0x4,
+    AUDIO_CHANNEL_OUT_LOW_FREQUENCY = 0x8,
+    AUDIO_CHANNEL_OUT_BACK_LEFT = 0x10,
+    AUDIO_CHANNEL_OUT_BACK_RIGHT = 0x20,
+    AUDIO_CHANNEL_OUT_FRONT_LEFT_OF_CENTER = 0x40,
+    AUDIO_CHANNEL_OUT_FRONT_RIGHT_OF_CENTER = 0x80,
+    AUDIO_CHANNEL_OUT_BACK_CENTER = 0x100,
+    AUDIO_CHANNEL_OUT_SIDE_LEFT = 0x200,
+    AUDIO_CHANNEL_OUT_SIDE_RIGHT = 0x400,
+
+    AUDIO_CHANNEL_OUT_MONO = AUDIO_CHANNEL_OUT_FRONT_LEFT,
+    AUDIO_CHANNEL_OUT_STEREO = AUDIO_CHANNEL_OUT_FRONT_LEFT | AUDIO_CHANNEL_OUT_FRONT_RIGHT,
+    AUDIO_CHANNEL_OUT_5POINT1 = AUDIO_CHANNEL_OUT_STEREO | AUDIO_CHANNEL_OUT_FRONT_CENTER
+        | AUDIO_CHANNEL_OUT_LOW_FREQUENCY | AUDIO_CHANNEL_OUT_BACK_LEFT | AUDIO_CHANNEL_OUT_BACK_RIGHT,
+    AUDIO_CHANNEL_OUT_7POINT1 = AUDIO_CHANNEL_OUT_5POINT1
+        | AUDIO_CHANNEL_OUT_SIDE_LEFT | AUDIO_CHANNEL_OUT_SIDE_RIGHT,
+};
+
+static inline uint32_t audio_channel_count_from_out_mask(audio_channel_mask_t channel)
+{
+    return __builtin_popcount(channel);
+}
@@ -0,0 +1,196 @@
+package com.bel.android.dspmanager.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.bel.android.dspmanager.dsp.Effect;
+import com.bel.android.dspmanager.dsp.EffectChain;
+
+/**
+ * Renders a directory of WAV files through the effects of one routing
+ * profile, for the profile to be checked by ear away from the phone. Each
+ * file goes through its own Java engine chain, in blocks of a fixed size,
+ * from its memory map into the map of the output file of the same name
+ * and format; files are spread over a fork/join pool. Reports how many
+ * times faster than realtime each file rendered, and all of them together
+ * on the wall clock. Runs on the JVM alone.
+ *
+ * <p>Usage: BatchRenderer profile.xml|profile.properties in-dir out-dir
+ * [--block frames] [--threads n]</p>
+ */
+public class BatchRenderer {
+	private static final int DEFAULT_BLOCK = 1024;
+
+	/** One file, rendered on a thread of the pool. */
+	private static class RenderTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final RoutingProfile mProfile;
+		final File mIn;
+		final File mOut;
+		final int mBlock;
+
+		/* The outcome, for the report */
+		double mSeconds;
+		long mNanos;
+		String mError;
+
+		RenderTask(RoutingProfile profile, File in, File out, int block) {
+			mProfile = profile;
+			mIn = in;
+			mOut = out;
+			mBlock = block;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				render();
+			} catch (IOException e) {
+				mError = e.getMessage();
+			} catch (IllegalArgumentException e) {
+				mError = e.getMessage();
+			}
+		}
+
+		private void render() throws IOException {
+			WavFile in = WavFile.open(mIn);
+			int channels = in.getChannels();
+			if (channels > Effect.MAX_CHANNELS) {
+				throw new IOException(channels + " channels, at most " + Effect.MAX_CHANNELS + " supported");
+			}
+			WavFile out = WavFile.create(mOut, in.getFormat(), channels, in.getSamplingRate(), in.getFrames());
+
+			EffectChain chain = new EffectChain();
+			chain.configure(in.getSamplingRate(), channelMask(channels));
+			mProfile.apply(chain);
+
+			int frames = in.getFrames();
+			long start = System.nanoTime();
+			if (in.getFormat() == WavFile.WAVE_FORMAT_PCM) {
+				ShortBuffer src = in.getData().asShortBuffer();
+				ShortBuffer dst = out.getData().asShortBuffer();
+				for (int offset = 0; offset < frames; offset += mBlock) {
+					chain.process(src, dst, Math.min(frames - offset, mBlock));
+				}
+			} else {
+				FloatBuffer src = in.getData().asFloatBuffer();
+				FloatBuffer dst = out.getData().asFloatBuffer();
+				float[] block = new float[mBlock * channels];
+				for (int offset = 0; offset < frames; offset += mBlock) {
+					int count = Math.min(frames - offset, mBlock);
+					src.get(block, 0, count * channels);
+					chain.process(block, block, count);
+					dst.put(block, 0, count * channels);
+				}
+			}
+			mNanos = System.nanoTime() - start;
+			mSeconds = (double) frames / in.getSamplingRate();
+			out.flush();
+		}
+	}
+
+	/** The layout of a WAV file of so many channels, in their usual order. */
+	private static int channelMask(int channels) {
+		if (channels == 1) {
+			return Effect.CHANNEL_OUT_MONO;
+		}
+		if (channels == 2) {
+			return Effect.CHANNEL_OUT_STEREO;
+		}
+		return (1 << channels) - 1;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: BatchRenderer profile.xml|profile.properties in-dir out-dir"
+				+ " [--block frames] [--threads n]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws IOException {
+		List<String> paths = new ArrayList<String>();
+		int block = DEFAULT_BLOCK;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 0; i < args.length; i ++) {
+			if (args[i].equals("--block") && i + 1 < args.length) {
+				block = Integer.parseInt(args[++ i]);
+			} else if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++ i]);
+			} else {
+				paths.add(args[i]);
+			}
+		}
+		if (paths.size() != 3 || block <= 0 || threads <= 0) {
+			usage();
+		}
+
+		RoutingProfile profile = RoutingProfile.load(new File(paths.get(0)));
+		File inDir = new File(paths.get(1));
+		File outDir = new File(paths.get(2));
+		File[] files = inDir.listFiles();
+		if (files == null) {
+			throw new IOException("Can't list " + inDir);
+		}
+		Arrays.sort(files);
+		if (!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Can't create " + outDir);
+		}
+
+		final List<RenderTask> tasks = new ArrayList<RenderTask>();
+		for (File file : files) {
+			if (file.isFile() && file.getName().toLowerCase(Locale.ROOT).endsWith(".wav")) {
+				tasks.add(new RenderTask(profile, file, new File(outDir, file.getName()), block));
+			}
+		}
+
+		System.out.println("Profile: " + profile.describe());
+		String ignored = profile.describeIgnored();
+		if (ignored.length() != 0) {
+			System.out.println("Not in the Java engine, left out: " + ignored);
+		}
+		System.out.println(String.format(Locale.ROOT, "%d files, blocks of %d frames, %d threads",
+				tasks.size(), block, threads));
+
+		long start = System.nanoTime();
+		new ForkJoinPool(threads).invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		long wall = System.nanoTime() - start;
+
+		double seconds = 0;
+		long nanos = 0;
+		int failures = 0;
+		for (RenderTask task : tasks) {
+			if (task.mError != null) {
+				System.out.println(String.format(Locale.ROOT, "%-40s FAIL  %s", task.mIn.getName(), task.mError));
+				failures ++;
+				continue;
+			}
+			System.out.println(String.format(Locale.ROOT, "%-40s %8.1f s audio  %8.1f ms  %7.1fx realtime",
+					task.mIn.getName(), task.mSeconds, task.mNanos / 1e6, task.mSeconds / (task.mNanos / 1e9)));
+			seconds += task.mSeconds;
+			nanos += task.mNanos;
+		}
+		if (nanos != 0) {
+			System.out.println(String.format(Locale.ROOT,
+					"All: %.1f s audio, %.1fx realtime per thread, %.1fx on the wall clock (%.1f ms)",
+					seconds, seconds / (nanos / 1e9), seconds / (wall / 1e9), wall / 1e6));
+		}
+		if (failures != 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package com.bel.android.dspmanager.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the native effects from Java across buffer sizes, sampling
+ * rates and the parameter values HeadsetService.updateDsp() sends.
+ * Each case is warmed up first, then timed over several iterations,
+ * and the mean and standard deviation of ns per frame are reported.
+ *
+ * <p>Usage: EffectBenchmark bridge.so libcyanogen-dsp.so [--quick]</p>
+ */
+public class EffectBenchmark {
+	private static final int[] BUFFER_FRAMES = { 64, 128, 256, 512, 1024, 2048, 4096 };
+	private static final int[] SAMPLING_RATES = { 44100, 48000 };
+
+	/** Equalizer presets from res/values/arrays.xml, in hundredths of dB. */
+	private static final short[] EQ_FLAT = { 0, 0, 0, 0, 0, 0 };
+	private static final short[] EQ_ROCK = { 450, 450, 275, -50, 275, 400 };
+
+	/** One effect or effect chain with its settings applied. */
+	private static abstract class Case {
+		final String mName;
+
+		Case(String name) {
+			mName = name;
+		}
+
+		abstract NativeEffect[] create(int samplingRate);
+	}
+
+	private static NativeEffect effect(String name, int samplingRate) {
+		NativeEffect e = new NativeEffect(name);
+		e.configure(samplingRate, NativeEffect.CHANNEL_OUT_STEREO, NativeEffect.FORMAT_PCM_16_BIT);
+		e.setEnabled(true);
+		return e;
+	}
+
+	private static NativeEffect compression(int samplingRate, short mode) {
+		NativeEffect e = effect("Dynamic Range Compression", samplingRate);
+		e.setParameter(0, mode);
+		return e;
+	}
+
+	private static NativeEffect equalizer(int samplingRate, short[] bands, short loudness) {
+		NativeEffect e = effect("Equalizer", samplingRate);
+		for (int i = 0; i < bands.length; i ++) {
+			/* EQ_PARAM_BAND_LEVEL */
+			e.setParameter(2, i, bands[i]);
+		}
+		e.setParameter(1000, loudness);
+		return e;
+	}
+
+	private static NativeEffect bassBoost(int samplingRate, short strength) {
+		NativeEffect e = effect("Bass Boost", samplingRate);
+		/* BASSBOOST_PARAM_STRENGTH */
+		e.setParameter(1, strength);
+		return e;
+	}
+
+	private static NativeEffect virtualizer(int samplingRate, short strength) {
+		NativeEffect e = effect("Headset Virtualization", samplingRate);
+		/* VIRTUALIZER_PARAM_STRENGTH */
+		e.setParameter(1, strength);
+		return e;
+	}
+
+	/** Stage parameter of the fused chain, see EffectChain.h. */
+	private static int chainParameter(int stage, int parameter) {
+		return ((stage + 1) << 16) | parameter;
+	}
+
+	private static NativeEffect fusedChain(int samplingRate) {
+		NativeEffect e = effect("Effect Chain", samplingRate);
+		e.setParameter(chainParameter(0, 0), (short) 100);
+		for (int i = 0; i < EQ_ROCK.length; i ++) {
+			e.setParameter(chainParameter(1, 2), i, EQ_ROCK[i]);
+		}
+		e.setParameter(chainParameter(1, 1000), (short) 4000);
+		e.setParameter(chainParameter(2, 1), (short) 1000);
+		e.setParameter(chainParameter(3, 1), (short) 1000);
+		for (int stage = 0; stage < 4; stage ++) {
+			e.setParameter(chainParameter(stage, 0xffff), (short) 1);
+		}
+		return e;
+	}
+
+	private static List<Case> cases() {
+		List<Case> cases = new ArrayList<Case>();
+		for (final short mode : new short[] { 50, 100, 300 }) {
+			cases.add(new Case("compression mode=" + mode) {
+				@Override
+				NativeEffect[] create(int samplingRate) {
+					return new NativeEffect[] { compression(samplingRate, mode) };
+				}
+			});
+		}
+		for (final short loudness : new short[] { 10000, 4000, 2500 }) {
+			for (final short[] bands : new short[][] { EQ_FLAT, EQ_ROCK }) {
+				cases.add(new Case("equalizer " + (bands == EQ_FLAT ? "flat" : "rock") + " loudness=" + loudness) {
+					@Override
+					NativeEffect[] create(int samplingRate) {
+						return new NativeEffect[] { equalizer(samplingRate, bands, loudness) };
+					}
+				});
+			}
+		}
+		for (final short strength : new short[] { 0, 500, 1000 }) {
+			cases.add(new Case("bassboost strength=" + strength) {
+				@Override
+				NativeEffect[] create(int samplingRate) {
+					return new NativeEffect[] { bassBoost(samplingRate, strength) };
+				}
+			});
+		}
+		for (final short strength : new short[] { 0, 333, 666, 1000 }) {
+			cases.add(new Case("virtualizer strength=" + strength) {
+				@Override
+				NativeEffect[] create(int samplingRate) {
+					return new NativeEffect[] { virtualizer(samplingRate, strength) };
+				}
+			});
+		}
+		cases.add(new Case("chain (all effects)") {
+			@Override
+			NativeEffect[] create(int samplingRate) {
+				return new NativeEffect[] {
+						compression(samplingRate, (short) 100),
+						equalizer(samplingRate, EQ_ROCK, (short) 4000),
+						bassBoost(samplingRate, (short) 1000),
+						virtualizer(samplingRate, (short) 1000),
+				};
+			}
+		});
+		cases.add(new Case("fused chain effect") {
+			@Override
+			NativeEffect[] create(int samplingRate) {
+				return new NativeEffect[] { fusedChain(samplingRate) };
+			}
+		});
+		return cases;
+	}
+
+	/**
+	 * Process roughly the given duration of audio in place.
+	 *
+	 * @return elapsed nanoseconds
+	 */
+	private static long iteration(NativeEffect[] effects, ByteBuffer buffer, ShortBuffer samples,
+			short[] noise, int frames, int samplingRate, double seconds) {
+		int calls = Math.max(1, (int) (seconds * samplingRate / frames));
+		long elapsed = 0;
+		for (int c = 0; c < calls; c ++) {
+			/* Fresh input each call, so silence detection can't kick in. */
+			samples.clear();
+			samples.put(noise, (c * 2 * 97) % (noise.length - frames * 2), frames * 2);
+			long start = System.nanoTime();
+			for (NativeEffect e : effects) {
+				e.process(buffer, buffer, frames);
+			}
+			elapsed += System.nanoTime() - start;
+		}
+		return elapsed;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("usage: EffectBenchmark bridge.so libcyanogen-dsp.so [--quick]");
+			System.exit(1);
+		}
+		NativeEffect.loadLibrary(args[0], args[1]);
+		boolean quick = args.length > 2 && args[2].equals("--quick");
+		int warmups = quick ? 1 : 3;
+		int measurements = quick ? 3 : 5;
+		double seconds = quick ? 0.1 : 0.5;
+
+		short[] noise = new short[2 * 48000];
+		long seed = 1;
+		for (int i = 0; i < noise.length; i ++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			noise[i] = (short) ((seed >> 48) >> 2);
+		}
+
+		System.out.println(String.format(Locale.ROOT, "%-36s %6s %6s %10s %8s",
+				"case", "rate", "frames", "ns/frame", "+-"));
+		for (Case c : cases()) {
+			for (int samplingRate : SAMPLING_RATES) {
+				NativeEffect[] effects = c.create(samplingRate);
+				for (int frames : BUFFER_FRAMES) {
+					ByteBuffer buffer = ByteBuffer.allocateDirect(frames * 4).order(ByteOrder.nativeOrder());
+					ShortBuffer samples = buffer.asShortBuffer();
+					for (int i = 0; i < warmups; i ++) {
+						iteration(effects, buffer, samples, noise, frames, samplingRate, seconds);
+					}
+
+					double sum = 0, sumSquared = 0;
+					for (int i = 0; i < measurements; i ++) {
+						long ns = iteration(effects, buffer, samples, noise, frames, samplingRate, seconds);
+						int calls = Math.max(1, (int) (seconds * samplingRate / frames));
+						double perFrame = (double) ns / (calls * frames);
+						sum += perFrame;
+						sumSquared += perFrame * perFrame;
+					}
+					double mean = sum / measurements;
+					double deviation = Math.sqrt(Math.max(0, sumSquared / measurements - mean * mean));
+					System.out.println(String.format(Locale.ROOT, "%-36s %6d %6d %10.1f %8.1f",
+							c.mName, samplingRate, frames, mean, deviation));
+				}
+				for (NativeEffect e : effects) {
+					e.release();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package com.bel.android.dspmanager.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.bel.android.dspmanager.dsp.Effect;
+import com.bel.android.dspmanager.dsp.EffectBassBoost;
+import com.bel.android.dspmanager.dsp.EffectCompression;
+import com.bel.android.dspmanager.dsp.EffectEqualizer;
+import com.bel.android.dspmanager.dsp.EffectVirtualizer;
+import com.bel.android.dspmanager.preference.EqualizerBands;
+
+/**
+ * Checks the Java engine against the native effects: each case runs the
+ * same program material through both, in blocks of varying size, with
+ * the settings changed and the effect disabled and enabled again along
+ * the way. 8.24 and float output must be the same to the bit, and 16-bit
+ * output may differ by the dither only, 2 LSB at most. Then times the
+ * engine against the native effects, in ns per frame of stereo.
+ *
+ * <p>Usage: EngineCheck bridge.so libcyanogen-dsp.so [--quick]</p>
+ */
+public class EngineCheck {
+	private static final int[] SAMPLING_RATES = { 44100, 48000 };
+	/** Block sizes, in turn: odd ones, and ones past the update intervals */
+	private static final int[] BLOCKS = { 64, 1000, 333, 4096, 17, 512 };
+	private static final int MAX_BLOCK = 4096;
+	private static final int BENCH_BLOCK = 1024;
+	/** Blocks where the effects are disabled, and enabled again */
+	private static final int DISABLE_AT = 120;
+	private static final int ENABLE_AT = 170;
+	/** Block where each case changes its settings */
+	private static final int CHANGE_AT = 60;
+
+	private static final short[] EQ_ROCK = { 450, 450, 275, -50, 275, 400 };
+
+	private static int sFailures;
+
+	/** One effect with its settings, natively and on the engine. */
+	private static abstract class Case {
+		final String mName;
+
+		Case(String name) {
+			mName = name;
+		}
+
+		abstract NativeEffect createNative();
+
+		abstract Effect createJava();
+
+		/** Change the settings of both at CHANGE_AT. */
+		abstract void change(NativeEffect n, Effect j);
+	}
+
+	private static byte[] shortsBytes(short[] values) {
+		byte[] bytes = new byte[values.length * 2];
+		for (int i = 0; i < values.length; i ++) {
+			bytes[i * 2] = (byte) values[i];
+			bytes[i * 2 + 1] = (byte) (values[i] >> 8);
+		}
+		return bytes;
+	}
+
+	private static short[] parametric() {
+		EqualizerBands bands = EqualizerBands.parametric(10);
+		for (int i = 0; i < bands.size(); i ++) {
+			bands.setLevel(i, (i % 5 - 2) * 2.5f);
+		}
+		return bands.toParametric();
+	}
+
+	private static List<Case> cases() {
+		List<Case> cases = new ArrayList<Case>();
+		for (final short strength : new short[] { 100, 1000 }) {
+			cases.add(new Case("compression strength=" + strength) {
+				@Override
+				NativeEffect createNative() {
+					NativeEffect e = new NativeEffect("Dynamic Range Compression");
+					e.setParameter(0, strength);
+					return e;
+				}
+
+				@Override
+				Effect createJava() {
+					EffectCompression e = new EffectCompression();
+					e.setStrength(strength);
+					return e;
+				}
+
+				@Override
+				void change(NativeEffect n, Effect j) {
+					n.setParameter(0, (short) 500);
+					((EffectCompression) j).setStrength((short) 500);
+				}
+			});
+		}
+		for (final short loudness : new short[] { 10000, 4000 }) {
+			cases.add(new Case("equalizer rock loudness=" + loudness) {
+				@Override
+				NativeEffect createNative() {
+					NativeEffect e = new NativeEffect("Equalizer");
+					for (int i = 0; i < EQ_ROCK.length; i ++) {
+						/* EQ_PARAM_BAND_LEVEL */
+						e.setParameter(2, i, EQ_ROCK[i]);
+					}
+					e.setParameter(1000, loudness);
+					return e;
+				}
+
+				@Override
+				Effect createJava() {
+					EffectEqualizer e = new EffectEqualizer();
+					for (int i = 0; i < EQ_ROCK.length; i ++) {
+						e.setBandLevel(i, EQ_ROCK[i]);
+					}
+					e.setLoudnessCorrection(loudness);
+					return e;
+				}
+
+				@Override
+				void change(NativeEffect n, Effect j) {
+					n.setParameter(2, 2, (short) -600);
+					((EffectEqualizer) j).setBandLevel(2, (short) -600);
+				}
+			});
+		}
+		cases.add(new Case("equalizer 10 parametric bands") {
+			@Override
+			NativeEffect createNative() {
+				NativeEffect e = new NativeEffect("Equalizer");
+				e.setParameter(NativeEffect.intBytes(1001), shortsBytes(parametric()));
+				e.setParameter(1000, (short) 4000);
+				return e;
+			}
+
+			@Override
+			Effect createJava() {
+				EffectEqualizer e = new EffectEqualizer();
+				e.setParametric(parametric());
+				e.setLoudnessCorrection((short) 4000);
+				return e;
+			}
+
+			@Override
+			void change(NativeEffect n, Effect j) {
+				n.setParameter(2, 7, (short) 1200);
+				((EffectEqualizer) j).setBandLevel(7, (short) 1200);
+			}
+		});
+		for (final short strength : new short[] { 0, 1000 }) {
+			cases.add(new Case("bassboost strength=" + strength) {
+				@Override
+				NativeEffect createNative() {
+					NativeEffect e = new NativeEffect("Bass Boost");
+					/* BASSBOOST_PARAM_STRENGTH */
+					e.setParameter(1, strength);
+					return e;
+				}
+
+				@Override
+				Effect createJava() {
+					EffectBassBoost e = new EffectBassBoost();
+					e.setStrength(strength);
+					return e;
+				}
+
+				@Override
+				void change(NativeEffect n, Effect j) {
+					n.setParameter(1, (short) 600);
+					((EffectBassBoost) j).setStrength((short) 600);
+				}
+			});
+		}
+		for (final short mode : new short[] { EffectVirtualizer.MODE_ROOM, EffectVirtualizer.MODE_NETWORK }) {
+			for (final short strength : new short[] { 0, 400, 1000 }) {
+				cases.add(new Case("virtualizer mode=" + mode + " strength=" + strength) {
+					@Override
+					NativeEffect createNative() {
+						NativeEffect e = new NativeEffect("Headset Virtualization");
+						/* VIRTUALIZER_PARAM_STRENGTH */
+						e.setParameter(1, strength);
+						e.setParameter(1000, mode);
+						return e;
+					}
+
+					@Override
+					Effect createJava() {
+						EffectVirtualizer e = new EffectVirtualizer();
+						e.setStrength(strength);
+						e.setMode(mode);
+						return e;
+					}
+
+					@Override
+					void change(NativeEffect n, Effect j) {
+						n.setParameter(1, (short) 700);
+						((EffectVirtualizer) j).setStrength((short) 700);
+					}
+				});
+			}
+		}
+		return cases;
+	}
+
+	/**
+	 * Ten seconds of stereo program in 8.24: noise rising from -50 dB to
+	 * full scale over a bass tone, silence long enough for every tail to
+	 * die away, then quiet noise with loud bursts.
+	 */
+	private static int[] stimulus(int samplingRate) {
+		int frames = samplingRate * 10;
+		int[] samples = new int[frames * 2];
+		long seed = 1;
+		for (int i = 0; i < frames; i ++) {
+			double t = (double) i / samplingRate;
+			double level;
+			double tone = 0;
+			if (t < 3) {
+				level = Math.pow(10, (-50 + 50 * t / 3) / 20);
+				tone = 0.5 * Math.sin(2 * Math.PI * 50 * t);
+			} else if (t < 5.5) {
+				continue;
+			} else {
+				level = (t * 2) % 1 < 0.1 ? 0.7 : 0.1;
+			}
+			for (int ch = 0; ch < 2; ch ++) {
+				seed = seed * 6364136223846793005L + 1442695040888963407L;
+				double noise = (seed >> 40) / (double) (1 << 23);
+				samples[i * 2 + ch] = (int) ((noise * level + tone) * (1 << 23));
+			}
+		}
+		return samples;
+	}
+
+	private static NativeEffect configure(NativeEffect n, int samplingRate, int format) {
+		n.configure(samplingRate, NativeEffect.CHANNEL_OUT_STEREO, format);
+		n.setEnabled(true);
+		return n;
+	}
+
+	private static Effect configure(Effect j, int samplingRate) {
+		j.configure(samplingRate, Effect.CHANNEL_OUT_STEREO);
+		j.setEnabled(true);
+		return j;
+	}
+
+	private static void report(String what, boolean ok, String detail) {
+		System.out.println(String.format(Locale.ROOT, "%-56s %s  %s", what, ok ? "ok" : "FAIL", detail));
+		if (!ok) {
+			sFailures ++;
+		}
+	}
+
+	/**
+	 * Run a case in one format, and report the largest difference of an
+	 * output sample, in LSB of the format, and whether the two ever
+	 * disagreed about having something to do.
+	 */
+	private static void compare(Case c, int samplingRate, int format, int[] stimulus) {
+		NativeEffect n = configure(c.createNative(), samplingRate, format);
+		Effect j = configure(c.createJava(), samplingRate);
+
+		ByteBuffer inBytes = ByteBuffer.allocateDirect(MAX_BLOCK * 2 * 4).order(ByteOrder.nativeOrder());
+		ByteBuffer outBytes = ByteBuffer.allocateDirect(MAX_BLOCK * 2 * 4).order(ByteOrder.nativeOrder());
+		int[] fixed = new int[MAX_BLOCK * 2];
+		float[] floats = new float[MAX_BLOCK * 2];
+		ShortBuffer javaIn = ShortBuffer.allocate(MAX_BLOCK * 2);
+		ShortBuffer javaOut = ShortBuffer.allocate(MAX_BLOCK * 2);
+
+		long worst = 0;
+		int disagreements = 0;
+		int total = stimulus.length / 2;
+		int frames;
+		for (int offset = 0, block = 0; offset < total; offset += frames, block ++) {
+			frames = Math.min(BLOCKS[block % BLOCKS.length], total - offset);
+			if (block == CHANGE_AT) {
+				c.change(n, j);
+			}
+			if (block == DISABLE_AT || block == ENABLE_AT) {
+				n.setEnabled(block == ENABLE_AT);
+				j.setEnabled(block == ENABLE_AT);
+			}
+
+			int samples = frames * 2;
+			boolean nativeActive;
+			boolean javaActive;
+			if (format == NativeEffect.FORMAT_PCM_8_24_BIT) {
+				IntBuffer in = inBytes.asIntBuffer();
+				in.put(stimulus, offset * 2, samples);
+				System.arraycopy(stimulus, offset * 2, fixed, 0, samples);
+				nativeActive = n.process(inBytes, outBytes, frames) == 0;
+				javaActive = j.process(fixed, fixed, frames);
+				IntBuffer out = outBytes.asIntBuffer();
+				for (int i = 0; i < samples; i ++) {
+					worst = Math.max(worst, Math.abs((long) out.get(i) - fixed[i]));
+				}
+			} else if (format == NativeEffect.FORMAT_PCM_FLOAT) {
+				FloatBuffer in = inBytes.asFloatBuffer();
+				for (int i = 0; i < samples; i ++) {
+					floats[i] = stimulus[offset * 2 + i] * (1.f / (1 << 23));
+					in.put(i, floats[i]);
+				}
+				nativeActive = n.process(inBytes, outBytes, frames) == 0;
+				javaActive = j.process(floats, floats, frames);
+				FloatBuffer out = outBytes.asFloatBuffer();
+				for (int i = 0; i < samples; i ++) {
+					/* In LSB of 8.24; the same float is the same bits. */
+					if (Float.floatToIntBits(out.get(i)) != Float.floatToIntBits(floats[i])) {
+						worst = Math.max(worst, Math.max(1, (long) Math.abs((out.get(i) - floats[i]) * (1 << 23))));
+					}
+				}
+			} else {
+				ShortBuffer in = inBytes.asShortBuffer();
+				javaIn.clear();
+				for (int i = 0; i < samples; i ++) {
+					short sample = (short) Math.max(-32768, Math.min(32767, stimulus[offset * 2 + i] >> 8));
+					in.put(i, sample);
+					javaIn.put(sample);
+				}
+				javaIn.flip();
+				javaOut.clear();
+				nativeActive = n.process(inBytes, outBytes, frames) == 0;
+				javaActive = j.process(javaIn, javaOut, frames);
+				ShortBuffer out = outBytes.asShortBuffer();
+				for (int i = 0; i < samples; i ++) {
+					worst = Math.max(worst, Math.abs(out.get(i) - javaOut.get(i)));
+				}
+			}
+			if (nativeActive != javaActive) {
+				disagreements ++;
+			}
+		}
+		n.release();
+
+		String name = c.mName + " @" + samplingRate + " " + formatName(format);
+		/* The two dither on their own, each up to 255 of 8.24 either way
+		 * before the shift, which can take a 16-bit sample 2 apart. */
+		long allowed = format == NativeEffect.FORMAT_PCM_16_BIT ? 2 : 0;
+		report(name, worst <= allowed && disagreements == 0,
+				String.format(Locale.ROOT, "(%d LSB off, %d blocks disagree)", worst, disagreements));
+	}
+
+	private static String formatName(int format) {
+		switch (format) {
+		case NativeEffect.FORMAT_PCM_8_24_BIT:
+			return "8.24";
+		case NativeEffect.FORMAT_PCM_FLOAT:
+			return "float";
+		default:
+			return "16-bit";
+		}
+	}
+
+	/**
+	 * Time a case on the engine in 8.24 and float, and natively in 8.24,
+	 * over blocks of program material.
+	 */
+	private static void benchmark(Case c, int[] stimulus, int iterations) {
+		int samplingRate = SAMPLING_RATES[0];
+		NativeEffect n = configure(c.createNative(), samplingRate, NativeEffect.FORMAT_PCM_8_24_BIT);
+		Effect j = configure(c.createJava(), samplingRate);
+		Effect jf = configure(c.createJava(), samplingRate);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BENCH_BLOCK * 2 * 4).order(ByteOrder.nativeOrder());
+		IntBuffer samples = buffer.asIntBuffer();
+		int[] fixed = new int[BENCH_BLOCK * 2];
+		float[] floats = new float[BENCH_BLOCK * 2];
+		/* Only the loud part, so that no effect rests. */
+		int blocks = 3 * samplingRate / BENCH_BLOCK;
+		int start = 5 * samplingRate * 2 + samplingRate;
+
+		long[] elapsed = new long[3];
+		for (int pass = 0; pass < 2; pass ++) {
+			/* The first pass warms up the JIT. */
+			elapsed[0] = elapsed[1] = elapsed[2] = 0;
+			for (int it = 0; it < iterations; it ++) {
+				for (int b = 0; b < blocks; b ++) {
+					int offset = start + b * BENCH_BLOCK * 2;
+					System.arraycopy(stimulus, offset, fixed, 0, BENCH_BLOCK * 2);
+					for (int i = 0; i < BENCH_BLOCK * 2; i ++) {
+						floats[i] = stimulus[offset + i] * (1.f / (1 << 23));
+					}
+					samples.clear();
+					samples.put(stimulus, offset, BENCH_BLOCK * 2);
+
+					long t0 = System.nanoTime();
+					j.process(fixed, fixed, BENCH_BLOCK);
+					long t1 = System.nanoTime();
+					jf.process(floats, floats, BENCH_BLOCK);
+					long t2 = System.nanoTime();
+					n.process(buffer, buffer, BENCH_BLOCK);
+					long t3 = System.nanoTime();
+					elapsed[0] += t1 - t0;
+					elapsed[1] += t2 - t1;
+					elapsed[2] += t3 - t2;
+				}
+			}
+		}
+		n.release();
+
+		double frames = (double) iterations * blocks * BENCH_BLOCK;
+		System.out.println(String.format(Locale.ROOT, "%-40s %10.1f %10.1f %10.1f",
+				c.mName, elapsed[0] / frames, elapsed[1] / frames, elapsed[2] / frames));
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("usage: EngineCheck bridge.so libcyanogen-dsp.so [--quick]");
+			System.exit(1);
+		}
+		NativeEffect.loadLibrary(args[0], args[1]);
+		boolean quick = args.length > 2 && args[2].equals("--quick");
+
+		List<Case> cases = cases();
+		for (int samplingRate : SAMPLING_RATES) {
+			int[] stimulus = stimulus(samplingRate);
+			for (Case c : cases) {
+				for (int format : new int[] { NativeEffect.FORMAT_PCM_8_24_BIT, NativeEffect.FORMAT_PCM_FLOAT,
+						NativeEffect.FORMAT_PCM_16_BIT }) {
+					/* One format is enough at the second rate. */
+					if (samplingRate != SAMPLING_RATES[0] && format != NativeEffect.FORMAT_PCM_8_24_BIT) {
+						continue;
+					}
+					compare(c, samplingRate, format, stimulus);
+				}
+			}
+		}
+
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-40s %10s %10s %10s",
+				"ns/frame, " + BENCH_BLOCK + " frame blocks", "java 8.24", "java float", "native"));
+		int[] stimulus = stimulus(SAMPLING_RATES[0]);
+		for (Case c : cases) {
+			benchmark(c, stimulus, quick ? 2 : 10);
+		}
+		System.exit(sFailures != 0 ? 1 : 0);
+	}
+}
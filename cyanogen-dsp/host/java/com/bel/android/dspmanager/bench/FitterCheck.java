@@ -0,0 +1,166 @@
+package com.bel.android.dspmanager.bench;
+
+import java.util.Locale;
+
+import com.bel.android.dspmanager.preference.EqualizerBands;
+import com.bel.android.dspmanager.preference.EqualizerFitter;
+
+/**
+ * Checks the target curve fitter of the equalizer against curves of known
+ * settings, which it must find again, and a headphone compensation curve,
+ * where no level may be left that gets any closer. Then times the basis
+ * and the fit of each layout. Runs on the JVM alone, without the effects.
+ *
+ * <p>Usage: FitterCheck [--quick]</p>
+ */
+public class FitterCheck {
+	/** Rock preset from res/values/arrays.xml, dB. */
+	private static final float[] ROCK = { 4.5f, 4.5f, 2.75f, -0.5f, 2.75f, 4.0f };
+	private static final int[] LAYOUTS = { EqualizerBands.SHELVES, 16, EqualizerBands.MAX_BANDS };
+
+	/** Typical in-ear compensation: bass lift, ear gain, treble rolloff.
+	 * The peaks narrow towards the Nyquist frequency, so the rolloff is
+	 * kept to what they can follow at 44.1 kHz. */
+	private static final String HEADPHONE =
+			"Frequency,Raw\n"
+			+ "20,6.0\n50,5.5\n100,4.0\n200,1.5\n400,0.0\n1000,0.0\n"
+			+ "2000,3.0\n3000,8.0\n4000,6.5\n6000,1.0\n8000,-2.0\n"
+			+ "10000,-1.0\n12000,-3.0\n16000,-5.0\n20000,-5.0\n";
+
+	private static int sFailures;
+
+	private static void report(String what, boolean ok, String detail) {
+		System.out.println(String.format(Locale.ROOT, "%-44s %s  %s", what, ok ? "ok" : "FAIL", detail));
+		if (!ok) {
+			sFailures ++;
+		}
+	}
+
+	private static EqualizerBands layout(int bands) {
+		return bands == EqualizerBands.SHELVES ? EqualizerBands.shelves() : EqualizerBands.parametric(bands);
+	}
+
+	/** Largest difference of the levels of two settings, dB. */
+	private static double distance(EqualizerBands a, EqualizerBands b) {
+		double largest = 0;
+		for (int i = 0; i < a.size(); i ++) {
+			largest = Math.max(largest, Math.abs(a.getLevel(i) - b.getLevel(i)));
+		}
+		return largest;
+	}
+
+	/** Most the RMS error falls with any one level 0.1 dB off, within range. */
+	private static double improvement(EqualizerBands fitted, double[] target) {
+		double rms = EqualizerFitter.rmsError(fitted, target);
+		double best = 0;
+		for (int i = 0; i < fitted.size(); i ++) {
+			for (float step : new float[] { -0.1f, 0.1f }) {
+				float level = fitted.getLevel(i) + step;
+				if (level < EqualizerFitter.MIN_DB || level > EqualizerFitter.MAX_DB) {
+					continue;
+				}
+				EqualizerBands moved = fitted.copy();
+				moved.setLevel(i, level);
+				best = Math.max(best, rms - EqualizerFitter.rmsError(moved, target));
+			}
+		}
+		return best;
+	}
+
+	private static void checkRecovers(String name, EqualizerBands known) {
+		double[] target = EqualizerFitter.response(known);
+		EqualizerBands fitted = new EqualizerFitter(known).fit(target);
+		double off = distance(known, fitted);
+		report(name + " is found again", off < 0.1,
+				String.format(Locale.ROOT, "(%.3f dB off, %.3f dB RMS)", off, EqualizerFitter.rmsError(fitted, target)));
+	}
+
+	private static void checks() {
+		EqualizerBands rock = EqualizerBands.shelves();
+		for (int i = 0; i < ROCK.length; i ++) {
+			rock.setLevel(i, ROCK[i]);
+		}
+		checkRecovers("rock preset", rock);
+
+		EqualizerBands zigzag = EqualizerBands.parametric(EqualizerBands.MAX_BANDS);
+		for (int i = 0; i < zigzag.size(); i ++) {
+			zigzag.setLevel(i, (i % 7 - 3) * 1.5f);
+		}
+		checkRecovers("31 band zigzag", zigzag);
+
+		for (int bands : LAYOUTS) {
+			EqualizerBands flat = new EqualizerFitter(layout(bands)).fit(new double[EqualizerFitter.GRID_POINTS]);
+			double off = distance(flat, layout(bands));
+			report(bands + " bands, flat target is flat", off < 0.01,
+					String.format(Locale.ROOT, "(%.4f dB off)", off));
+		}
+
+		/* Far out of range: every level at the bound. */
+		double[] loud = EqualizerFitter.sampleCurve(new double[] { 1000 }, new double[] { 30 });
+		for (int bands : LAYOUTS) {
+			EqualizerBands fitted = new EqualizerFitter(layout(bands)).fit(loud);
+			double lowest = EqualizerFitter.MAX_DB;
+			double highest = EqualizerFitter.MIN_DB;
+			for (int i = 0; i < fitted.size(); i ++) {
+				lowest = Math.min(lowest, fitted.getLevel(i));
+				highest = Math.max(highest, fitted.getLevel(i));
+			}
+			report(bands + " bands, levels stay in range",
+					lowest >= EqualizerFitter.MIN_DB && highest <= EqualizerFitter.MAX_DB,
+					String.format(Locale.ROOT, "(%.2f .. %.2f dB)", lowest, highest));
+		}
+
+		double[] headphone = EqualizerFitter.parseCurve(HEADPHONE);
+		report("headphone curve parses", headphone != null
+				&& Math.abs(headphone[0] - 6) < 1e-9
+				&& Math.abs(headphone[EqualizerFitter.GRID_POINTS - 1] + 5) < 1e-9, "");
+		/* The peaks ripple between their centers, so even the finest layout
+		 * only gets to within a fraction of a dB. What matters more is that
+		 * no level can be moved to get any closer. */
+		for (int bands : LAYOUTS) {
+			EqualizerBands fitted = new EqualizerFitter(layout(bands)).fit(headphone);
+			double rms = EqualizerFitter.rmsError(fitted, headphone);
+			report(bands + " bands follow the headphone curve", rms < 1,
+					String.format(Locale.ROOT, "(%.3f dB RMS)", rms));
+			double gain = improvement(fitted, headphone);
+			report(bands + " bands, no level does better", gain < 0.005,
+					String.format(Locale.ROOT, "(%.4f dB to gain)", gain));
+		}
+
+		report("no points is no curve", EqualizerFitter.parseCurve("Frequency,Raw\n") == null, "");
+	}
+
+	private static void benchmark(int iterations) {
+		double[] headphone = EqualizerFitter.parseCurve(HEADPHONE);
+		/* Warm up the JIT on every layout before timing any of them. */
+		for (int i = 0; i < iterations; i ++) {
+			for (int bands : LAYOUTS) {
+				new EqualizerFitter(layout(bands)).fit(headphone);
+			}
+		}
+
+		for (int bands : LAYOUTS) {
+			EqualizerBands layout = layout(bands);
+			EqualizerFitter fitter = null;
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i ++) {
+				fitter = new EqualizerFitter(layout);
+			}
+			long basis = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i ++) {
+				fitter.fit(headphone);
+			}
+			long fit = System.nanoTime() - start;
+			System.out.println(String.format(Locale.ROOT, "%2d bands: basis %7.1f us, fit %7.1f us",
+					bands, basis / 1000.0 / iterations, fit / 1000.0 / iterations));
+		}
+	}
+
+	public static void main(String[] args) {
+		boolean quick = args.length > 0 && args[0].equals("--quick");
+		checks();
+		benchmark(quick ? 100 : 2000);
+		System.exit(sFailures != 0 ? 1 : 0);
+	}
+}
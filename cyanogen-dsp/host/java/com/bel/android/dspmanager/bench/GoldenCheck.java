@@ -0,0 +1,780 @@
+package com.bel.android.dspmanager.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.bel.android.dspmanager.dsp.Effect;
+import com.bel.android.dspmanager.dsp.EffectBassBoost;
+import com.bel.android.dspmanager.dsp.EffectChain;
+import com.bel.android.dspmanager.dsp.EffectCompression;
+import com.bel.android.dspmanager.dsp.EffectEqualizer;
+import com.bel.android.dspmanager.dsp.EffectVirtualizer;
+import com.bel.android.dspmanager.preference.EqualizerBands;
+import com.bel.android.dspmanager.preference.EqualizerFitter;
+
+/**
+ * Regression gate for the sound of the effects. A matrix of settings runs
+ * over a set of stimuli, natively and on the Java engine, in 8.24 blocks
+ * of a fixed size, and each output is checked against the expectation
+ * stored in golden/expected.txt: a hash of every sample, the peak, and
+ * the level of each sixteenth of the output.
+ *
+ * <p>Where the design requires it, the output must be the same to the
+ * bit: silence must stay digital silence, a disabled effect must pass its
+ * input on unchanged, and the engine must match the native effect.
+ * Otherwise a changed hash passes when the peak and the levels are within
+ * 0.01 dB, and is reported. The response of the equalizer settings the
+ * preferences compute is checked the same way, point by point.</p>
+ *
+ * <p>Then every setting is timed on pink noise, fastest block of several runs,
+ * compared to the throughput recorded in a baseline file; more than the
+ * allowed percentage slower fails. The baseline is machine specific, and
+ * is recorded with --record, best on the tree the change is made on, as
+ * "make golden-baseline" does. Without one the gate fails, rather than
+ * passing whatever the throughput is; a case that is new since the
+ * baseline is only reported.</p>
+ *
+ * <p>Usage: GoldenCheck bridge.so libcyanogen-dsp.so expected.txt
+ * throughput.baseline [--update] [--record] [--slower percent]</p>
+ */
+public class GoldenCheck {
+	private static final int[] SAMPLING_RATES = { 44100, 48000 };
+	private static final int BLOCK = 1024;
+	private static final int SEGMENTS = 16;
+	/** Allowed change of a level or peak, dB, where the bits may change */
+	private static final double LEVEL_TOLERANCE = 0.01;
+	/** Allowed change of the levels quieter than QUIET_DB, where a change
+	 * in the LSB is a large share of the signal */
+	private static final double QUIET_TOLERANCE = 0.5;
+	private static final double QUIET_DB = -90;
+	/** Allowed change of a point of an equalizer response, dB */
+	private static final double RESPONSE_TOLERANCE = 0.001;
+	/** Timed runs over the stimulus, of which the fastest block counts */
+	private static final int TIMING_RUNS = 5;
+	/** Change of throughput too small to tell from the noise of the clock,
+	 * ns/frame, which is allowed on top of the percentage */
+	private static final double TIMING_FLOOR_NS = 1;
+	private static final double DEFAULT_SLOWER_PERCENT = 25;
+
+	private static final short[] EQ_ROCK = { 450, 450, 275, -50, 275, 400 };
+
+	/* Parameters of the native chain: the stage, from 1, in the upper half */
+	private static final int CHAIN_STAGE_PARAM_ENABLE = 0xffff;
+
+	private static int sFailures;
+
+	/** One setting of an effect, natively and on the engine. */
+	private static abstract class Case {
+		final String mName;
+		/* Disabled, for the output to be exactly the input */
+		final boolean mEnabled;
+
+		Case(String name, boolean enabled) {
+			mName = name;
+			mEnabled = enabled;
+		}
+
+		abstract NativeEffect createNative();
+
+		abstract Effect createJava();
+	}
+
+	private static int chainParam(int stage, int param) {
+		return ((stage + 1) << 16) | param;
+	}
+
+	private static short[] parametric(int count) {
+		EqualizerBands bands = EqualizerBands.parametric(count);
+		for (int i = 0; i < bands.size(); i ++) {
+			bands.setLevel(i, (i % 5 - 2) * 2.5f);
+		}
+		return bands.toParametric();
+	}
+
+	private static byte[] shortsBytes(short[] values) {
+		byte[] bytes = new byte[values.length * 2];
+		for (int i = 0; i < values.length; i ++) {
+			bytes[i * 2] = (byte) values[i];
+			bytes[i * 2 + 1] = (byte) (values[i] >> 8);
+		}
+		return bytes;
+	}
+
+	private static Case compression(final short strength) {
+		return new Case("compression-" + strength, true) {
+			@Override
+			NativeEffect createNative() {
+				NativeEffect e = new NativeEffect("Dynamic Range Compression");
+				e.setParameter(0, strength);
+				return e;
+			}
+
+			@Override
+			Effect createJava() {
+				EffectCompression e = new EffectCompression();
+				e.setStrength(strength);
+				return e;
+			}
+		};
+	}
+
+	private static Case equalizer(String name, boolean enabled, final short loudness, final short[] parametric) {
+		return new Case(name, enabled) {
+			@Override
+			NativeEffect createNative() {
+				NativeEffect e = new NativeEffect("Equalizer");
+				if (parametric != null) {
+					e.setParameter(NativeEffect.intBytes(1001), shortsBytes(parametric));
+				} else {
+					for (int i = 0; i < EQ_ROCK.length; i ++) {
+						/* EQ_PARAM_BAND_LEVEL */
+						e.setParameter(2, i, EQ_ROCK[i]);
+					}
+				}
+				e.setParameter(1000, loudness);
+				return e;
+			}
+
+			@Override
+			Effect createJava() {
+				EffectEqualizer e = new EffectEqualizer();
+				if (parametric != null) {
+					e.setParametric(parametric);
+				} else {
+					for (int i = 0; i < EQ_ROCK.length; i ++) {
+						e.setBandLevel(i, EQ_ROCK[i]);
+					}
+				}
+				e.setLoudnessCorrection(loudness);
+				return e;
+			}
+		};
+	}
+
+	private static Case bassBoost(final short strength) {
+		return new Case("bassboost-" + strength, true) {
+			@Override
+			NativeEffect createNative() {
+				NativeEffect e = new NativeEffect("Bass Boost");
+				/* BASSBOOST_PARAM_STRENGTH */
+				e.setParameter(1, strength);
+				return e;
+			}
+
+			@Override
+			Effect createJava() {
+				EffectBassBoost e = new EffectBassBoost();
+				e.setStrength(strength);
+				return e;
+			}
+		};
+	}
+
+	private static Case virtualizer(String name, final short mode, final short strength) {
+		return new Case(name, true) {
+			@Override
+			NativeEffect createNative() {
+				NativeEffect e = new NativeEffect("Headset Virtualization");
+				/* VIRTUALIZER_PARAM_STRENGTH */
+				e.setParameter(1, strength);
+				e.setParameter(1000, mode);
+				return e;
+			}
+
+			@Override
+			Effect createJava() {
+				EffectVirtualizer e = new EffectVirtualizer();
+				e.setStrength(strength);
+				e.setMode(mode);
+				return e;
+			}
+		};
+	}
+
+	/** All four stages of the chain, as a profile of the headset would have them. */
+	private static Case chain() {
+		return new Case("chain", true) {
+			@Override
+			NativeEffect createNative() {
+				NativeEffect e = new NativeEffect("Effect Chain");
+				for (int stage = EffectChain.STAGE_COMPRESSION; stage <= EffectChain.STAGE_VIRTUALIZER; stage ++) {
+					e.setParameter(chainParam(stage, CHAIN_STAGE_PARAM_ENABLE), (short) 1);
+				}
+				e.setParameter(chainParam(EffectChain.STAGE_COMPRESSION, 0), (short) 300);
+				for (int i = 0; i < EQ_ROCK.length; i ++) {
+					e.setParameter(chainParam(EffectChain.STAGE_EQUALIZER, 2), i, EQ_ROCK[i]);
+				}
+				e.setParameter(chainParam(EffectChain.STAGE_EQUALIZER, 1000), (short) 4000);
+				e.setParameter(chainParam(EffectChain.STAGE_BASSBOOST, 1), (short) 500);
+				e.setParameter(chainParam(EffectChain.STAGE_VIRTUALIZER, 1), (short) 700);
+				e.setParameter(chainParam(EffectChain.STAGE_VIRTUALIZER, 1000), (short) EffectVirtualizer.MODE_NETWORK);
+				return e;
+			}
+
+			@Override
+			Effect createJava() {
+				EffectChain e = new EffectChain();
+				for (int stage = EffectChain.STAGE_COMPRESSION; stage <= EffectChain.STAGE_VIRTUALIZER; stage ++) {
+					e.setStageEnabled(stage, true);
+				}
+				e.getCompression().setStrength((short) 300);
+				for (int i = 0; i < EQ_ROCK.length; i ++) {
+					e.getEqualizer().setBandLevel(i, EQ_ROCK[i]);
+				}
+				e.getEqualizer().setLoudnessCorrection((short) 4000);
+				e.getBassBoost().setStrength((short) 500);
+				e.getVirtualizer().setStrength((short) 700);
+				e.getVirtualizer().setMode((short) EffectVirtualizer.MODE_NETWORK);
+				return e;
+			}
+		};
+	}
+
+	private static List<Case> cases() {
+		List<Case> cases = new ArrayList<Case>();
+		cases.add(compression((short) 200));
+		cases.add(compression((short) 1000));
+		cases.add(equalizer("equalizer-rock", true, (short) 10000, null));
+		cases.add(equalizer("equalizer-rock-loudness", true, (short) 4000, null));
+		cases.add(equalizer("equalizer-parametric-10", true, (short) 10000, parametric(10)));
+		cases.add(equalizer("equalizer-parametric-31", true, (short) 10000, parametric(EqualizerBands.MAX_BANDS)));
+		cases.add(equalizer("equalizer-disabled", false, (short) 4000, null));
+		cases.add(bassBoost((short) 0));
+		cases.add(bassBoost((short) 1000));
+		cases.add(virtualizer("virtualizer-room", (short) EffectVirtualizer.MODE_ROOM, (short) 500));
+		cases.add(virtualizer("virtualizer-network", (short) EffectVirtualizer.MODE_NETWORK, (short) 1000));
+		cases.add(chain());
+		return cases;
+	}
+
+	/* Stimuli: stereo 8.24, from StrictMath and integer noise so that they
+	 * are the same on any JVM. Their hashes are stored with the outputs. */
+
+	private static final String[] STIMULI = { "sweep", "pink", "transients", "silence" };
+
+	private static long sSeed;
+
+	/** White noise, -1 .. 1. */
+	private static double noise() {
+		sSeed = sSeed * 6364136223846793005L + 1442695040888963407L;
+		return (sSeed >> 40) / (double) (1 << 23);
+	}
+
+	private static int toFixed(double value) {
+		return (int) StrictMath.rint(value * (1 << 23));
+	}
+
+	private static int[] stimulus(String name, int samplingRate) {
+		sSeed = 1;
+		if (name.equals("sweep")) {
+			/* Exponential sine sweep, 20 Hz to 20 kHz at -6 dBFS; the right
+			 * channel in quadrature, for the virtualizer to have a side
+			 * signal. */
+			int frames = samplingRate * 5;
+			int[] samples = new int[frames * 2];
+			double rate = StrictMath.log(20000.0 / 20.0);
+			for (int i = 0; i < frames; i ++) {
+				double t = (double) i / frames;
+				double phase = 2 * Math.PI * 20 * 5 / rate * (StrictMath.exp(t * rate) - 1);
+				samples[i * 2] = toFixed(0.5 * StrictMath.sin(phase));
+				samples[i * 2 + 1] = toFixed(0.5 * StrictMath.cos(phase));
+			}
+			return samples;
+		}
+		if (name.equals("pink")) {
+			/* Paul Kellet's economy filter on white noise, about -20 dBFS RMS,
+			 * the channels independent. */
+			int frames = samplingRate * 5;
+			int[] samples = new int[frames * 2];
+			double[][] b = new double[2][3];
+			for (int i = 0; i < frames; i ++) {
+				for (int ch = 0; ch < 2; ch ++) {
+					double white = noise();
+					b[ch][0] = 0.99765 * b[ch][0] + white * 0.0990460;
+					b[ch][1] = 0.96300 * b[ch][1] + white * 0.2965164;
+					b[ch][2] = 0.57000 * b[ch][2] + white * 1.0526913;
+					double pink = b[ch][0] + b[ch][1] + b[ch][2] + white * 0.1848;
+					samples[i * 2 + ch] = toFixed(pink * 0.05);
+				}
+			}
+			return samples;
+		}
+		if (name.equals("transients")) {
+			/* Every quarter second, a 2 ms click of 1 kHz over a 30 ms thump
+			 * of 60 Hz, both decaying, peaking near -1 dBFS, with a full
+			 * second of silence in the middle for the tails to die away.
+			 * Both channels are in phase, so the bass boost, which works on
+			 * their mix, has something to boost. */
+			int frames = samplingRate * 5;
+			int[] samples = new int[frames * 2];
+			int period = samplingRate / 4;
+			int click = samplingRate / 500;
+			int thump = samplingRate * 3 / 100;
+			for (int i = 0; i < frames; i ++) {
+				int t = i % period;
+				if (t >= thump || (i >= 2 * samplingRate && i < 3 * samplingRate)) {
+					continue;
+				}
+				double value = 0.5 * StrictMath.exp(-4.0 * t / thump)
+						* StrictMath.sin(2 * Math.PI * 60 * t / samplingRate);
+				if (t < click) {
+					value += 0.39 * StrictMath.exp(-4.0 * t / click)
+							* StrictMath.sin(2 * Math.PI * 1000 * t / samplingRate);
+				}
+				samples[i * 2] = toFixed(value);
+				samples[i * 2 + 1] = toFixed(value);
+			}
+			return samples;
+		}
+		return new int[samplingRate * 2 * 2];
+	}
+
+	/** What is kept of an output: hash, peak and levels. */
+	private static class Digest {
+		long mHash = 0xcbf29ce484222325L;
+		double mPeakDb;
+		final double[] mLevelDb = new double[SEGMENTS];
+
+		static Digest of(int[] samples) {
+			Digest d = new Digest();
+			for (int sample : samples) {
+				/* FNV-1a, a sample at a time */
+				d.mHash = (d.mHash ^ (sample & 0xffffffffL)) * 0x100000001b3L;
+			}
+			int frames = samples.length / 2;
+			long peak = 0;
+			for (int s = 0; s < SEGMENTS; s ++) {
+				int from = frames * s / SEGMENTS * 2;
+				int to = frames * (s + 1) / SEGMENTS * 2;
+				double sum = 0;
+				for (int i = from; i < to; i ++) {
+					double value = samples[i] / (double) (1 << 23);
+					sum += value * value;
+					peak = Math.max(peak, Math.abs((long) samples[i]));
+				}
+				d.mLevelDb[s] = toDb(Math.sqrt(sum / Math.max(1, to - from)));
+			}
+			d.mPeakDb = toDb(peak / (double) (1 << 23));
+			return d;
+		}
+
+		static Digest parse(String[] fields, int from) {
+			Digest d = new Digest();
+			d.mHash = Long.parseUnsignedLong(fields[from], 16);
+			d.mPeakDb = Double.parseDouble(fields[from + 1]);
+			for (int s = 0; s < SEGMENTS; s ++) {
+				d.mLevelDb[s] = Double.parseDouble(fields[from + 2 + s]);
+			}
+			return d;
+		}
+
+		String format() {
+			StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "%016x %.3f", mHash, mPeakDb));
+			for (double level : mLevelDb) {
+				sb.append(String.format(Locale.ROOT, " %.3f", level));
+			}
+			return sb.toString();
+		}
+
+		/** Largest difference of the peak and levels from another, dB, or
+		 * infinity where it is out of tolerance. */
+		double distance(Digest other) {
+			double worst = Math.abs(mPeakDb - other.mPeakDb);
+			if (worst > LEVEL_TOLERANCE) {
+				return Double.POSITIVE_INFINITY;
+			}
+			for (int s = 0; s < SEGMENTS; s ++) {
+				double difference = Math.abs(mLevelDb[s] - other.mLevelDb[s]);
+				boolean quiet = Math.max(mLevelDb[s], other.mLevelDb[s]) < QUIET_DB;
+				if (difference > (quiet ? QUIET_TOLERANCE : LEVEL_TOLERANCE)) {
+					return Double.POSITIVE_INFINITY;
+				}
+				if (!quiet) {
+					worst = Math.max(worst, difference);
+				}
+			}
+			return worst;
+		}
+	}
+
+	/** Digital silence is -999 dB. */
+	private static double toDb(double value) {
+		return value > 0 ? 20 * Math.log10(value) : -999;
+	}
+
+	private static ByteBuffer sInBytes = ByteBuffer.allocateDirect(BLOCK * 2 * 4).order(ByteOrder.nativeOrder());
+	private static ByteBuffer sOutBytes = ByteBuffer.allocateDirect(BLOCK * 2 * 4).order(ByteOrder.nativeOrder());
+
+	private static int[] runNative(Case c, int samplingRate, int[] stimulus) {
+		NativeEffect n = c.createNative();
+		n.configure(samplingRate, NativeEffect.CHANNEL_OUT_STEREO, NativeEffect.FORMAT_PCM_8_24_BIT);
+		n.setEnabled(c.mEnabled);
+		int[] output = new int[stimulus.length];
+		for (int offset = 0; offset < stimulus.length; offset += BLOCK * 2) {
+			int samples = Math.min(stimulus.length - offset, BLOCK * 2);
+			IntBuffer in = sInBytes.asIntBuffer();
+			in.put(stimulus, offset, samples);
+			n.process(sInBytes, sOutBytes, samples / 2);
+			sOutBytes.asIntBuffer().get(output, offset, samples);
+		}
+		n.release();
+		return output;
+	}
+
+	private static Effect createJava(Case c, int samplingRate) {
+		Effect j = c.createJava();
+		j.configure(samplingRate, Effect.CHANNEL_OUT_STEREO);
+		j.setEnabled(c.mEnabled);
+		return j;
+	}
+
+	private static int[] runJava(Case c, int samplingRate, int[] stimulus) {
+		Effect j = createJava(c, samplingRate);
+		int[] output = stimulus.clone();
+		int[] block = new int[BLOCK * 2];
+		for (int offset = 0; offset < output.length; offset += BLOCK * 2) {
+			int samples = Math.min(output.length - offset, BLOCK * 2);
+			System.arraycopy(output, offset, block, 0, samples);
+			j.process(block, block, samples / 2);
+			System.arraycopy(block, 0, output, offset, samples);
+		}
+		return output;
+	}
+
+	private static void report(String what, boolean ok, String detail) {
+		System.out.println(String.format(Locale.ROOT, "%-52s %s  %s", what, ok ? "ok" : "FAIL", detail));
+		if (!ok) {
+			sFailures ++;
+		}
+	}
+
+	/** Check one output against the stored one. */
+	private static void check(String key, String who, Digest actual, Digest expected, boolean exact) {
+		if (expected == null) {
+			report(key + " " + who, false, "(no expected output; run with --update)");
+		} else if (actual.mHash == expected.mHash) {
+			report(key + " " + who, true, "(bit-exact)");
+		} else if (exact) {
+			report(key + " " + who, false, "(must be bit-exact, hash changed)");
+		} else {
+			double distance = actual.distance(expected);
+			report(key + " " + who, distance != Double.POSITIVE_INFINITY,
+					distance != Double.POSITIVE_INFINITY
+					? String.format(Locale.ROOT, "(bits changed, levels within %.4f dB)", distance)
+					: "(levels out of tolerance: " + actual.format() + ")");
+		}
+	}
+
+	/* Equalizer settings whose response the preferences compute */
+
+	private static Map<String, EqualizerBands> responses() {
+		Map<String, EqualizerBands> responses = new LinkedHashMap<String, EqualizerBands>();
+		EqualizerBands rock = EqualizerBands.shelves();
+		for (int i = 0; i < EQ_ROCK.length; i ++) {
+			rock.setLevel(i, EQ_ROCK[i] / 100.0f);
+		}
+		responses.put("shelves-rock", rock);
+		for (int count : new int[] { 10, EqualizerBands.MAX_BANDS }) {
+			EqualizerBands bands = EqualizerBands.parametric(count);
+			for (int i = 0; i < count; i ++) {
+				bands.setLevel(i, (i % 5 - 2) * 2.5f);
+			}
+			responses.put("parametric-" + count, bands);
+		}
+		return responses;
+	}
+
+	private static String formatResponse(double[] response) {
+		StringBuilder sb = new StringBuilder();
+		for (double value : response) {
+			sb.append(String.format(Locale.ROOT, " %.4f", value));
+		}
+		return sb.toString().substring(1);
+	}
+
+	/* The stored expectations, by key: "stimulus name rate",
+	 * "output case stimulus rate" and "response name". */
+
+	private static Map<String, String[]> load(File file) throws IOException {
+		Map<String, String[]> expected = new LinkedHashMap<String, String[]>();
+		if (!file.exists()) {
+			return expected;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				int keyFields = fields[0].equals("output") ? 4 : fields[0].equals("stimulus") ? 3 : 2;
+				StringBuilder key = new StringBuilder(fields[0]);
+				for (int i = 1; i < keyFields; i ++) {
+					key.append(' ').append(fields[i]);
+				}
+				String[] values = new String[fields.length - keyFields];
+				System.arraycopy(fields, keyFields, values, 0, values.length);
+				expected.put(key.toString(), values);
+			}
+		} finally {
+			reader.close();
+		}
+		return expected;
+	}
+
+	private static void write(File file, Map<String, String> lines) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			writer.println("# Expected outputs of GoldenCheck, written by it with --update.");
+			writer.println("# stimulus <name> <rate> <hash>");
+			writer.println("# output <case> <stimulus> <rate> <hash> <peak dB> <level dB of each sixteenth>");
+			writer.println("# response <setting> <dB at each point of the fitter grid>");
+			for (Map.Entry<String, String> line : lines.entrySet()) {
+				writer.println(line.getKey() + " " + line.getValue());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/** Keeps the reference kernel from being optimized away. */
+	private static long sReferenceSink;
+
+	/**
+	 * Reference kernel the throughput is measured against: a second order
+	 * integer recurrence over the samples, about the work of one biquad.
+	 * Timed next to the effects, it slows down with them when the machine
+	 * is busy or clocks down, which its ratio to them does not.
+	 */
+	private static void reference(int[] block) {
+		long y1 = 0;
+		long y2 = 0;
+		for (int sample : block) {
+			long y0 = ((long) sample * 0x40000000L + y1 * 0x7f000000L - y2 * 0x3f000000L) >> 30;
+			y2 = y1;
+			y1 = y0;
+		}
+		sReferenceSink += y1;
+	}
+
+	/**
+	 * Time a case on pink noise, natively and on the engine, and the
+	 * reference kernel, in ns per frame.
+	 */
+	private static double[] time(Case c, int[] stimulus) {
+		int samplingRate = SAMPLING_RATES[0];
+		NativeEffect n = c.createNative();
+		n.configure(samplingRate, NativeEffect.CHANNEL_OUT_STEREO, NativeEffect.FORMAT_PCM_8_24_BIT);
+		n.setEnabled(c.mEnabled);
+		Effect j = createJava(c, samplingRate);
+		int[] block = new int[BLOCK * 2];
+		int blocks = stimulus.length / (BLOCK * 2);
+
+		/* The fastest block of all runs: the cost with nothing else running,
+		 * which interruptions only ever make longer. */
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		/* The first run warms up the JIT, and does not count. */
+		for (int run = -1; run < TIMING_RUNS; run ++) {
+			for (int b = 0; b < blocks; b ++) {
+				System.arraycopy(stimulus, b * BLOCK * 2, block, 0, BLOCK * 2);
+				IntBuffer in = sInBytes.asIntBuffer();
+				in.put(block);
+				long t0 = System.nanoTime();
+				n.process(sInBytes, sInBytes, BLOCK);
+				long t1 = System.nanoTime();
+				reference(block);
+				long t2 = System.nanoTime();
+				j.process(block, block, BLOCK);
+				long t3 = System.nanoTime();
+				if (run >= 0) {
+					best[0] = Math.min(best[0], t1 - t0);
+					best[1] = Math.min(best[1], t3 - t2);
+					best[2] = Math.min(best[2], t2 - t1);
+				}
+			}
+		}
+		n.release();
+		return new double[] { best[0] / (double) BLOCK, best[1] / (double) BLOCK, best[2] / (double) BLOCK };
+	}
+
+	/**
+	 * Whether native or engine is more than the allowed percentage slower
+	 * than in the baseline, relative to the reference kernel.
+	 */
+	private static boolean slowerThan(double[] now, double[] baseline, double percent) {
+		for (int i = 0; i < 2; i ++) {
+			if (now[i] / now[2] > baseline[i] * (1 + percent / 100) + TIMING_FLOOR_NS / now[2]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Map<String, double[]> loadBaseline(File file) throws IOException {
+		Map<String, double[]> baseline = new LinkedHashMap<String, double[]>();
+		if (!file.exists()) {
+			return baseline;
+		}
+		for (Map.Entry<String, String[]> entry : load(file).entrySet()) {
+			String[] values = entry.getValue();
+			baseline.put(entry.getKey().substring("throughput ".length()),
+					new double[] { Double.parseDouble(values[0]), Double.parseDouble(values[1]) });
+		}
+		return baseline;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.err.println("usage: GoldenCheck bridge.so libcyanogen-dsp.so expected.txt throughput.baseline"
+					+ " [--update] [--record] [--slower percent]");
+			System.exit(1);
+		}
+		NativeEffect.loadLibrary(args[0], args[1]);
+		File expectedFile = new File(args[2]);
+		File baselineFile = new File(args[3]);
+		boolean update = false;
+		boolean record = false;
+		double slower = DEFAULT_SLOWER_PERCENT;
+		for (int i = 4; i < args.length; i ++) {
+			if (args[i].equals("--update")) {
+				update = true;
+			} else if (args[i].equals("--record")) {
+				record = true;
+			} else if (args[i].equals("--slower") && i + 1 < args.length) {
+				slower = Double.parseDouble(args[++ i]);
+			}
+		}
+
+		Map<String, String[]> expected = load(expectedFile);
+		Map<String, String> actual = new LinkedHashMap<String, String>();
+		List<Case> cases = cases();
+
+		for (int samplingRate : SAMPLING_RATES) {
+			for (String name : STIMULI) {
+				int[] stimulus = stimulus(name, samplingRate);
+				Digest input = Digest.of(stimulus);
+				String stimulusKey = "stimulus " + name + " " + samplingRate;
+				actual.put(stimulusKey, String.format(Locale.ROOT, "%016x", input.mHash));
+				String[] storedHash = expected.get(stimulusKey);
+				if (!update) {
+					report(stimulusKey, storedHash != null && Long.parseUnsignedLong(storedHash[0], 16) == input.mHash,
+							storedHash != null ? "(generator unchanged)" : "(no expected hash; run with --update)");
+				}
+
+				for (Case c : cases) {
+					String key = "output " + c.mName + " " + name + " " + samplingRate;
+					Digest nativeDigest = Digest.of(runNative(c, samplingRate, stimulus));
+					Digest javaDigest = Digest.of(runJava(c, samplingRate, stimulus));
+					actual.put(key, nativeDigest.format());
+
+					/* The engine must be the native effect to the bit, as must
+					 * the output of silence and of a disabled effect. */
+					report(key + " java", javaDigest.mHash == nativeDigest.mHash, javaDigest.mHash == nativeDigest.mHash
+							? "(same as native)" : "(differs from native: " + javaDigest.format() + ")");
+					boolean exact = name.equals("silence");
+					if (!c.mEnabled) {
+						report(key + " bypass", nativeDigest.mHash == input.mHash,
+								nativeDigest.mHash == input.mHash ? "(input unchanged)" : "(input changed)");
+						exact = true;
+					}
+					if (!update) {
+						String[] values = expected.get(key);
+						Digest stored = values != null ? Digest.parse(values, 0) : null;
+						check(key, "native", nativeDigest, stored, exact);
+					}
+				}
+			}
+		}
+
+		for (Map.Entry<String, EqualizerBands> entry : responses().entrySet()) {
+			String key = "response " + entry.getKey();
+			double[] response = EqualizerFitter.response(entry.getValue());
+			actual.put(key, formatResponse(response));
+			String[] values = expected.get(key);
+			if (update) {
+				continue;
+			}
+			if (values == null || values.length != response.length) {
+				report(key, false, "(no expected response; run with --update)");
+				continue;
+			}
+			double worst = 0;
+			for (int i = 0; i < response.length; i ++) {
+				worst = Math.max(worst, Math.abs(response[i] - Double.parseDouble(values[i])));
+			}
+			report(key, worst <= RESPONSE_TOLERANCE, String.format(Locale.ROOT, "(%.5f dB off at most)", worst));
+		}
+
+		if (update) {
+			write(expectedFile, actual);
+			System.out.println("Wrote " + actual.size() + " expectations to " + expectedFile);
+		}
+
+		System.out.println();
+		Map<String, double[]> baseline = loadBaseline(baselineFile);
+		if (baseline.isEmpty() && !record) {
+			report("throughput baseline", false, "(none in " + baselineFile
+					+ "; record it on the base tree with make golden-baseline, or run with --record)");
+		}
+		System.out.println("Throughput on pink noise, fastest block of " + TIMING_RUNS
+				+ " runs: ns/frame, and cost relative to the reference kernel, now and in the baseline");
+		System.out.println(String.format(Locale.ROOT, "%-28s %9s %7s %8s %9s %7s %8s",
+				"", "native", "cost", "baseline", "java", "cost", "baseline"));
+		int[] pink = stimulus("pink", SAMPLING_RATES[0]);
+		Map<String, String> timings = new LinkedHashMap<String, String>();
+		for (Case c : cases) {
+			double[] before = baseline.get(c.mName);
+			double[] now = time(c, pink);
+			/* A case that seems slower is timed once more, in case the
+			 * machine was busy all through the first time. */
+			if (!record && before != null && slowerThan(now, before, slower)) {
+				now = time(c, pink);
+			}
+			double reference = now[2];
+			double[] cost = { now[0] / reference, now[1] / reference };
+			timings.put("throughput " + c.mName, String.format(Locale.ROOT, "%.3f %.3f", cost[0], cost[1]));
+			String line = String.format(Locale.ROOT, "%-28s %9.1f %7.2f %8s %9.1f %7.2f %8s", c.mName,
+					now[0], cost[0], before != null ? String.format(Locale.ROOT, "%.2f", before[0]) : "-",
+					now[1], cost[1], before != null ? String.format(Locale.ROOT, "%.2f", before[1]) : "-");
+			if (record || before == null) {
+				System.out.println(line + (record || baseline.isEmpty() ? "" : "  (not in the baseline)"));
+				continue;
+			}
+			boolean ok = !slowerThan(now, before, slower);
+			System.out.println(line + (ok ? "" : "  FAIL: more than " + slower + "% slower"));
+			if (!ok) {
+				sFailures ++;
+			}
+		}
+		if (record) {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(baselineFile), "UTF-8"));
+			try {
+				writer.println("# Throughput of GoldenCheck on this machine, relative to its reference kernel: native, java.");
+				for (Map.Entry<String, String> line : timings.entrySet()) {
+					writer.println(line.getKey() + " " + line.getValue());
+				}
+			} finally {
+				writer.close();
+			}
+			System.out.println("Recorded the throughput baseline in " + baselineFile);
+		}
+
+		System.exit(sFailures != 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,118 @@
+package com.bel.android.dspmanager.bench;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One cyanogen-dsp effect instance running on the host, created through
+ * the library's AUDIO_EFFECT_LIBRARY_INFO_SYM table. Parameters use the
+ * same little-endian layout that HeadsetService sends through
+ * AudioEffect.setParameter(byte[], byte[]).
+ */
+public class NativeEffect {
+	public static final int CHANNEL_OUT_STEREO = 0x3;
+	public static final int FORMAT_PCM_16_BIT = 0x1;
+	public static final int FORMAT_PCM_8_24_BIT = 0x4;
+	public static final int FORMAT_PCM_FLOAT = 0x5;
+
+	private long mHandle;
+
+	/**
+	 * Load the JNI bridge and the effect library.
+	 *
+	 * @param bridgePath absolute path of libdspbench-jni.so
+	 * @param libraryPath absolute path of libcyanogen-dsp.so
+	 */
+	public static void loadLibrary(String bridgePath, String libraryPath) {
+		System.load(bridgePath);
+		int ret = nativeOpen(libraryPath);
+		if (ret != 0) {
+			throw new IllegalStateException("Can't open " + libraryPath + ": " + ret);
+		}
+	}
+
+	/**
+	 * @param name substring of the effect descriptor name
+	 */
+	public NativeEffect(String name) {
+		mHandle = nativeCreate(name, 1);
+		if (mHandle == 0) {
+			throw new IllegalArgumentException("No effect matching " + name);
+		}
+	}
+
+	public void release() {
+		if (mHandle != 0) {
+			nativeRelease(mHandle);
+			mHandle = 0;
+		}
+	}
+
+	public void configure(int samplingRate, int channels, int format) {
+		check("configure", nativeConfigure(mHandle, samplingRate, channels, format));
+	}
+
+	public void setEnabled(boolean enabled) {
+		check("setEnabled", nativeSetEnabled(mHandle, enabled));
+	}
+
+	public void setParameter(int parameter, short value) {
+		setParameter(intBytes(parameter), shortBytes(value));
+	}
+
+	public void setParameter(int parameter, int argument, short value) {
+		byte[] p = new byte[8];
+		System.arraycopy(intBytes(parameter), 0, p, 0, 4);
+		System.arraycopy(intBytes(argument), 0, p, 4, 4);
+		setParameter(p, shortBytes(value));
+	}
+
+	public void setParameter(byte[] parameter, byte[] value) {
+		check("setParameter", nativeSetParameter(mHandle, parameter, value));
+	}
+
+	/**
+	 * @return number of bytes written into value
+	 */
+	public int getParameter(byte[] parameter, byte[] value) {
+		int ret = nativeGetParameter(mHandle, parameter, value);
+		check("getParameter", Math.min(ret, 0));
+		return ret;
+	}
+
+	/**
+	 * Process frames of interleaved audio. Both buffers must be direct.
+	 *
+	 * @return 0, or -ENODATA when the effect has gone idle
+	 */
+	public int process(ByteBuffer in, ByteBuffer out, int frames) {
+		return nativeProcess(mHandle, in, out, frames);
+	}
+
+	private static void check(String what, int ret) {
+		if (ret != 0) {
+			throw new IllegalStateException(what + " failed: " + ret);
+		}
+	}
+
+	static byte[] intBytes(int value) {
+		return new byte[] {
+				(byte) (value), (byte) (value >> 8),
+				(byte) (value >> 16), (byte) (value >> 24)
+		};
+	}
+
+	static byte[] shortBytes(short value) {
+		return new byte[] {
+				(byte) (value), (byte) (value >> 8)
+		};
+	}
+
+	private static native int nativeOpen(String libraryPath);
+	private static native long nativeCreate(String name, int sessionId);
+	private static native void nativeRelease(long handle);
+	private static native int nativeConfigure(long handle, int samplingRate, int channels, int format);
+	private static native int nativeSetEnabled(long handle, boolean enabled);
+	private static native int nativeSetParameter(long handle, byte[] parameter, byte[] value);
+	private static native int nativeGetParameter(long handle, byte[] parameter, byte[] value);
+	private static native int nativeProcess(long handle, ByteBuffer in, ByteBuffer out, int frames);
+}
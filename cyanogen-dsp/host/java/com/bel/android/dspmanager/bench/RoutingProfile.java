@@ -0,0 +1,133 @@
+package com.bel.android.dspmanager.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.bel.android.dspmanager.dsp.EffectChain;
+import com.bel.android.dspmanager.preference.EqualizerBands;
+
+/**
+ * The settings of one routing, as HeadsetService.updateDsp() reads them.
+ * They load from the shared preferences file of the routing as pulled off
+ * a phone, shared_prefs/com.bel.android.dspmanager.headset.xml and so on,
+ * or from a properties file of the same keys. Keys left out take the
+ * defaults of updateDsp().
+ */
+public class RoutingProfile {
+	private final Map<String, String> mValues = new HashMap<String, String>();
+
+	public static RoutingProfile load(File file) throws IOException {
+		RoutingProfile profile = new RoutingProfile();
+		InputStream stream = new FileInputStream(file);
+		try {
+			if (file.getName().endsWith(".xml")) {
+				profile.readPreferences(stream);
+			} else {
+				Properties properties = new Properties();
+				properties.load(stream);
+				for (String key : properties.stringPropertyNames()) {
+					profile.mValues.put(key, properties.getProperty(key).trim());
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		return profile;
+	}
+
+	/** The map of SharedPreferences: &lt;string name="key"&gt;value&lt;/string&gt;,
+	 * &lt;boolean name="key" value="true" /&gt; and the like. */
+	private void readPreferences(InputStream stream) throws IOException {
+		NodeList entries;
+		try {
+			entries = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(stream)
+					.getDocumentElement().getChildNodes();
+		} catch (Exception e) {
+			throw new IOException("Not a shared preferences file: " + e.getMessage(), e);
+		}
+		for (int i = 0; i < entries.getLength(); i ++) {
+			if (entries.item(i).getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			Element entry = (Element) entries.item(i);
+			String value = entry.hasAttribute("value") ? entry.getAttribute("value") : entry.getTextContent();
+			mValues.put(entry.getAttribute("name"), value.trim());
+		}
+	}
+
+	private boolean getBoolean(String key, boolean defValue) {
+		String value = mValues.get(key);
+		return value != null ? Boolean.parseBoolean(value) : defValue;
+	}
+
+	private String getString(String key, String defValue) {
+		String value = mValues.get(key);
+		return value != null ? value : defValue;
+	}
+
+	/**
+	 * Set up the chain as updateDsp() does an effect session. The
+	 * virtualizer has no impulse response to load, so its convolution
+	 * engine runs the room, as natively when the file is missing.
+	 */
+	public void apply(EffectChain chain) {
+		chain.setStageEnabled(EffectChain.STAGE_COMPRESSION, getBoolean("dsp.compression.enable", false));
+		chain.getCompression().setStrength(Short.valueOf(getString("dsp.compression.mode", "0")));
+
+		chain.setStageEnabled(EffectChain.STAGE_BASSBOOST, getBoolean("dsp.bass.enable", false));
+		chain.getBassBoost().setStrength(Short.valueOf(getString("dsp.bass.mode", "0")));
+
+		/* Equalizer state is in a single string preference with all values separated by ; */
+		EqualizerBands bands = EqualizerBands.parse(getString("dsp.tone.eq.custom", null));
+		/* Parametric bands leave the shelves flat. */
+		short[] levels = bands.isParametric() ? new short[EqualizerBands.SHELVES] : bands.toMillibels();
+		chain.setStageEnabled(EffectChain.STAGE_EQUALIZER, getBoolean("dsp.tone.enable", false));
+		for (int i = 0; i < levels.length; i ++) {
+			chain.getEqualizer().setBandLevel(i, levels[i]);
+		}
+		chain.getEqualizer().setParametric(bands.toParametric());
+		chain.getEqualizer().setLoudnessCorrection(Short.valueOf(getString("dsp.tone.loudness", "10000")));
+
+		chain.setStageEnabled(EffectChain.STAGE_VIRTUALIZER, getBoolean("dsp.headphone.enable", false));
+		chain.getVirtualizer().setStrength(Short.valueOf(getString("dsp.headphone.mode", "0")));
+		chain.getVirtualizer().setMode(Short.valueOf(getString("dsp.headphone.engine", "0")));
+
+		chain.setEnabled(true);
+	}
+
+	/** The enabled stages, for the report. */
+	public String describe() {
+		StringBuilder sb = new StringBuilder();
+		String[][] stages = {
+				{ "dsp.compression", "compression" }, { "dsp.tone", "equalizer" },
+				{ "dsp.bass", "bass boost" }, { "dsp.headphone", "virtualizer" } };
+		for (String[] stage : stages) {
+			if (getBoolean(stage[0] + ".enable", false)) {
+				sb.append(sb.length() != 0 ? ", " : "").append(stage[1]);
+			}
+		}
+		return sb.length() != 0 ? sb.toString() : "no effects";
+	}
+
+	/** Enabled settings the engine does not have, which are left out. */
+	public String describeIgnored() {
+		StringBuilder sb = new StringBuilder();
+		for (String key : new String[] { "dsp.multiband.enable", "dsp.limiter.enable", "dsp.headroom.enable" }) {
+			if (getBoolean(key, false)) {
+				sb.append(sb.length() != 0 ? ", " : "").append(key);
+			}
+		}
+		return sb.toString();
+	}
+}
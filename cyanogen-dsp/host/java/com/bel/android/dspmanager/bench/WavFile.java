@@ -0,0 +1,178 @@
+package com.bel.android.dspmanager.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory mapped RIFF/WAVE file of 16-bit PCM or 32-bit float, as
+ * WavFile.cpp reads them: the samples are used in place, through the
+ * little endian view of getData(). Files are created the same way, at
+ * their final size, for the samples to be written into the map.
+ */
+public class WavFile {
+	public static final int WAVE_FORMAT_PCM = 1;
+	public static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+	private static final int HEADER_SIZE = 44;
+
+	private final int mFormat;
+	private final int mChannels;
+	private final int mSamplingRate;
+	private final int mBitsPerSample;
+	private final int mFrames;
+	private final MappedByteBuffer mMap;
+	private final ByteBuffer mData;
+
+	private WavFile(int format, int channels, int samplingRate, int bitsPerSample, int frames,
+			MappedByteBuffer map, ByteBuffer data) {
+		mFormat = format;
+		mChannels = channels;
+		mSamplingRate = samplingRate;
+		mBitsPerSample = bitsPerSample;
+		mFrames = frames;
+		mMap = map;
+		mData = data;
+	}
+
+	private static MappedByteBuffer map(File file, String mode, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, mode);
+		try {
+			FileChannel channel = raf.getChannel();
+			if (size < 0) {
+				size = channel.size();
+			}
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to map");
+			}
+			/* The mapping stays valid after the channel is closed. */
+			MappedByteBuffer map = channel.map(mode.equals("r") ? FileChannel.MapMode.READ_ONLY
+					: FileChannel.MapMode.READ_WRITE, 0, size);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			return map;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static boolean isTag(ByteBuffer map, int position, String tag) {
+		for (int i = 0; i < 4; i ++) {
+			if (map.get(position + i) != tag.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static WavFile open(File file) throws IOException {
+		MappedByteBuffer map = map(file, "r", -1);
+		int end = map.capacity();
+		if (end < 12 || !isTag(map, 0, "RIFF") || !isTag(map, 8, "WAVE")) {
+			throw new IOException(file + " is not a RIFF/WAVE file");
+		}
+
+		int format = 0;
+		int channels = 0;
+		int samplingRate = 0;
+		int bitsPerSample = 0;
+		int data = -1;
+		int dataLength = 0;
+		for (int p = 12; p + 8 <= end; ) {
+			long chunkLength = map.getInt(p + 4) & 0xffffffffL;
+			int chunk = p + 8;
+			if (chunkLength > end - chunk) {
+				chunkLength = end - chunk;
+			}
+			if (isTag(map, p, "fmt ") && chunkLength >= 16) {
+				format = map.getShort(chunk) & 0xffff;
+				channels = map.getShort(chunk + 2) & 0xffff;
+				samplingRate = map.getInt(chunk + 4);
+				bitsPerSample = map.getShort(chunk + 14) & 0xffff;
+				if (format == WAVE_FORMAT_EXTENSIBLE && chunkLength >= 26) {
+					format = map.getShort(chunk + 24) & 0xffff;
+				}
+			} else if (isTag(map, p, "data")) {
+				data = chunk;
+				dataLength = (int) chunkLength;
+			}
+			/* Chunks are padded to even length. */
+			p = chunk + (int) chunkLength + (int) (chunkLength & 1);
+		}
+
+		boolean pcm16 = format == WAVE_FORMAT_PCM && bitsPerSample == 16;
+		boolean float32 = format == WAVE_FORMAT_IEEE_FLOAT && bitsPerSample == 32;
+		if (data < 0 || channels <= 0 || samplingRate <= 0 || !(pcm16 || float32)) {
+			throw new IOException(file + ": unsupported WAVE format " + format + "/" + bitsPerSample + " bits");
+		}
+
+		int frames = dataLength / (channels * bitsPerSample / 8);
+		map.position(data);
+		map.limit(data + frames * channels * bitsPerSample / 8);
+		ByteBuffer samples = map.slice().order(ByteOrder.LITTLE_ENDIAN);
+		return new WavFile(format, channels, samplingRate, bitsPerSample, frames, map, samples);
+	}
+
+	/**
+	 * Create, or replace, a file of the given layout, and map its samples
+	 * for writing. They start out as silence.
+	 */
+	public static WavFile create(File file, int format, int channels, int samplingRate, int frames)
+			throws IOException {
+		int bitsPerSample = format == WAVE_FORMAT_PCM ? 16 : 32;
+		int blockAlign = channels * bitsPerSample / 8;
+		long dataLength = (long) frames * blockAlign;
+		if (HEADER_SIZE + dataLength > Integer.MAX_VALUE) {
+			throw new IOException(file + " would be too large to map");
+		}
+		file.delete();
+		MappedByteBuffer map = map(file, "rw", HEADER_SIZE + dataLength);
+		map.put(new byte[] { 'R', 'I', 'F', 'F' });
+		map.putInt((int) (HEADER_SIZE - 8 + dataLength));
+		map.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+		map.putInt(16);
+		map.putShort((short) format);
+		map.putShort((short) channels);
+		map.putInt(samplingRate);
+		map.putInt(samplingRate * blockAlign);
+		map.putShort((short) blockAlign);
+		map.putShort((short) bitsPerSample);
+		map.put(new byte[] { 'd', 'a', 't', 'a' });
+		map.putInt((int) dataLength);
+		ByteBuffer samples = map.slice().order(ByteOrder.LITTLE_ENDIAN);
+		return new WavFile(format, channels, samplingRate, bitsPerSample, frames, map, samples);
+	}
+
+	public int getFormat() {
+		return mFormat;
+	}
+
+	public int getChannels() {
+		return mChannels;
+	}
+
+	public int getSamplingRate() {
+		return mSamplingRate;
+	}
+
+	public int getBitsPerSample() {
+		return mBitsPerSample;
+	}
+
+	public int getFrames() {
+		return mFrames;
+	}
+
+	/** The interleaved samples, little endian, from position 0. */
+	public ByteBuffer getData() {
+		return mData;
+	}
+
+	/** Write what was put into a created file out to the disk. */
+	public void flush() {
+		mMap.force();
+	}
+}
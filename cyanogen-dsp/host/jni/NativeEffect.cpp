@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* JNI side of com.bel.android.dspmanager.bench.NativeEffect. The effect
+ * library is loaded with dlopen() and used only through its
+ * AUDIO_EFFECT_LIBRARY_INFO_SYM table, the same entry point audioflinger
+ * uses. Audio is passed in direct ByteBuffers, so process() works on the
+ * Java-owned memory without copying. */
+
+#include <dlfcn.h>
+#include <jni.h>
+#include <string.h>
+
+#include <hardware/audio_effect.h>
+
+static audio_effect_library_t* gLibrary;
+
+static int32_t command(effect_handle_t handle, uint32_t cmdCode, uint32_t cmdSize, void* pCmdData)
+{
+    int32_t reply = 0;
+    uint32_t replySize = sizeof(reply);
+    int32_t ret = (*handle)->command(handle, cmdCode, cmdSize, pCmdData, &replySize, &reply);
+    return ret != 0 ? ret : reply;
+}
+
+static jint nativeOpen(JNIEnv* env, jclass, jstring path)
+{
+    const char* p = env->GetStringUTFChars(path, 0);
+    void* dl = dlopen(p, RTLD_NOW | RTLD_LOCAL);
+    env->ReleaseStringUTFChars(path, p);
+    if (dl == 0) {
+        return -ENOENT;
+    }
+    gLibrary = (audio_effect_library_t*) dlsym(dl, AUDIO_EFFECT_LIBRARY_INFO_SYM_AS_STR);
+    if (gLibrary == 0 || gLibrary->tag != AUDIO_EFFECT_LIBRARY_TAG) {
+        gLibrary = 0;
+        return -EINVAL;
+    }
+    return 0;
+}
+
+static jlong nativeCreate(JNIEnv* env, jclass, jstring name, jint sessionId)
+{
+    if (gLibrary == 0) {
+        return 0;
+    }
+    const char* n = env->GetStringUTFChars(name, 0);
+    uint32_t count = 0;
+    gLibrary->query_num_effects(&count);
+    effect_handle_t handle = 0;
+    for (uint32_t i = 0; i < count; i ++) {
+        effect_descriptor_t descriptor;
+        gLibrary->query_effect(i, &descriptor);
+        if (strstr(descriptor.name, n) != 0) {
+            if (gLibrary->create_effect(&descriptor.uuid, sessionId, 0, &handle) != 0) {
+                handle = 0;
+            }
+            break;
+        }
+    }
+    env->ReleaseStringUTFChars(name, n);
+    if (handle != 0) {
+        command(handle, EFFECT_CMD_INIT, 0, 0);
+    }
+    return (jlong) handle;
+}
+
+static void nativeRelease(JNIEnv*, jclass, jlong handle)
+{
+    gLibrary->release_effect((effect_handle_t) handle);
+}
+
+static jint nativeConfigure(JNIEnv*, jclass, jlong handle, jint samplingRate, jint channels, jint format)
+{
+    effect_config_t config;
+    memset(&config, 0, sizeof(config));
+    config.inputCfg.samplingRate = samplingRate;
+    config.inputCfg.channels = channels;
+    config.inputCfg.format = format;
+    config.inputCfg.accessMode = EFFECT_BUFFER_ACCESS_READ;
+    config.inputCfg.mask = EFFECT_CONFIG_ALL;
+    config.outputCfg = config.inputCfg;
+    config.outputCfg.accessMode = EFFECT_BUFFER_ACCESS_WRITE;
+    return command((effect_handle_t) handle, EFFECT_CMD_SET_CONFIG, sizeof(config), &config);
+}
+
+static jint nativeSetEnabled(JNIEnv*, jclass, jlong handle, jboolean enabled)
+{
+    return command((effect_handle_t) handle, enabled ? EFFECT_CMD_ENABLE : EFFECT_CMD_DISABLE, 0, 0);
+}
+
+static jint nativeSetParameter(JNIEnv* env, jclass, jlong handle, jbyteArray param, jbyteArray value)
+{
+    uint32_t psize = env->GetArrayLength(param);
+    uint32_t vsize = env->GetArrayLength(value);
+    uint32_t padded = (psize + 3) & ~3;
+    uint32_t size = sizeof(effect_param_t) + padded + vsize;
+    uint32_t buffer[(size + 3) / 4];
+    effect_param_t* cep = (effect_param_t*) buffer;
+    cep->status = 0;
+    cep->psize = psize;
+    cep->vsize = vsize;
+    env->GetByteArrayRegion(param, 0, psize, (jbyte*) cep->data);
+    env->GetByteArrayRegion(value, 0, vsize, (jbyte*) cep->data + padded);
+    return command((effect_handle_t) handle, EFFECT_CMD_SET_PARAM, size, cep);
+}
+
+static jint nativeGetParameter(JNIEnv* env, jclass, jlong handle, jbyteArray param, jbyteArray value)
+{
+    uint32_t psize = env->GetArrayLength(param);
+    uint32_t vsize = env->GetArrayLength(value);
+    uint32_t padded = (psize + 3) & ~3;
+    uint32_t size = sizeof(effect_param_t) + padded + vsize;
+    uint32_t buffer[(size + 3) / 4];
+    effect_param_t* cep = (effect_param_t*) buffer;
+    cep->status = 0;
+    cep->psize = psize;
+    cep->vsize = vsize;
+    env->GetByteArrayRegion(param, 0, psize, (jbyte*) cep->data);
+
+    effect_handle_t h = (effect_handle_t) handle;
+    uint32_t replySize = size;
+    int32_t ret = (*h)->command(h, EFFECT_CMD_GET_PARAM, size, cep, &replySize, cep);
+    if (ret != 0) {
+        return ret;
+    }
+    if (cep->status != 0) {
+        return cep->status;
+    }
+    if (cep->vsize < vsize) {
+        vsize = cep->vsize;
+    }
+    env->SetByteArrayRegion(value, 0, vsize, (jbyte*) cep->data + padded);
+    return vsize;
+}
+
+static jint nativeProcess(JNIEnv* env, jclass, jlong handle, jobject in, jobject out, jint frames)
+{
+    audio_buffer_t inBuffer, outBuffer;
+    inBuffer.frameCount = frames;
+    inBuffer.raw = env->GetDirectBufferAddress(in);
+    outBuffer.frameCount = frames;
+    outBuffer.raw = env->GetDirectBufferAddress(out);
+    if (inBuffer.raw == 0 || outBuffer.raw == 0) {
+        return -EINVAL;
+    }
+    effect_handle_t h = (effect_handle_t) handle;
+    return (*h)->process(h, &inBuffer, &outBuffer);
+}
+
+/* The name and signature fields are char*, but never written to. */
+static JNINativeMethod gMethods[] = {
+    { const_cast<char*>("nativeOpen"), const_cast<char*>("(Ljava/lang/String;)I"), (void*) nativeOpen },
+    { const_cast<char*>("nativeCreate"), const_cast<char*>("(Ljava/lang/String;I)J"), (void*) nativeCreate },
+    { const_cast<char*>("nativeRelease"), const_cast<char*>("(J)V"), (void*) nativeRelease },
+    { const_cast<char*>("nativeConfigure"), const_cast<char*>("(JIII)I"), (void*) nativeConfigure },
+    { const_cast<char*>("nativeSetEnabled"), const_cast<char*>("(JZ)I"), (void*) nativeSetEnabled },
+    { const_cast<char*>("nativeSetParameter"), const_cast<char*>("(J[B[B)I"), (void*) nativeSetParameter },
+    { const_cast<char*>("nativeGetParameter"), const_cast<char*>("(J[B[B)I"), (void*) nativeGetParameter },
+    { const_cast<char*>("nativeProcess"), const_cast<char*>("(JLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;I)I"), (void*) nativeProcess },
+};
+
+jint JNI_OnLoad(JavaVM* vm, void*)
+{
+    JNIEnv* env;
+    if (vm->GetEnv((void**) &env, JNI_VERSION_1_4) != JNI_OK) {
+        return -1;
+    }
+    jclass clazz = env->FindClass("com/bel/android/dspmanager/bench/NativeEffect");
+    if (clazz == 0 || env->RegisterNatives(clazz, gMethods, sizeof(gMethods) / sizeof(gMethods[0])) != 0) {
+        return -1;
+    }
+    return JNI_VERSION_1_4;
+}
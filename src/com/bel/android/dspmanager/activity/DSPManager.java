@@ -29,6 +29,7 @@ import com.bel.android.dspmanager.R;
 import com.bel.android.dspmanager.service.HeadsetService;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 /**
  * Setting utility for CyanogenMod's DSP capabilities. This page is displays the
@@ -140,6 +141,9 @@ public final class DSPManager extends FragmentActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         int choice = item.getItemId();
         switch (choice) {
+            case R.id.cost:
+                showCost();
+                return true;
             case R.id.help:
                 DialogFragment df = new DialogFragment() {
 			@Override
@@ -157,6 +161,72 @@ public final class DSPManager extends FragmentActivity {
                 return false;
         }
     }
+
+    /**
+     * Title of a routing configuration, as HeadsetService names them, or
+     * the name itself if it is unknown.
+     */
+    private String getRoutingTitle(String routing) {
+        if (routing.equals("headset")) {
+            return getString(R.string.headset_title);
+        }
+        if (routing.equals("speaker")) {
+            return getString(R.string.speaker_title);
+        }
+        if (routing.equals("bluetooth")) {
+            return getString(R.string.bluetooth_title);
+        }
+        return routing;
+    }
+
+    /**
+     * Show what the DSP costs in each audio session, as reported by the
+     * effects through HeadsetService at the time of asking, and how often
+     * the sound has clipped with each configuration.
+     */
+    private void showCost() {
+        ServiceConnection connection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder binder) {
+                HeadsetService service = ((HeadsetService.LocalBinder) binder).getService();
+                Map<Integer, HeadsetService.DspCost> costs = service.getSessionCosts();
+                Map<String, Float> clipRates = service.getClipRates();
+                unbindService(this);
+
+                final StringBuilder text = new StringBuilder();
+                for (Map.Entry<Integer, HeadsetService.DspCost> entry : costs.entrySet()) {
+                    HeadsetService.DspCost cost = entry.getValue();
+                    text.append(getString(R.string.cost_session, entry.getKey(), cost.load * 100,
+                            cost.nsPerFrame, cost.peakNsPerFrame, cost.memory / 1024));
+                }
+                if (costs.isEmpty()) {
+                    text.append(getString(R.string.cost_none)).append("\n\n");
+                }
+                for (Map.Entry<String, Float> entry : clipRates.entrySet()) {
+                    text.append(getString(R.string.cost_clipping, getRoutingTitle(entry.getKey()),
+                            entry.getValue() * 100));
+                }
+
+                DialogFragment df = new DialogFragment() {
+                    @Override
+                    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle state) {
+                        View v = inflater.inflate(R.layout.help, null);
+                        TextView tv = (TextView) v.findViewById(R.id.help);
+                        tv.setText(text.toString().trim());
+                        return v;
+                    }
+                };
+                df.setStyle(DialogFragment.STYLE_NO_TITLE, 0);
+                df.show(getFragmentManager(), "cost");
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+            }
+        };
+        Intent serviceIntent = new Intent(this, HeadsetService.class);
+        bindService(serviceIntent, connection, 0);
+    }
 }
 
 class MyAdapter extends FragmentPagerAdapter {
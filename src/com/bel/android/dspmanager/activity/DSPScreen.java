@@ -8,6 +8,8 @@ import android.os.Bundle;
 import android.preference.PreferenceFragment;
 
 import com.bel.android.dspmanager.R;
+import com.bel.android.dspmanager.preference.EqualizerBands;
+import com.bel.android.dspmanager.preference.EqualizerFitter;
 import com.bel.android.dspmanager.preference.EqualizerPreference;
 import com.bel.android.dspmanager.preference.SummariedListPreference;
 import com.bel.android.dspmanager.service.HeadsetService;
@@ -40,10 +42,51 @@ public final class DSPScreen extends PreferenceFragment {
 				}
 			}
 
+			/* A new band layout starts out flat, unless the eq already has it. */
+			if ("dsp.tone.eq.layout".equals(key)) {
+				int count = Integer.valueOf(sharedPreferences.getString(key, "6"));
+				EqualizerBands bands = EqualizerBands.parse(sharedPreferences.getString("dsp.tone.eq.custom", null));
+				if (bands.size() != count || bands.isParametric() != (count != EqualizerBands.SHELVES)) {
+					bands = count == EqualizerBands.SHELVES ? EqualizerBands.shelves() : EqualizerBands.parametric(count);
+					Editor e = sharedPreferences.edit();
+					e.putString("dsp.tone.eq.custom", bands.format());
+					e.commit();
+
+					EqualizerPreference eq = (EqualizerPreference) getPreferenceScreen().findPreference("dsp.tone.eq.custom");
+					eq.refreshFromPreference();
+				}
+			}
+
+			/* A target curve sets the bands of the current layout to follow it. */
+			if ("dsp.tone.eq.target".equals(key)) {
+				double[] target = EqualizerFitter.parseCurve(sharedPreferences.getString(key, null));
+				if (target != null) {
+					EqualizerBands bands = EqualizerBands.parse(sharedPreferences.getString("dsp.tone.eq.custom", null));
+					bands = new EqualizerFitter(bands).fit(target);
+					Editor e = sharedPreferences.edit();
+					e.putString("dsp.tone.eq.custom", bands.format());
+					e.commit();
+
+					EqualizerPreference eq = (EqualizerPreference) getPreferenceScreen().findPreference("dsp.tone.eq.custom");
+					eq.refreshFromPreference();
+				}
+			}
+
 			/* If the equalizer surface is updated, select matching pref entry or "custom". */
 			if ("dsp.tone.eq.custom".equals(key)) {
 				String newValue = sharedPreferences.getString(key, null);
 
+				/* The presets are for the shelves, and take the layout back to them. */
+				EqualizerBands bands = EqualizerBands.parse(newValue);
+				String layout = String.valueOf(bands.isParametric() ? bands.size() : EqualizerBands.SHELVES);
+				SummariedListPreference layoutPreference = (SummariedListPreference) getPreferenceScreen().findPreference("dsp.tone.eq.layout");
+				if (! layout.equals(sharedPreferences.getString("dsp.tone.eq.layout", "6"))) {
+					Editor e = sharedPreferences.edit();
+					e.putString("dsp.tone.eq.layout", layout);
+					e.commit();
+					layoutPreference.refreshFromPreference();
+				}
+
 				String desiredValue = "custom";
 				SummariedListPreference preset = (SummariedListPreference) getPreferenceScreen().findPreference("dsp.tone.eq");
 				for (CharSequence entry : preset.getEntryValues()) {
@@ -0,0 +1,115 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * Level meter of one buffer, the measurement SessionAnalysis.cpp makes.
+ * Levels are per channel, over a whole buffer:
+ *
+ * <pre>
+ *   power  mean square of the weighted signal, 16.48 fixed point
+ *   peak   largest magnitude of the unweighted signal, 8.24
+ * </pre>
+ *
+ * The weighting is a broad band-pass around 2.2 kHz, which is close to A-
+ * and C-weighting from 100 Hz to 10 kHz. Each effect has a meter of its
+ * own, except that the stages of EffectChain share one, as natively the
+ * effects of a session do: the first stage to ask measures its input, and
+ * the others are given the same measurement until one of them asks again.
+ *
+ * @author alankila
+ */
+final class Analysis {
+	/** Add to a weighted level in dB to compare it with an unweighted one. */
+	static final float WEIGHTING_DB = 10.0f;
+
+	/** Most consumers one meter tells apart */
+	private static final int MAX_CONSUMERS = 32;
+
+	/* Consumer bits handed out, and those seen in the current round */
+	private int mConsumers;
+	private int mRound;
+	private boolean mFresh;
+
+	private int mChannels;
+	private float mSamplingRate;
+	private int mFrames;
+	private final Biquad[] mWeigher = new Biquad[Effect.MAX_CHANNELS];
+	private final long[] mPower = new long[Effect.MAX_CHANNELS];
+	private final int[] mPeak = new int[Effect.MAX_CHANNELS];
+
+	Analysis() {
+		for (int i = 0; i < mWeigher.length; i ++) {
+			mWeigher[i] = new Biquad();
+		}
+	}
+
+	/** Consumer bit for a new consumer, or -1 if there are too many. */
+	int attach() {
+		for (int i = 0; i < MAX_CONSUMERS; i ++) {
+			if ((mConsumers & (1 << i)) == 0) {
+				mConsumers |= 1 << i;
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Whether the consumer must measure this buffer. A consumer that was
+	 * already seen in this round starts the next one. Measurements of
+	 * another buffer size or layout are not reused.
+	 */
+	boolean startRound(int consumer, int frames, int channels, float samplingRate) {
+		int bit = consumer >= 0 ? 1 << consumer : 0;
+		if (bit == 0 || (mRound & bit) != 0) {
+			mRound = 0;
+			mFresh = false;
+		}
+		mRound |= bit;
+		return !mFresh || frames != mFrames || channels != mChannels || samplingRate != mSamplingRate;
+	}
+
+	/**
+	 * Measure interleaved 8.24 frames.
+	 */
+	void measure(int[] samples, int frames, int channels, float samplingRate) {
+		if (channels != mChannels || samplingRate != mSamplingRate) {
+			for (int i = 0; i < channels; i ++) {
+				mWeigher[i].setBandPass(0, 2200, samplingRate, 0.33);
+				mWeigher[i].clearHistory();
+			}
+			mChannels = channels;
+			mSamplingRate = samplingRate;
+		}
+
+		for (int ch = 0; ch < channels; ch ++) {
+			Biquad weigher = mWeigher[ch];
+			long power = 0;
+			int peak = 0;
+			for (int idx = ch; idx < frames * channels; idx += channels) {
+				int sample = samples[idx];
+				/* One's complement: cannot overflow, and a LSB off is nothing. */
+				int magnitude = sample < 0 ? ~sample : sample;
+				if (magnitude > peak) {
+					peak = magnitude;
+				}
+
+				int tmp = weigher.process(sample);
+				/* 2^24 * 2^24 = 48 */
+				power += (long) tmp * tmp;
+			}
+			mPower[ch] = frames != 0 ? power / frames : 0;
+			mPeak[ch] = peak;
+		}
+		mFrames = frames;
+		mFresh = true;
+	}
+
+	/** Natively unsigned; even full scale squares to far below the sign. */
+	long getPower(int channel) {
+		return mPower[channel];
+	}
+
+	int getPeak(int channel) {
+		return mPeak[channel];
+	}
+}
@@ -0,0 +1,198 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * Biquad filter in direct form 1, in the fixed point of Biquad.cpp:
+ * samples are 8.24, coefficients are 32.32 with the feedback terms already
+ * negated, and the accumulator is 64 bits wide. The designs are the RBJ
+ * cookbook ones the native filters use, evaluated in double as there.
+ *
+ * Coefficient changes can glide to their new values over a number of
+ * frames, a linear step of each coefficient per frame.
+ *
+ * @author alankila
+ */
+final class Biquad {
+	/** Normalized coefficients in 32.32 fixed point, as process() takes them. */
+	static final class Coefficients {
+		long b0, b1, b2, a1, a2;
+
+		void set(Coefficients c) {
+			b0 = c.b0;
+			b1 = c.b1;
+			b2 = c.b2;
+			a1 = c.a1;
+			a2 = c.a2;
+		}
+	}
+
+	private int mX1, mX2;
+	private int mY1, mY2;
+	private long mB0, mB1, mB2, mA1, mA2;
+	private long mB0dif, mB1dif, mB2dif, mA1dif, mA2dif;
+	private int mInterpolationSteps;
+
+	/* Design scratch, so that redesigning allocates nothing */
+	private final Coefficients mDesign = new Coefficients();
+
+	Biquad() {
+		setCoefficients(0, 1, 0, 0, 1, 0, 0);
+	}
+
+	private static long toFixedPoint(double in) {
+		return (long) (0.5 + in * (1L << 32));
+	}
+
+	private static void toCoefficients(Coefficients c, double a0, double a1, double a2, double b0, double b1, double b2) {
+		c.a1 = -toFixedPoint(a1 / a0);
+		c.a2 = -toFixedPoint(a2 / a0);
+		c.b0 = toFixedPoint(b0 / a0);
+		c.b1 = toFixedPoint(b1 / a0);
+		c.b2 = toFixedPoint(b2 / a0);
+	}
+
+	private void setCoefficients(int steps, double a0, double a1, double a2, double b0, double b1, double b2) {
+		toCoefficients(mDesign, a0, a1, a2, b0, b1, b2);
+		setCoefficients(steps, mDesign);
+	}
+
+	/**
+	 * Set coefficients that are already in fixed point, e.g. from a table.
+	 * With steps other than 0, they are reached after that many frames.
+	 */
+	void setCoefficients(int steps, Coefficients c) {
+		if (steps == 0) {
+			mA1 = c.a1;
+			mA2 = c.a2;
+			mB0 = c.b0;
+			mB1 = c.b1;
+			mB2 = c.b2;
+			mInterpolationSteps = 0;
+		} else {
+			mA1dif = (c.a1 - mA1) / steps;
+			mA2dif = (c.a2 - mA2) / steps;
+			mB0dif = (c.b0 - mB0) / steps;
+			mB1dif = (c.b1 - mB1) / steps;
+			mB2dif = (c.b2 - mB2) / steps;
+			mInterpolationSteps = steps;
+		}
+	}
+
+	/** Forget past samples but keep the coefficients. */
+	void clearHistory() {
+		mX1 = 0;
+		mX2 = 0;
+		mY1 = 0;
+		mY2 = 0;
+	}
+
+	static void designHighShelf(Coefficients c, double centerFrequency, double samplingFrequency, double gainDb, double slope, double overallGainDb) {
+		double w0 = 2 * Math.PI * centerFrequency / samplingFrequency;
+		double A = Math.pow(10, gainDb / 40);
+		double alpha = Math.sin(w0) / 2 * Math.sqrt((A + 1 / A) * (1 / slope - 1) + 2);
+
+		double b0 = A * ((A + 1) + (A - 1) * Math.cos(w0) + 2 * Math.sqrt(A) * alpha);
+		double b1 = -2 * A * ((A - 1) + (A + 1) * Math.cos(w0));
+		double b2 = A * ((A + 1) + (A - 1) * Math.cos(w0) - 2 * Math.sqrt(A) * alpha);
+		double a0 = (A + 1) - (A - 1) * Math.cos(w0) + 2 * Math.sqrt(A) * alpha;
+		double a1 = 2 * ((A - 1) - (A + 1) * Math.cos(w0));
+		double a2 = (A + 1) - (A - 1) * Math.cos(w0) - 2 * Math.sqrt(A) * alpha;
+
+		double overallGain = Math.pow(10, overallGainDb / 20);
+		b0 *= overallGain;
+		b1 *= overallGain;
+		b2 *= overallGain;
+
+		toCoefficients(c, a0, a1, a2, b0, b1, b2);
+	}
+
+	static void designPeaking(Coefficients c, double centerFrequency, double samplingFrequency, double gainDb, double resonance) {
+		double w0 = 2 * Math.PI * centerFrequency / samplingFrequency;
+		double A = Math.pow(10, gainDb / 40);
+		double alpha = Math.sin(w0) / (2 * resonance);
+
+		toCoefficients(c, 1 + alpha / A, -2 * Math.cos(w0), 1 - alpha / A,
+				1 + alpha * A, -2 * Math.cos(w0), 1 - alpha * A);
+	}
+
+	void setHighShelf(int steps, double centerFrequency, double samplingFrequency, double gainDb, double slope, double overallGainDb) {
+		designHighShelf(mDesign, centerFrequency, samplingFrequency, gainDb, slope, overallGainDb);
+		setCoefficients(steps, mDesign);
+	}
+
+	void setBandPass(int steps, double centerFrequency, double samplingFrequency, double resonance) {
+		double w0 = 2 * Math.PI * centerFrequency / samplingFrequency;
+		double alpha = Math.sin(w0) / (2 * resonance);
+		setCoefficients(steps, 1 + alpha, -2 * Math.cos(w0), 1 - alpha,
+				Math.sin(w0) / 2, 0, -Math.sin(w0) / 2);
+	}
+
+	void setLowPass(int steps, double centerFrequency, double samplingFrequency, double resonance) {
+		double w0 = 2 * Math.PI * centerFrequency / samplingFrequency;
+		double alpha = Math.sin(w0) / (2 * resonance);
+		setCoefficients(steps, 1 + alpha, -2 * Math.cos(w0), 1 - alpha,
+				(1 - Math.cos(w0)) / 2, 1 - Math.cos(w0), (1 - Math.cos(w0)) / 2);
+	}
+
+	void setHighPass(int steps, double centerFrequency, double samplingFrequency, double resonance) {
+		double w0 = 2 * Math.PI * centerFrequency / samplingFrequency;
+		double alpha = Math.sin(w0) / (2 * resonance);
+		setCoefficients(steps, 1 + alpha, -2 * Math.cos(w0), 1 - alpha,
+				(1 + Math.cos(w0)) / 2, -(1 + Math.cos(w0)), (1 + Math.cos(w0)) / 2);
+	}
+
+	void setAllPass(int steps, double centerFrequency, double samplingFrequency, double resonance) {
+		double w0 = 2 * Math.PI * centerFrequency / samplingFrequency;
+		double alpha = Math.sin(w0) / (2 * resonance);
+		setCoefficients(steps, 1 + alpha, -2 * Math.cos(w0), 1 - alpha,
+				1 - alpha, -2 * Math.cos(w0), 1 + alpha);
+	}
+
+	int process(int x0) {
+		int y0 = (int) ((mB0 * x0 + mB1 * mX1 + mB2 * mX2 + mA1 * mY1 + mA2 * mY2) >> 32);
+
+		mY2 = mY1;
+		mY1 = y0;
+		mX2 = mX1;
+		mX1 = x0;
+
+		/* Interpolate biquad parameters */
+		if (mInterpolationSteps != 0) {
+			mInterpolationSteps --;
+			mB0 += mB0dif;
+			mB1 += mB1dif;
+			mB2 += mB2dif;
+			mA1 += mA1dif;
+			mA2 += mA2dif;
+		}
+
+		return y0;
+	}
+
+	/**
+	 * Filter a block in place, with the state in locals.
+	 */
+	void process(int[] data, int offset, int frames) {
+		if (mInterpolationSteps != 0) {
+			for (int i = offset; i < offset + frames; i ++) {
+				data[i] = process(data[i]);
+			}
+			return;
+		}
+
+		final long b0 = mB0, b1 = mB1, b2 = mB2, a1 = mA1, a2 = mA2;
+		int x1 = mX1, x2 = mX2, y1 = mY1, y2 = mY2;
+		for (int i = offset; i < offset + frames; i ++) {
+			int x0 = data[i];
+			int y0 = (int) ((b0 * x0 + b1 * x1 + b2 * x2 + a1 * y1 + a2 * y2) >> 32);
+			x2 = x1;
+			x1 = x0;
+			y2 = y1;
+			y1 = y0;
+			data[i] = y0;
+		}
+		mX1 = x1;
+		mX2 = x2;
+		mY1 = y1;
+		mY2 = y2;
+	}
+}
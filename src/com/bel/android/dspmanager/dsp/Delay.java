@@ -0,0 +1,84 @@
+package com.bel.android.dspmanager.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Delay line of 8.24 samples, as in Delay.cpp. The ring buffer is sized
+ * for the longest time at the highest sampling rate up front and rounded
+ * up to a power of two, so that reconfiguring never allocates and the
+ * index wraps with a mask. The write position is mIndex; the sample
+ * written mLength frames ago is at mIndex - mLength.
+ *
+ * @author alankila
+ */
+final class Delay {
+	/** Highest sampling rate the storage is sized for */
+	static final int MAX_SAMPLING_RATE = 192000;
+
+	private final int[] mState;
+	private final int mMask;
+	private int mIndex;
+	private int mLength;
+
+	Delay(float maxTime) {
+		int capacity = 1;
+		while (capacity < (int) (maxTime * MAX_SAMPLING_RATE + 0.5f)) {
+			capacity <<= 1;
+		}
+		mMask = capacity - 1;
+		mState = new int[capacity];
+	}
+
+	void setParameters(float samplingFrequency, float time) {
+		mLength = (int) (time * samplingFrequency + 0.5f);
+		if (mLength > mMask + 1) {
+			mLength = mMask + 1;
+		}
+		Arrays.fill(mState, 0);
+		mIndex = 0;
+	}
+
+	int getLength() {
+		return mLength;
+	}
+
+	int process(int x0) {
+		int y0 = mState[(mIndex - mLength) & mMask];
+		mState[mIndex] = x0;
+		mIndex = (mIndex + 1) & mMask;
+		return y0;
+	}
+
+	/**
+	 * Copy out the next frames of delayed signal. This does not advance the
+	 * line; write() must follow with the same number of frames, which may
+	 * not exceed the delay length.
+	 */
+	void read(int[] out, int frames) {
+		int start = (mIndex - mLength) & mMask;
+		int first = mMask + 1 - start;
+		if (first >= frames) {
+			System.arraycopy(mState, start, out, 0, frames);
+		} else {
+			System.arraycopy(mState, start, out, 0, first);
+			System.arraycopy(mState, 0, out, first, frames - first);
+		}
+	}
+
+	/** Append frames to the line and advance it. */
+	void write(int[] in, int frames) {
+		int first = mMask + 1 - mIndex;
+		if (first >= frames) {
+			System.arraycopy(in, 0, mState, mIndex, frames);
+		} else {
+			System.arraycopy(in, 0, mState, mIndex, first);
+			System.arraycopy(in, first, mState, 0, frames - first);
+		}
+		mIndex = (mIndex + frames) & mMask;
+	}
+
+	/** Fill the line with silence. */
+	void clear() {
+		Arrays.fill(mState, 0);
+	}
+}
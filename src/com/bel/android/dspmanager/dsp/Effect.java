@@ -0,0 +1,309 @@
+package com.bel.android.dspmanager.dsp;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Base of the effects of the Java engine, which computes what the effects
+ * of cyanogen-dsp do, to the same fixed point: samples are 8.24, with
+ * 16-bit full scale at 1 &lt;&lt; 23, and every filter, gain and level
+ * detector runs in the integer and float arithmetic of its native
+ * counterpart. Given the same input and settings, the output is the same
+ * to the LSB in 8.24 and float; in 16 bits it differs only by the dither.
+ *
+ * Audio is interleaved, in blocks of any number of frames, as int[] 8.24,
+ * float[] or ShortBuffer. Processing allocates nothing, except that the
+ * float and 16-bit forms grow their conversion buffers when a block
+ * larger than any before it comes.
+ *
+ * Settings take effect at the start of the next block, as natively at the
+ * next buffer. An effect is not thread safe: configure it and change its
+ * settings between blocks, on the thread that processes.
+ *
+ * The metering and automatic headroom the native library adds around
+ * every effect are not part of the engine.
+ *
+ * @author alankila
+ */
+public abstract class Effect {
+	/** Widest layout accepted, 7.1 */
+	public static final int MAX_CHANNELS = 8;
+
+	/* Channel mask bits, as in system/audio.h */
+	public static final int CHANNEL_OUT_FRONT_LEFT = 0x1;
+	public static final int CHANNEL_OUT_FRONT_RIGHT = 0x2;
+	public static final int CHANNEL_OUT_FRONT_CENTER = 0x4;
+	public static final int CHANNEL_OUT_LOW_FREQUENCY = 0x8;
+	public static final int CHANNEL_OUT_BACK_LEFT = 0x10;
+	public static final int CHANNEL_OUT_BACK_RIGHT = 0x20;
+	public static final int CHANNEL_OUT_FRONT_LEFT_OF_CENTER = 0x40;
+	public static final int CHANNEL_OUT_FRONT_RIGHT_OF_CENTER = 0x80;
+	public static final int CHANNEL_OUT_BACK_CENTER = 0x100;
+	public static final int CHANNEL_OUT_SIDE_LEFT = 0x200;
+	public static final int CHANNEL_OUT_SIDE_RIGHT = 0x400;
+	public static final int CHANNEL_OUT_MONO = CHANNEL_OUT_FRONT_LEFT;
+	public static final int CHANNEL_OUT_STEREO = CHANNEL_OUT_FRONT_LEFT | CHANNEL_OUT_FRONT_RIGHT;
+
+	protected boolean mEnable;
+	protected float mSamplingRate = 44100;
+	/* Interleaved channel count and layout of the input and the output.
+	 * They are the same except for an effect that downmixes. */
+	protected int mChannels = 2;
+	protected int mChannelMask = CHANNEL_OUT_STEREO;
+	protected int mOutChannels = 2;
+	protected int mOutChannelMask = CHANNEL_OUT_STEREO;
+
+	/* Frames of digital silence at the input, counted up to the tail. */
+	private int mSilentFrames;
+	/* The history has been cleared, and no sound has come in since. */
+	private boolean mIdle;
+
+	/* Level meter, of this effect or shared with the other stages of a chain */
+	private Analysis mAnalysis = new Analysis();
+	private int mAnalysisConsumer = mAnalysis.attach();
+
+	/* Dither, from the generator of the native library */
+	private int mSeed;
+	private int mPreviousRandom;
+
+	/* 8.24 blocks for the float and 16-bit forms */
+	private int[] mIn = new int[0];
+	private int[] mOut = new int[0];
+
+	/**
+	 * Set up for a sampling rate and a channel layout, the same for input
+	 * and output.
+	 *
+	 * @param channelMask CHANNEL_OUT_* bits
+	 */
+	public void configure(int samplingRate, int channelMask) {
+		configure(samplingRate, channelMask, channelMask);
+	}
+
+	/**
+	 * Set up for a sampling rate and the channel layouts of input and
+	 * output. They must be the same, except that an effect that downmixes
+	 * takes any input layout to stereo.
+	 *
+	 * @throws IllegalArgumentException for a layout the effect can't take
+	 */
+	public void configure(int samplingRate, int inChannelMask, int outChannelMask) {
+		int inChannels = Integer.bitCount(inChannelMask);
+		if (samplingRate <= 0) {
+			throw new IllegalArgumentException("Invalid sampling rate: " + samplingRate);
+		}
+		if (inChannels < 1 || inChannels > MAX_CHANNELS) {
+			throw new IllegalArgumentException("Invalid input channel setup: 0x" + Integer.toHexString(inChannelMask));
+		}
+		if (outChannelMask != inChannelMask
+				&& !(allowsDownmix() && outChannelMask == CHANNEL_OUT_STEREO)) {
+			throw new IllegalArgumentException("Invalid output channel setup: 0x" + Integer.toHexString(outChannelMask));
+		}
+		mSamplingRate = samplingRate;
+		mChannels = inChannels;
+		mChannelMask = inChannelMask;
+		mOutChannels = Integer.bitCount(outChannelMask);
+		mOutChannelMask = outChannelMask;
+		onConfigure();
+	}
+
+	public void setEnabled(boolean enabled) {
+		mEnable = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnable;
+	}
+
+	public int getChannels() {
+		return mChannels;
+	}
+
+	public int getOutChannels() {
+		return mOutChannels;
+	}
+
+	/**
+	 * Process frames of interleaved 8.24 audio. The output may be the
+	 * input array, unless the output has more channels than the input.
+	 *
+	 * @return true, or false when the effect has nothing to do: it is
+	 *         disabled and has faded out, and copied its input
+	 */
+	public final boolean process(int[] in, int[] out, int frames) {
+		return processFixedPoint(in, out, frames);
+	}
+
+	/**
+	 * Process frames of interleaved float audio, nominally -1 .. 1. The
+	 * output is not clamped, as natively; the output may be the input array.
+	 */
+	public final boolean process(float[] in, float[] out, int frames) {
+		int[] fixed = reserve(frames);
+		int samples = frames * mChannels;
+		for (int i = 0; i < samples; i ++) {
+			fixed[i] = fromFloat(in[i]);
+		}
+		boolean active = processFixedPoint(fixed, mOut, frames);
+		int outSamples = frames * mOutChannels;
+		for (int i = 0; i < outSamples; i ++) {
+			out[i] = mOut[i] * (1.f / (1 << 23));
+		}
+		return active;
+	}
+
+	/**
+	 * Process frames of interleaved 16-bit audio from the positions of the
+	 * buffers, and advance them. The output is dithered and clamped, as
+	 * natively. The buffers may share their storage.
+	 */
+	public final boolean process(ShortBuffer in, ShortBuffer out, int frames) {
+		int[] fixed = reserve(frames);
+		int samples = frames * mChannels;
+		for (int i = 0; i < samples; i ++) {
+			fixed[i] = in.get() << 8;
+		}
+		boolean active = processFixedPoint(fixed, mOut, frames);
+		int outSamples = frames * mOutChannels;
+		for (int i = 0; i < outSamples; i ++) {
+			int sample = (mOut[i] + triangularDither8()) >> 8;
+			if (sample > 32767) {
+				sample = 32767;
+			}
+			if (sample < -32768) {
+				sample = -32768;
+			}
+			out.put((short) sample);
+		}
+		return active;
+	}
+
+	private int[] reserve(int frames) {
+		int samples = frames * Math.max(mChannels, mOutChannels);
+		if (mIn.length < samples) {
+			mIn = new int[samples];
+			mOut = new int[samples];
+		}
+		return mIn;
+	}
+
+	/**
+	 * Float to 8.24, with headroom up to +-256 before clamping.
+	 */
+	static int fromFloat(float value) {
+		value *= 1 << 23;
+		if (value > 2147483520.f) {
+			return 0x7fffff80;
+		}
+		if (value < -2147483648.f) {
+			return -0x7fffffff - 1;
+		}
+		return (int) value;
+	}
+
+	/* High-passed triangular probability density function.
+	 * Output varies from -0xff to 0xff. */
+	private int triangularDither8() {
+		mSeed = mSeed * 1664525 + 1013904223;
+		int newRandom = (mSeed >>> 22) & 0xff;
+		int rnd = mPreviousRandom - newRandom;
+		mPreviousRandom = newRandom;
+		return rnd;
+	}
+
+	/**
+	 * The effect proper: interleaved 8.24 frames of mChannels channels in,
+	 * of mOutChannels out.
+	 *
+	 * @return false when the effect has nothing to do
+	 */
+	protected abstract boolean processFixedPoint(int[] in, int[] out, int frames);
+
+	/** Measure with the meter of the chain, as the first stage of a chain does. */
+	void setAnalysis(Analysis analysis) {
+		mAnalysis = analysis;
+		mAnalysisConsumer = analysis.attach();
+	}
+
+	/**
+	 * Levels of the input, measured unless another stage of the chain
+	 * already measured this block.
+	 */
+	final Analysis analyze(int[] in, int frames) {
+		if (mAnalysis.startRound(mAnalysisConsumer, frames, mChannels, mSamplingRate)) {
+			mAnalysis.measure(in, frames, mChannels, mSamplingRate);
+		}
+		return mAnalysis;
+	}
+
+	/** The configuration has changed. */
+	protected void onConfigure() {
+	}
+
+	/** Whether any input layout may go to stereo output. */
+	protected boolean allowsDownmix() {
+		return false;
+	}
+
+	/**
+	 * Forget the signal history, so that processing resumes as if after
+	 * endless silence. Called on the way into idle.
+	 */
+	protected void clearHistory() {
+	}
+
+	/* Fast paths for an effect that has nothing to do, as natively. An
+	 * effect that is disabled and fully faded out calls bypass(), which
+	 * copies the input as it is. Otherwise it asks isIdle() whether the
+	 * input has been digital silence for longer than tailFrames, the time
+	 * its own output takes to die away; if so, it calls silence() instead
+	 * of processing. Both clear the history once. */
+
+	protected boolean isIdle(int[] in, int frames, int tailFrames) {
+		int samples = frames * mChannels;
+		for (int i = 0; i < samples; i ++) {
+			if (in[i] != 0) {
+				mSilentFrames = 0;
+				mIdle = false;
+				return false;
+			}
+		}
+		if (mIdle) {
+			return true;
+		}
+		/* The tail of the last sound still plays out in this block. */
+		if (mSilentFrames < tailFrames) {
+			mSilentFrames += frames;
+			return false;
+		}
+		clearHistory();
+		mIdle = true;
+		return true;
+	}
+
+	/** Input and output must have the same channels. */
+	protected void bypass(int[] in, int[] out, int frames) {
+		if (!mIdle) {
+			clearHistory();
+			mIdle = true;
+		}
+		mSilentFrames = 0;
+		if (in != out) {
+			System.arraycopy(in, 0, out, 0, frames * mChannels);
+		}
+	}
+
+	/** The input is known to be silent. */
+	protected void silence(int[] in, int[] out, int frames) {
+		if (in == out && mChannels == mOutChannels) {
+			return;
+		}
+		for (int i = 0; i < frames * mOutChannels; i ++) {
+			out[i] = 0;
+		}
+	}
+
+	/** The history is clear and no sound has come in since. */
+	public boolean isResting() {
+		return mIdle;
+	}
+}
@@ -0,0 +1,176 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * The LVM bass enhancement of EffectBassBoost.cpp: a mono mix, band-passed
+ * around 55 Hz and held back where it would take any channel past -0.5
+ * dBFS, added to the dry signal.
+ *
+ * <pre>
+ * in -&gt; [ mono mix ] -&gt; [ HPF ] -&gt; [ BPF ] -&gt; [ compressor ] -+-&gt; out
+ *  `------------------------------------------------------&gt;---'
+ * </pre>
+ *
+ * @author alankila
+ */
+public final class EffectBassBoost extends Effect {
+	/* Seconds for the boost at its highest Q to ring down below the LSB */
+	private static final float TAIL_TIME = 0.5f;
+	/* Frames per pass through the stages of the boost */
+	private static final int BLOCK = 64;
+	/* Corner of the high-pass that keeps subsonic content out of the boost */
+	private static final float HIGHPASS_FREQUENCY = 25.0f;
+	/* Dry plus boost stays under this, 8.24: -0.5 dBFS */
+	private static final int CEILING = (int) (0.944f * (1 << 23));
+	/* Time constant for the boost to come back after it was held back */
+	private static final float RELEASE_TIME = 0.1f;
+
+	/* Settings, and whether the filters are yet to follow them */
+	private short mStrength;
+	private boolean mStrengthChanged;
+
+	private final Biquad mHighPass = new Biquad();
+	private final Biquad mBoost = new Biquad();
+	/* 4.28 scale from the sum of all channels to the level of a stereo mix */
+	private int mMixScale = 1 << 28;
+
+	/* 8.24 gain of the boost as the compressor left it, and the share of
+	 * the way back to unity it recovers per block */
+	private int mBoostGain = 1 << 24;
+	private int mRelease;
+
+	/* One block: the input, the boost, and the largest input magnitude
+	 * of each frame */
+	private final int[] mDry = new int[BLOCK * MAX_CHANNELS];
+	private final int[] mBoostData = new int[BLOCK];
+	private final int[] mPeak = new int[BLOCK];
+
+	public EffectBassBoost() {
+		configure(44100, CHANNEL_OUT_STEREO);
+	}
+
+	/**
+	 * @param strength 0 .. 1000, for a Q of 0.5 .. 2
+	 */
+	public void setStrength(short strength) {
+		mStrength = strength;
+		mStrengthChanged = true;
+	}
+
+	@Override
+	protected void onConfigure() {
+		/* Stereo sums as before; other layouts are scaled to the same level. */
+		mMixScale = (2 << 28) / mChannels;
+		refreshStrength();
+		refreshRelease();
+	}
+
+	private void refreshStrength() {
+		mHighPass.setHighPass(0, HIGHPASS_FREQUENCY, mSamplingRate, 0.707f);
+		/* Q = 0.5 .. 2.0 */
+		mBoost.setLowPass(0, 55.0f, mSamplingRate, 0.5f + mStrength / 666.0f);
+		mStrengthChanged = false;
+	}
+
+	private void refreshRelease() {
+		mRelease = (int) ((1.0f - (float) Math.exp(-BLOCK / (RELEASE_TIME * mSamplingRate))) * (1 << 24));
+	}
+
+	@Override
+	protected void clearHistory() {
+		mHighPass.clearHistory();
+		mBoost.clearHistory();
+		mBoostGain = 1 << 24;
+	}
+
+	/* The compressor of the boost. The gain comes down at once, before the
+	 * frame that needs it, and comes back up slowly, ramping across the
+	 * block. Returns the 8.24 gain step per frame. */
+	private int limitBoost(int frames) {
+		/* The frame that allows the least gain, room / boost, found by cross
+		 * multiplying so that only it is divided. */
+		int worstRoom = 1;
+		int worstBoost = 0;
+		for (int i = 0; i < frames; i ++) {
+			int room = CEILING - mPeak[i];
+			int boost = mBoostData[i] < 0 ? -mBoostData[i] : mBoostData[i];
+			if (boost > room && (long) room * worstBoost < (long) worstRoom * boost) {
+				worstRoom = room;
+				worstBoost = boost;
+			}
+		}
+
+		int allowed = 1 << 24;
+		if (worstBoost != 0) {
+			allowed = worstRoom > 0 ? (int) (((long) worstRoom << 24) / worstBoost) : 0;
+		}
+
+		if (allowed <= mBoostGain) {
+			mBoostGain = allowed;
+			return 0;
+		}
+		int target = mBoostGain + (int) (((long) ((1 << 24) - mBoostGain) * mRelease) >> 24);
+		if (target > allowed) {
+			target = allowed;
+		}
+		return (target - mBoostGain) / frames;
+	}
+
+	@Override
+	protected boolean processFixedPoint(int[] in, int[] out, int frameCount) {
+		if (mStrengthChanged) {
+			refreshStrength();
+		}
+
+		/* There is no fade: the boost stops at once. */
+		if (!mEnable) {
+			bypass(in, out, frameCount);
+			return false;
+		}
+
+		if (isIdle(in, frameCount, (int) (mSamplingRate * TAIL_TIME))) {
+			silence(in, out, frameCount);
+			return true;
+		}
+
+		for (int offset = 0; offset < frameCount; offset += BLOCK) {
+			int frames = Math.min(frameCount - offset, BLOCK);
+
+			int dry = 0;
+			for (int i = 0; i < frames; i ++) {
+				int mix = 0;
+				int peak = 0;
+				for (int ch = 0; ch < mChannels; ch ++) {
+					int sample = in[(offset + i) * mChannels + ch];
+					mDry[dry ++] = sample;
+					mix += sample;
+					/* One's complement, as for the analysis: cannot overflow. */
+					int magnitude = sample < 0 ? ~sample : sample;
+					if (magnitude > peak) {
+						peak = magnitude;
+					}
+				}
+				mPeak[i] = peak;
+				mBoostData[i] = (int) (((long) mix * mMixScale + (1 << 27)) >> 28);
+			}
+
+			for (int i = 0; i < frames; i ++) {
+				mBoostData[i] = mBoost.process(mHighPass.process(mBoostData[i]));
+			}
+
+			int step = limitBoost(frames);
+
+			int gain = mBoostGain;
+			dry = 0;
+			for (int i = 0; i < frames; i ++) {
+				int boost = (int) (((long) mBoostData[i] * gain) >> 24);
+				gain += step;
+				for (int ch = 0; ch < mChannels; ch ++) {
+					out[(offset + i) * mChannels + ch] = mDry[dry ++] + boost;
+				}
+			}
+			mBoostGain = gain;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,118 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * The compressor, equalizer, bass boost and virtualizer run one after the
+ * other, in place in one working block, as EffectChain.cpp runs its
+ * stages. Only the conversions of the public process() forms surround the
+ * chain, so 16-bit output is dithered once, at the end.
+ *
+ * A stage that is disabled keeps running until it reports that it has
+ * faded out. The multiband compressor and the limiter of the native chain
+ * are not part of the engine.
+ *
+ * @author alankila
+ */
+public final class EffectChain extends Effect {
+	public static final int STAGE_COMPRESSION = 0;
+	public static final int STAGE_EQUALIZER = 1;
+	public static final int STAGE_BASSBOOST = 2;
+	public static final int STAGE_VIRTUALIZER = 3;
+	public static final int STAGES = 4;
+
+	/* Frames the stages process at a time */
+	private static final int BLOCK = 1024;
+
+	private final EffectCompression mCompression = new EffectCompression();
+	private final EffectEqualizer mEqualizer = new EffectEqualizer();
+	private final EffectBassBoost mBassBoost = new EffectBassBoost();
+	private final EffectVirtualizer mVirtualizer = new EffectVirtualizer();
+	private final Effect[] mStages = { mCompression, mEqualizer, mBassBoost, mVirtualizer };
+
+	/* Stage is enabled, or still fading out after being disabled. */
+	private final boolean[] mStageActive = new boolean[STAGES];
+
+	private final int[] mWork = new int[BLOCK * MAX_CHANNELS];
+
+	public EffectChain() {
+		/* The stages share a meter, as the effects of a session do natively. */
+		Analysis analysis = new Analysis();
+		for (Effect stage : mStages) {
+			stage.setAnalysis(analysis);
+		}
+		configure(44100, CHANNEL_OUT_STEREO);
+	}
+
+	public EffectCompression getCompression() {
+		return mCompression;
+	}
+
+	public EffectEqualizer getEqualizer() {
+		return mEqualizer;
+	}
+
+	public EffectBassBoost getBassBoost() {
+		return mBassBoost;
+	}
+
+	public EffectVirtualizer getVirtualizer() {
+		return mVirtualizer;
+	}
+
+	/**
+	 * @param stage one of the STAGE_* constants
+	 */
+	public void setStageEnabled(int stage, boolean enabled) {
+		mStages[stage].setEnabled(enabled);
+		/* A disabled stage stays active until it reports that it has faded out. */
+		if (enabled) {
+			mStageActive[stage] = true;
+		}
+	}
+
+	@Override
+	protected void onConfigure() {
+		/* Every stage runs on the working block, in the layout of the chain. */
+		for (Effect stage : mStages) {
+			stage.configure((int) mSamplingRate, mChannelMask);
+		}
+	}
+
+	@Override
+	protected boolean processFixedPoint(int[] in, int[] out, int frameCount) {
+		/* With no stage running there is nothing to do. The stages detect
+		 * silence themselves, and once all of them are at rest silence need
+		 * not go through them. */
+		boolean active = false;
+		boolean resting = true;
+		for (int i = 0; i < STAGES; i ++) {
+			if (mStageActive[i]) {
+				active = true;
+				resting &= mStages[i].isResting();
+			}
+		}
+		if (!mEnable || !active) {
+			bypass(in, out, frameCount);
+			return mEnable;
+		}
+		if (resting && isIdle(in, frameCount, 0)) {
+			silence(in, out, frameCount);
+			return true;
+		}
+
+		for (int offset = 0; offset < frameCount; offset += BLOCK) {
+			int frames = Math.min(frameCount - offset, BLOCK);
+			int samples = frames * mChannels;
+			System.arraycopy(in, offset * mChannels, mWork, 0, samples);
+
+			for (int i = 0; i < STAGES; i ++) {
+				if (mStageActive[i] && !mStages[i].process(mWork, mWork, frames) && !mStages[i].isEnabled()) {
+					mStageActive[i] = false;
+				}
+			}
+
+			System.arraycopy(mWork, 0, out, offset * mChannels, samples);
+		}
+
+		return true;
+	}
+}
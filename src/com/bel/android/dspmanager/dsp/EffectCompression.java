@@ -0,0 +1,135 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * Dynamic range compression towards 83 dB SPL, as EffectCompression.cpp:
+ * the weighted power of the loudest channel sets the gain once per block,
+ * which the channels approach in a piecewise linear ramp, slowly when it
+ * rises.
+ *
+ * @author alankila
+ */
+public final class EffectCompression extends Effect {
+	/* Settings */
+	private float mCompressionRatio = 2.0f;
+	private final int[] mUserLevel = new int[MAX_CHANNELS];
+
+	/* mEnable as of the previous block */
+	private boolean mWasEnabled;
+	private int mFade;
+	private final int[] mCurrentLevel = new int[MAX_CHANNELS];
+
+	public EffectCompression() {
+		for (int i = 0; i < MAX_CHANNELS; i ++) {
+			mUserLevel[i] = 1 << 24;
+		}
+		configure(44100, CHANNEL_OUT_STEREO);
+	}
+
+	/**
+	 * @param strength 0 .. 1000, for a ratio of 1 .. 11
+	 */
+	public void setStrength(short strength) {
+		mCompressionRatio = 1.f + strength / 100.f;
+	}
+
+	/**
+	 * Volume the compressor applies instead of the mixer, as natively when
+	 * the effect controls the volume. Channels past those given get the
+	 * average of them.
+	 *
+	 * @param levels 8.24 gain of each channel
+	 */
+	public void setVolume(int... levels) {
+		long sum = 0;
+		for (int level : levels) {
+			sum += level;
+		}
+		for (int i = 0; i < MAX_CHANNELS; i ++) {
+			mUserLevel[i] = i < levels.length ? levels[i] : (int) (sum / levels.length);
+		}
+	}
+
+	@Override
+	protected boolean processFixedPoint(int[] in, int[] out, int frameCount) {
+		/* Fade in from silence each time the effect is enabled. */
+		if (mEnable && !mWasEnabled) {
+			for (int i = 0; i < MAX_CHANNELS; i ++) {
+				mCurrentLevel[i] = 0;
+			}
+		}
+		mWasEnabled = mEnable;
+
+		if (!mEnable && mFade == 0) {
+			bypass(in, out, frameCount);
+			return false;
+		}
+
+		/* Silence stays silent at any gain. The gain is held, and the fade
+		 * has nothing to smooth. */
+		if (isIdle(in, frameCount, 0)) {
+			mFade = mEnable ? 100 : 0;
+			silence(in, out, frameCount);
+			return mEnable;
+		}
+
+		/* Analyze all channels separately, pick the maximum power measured. */
+		Analysis analysis = analyze(in, frameCount);
+		long maximumPowerSquared = 0;
+		for (int i = 0; i < mChannels; i ++) {
+			maximumPowerSquared = Math.max(maximumPowerSquared, analysis.getPower(i));
+		}
+
+		/* -100 .. 0 dB. */
+		float signalPowerDb = FastMath.fastPowerToDb(maximumPowerSquared / (float) (1L << 48) + 1e-10f);
+
+		/* Target 83 dB SPL */
+		signalPowerDb += 96.0f - 83.0f + Analysis.WEIGHTING_DB;
+
+		/* The level to boost to, and the correction that takes it there */
+		float desiredLevelDb = signalPowerDb / mCompressionRatio;
+		float correctionDb = desiredLevelDb - signalPowerDb;
+
+		if (mEnable && mFade != 100) {
+			mFade += 1;
+		}
+		if (!mEnable && mFade != 0) {
+			mFade -= 1;
+		}
+
+		correctionDb *= mFade / 100.f;
+
+		/* Reduce extreme boost by a smooth ramp.
+		 * New range -50 .. 0 dB */
+		correctionDb -= (correctionDb / 100) * (correctionDb / 100) * (100.0f / 2.0f);
+
+		/* 40.24 */
+		long correctionFactor = (long) ((1 << 24) * FastMath.fastDbToGain(correctionDb));
+
+		for (int i = 0; i < mChannels; i ++) {
+			/* 8.24 */
+			int desiredLevel = (int) (mUserLevel[i] * correctionFactor >> 24);
+			int volAdj = desiredLevel - mCurrentLevel[i];
+
+			/* Adjust in about 0.025 seconds, or by the end of a longer block.
+			 * The rate decreases from block to block, which makes a piecewise
+			 * linear approximation of an exponential. */
+			int adjLen = (int) (mSamplingRate / 40);
+			volAdj /= Math.max(adjLen, frameCount);
+
+			/* Rise only very slowly, against pumping. */
+			if (volAdj > 0) {
+				volAdj >>= 4;
+			}
+
+			int level = mCurrentLevel[i];
+			for (int j = 0; j < frameCount; j ++) {
+				int idx = j * mChannels + i;
+				out[idx] = (int) ((long) in[idx] * level >> 24);
+				level += volAdj;
+			}
+			mCurrentLevel[i] = level;
+		}
+
+		return mEnable || mFade != 0;
+	}
+}
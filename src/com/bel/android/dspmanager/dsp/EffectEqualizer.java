@@ -0,0 +1,398 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * Six band shelving equalizer with loudness compensation, or, given a set
+ * of parametric bands, loudness compensation followed by a peaking filter
+ * per band: EffectEqualizer.cpp on the engine. The filter gains are
+ * quantized to 1/20 dB and redesigned 100 times a second, gliding to each
+ * new design; each filter runs over a block of a channel at a time.
+ *
+ * @author alankila
+ */
+public final class EffectEqualizer extends Effect {
+	public static final int SHELVES = 6;
+	public static final int MAX_PARAMETRIC_BANDS = 31;
+
+	/* Filter gains are quantized to this many steps per dB. */
+	private static final int GAIN_STEPS_PER_DB = 20;
+	private static final int GAIN_UNKNOWN = 0x7fffffff;
+	/* Accepted parametric bands: Hz, millibels and Q in hundredths */
+	private static final int MIN_FREQUENCY = 10;
+	private static final int MAX_LEVEL = 1500;
+	private static final int MIN_Q = 10;
+	private static final int MAX_Q = 1000;
+	/* Frames filtered at a time, each filter over the whole block */
+	private static final int BLOCK = 64;
+	/* Seconds for the lowest shelf to ring down below the 8.24 LSB */
+	private static final float TAIL_TIME = 0.25f;
+
+	/* Loudness compensation from ISO 226:2003, from 100 dB down to 20 dB.
+	 * The first is extrapolated from (62.5, 28) to (20, 41). */
+	private static final float[] ADJ_BEG = { 0.0f, 0.0f, 0.0f, 0.0f, -1.0f, -1.5f };
+	private static final float[] ADJ_END = { 42.3f, 28.0f, 10.0f, 0.0f, -3.0f, 8.0f };
+
+	/* Settings */
+	private final float[] mBand = new float[SHELVES];
+	private float mLoudnessAdjustment = 10000.f;
+	private int mParametricBands;
+	private final float[] mParametricFrequency = new float[MAX_PARAMETRIC_BANDS];
+	private final float[] mParametricGain = new float[MAX_PARAMETRIC_BANDS];
+	private final float[] mParametricQ = new float[MAX_PARAMETRIC_BANDS];
+
+	private final Biquad[][] mFilter = new Biquad[MAX_CHANNELS][SHELVES - 1];
+	private final Biquad[][] mPeak = new Biquad[MAX_CHANNELS][MAX_PARAMETRIC_BANDS];
+	private final int[] mBlock = new int[BLOCK];
+
+	/* Automatic equalizer */
+	private final float[] mLoudness = new float[MAX_CHANNELS];
+	private int mNextUpdate;
+	private int mNextUpdateInterval = 1000;
+	/* Weighted power summed over frames since the last update */
+	private final float[] mPower = new float[MAX_CHANNELS];
+	private int mPowerFrames;
+
+	/* Smooth enable/disable */
+	private int mFade;
+
+	/* Shelf designs for the current sampling rate */
+	private final ShelfTable[] mShelf = new ShelfTable[SHELVES - 1];
+	private float mShelfSamplingRate;
+	/* Last quantized overall gain and shelf gains, per channel */
+	private final int[][] mGain = new int[MAX_CHANNELS][SHELVES];
+	/* Parametric bands as designed, and their last quantized gains */
+	private int mPeakBands;
+	private final float[] mDesignFrequency = new float[MAX_PARAMETRIC_BANDS];
+	private final float[] mDesignGain = new float[MAX_PARAMETRIC_BANDS];
+	private final float[] mDesignQ = new float[MAX_PARAMETRIC_BANDS];
+	private final int[] mPeakGain = new int[MAX_PARAMETRIC_BANDS];
+	/* Frames for the filters to ring down below the 8.24 LSB */
+	private int mTailFrames;
+
+	/* Scratch of refreshChannel() and refreshPeaks() */
+	private final float[] mAdjusted = new float[SHELVES];
+	private final int[] mQuantized = new int[SHELVES];
+	private final Biquad.Coefficients mCoefficients = new Biquad.Coefficients();
+
+	public EffectEqualizer() {
+		for (int ch = 0; ch < MAX_CHANNELS; ch ++) {
+			for (int i = 0; i < SHELVES - 1; i ++) {
+				mFilter[ch][i] = new Biquad();
+			}
+			for (int i = 0; i < MAX_PARAMETRIC_BANDS; i ++) {
+				mPeak[ch][i] = new Biquad();
+			}
+			mLoudness[ch] = 50.f;
+		}
+		for (int i = 0; i < SHELVES - 1; i ++) {
+			mShelf[i] = new ShelfTable();
+		}
+		configure(44100, CHANNEL_OUT_STEREO);
+	}
+
+	/**
+	 * Level of a band: of the shelves, or with parametric bands, of one of
+	 * them.
+	 *
+	 * @param level millibels
+	 */
+	public void setBandLevel(int band, short level) {
+		int bands = mParametricBands != 0 ? mParametricBands : SHELVES;
+		if (band < 0 || band >= bands) {
+			throw new IllegalArgumentException("No band " + band + " of " + bands);
+		}
+		if (mParametricBands != 0) {
+			mParametricGain[band] = level / 100.0f;
+		} else {
+			mBand[band] = level / 100.0f;
+		}
+	}
+
+	/**
+	 * Loudness correction reference: the SPL of digital full scale, less
+	 * 100 dB. The default leaves the loudness compensation off.
+	 *
+	 * @param reference hundredths of dB
+	 */
+	public void setLoudnessCorrection(short reference) {
+		mLoudnessAdjustment = reference / 100.0f;
+	}
+
+	/**
+	 * Parametric bands, in the layout of EqualizerBands.toParametric(): the
+	 * number of bands, then for each band its center frequency in Hz, its
+	 * level in millibels and its Q in hundredths. No bands goes back to
+	 * the shelves.
+	 *
+	 * @throws IllegalArgumentException for a band out of range
+	 */
+	public void setParametric(short[] values) {
+		int bands = values.length > 0 ? values[0] : -1;
+		if (bands < 0 || bands > MAX_PARAMETRIC_BANDS || values.length != 1 + bands * 3) {
+			throw new IllegalArgumentException("Invalid parametric bands of " + values.length + " values");
+		}
+		for (int i = 0; i < bands; i ++) {
+			short frequency = values[1 + i * 3];
+			short level = values[2 + i * 3];
+			short q = values[3 + i * 3];
+			if (frequency < MIN_FREQUENCY || level < -MAX_LEVEL || level > MAX_LEVEL || q < MIN_Q || q > MAX_Q) {
+				throw new IllegalArgumentException("Parametric band " + i + " out of range: "
+						+ frequency + " Hz, " + level + " mB, Q " + q);
+			}
+		}
+		for (int i = 0; i < bands; i ++) {
+			mParametricFrequency[i] = values[1 + i * 3];
+			mParametricGain[i] = values[2 + i * 3] / 100.0f;
+			mParametricQ[i] = values[3 + i * 3] / 100.0f;
+		}
+		mParametricBands = bands;
+	}
+
+	@Override
+	protected void onConfigure() {
+		/* 100 updates per second. */
+		mNextUpdateInterval = (int) (mSamplingRate / 100.);
+		refreshShelves();
+	}
+
+	/* Loudness compensation: full for signals of 20 dB SPL and less,
+	 * decreasing linearly to none at 100 dB. */
+	private float getAdjustedBand(int band, float loudness) {
+		/* Add loudness adjustment */
+		float loudnessLevel = loudness + mLoudnessAdjustment;
+		if (loudnessLevel > 100.f) {
+			loudnessLevel = 100.f;
+		}
+		if (loudnessLevel < 20.f) {
+			loudnessLevel = 20.f;
+		}
+		/* Maximum loudness = no adj (reference behavior at 100 dB) */
+		loudnessLevel = (loudnessLevel - 20.0f) / (100.0f - 20.0f);
+
+		/* Read user setting; parametric bands have filters of their own. */
+		float f = mParametricBands != 0 ? 0 : mBand[band];
+		/* Add compensation values */
+		f += ADJ_BEG[band] + (ADJ_END[band] - ADJ_BEG[band]) * (1.0f - loudnessLevel);
+		/* Account for effect smooth fade in/out */
+		return f * (mFade / 100.f);
+	}
+
+	/* Tabulate the shelf designs for a new sampling rate. */
+	private void refreshShelves() {
+		if (mShelfSamplingRate == mSamplingRate) {
+			return;
+		}
+		for (int band = 0; band < SHELVES - 1; band ++) {
+			/* 15.625, 62.5, 250, 1000, 4000, 16000 */
+			float centerFrequency = 15.625f * (float) Math.pow(4, band);
+			mShelf[band].build(centerFrequency * 2.0f, mSamplingRate, 1.0f);
+		}
+		mShelfSamplingRate = mSamplingRate;
+		for (int ch = 0; ch < MAX_CHANNELS; ch ++) {
+			for (int i = 0; i < SHELVES; i ++) {
+				mGain[ch][i] = GAIN_UNKNOWN;
+			}
+		}
+		/* The peaking filters are designed anew as well. */
+		mPeakBands = 0;
+		refreshTail();
+	}
+
+	@Override
+	protected void clearHistory() {
+		for (int ch = 0; ch < mChannels; ch ++) {
+			for (int j = 0; j < SHELVES - 1; j ++) {
+				mFilter[ch][j].clearHistory();
+			}
+			for (int j = 0; j < mPeakBands; j ++) {
+				mPeak[ch][j].clearHistory();
+			}
+		}
+	}
+
+	private void refreshBands() {
+		for (int ch = 0; ch < mChannels; ch ++) {
+			refreshChannel(mFilter[ch], mGain[ch], mLoudness[ch]);
+		}
+		refreshPeaks();
+	}
+
+	/* A peaking filter is redesigned when its quantized gain changes, and
+	 * glides there over the update interval. A band that is new, or has
+	 * moved or changed its Q, is set at once instead. */
+	private void refreshPeaks() {
+		boolean reshaped = false;
+
+		for (int band = 0; band < mParametricBands; band ++) {
+			boolean moved = band >= mPeakBands
+					|| mParametricFrequency[band] != mDesignFrequency[band]
+					|| mParametricQ[band] != mDesignQ[band];
+			int quantized = FastMath.lrint(mParametricGain[band] * (mFade / 100.f) * GAIN_STEPS_PER_DB);
+			if (!moved && quantized == mPeakGain[band]) {
+				continue;
+			}
+
+			/* Nothing is left to shape close to the Nyquist frequency. */
+			float frequency = mParametricFrequency[band];
+			if (frequency > mSamplingRate * 0.45f) {
+				frequency = mSamplingRate * 0.45f;
+			}
+			Biquad.designPeaking(mCoefficients, frequency, mSamplingRate,
+					quantized / (float) GAIN_STEPS_PER_DB, mParametricQ[band]);
+			/* Every channel, so that the designs hold for any configuration. */
+			for (int ch = 0; ch < MAX_CHANNELS; ch ++) {
+				if (band >= mPeakBands) {
+					mPeak[ch][band].clearHistory();
+				}
+				mPeak[ch][band].setCoefficients(moved ? 0 : mNextUpdateInterval, mCoefficients);
+			}
+			mPeakGain[band] = quantized;
+			reshaped |= moved;
+			mDesignFrequency[band] = mParametricFrequency[band];
+			mDesignGain[band] = mParametricGain[band];
+			mDesignQ[band] = mParametricQ[band];
+		}
+
+		if (reshaped || mPeakBands != mParametricBands) {
+			mPeakBands = mParametricBands;
+			refreshTail();
+		}
+	}
+
+	/* The shelves ring down within TAIL_TIME. A peaking filter decays by
+	 * alpha / A per frame; ln(2^24) time constants take it below the LSB. */
+	private void refreshTail() {
+		float tail = mSamplingRate * TAIL_TIME;
+		for (int band = 0; band < mPeakBands; band ++) {
+			float w0 = 2.0f * (float) Math.PI * mDesignFrequency[band] / mSamplingRate;
+			if (w0 > 2.0f * (float) Math.PI * 0.45f) {
+				w0 = 2.0f * (float) Math.PI * 0.45f;
+			}
+			float A = (float) Math.pow(10.0f, Math.abs(mDesignGain[band]) / 40.0f);
+			float bandTail = 16.6f * 2.0f * mDesignQ[band] * A / (float) Math.sin(w0);
+			if (bandTail > tail) {
+				tail = bandTail;
+			}
+		}
+		mTailFrames = (int) tail;
+	}
+
+	/* The first filter carries the overall gain, and each filter shelves up
+	 * to the next band's level. */
+	private void refreshChannel(Biquad[] filters, int[] gains, float loudness) {
+		for (int band = 0; band < SHELVES; band ++) {
+			mAdjusted[band] = getAdjustedBand(band, loudness);
+		}
+
+		mQuantized[0] = FastMath.lrint(mAdjusted[0] * GAIN_STEPS_PER_DB);
+		boolean changed = mQuantized[0] != gains[0];
+		for (int band = 0; band < SHELVES - 1; band ++) {
+			mQuantized[band + 1] = FastMath.lrint((mAdjusted[band + 1] - mAdjusted[band]) * GAIN_STEPS_PER_DB);
+			changed |= mQuantized[band + 1] != gains[band + 1];
+		}
+		if (!changed) {
+			return;
+		}
+
+		Biquad.Coefficients c = mCoefficients;
+		for (int band = 0; band < SHELVES - 1; band ++) {
+			mShelf[band].lookup(c, mQuantized[band + 1] / (float) GAIN_STEPS_PER_DB);
+			if (band == 0) {
+				/* Scale in double: the numerator terms nearly cancel at low frequencies. */
+				double overallGain = FastMath.fastDbToGain(mQuantized[0] / (float) GAIN_STEPS_PER_DB);
+				c.b0 = (long) (c.b0 * overallGain);
+				c.b1 = (long) (c.b1 * overallGain);
+				c.b2 = (long) (c.b2 * overallGain);
+			}
+			filters[band].setCoefficients(mNextUpdateInterval, c);
+		}
+		System.arraycopy(mQuantized, 0, gains, 0, SHELVES);
+	}
+
+	/* power is the sum over frames of the weighted power, 1.0 at full scale. */
+	private static float updateLoudnessEstimate(float loudness, float power, int frames) {
+		float signalPowerDb = 96.0f + Analysis.WEIGHTING_DB + FastMath.fastPowerToDb(power / frames + 1e-10f);
+		/* Immediate rise-time, and perceptibly linear 10 dB/s decay */
+		if (loudness > signalPowerDb + 0.1f) {
+			return loudness - 0.1f;
+		}
+		return signalPowerDb;
+	}
+
+	@Override
+	protected boolean processFixedPoint(int[] in, int[] out, int frameCount) {
+		/* Fully faded out, the filters are flat. */
+		if (!mEnable && mFade == 0) {
+			bypass(in, out, frameCount);
+			return false;
+		}
+
+		/* Silence is not measured, so the loudness estimate holds. The fade
+		 * completes at once, with nothing to hear it. */
+		if (isIdle(in, frameCount, mTailFrames)) {
+			mFade = mEnable ? 100 : 0;
+			refreshBands();
+			silence(in, out, frameCount);
+			return mEnable;
+		}
+
+		/* Signal loudness estimate in SPL */
+		Analysis analysis = analyze(in, frameCount);
+		for (int ch = 0; ch < mChannels; ch ++) {
+			mPower[ch] += analysis.getPower(ch) * (frameCount / (float) (1L << 48));
+		}
+		mPowerFrames += frameCount;
+
+		for (int i = 0; i < frameCount; ) {
+			/* Update EQ? */
+			if (mNextUpdate == 0) {
+				mNextUpdate = mNextUpdateInterval;
+
+				/* A block longer than the interval is measured only once. */
+				if (mPowerFrames != 0) {
+					for (int ch = 0; ch < mChannels; ch ++) {
+						mLoudness[ch] = updateLoudnessEstimate(mLoudness[ch], mPower[ch], mPowerFrames);
+						mPower[ch] = 0;
+					}
+					mPowerFrames = 0;
+				}
+
+				if (mEnable && mFade < 100) {
+					mFade += 1;
+				}
+				if (!mEnable && mFade > 0) {
+					mFade -= 1;
+				}
+
+				refreshBands();
+			}
+
+			/* Up to the next update, so that the filters hold still over the
+			 * block but while they interpolate. */
+			int frames = Math.min(Math.min(frameCount - i, mNextUpdate), BLOCK);
+			mNextUpdate -= frames;
+
+			for (int ch = 0; ch < mChannels; ch ++) {
+				for (int j = 0; j < frames; j ++) {
+					mBlock[j] = in[(i + j) * mChannels + ch];
+				}
+
+				/* Evaluate EQ filters */
+				Biquad[] filters = mFilter[ch];
+				for (int j = 0; j < SHELVES - 1; j ++) {
+					filters[j].process(mBlock, 0, frames);
+				}
+				Biquad[] peaks = mPeak[ch];
+				for (int j = 0; j < mPeakBands; j ++) {
+					peaks[j].process(mBlock, 0, frames);
+				}
+
+				for (int j = 0; j < frames; j ++) {
+					out[(i + j) * mChannels + ch] = mBlock[j];
+				}
+			}
+			i += frames;
+		}
+
+		return mEnable || mFade != 0;
+	}
+}
@@ -0,0 +1,371 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * Headphone virtualization of EffectVirtualizer.cpp: a room echo, from two
+ * cross-coupled delays or from a feedback delay network, mixed with the
+ * dry signal, then the side signal crossfed as it reaches the far ear.
+ * Multichannel input may come with stereo output, which downmixes it.
+ *
+ * The convolution mode needs an impulse response from a file, which the
+ * engine does not load; in that mode it runs the room, as the native
+ * effect does until it has a response.
+ *
+ * @author alankila
+ */
+public final class EffectVirtualizer extends Effect {
+	public static final int MODE_ROOM = 0;
+	public static final int MODE_CONVOLUTION = 1;
+	public static final int MODE_NETWORK = 2;
+
+	/* Frames processed per pass through the reverb delay lines */
+	private static final int BLOCK = 128;
+	/* Seconds for the room echo at its strongest to die away */
+	private static final float ROOM_TAIL_TIME = 1.5f;
+	/* Decay time of the network room, and the corner above which it
+	 * decays faster */
+	private static final float NETWORK_MIN_DECAY = 0.25f;
+	private static final float NETWORK_MAX_DECAY = 0.9f;
+	private static final float NETWORK_DAMPING = 5000.0f;
+	private static final float NETWORK_TAIL_TIME = 2.1f;
+
+	/* Settings, and whether the room is yet to follow them */
+	private short mStrength;
+	private short mMode = MODE_ROOM;
+	private boolean mStrengthChanged;
+
+	private boolean mDeep, mWide;
+	private long mLevel;
+
+	private final Delay mReverbDelayL = new Delay(0.029f);
+	private final Delay mReverbDelayR = new Delay(0.023f);
+	private long mDelayDataL, mDelayDataR;
+	private final Biquad mLocalization = new Biquad();
+	private final FeedbackDelayNetwork mNetwork = new FeedbackDelayNetwork();
+
+	/* 8.24 gain of each input channel into the left and right ear, and
+	 * where the ears go in the output frame. */
+	private final int[] mDownmixL = new int[MAX_CHANNELS];
+	private final int[] mDownmixR = new int[MAX_CHANNELS];
+	private int mOutLeft, mOutRight;
+
+	private final int[] mDryL = new int[BLOCK], mDryR = new int[BLOCK];
+	private final int[] mFeedL = new int[BLOCK], mFeedR = new int[BLOCK];
+	private final int[] mWetL = new int[BLOCK], mWetR = new int[BLOCK];
+
+	public EffectVirtualizer() {
+		configure(44100, CHANNEL_OUT_STEREO);
+	}
+
+	/**
+	 * @param strength 0 .. 1000; from 500 up, the room is wide
+	 */
+	public void setStrength(short strength) {
+		mStrength = strength;
+		mStrengthChanged = true;
+	}
+
+	/**
+	 * @param mode MODE_ROOM, MODE_CONVOLUTION or MODE_NETWORK
+	 */
+	public void setMode(short mode) {
+		mMode = mode;
+	}
+
+	@Override
+	protected boolean allowsDownmix() {
+		return true;
+	}
+
+	@Override
+	protected void onConfigure() {
+		refreshDownmix();
+
+		/* Haas effect delay -- slight difference between L & R
+		 * to reduce artificialness of the ping-pong. */
+		mReverbDelayL.setParameters(mSamplingRate, 0.029f);
+		mReverbDelayR.setParameters(mSamplingRate, 0.023f);
+		mNetwork.setSamplingRate(mSamplingRate);
+		refreshStrength();
+		/* the -3 dB point is around 650 Hz, giving about 300 us to work with */
+		mLocalization.setHighShelf(0, 800.0f, mSamplingRate, -11.0f, 0.72f, 0);
+
+		mDelayDataL = 0;
+		mDelayDataR = 0;
+	}
+
+	/* Derive the room settings from the current strength. */
+	private void refreshStrength() {
+		mDeep = mStrength != 0;
+		mWide = mStrength >= 500;
+
+		if (mStrength != 0) {
+			float start = -15.0f;
+			float end = -5.0f;
+			float attenuation = start + (end - start) * (mStrength / 1000.0f);
+			float roomEcho = (float) Math.pow(10.0f, attenuation / 20.0f);
+			mLevel = (long) (roomEcho * (1L << 32));
+
+			/* The network room also grows longer with strength. */
+			float decay = NETWORK_MIN_DECAY + (NETWORK_MAX_DECAY - NETWORK_MIN_DECAY) * (mStrength / 1000.0f);
+			mNetwork.setDecay(decay, NETWORK_DAMPING);
+		} else {
+			mLevel = 0;
+		}
+		mStrengthChanged = false;
+	}
+
+	/* Each input channel goes to the ear on its side of the listener, or to
+	 * both ears at -3 dB if it is in the middle. Both ears of the output are
+	 * placed on the front pair, and a mono output gets their average. */
+	private void refreshDownmix() {
+		final int full = 1 << 24;
+		final int half = (int) (0.70710678f * (1 << 24));
+
+		int ch = 0;
+		for (int bit = 1; ch < mChannels && bit != 0; bit <<= 1) {
+			if ((mChannelMask & bit) == 0) {
+				continue;
+			}
+			switch (bit) {
+			case CHANNEL_OUT_FRONT_LEFT:
+				mDownmixL[ch] = full;
+				mDownmixR[ch] = 0;
+				break;
+			case CHANNEL_OUT_FRONT_RIGHT:
+				mDownmixL[ch] = 0;
+				mDownmixR[ch] = full;
+				break;
+			case CHANNEL_OUT_BACK_LEFT:
+			case CHANNEL_OUT_SIDE_LEFT:
+			case CHANNEL_OUT_FRONT_LEFT_OF_CENTER:
+				mDownmixL[ch] = half;
+				mDownmixR[ch] = 0;
+				break;
+			case CHANNEL_OUT_BACK_RIGHT:
+			case CHANNEL_OUT_SIDE_RIGHT:
+			case CHANNEL_OUT_FRONT_RIGHT_OF_CENTER:
+				mDownmixL[ch] = 0;
+				mDownmixR[ch] = half;
+				break;
+			case CHANNEL_OUT_BACK_CENTER:
+				mDownmixL[ch] = full / 2;
+				mDownmixR[ch] = full / 2;
+				break;
+			default:
+				/* Front center, low frequency and anything we don't know */
+				mDownmixL[ch] = half;
+				mDownmixR[ch] = half;
+				break;
+			}
+			ch ++;
+		}
+		if (mChannels == 1) {
+			mDownmixL[0] = full;
+			mDownmixR[0] = full;
+		}
+
+		/* The front pair are the two lowest bits of the mask. */
+		mOutLeft = -1;
+		mOutRight = -1;
+		if (mOutChannels >= 2 && (mOutChannelMask & CHANNEL_OUT_STEREO) == CHANNEL_OUT_STEREO) {
+			mOutLeft = 0;
+			mOutRight = 1;
+		}
+	}
+
+	/* Mix a block of input into left and right ear feeds. */
+	private void downmix(int[] in, int offset, int frames, int[] left, int[] right) {
+		if (mChannels == 2 && mChannelMask == CHANNEL_OUT_STEREO) {
+			for (int i = 0; i < frames; i ++) {
+				left[i] = in[(offset + i) * 2];
+				right[i] = in[(offset + i) * 2 + 1];
+			}
+			return;
+		}
+
+		for (int i = 0; i < frames; i ++) {
+			long sumL = 0;
+			long sumR = 0;
+			for (int ch = 0; ch < mChannels; ch ++) {
+				int dry = in[(offset + i) * mChannels + ch];
+				sumL += (long) dry * mDownmixL[ch];
+				sumR += (long) dry * mDownmixR[ch];
+			}
+			left[i] = (int) (sumL >> 24);
+			right[i] = (int) (sumR >> 24);
+		}
+	}
+
+	/* Store a block of left and right ear signal in the output layout. */
+	private void writeBinaural(int[] out, int offset, int frames, int[] left, int[] right) {
+		if (mOutChannels == 2 && mOutLeft == 0) {
+			for (int i = 0; i < frames; i ++) {
+				out[(offset + i) * 2] = left[i];
+				out[(offset + i) * 2 + 1] = right[i];
+			}
+			return;
+		}
+
+		for (int i = 0; i < frames; i ++) {
+			int frame = (offset + i) * mOutChannels;
+			if (mOutLeft < 0) {
+				/* Mono output */
+				out[frame] = (left[i] + right[i]) >> 1;
+				for (int ch = 1; ch < mOutChannels; ch ++) {
+					out[frame + ch] = 0;
+				}
+				continue;
+			}
+			for (int ch = 0; ch < mOutChannels; ch ++) {
+				int sample = 0;
+				if (ch == mOutLeft) {
+					sample = left[i];
+				} else if (ch == mOutRight) {
+					sample = right[i];
+				}
+				out[frame + ch] = sample;
+			}
+		}
+	}
+
+	@Override
+	protected void clearHistory() {
+		mReverbDelayL.clear();
+		mReverbDelayR.clear();
+		mDelayDataL = 0;
+		mDelayDataR = 0;
+		mLocalization.clearHistory();
+		mNetwork.clear();
+	}
+
+	@Override
+	protected boolean processFixedPoint(int[] in, int[] out, int frameCount) {
+		if (mStrengthChanged) {
+			refreshStrength();
+		}
+
+		/* A downmix has to be done even when disabled, but nothing more. */
+		if (!mEnable) {
+			if (mOutChannels == mChannels) {
+				bypass(in, out, frameCount);
+			} else {
+				processDownmix(in, out, frameCount);
+			}
+			return false;
+		}
+
+		boolean network = mMode == MODE_NETWORK;
+		int tailFrames = (int) (mSamplingRate * (network ? NETWORK_TAIL_TIME : ROOM_TAIL_TIME));
+		if (isIdle(in, frameCount, tailFrames)) {
+			silence(in, out, frameCount);
+			return mEnable;
+		}
+
+		if (network) {
+			processNetwork(in, out, frameCount);
+		} else {
+			processRoom(in, out, frameCount);
+		}
+		return mEnable;
+	}
+
+	/* The input folded to the ears as is, with no room and no crossfeed. */
+	private void processDownmix(int[] in, int[] out, int frameCount) {
+		for (int offset = 0; offset < frameCount; offset += BLOCK) {
+			int frames = Math.min(frameCount - offset, BLOCK);
+			downmix(in, offset, frames, mDryL, mDryR);
+			writeBinaural(out, offset, frames, mDryL, mDryR);
+		}
+	}
+
+	private void processRoom(int[] in, int[] out, int frameCount) {
+		/* The cross-feedback reaches each line through the other one, so a
+		 * block can be read out of the lines before it is written back as long
+		 * as it is no longer than the shorter delay. */
+		int blockLength = Math.min(BLOCK, Math.min(mReverbDelayL.getLength(), mReverbDelayR.getLength()));
+
+		for (int offset = 0; offset < frameCount; offset += blockLength) {
+			int frames = Math.min(frameCount - offset, blockLength);
+
+			downmix(in, offset, frames, mDryL, mDryR);
+			mReverbDelayL.read(mWetL, frames);
+			mReverbDelayR.read(mWetR, frames);
+
+			for (int i = 0; i < frames; i ++) {
+				/* calculate reverb wet into dataL, dataR */
+				int dryL = mDryL[i];
+				int dryR = mDryR[i];
+				int dataL = dryL;
+				int dataR = dryR;
+				if (mDeep) {
+					dataL += mDelayDataR;
+					dataR += mDelayDataL;
+				}
+				mFeedL[i] = dataL;
+				mFeedR[i] = dataR;
+
+				int wetL = mWetL[i];
+				int wetR = mWetR[i];
+				if (mWide) {
+					wetR = -wetR;
+				}
+				wetL = (int) (wetL * mLevel >> 32);
+				wetR = (int) (wetR * mLevel >> 32);
+				mDelayDataL = wetL;
+				mDelayDataR = wetR;
+
+				/* Reverb wet done; mix with dry and do headphone virtualization */
+				dataL = wetL + dryL;
+				dataR = wetR + dryR;
+
+				/* Center channel. */
+				int center = (dataL + dataR) >> 1;
+				/* Direct radiation components. */
+				int side = (dataL - dataR) >> 1;
+
+				/* Sound reaching ear from the opposite speaker */
+				side -= mLocalization.process(side);
+
+				/* The wet samples are used up; their slots take the output. */
+				mWetL[i] = center + side;
+				mWetR[i] = center - side;
+			}
+
+			mReverbDelayL.write(mFeedL, frames);
+			mReverbDelayR.write(mFeedR, frames);
+			writeBinaural(out, offset, frames, mWetL, mWetR);
+		}
+	}
+
+	/* The same headphone mix as processRoom(), with the room taken from the
+	 * feedback delay network. */
+	private void processNetwork(int[] in, int[] out, int frameCount) {
+		for (int offset = 0; offset < frameCount; offset += BLOCK) {
+			int frames = Math.min(frameCount - offset, BLOCK);
+
+			downmix(in, offset, frames, mDryL, mDryR);
+			if (mDeep) {
+				mNetwork.process(mDryL, mDryR, mWetL, mWetR, frames);
+			} else {
+				for (int i = 0; i < frames; i ++) {
+					mWetL[i] = 0;
+					mWetR[i] = 0;
+				}
+			}
+
+			for (int i = 0; i < frames; i ++) {
+				int dataL = mDryL[i] + (int) (mWetL[i] * mLevel >> 32);
+				int dataR = mDryR[i] + (int) (mWetR[i] * mLevel >> 32);
+
+				int center = (dataL + dataR) >> 1;
+				int side = (dataL - dataR) >> 1;
+				side -= mLocalization.process(side);
+
+				mWetL[i] = center + side;
+				mWetR[i] = center - side;
+			}
+
+			writeBinaural(out, offset, frames, mWetL, mWetR);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * Approximations of log2 and exp2, and the dB conversions built on them,
+ * as in FastMath.h of cyanogen-dsp. The level detectors and gain computers
+ * of the effects run on these, so the engine must too in order to follow
+ * the native effects to the bit. The arithmetic is all in float, as there.
+ *
+ * @author alankila
+ */
+final class FastMath {
+	private FastMath() {
+	}
+
+	static float fastLog2(float x) {
+		int bits = Float.floatToRawIntBits(x);
+		float exponent = ((bits >> 23) & 0xff) - 127;
+		/* Mantissa, scaled to 1 .. 2 */
+		float m = Float.intBitsToFloat((bits & 0x007fffff) | 0x3f800000) - 1.0f;
+		/* log2(1 + m) for 0 <= m < 1 */
+		float p = 0.0448674073f;
+		p = p * m - 0.192180373f;
+		p = p * m + 0.413617042f;
+		p = p * m - 0.707988113f;
+		p = p * m + 1.44168401f;
+		p = p * m + 1.25489065e-5f;
+		return exponent + p;
+	}
+
+	static float fastExp2(float x) {
+		if (x < -126.0f) {
+			return 0.0f;
+		}
+		if (x > 127.0f) {
+			x = 127.0f;
+		}
+		int integer = (int) x;
+		if (x < integer) {
+			integer --;
+		}
+		float f = x - integer;
+		/* 2^f for 0 <= f < 1 */
+		float p = 0.0136975762f;
+		p = p * f + 0.0516905355f;
+		p = p * f + 0.241638334f;
+		p = p * f + 0.692966145f;
+		p = p * f + 1.00000370f;
+		return Float.intBitsToFloat(Float.floatToRawIntBits(p) + (integer << 23));
+	}
+
+	/** 10 * log10(power) */
+	static float fastPowerToDb(float power) {
+		return 3.01029996f * fastLog2(power);
+	}
+
+	/** 20 * log10(gain) */
+	static float fastGainToDb(float gain) {
+		return 6.02059991f * fastLog2(gain);
+	}
+
+	/** 10 ^ (dB / 20) */
+	static float fastDbToGain(float dB) {
+		return fastExp2(dB * 0.166096405f);
+	}
+
+	/** 10 ^ (dB / 10) */
+	static float fastDbToPower(float dB) {
+		return fastExp2(dB * 0.332192809f);
+	}
+
+	/** lrintf() in the default rounding mode: halves go to even. */
+	static int lrint(float x) {
+		return (int) Math.rint(x);
+	}
+}
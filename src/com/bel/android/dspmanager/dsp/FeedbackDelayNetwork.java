@@ -0,0 +1,137 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * Stereo reverberator from a feedback delay network of eight lines mixed
+ * through a normalized Hadamard matrix, as in FeedbackDelayNetwork.cpp.
+ * Left input feeds the even lines and right input the odd ones; each
+ * output is the sum of its own lines.
+ *
+ * @author alankila
+ */
+final class FeedbackDelayNetwork {
+	static final int LINES = 8;
+	/** Frames processed per pass; also limited by the shortest line */
+	static final int BLOCK = 128;
+
+	/** Line lengths in seconds, spread so that no two share a small factor */
+	private static final float[] LINE_TIME = {
+		0.0113f, 0.0131f, 0.0149f, 0.0167f, 0.0191f, 0.0211f, 0.0233f, 0.0263f,
+	};
+
+	private final Delay[] mLines = new Delay[LINES];
+	private int mBlockLength;
+	private float mSamplingRate;
+
+	/* Q24 feedback gain of each line, including the 1/sqrt(N) of the
+	 * matrix, and the Q24 pole of the dampers */
+	private final int[] mGain = new int[LINES];
+	private int mDampingPole;
+	private final int[] mDamped = new int[LINES];
+
+	private final int[][] mTap = new int[LINES][BLOCK];
+	private final int[][] mFeed = new int[LINES][BLOCK];
+	private final int[] mX = new int[LINES];
+
+	FeedbackDelayNetwork() {
+		for (int k = 0; k < LINES; k ++) {
+			mLines[k] = new Delay(LINE_TIME[k]);
+		}
+		setSamplingRate(44100);
+	}
+
+	/** Sets the line lengths, and clears the network. */
+	void setSamplingRate(float samplingRate) {
+		mSamplingRate = samplingRate;
+		mBlockLength = BLOCK;
+		for (int k = 0; k < LINES; k ++) {
+			mLines[k].setParameters(samplingRate, LINE_TIME[k]);
+			if (mBlockLength > mLines[k].getLength()) {
+				mBlockLength = mLines[k].getLength();
+			}
+			mDamped[k] = 0;
+		}
+	}
+
+	/**
+	 * Time for the mid frequencies to decay by 60 dB, and the corner of
+	 * the damping above which they decay faster.
+	 */
+	void setDecay(float decayTime, float dampingFrequency) {
+		float normalize = 1.0f / (float) Math.sqrt(LINES);
+		for (int k = 0; k < LINES; k ++) {
+			float length = mLines[k].getLength() / mSamplingRate;
+			float gain = (float) Math.pow(10.0f, -3.0f * length / decayTime);
+			mGain[k] = (int) (gain * normalize * (1 << 24));
+		}
+		mDampingPole = (int) ((float) Math.exp(-2.0f * (float) Math.PI * dampingFrequency / mSamplingRate) * (1 << 24));
+	}
+
+	void clear() {
+		for (int k = 0; k < LINES; k ++) {
+			mLines[k].clear();
+			mDamped[k] = 0;
+		}
+	}
+
+	void process(int[] inL, int[] inR, int[] outL, int[] outR, int frames) {
+		final int smoothing = (1 << 24) - mDampingPole;
+		final int[] x = mX;
+
+		for (int offset = 0; offset < frames; offset += mBlockLength) {
+			int n = Math.min(frames - offset, mBlockLength);
+
+			for (int k = 0; k < LINES; k ++) {
+				mLines[k].read(mTap[k], n);
+			}
+
+			for (int i = 0; i < n; i ++) {
+				for (int k = 0; k < LINES; k ++) {
+					int tap = mTap[k][i];
+					x[k] = tap;
+					mDamped[k] += (int) (((long) (tap - mDamped[k]) * smoothing) >> 24);
+				}
+				/* Alternate signs keep the outputs apart at low frequencies. */
+				outL[offset + i] = (x[0] - x[2] + x[4] - x[6]) >> 1;
+				outR[offset + i] = (x[1] - x[3] + x[5] - x[7]) >> 1;
+
+				for (int k = 0; k < LINES; k ++) {
+					x[k] = (int) (((long) mDamped[k] * mGain[k]) >> 24);
+				}
+
+				/* Fast Walsh-Hadamard transform, unnormalized */
+				for (int k = 0; k < LINES; k += 2) {
+					int a = x[k], b = x[k + 1];
+					x[k] = a + b;
+					x[k + 1] = a - b;
+				}
+				for (int k = 0; k < LINES; k += 4) {
+					int a0 = x[k], a1 = x[k + 1], b0 = x[k + 2], b1 = x[k + 3];
+					x[k] = a0 + b0;
+					x[k + 1] = a1 + b1;
+					x[k + 2] = a0 - b0;
+					x[k + 3] = a1 - b1;
+				}
+				for (int k = 0; k < 4; k ++) {
+					int a = x[k], b = x[k + 4];
+					x[k] = a + b;
+					x[k + 4] = a - b;
+				}
+
+				int dryL = inL[offset + i];
+				int dryR = inR[offset + i];
+				mFeed[0][i] = x[0] + dryL;
+				mFeed[1][i] = x[1] + dryR;
+				mFeed[2][i] = x[2] - dryL;
+				mFeed[3][i] = x[3] - dryR;
+				mFeed[4][i] = x[4] + dryL;
+				mFeed[5][i] = x[5] + dryR;
+				mFeed[6][i] = x[6] - dryL;
+				mFeed[7][i] = x[7] - dryR;
+			}
+
+			for (int k = 0; k < LINES; k ++) {
+				mLines[k].write(mFeed[k], n);
+			}
+		}
+	}
+}
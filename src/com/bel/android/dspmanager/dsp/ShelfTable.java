@@ -0,0 +1,54 @@
+package com.bel.android.dspmanager.dsp;
+
+/**
+ * High shelf coefficients for one corner frequency and sampling rate,
+ * tabulated over gain as in ShelfTable.cpp, so that a gain can be looked
+ * up without evaluating the design formulas while processing. Lookups
+ * interpolate linearly between entries, and clamp outside of the range.
+ *
+ * @author alankila
+ */
+final class ShelfTable {
+	static final int MIN_DB = -48;
+	static final int MAX_DB = 48;
+	static final int STEPS_PER_DB = 2;
+
+	private final Biquad.Coefficients[] mTable;
+
+	ShelfTable() {
+		mTable = new Biquad.Coefficients[(MAX_DB - MIN_DB) * STEPS_PER_DB + 1];
+		for (int i = 0; i < mTable.length; i ++) {
+			mTable[i] = new Biquad.Coefficients();
+		}
+	}
+
+	void build(double centerFrequency, double samplingRate, double slope) {
+		for (int i = 0; i < mTable.length; i ++) {
+			double gainDb = MIN_DB + (double) i / STEPS_PER_DB;
+			Biquad.designHighShelf(mTable[i], centerFrequency, samplingRate, gainDb, slope, 0);
+		}
+	}
+
+	void lookup(Biquad.Coefficients c, float gainDb) {
+		float position = (gainDb - MIN_DB) * STEPS_PER_DB;
+		if (position <= 0) {
+			c.set(mTable[0]);
+			return;
+		}
+		if (position >= mTable.length - 1) {
+			c.set(mTable[mTable.length - 1]);
+			return;
+		}
+
+		int idx = (int) position;
+		/* 16-bit fraction; coefficient differences are small enough not to overflow. */
+		long frac = (long) ((position - idx) * 65536.f);
+		Biquad.Coefficients x = mTable[idx];
+		Biquad.Coefficients y = mTable[idx + 1];
+		c.b0 = x.b0 + ((y.b0 - x.b0) * frac >> 16);
+		c.b1 = x.b1 + ((y.b1 - x.b1) * frac >> 16);
+		c.b2 = x.b2 + ((y.b2 - x.b2) * frac >> 16);
+		c.a1 = x.a1 + ((y.a1 - x.a1) * frac >> 16);
+		c.a2 = x.a2 + ((y.a2 - x.a2) * frac >> 16);
+	}
+}
@@ -6,25 +6,50 @@ package com.bel.android.dspmanager.preference;
  * @author alankila
  */
 class Biquad {
-	private Complex b0, b1, b2, a0, a1, a2;
+	private double b0, b1, b2, a0, a1, a2;
 
 	protected void setHighShelf(double centerFrequency, double samplingFrequency, double dbGain, double slope) {
         double w0 = 2 * Math.PI * centerFrequency / samplingFrequency;
         double A = Math.pow(10, dbGain/40);
         double alpha = Math.sin(w0)/2 * Math.sqrt( (A + 1/A)*(1/slope - 1) + 2);
 
-        b0 = new Complex(A*((A+1) + (A-1)   *Math.cos(w0) + 2*Math.sqrt(A)*alpha), 0);
-        b1 = new Complex(-2*A*((A-1) + (A+1)*Math.cos(w0)), 0);
-        b2 = new Complex(A*((A+1) + (A-1)   *Math.cos(w0) - 2*Math.sqrt(A)*alpha), 0);
-        a0 = new Complex((A+1) - (A-1)      *Math.cos(w0) + 2*Math.sqrt(A)*alpha, 0);
-        a1 = new Complex(2*((A-1) - (A+1)   *Math.cos(w0)), 0);
-        a2 = new Complex((A+1) - (A-1)      *Math.cos(w0) - 2*Math.sqrt(A)*alpha, 0);
+        b0 = A*((A+1) + (A-1)   *Math.cos(w0) + 2*Math.sqrt(A)*alpha);
+        b1 = -2*A*((A-1) + (A+1)*Math.cos(w0));
+        b2 = A*((A+1) + (A-1)   *Math.cos(w0) - 2*Math.sqrt(A)*alpha);
+        a0 = (A+1) - (A-1)      *Math.cos(w0) + 2*Math.sqrt(A)*alpha;
+        a1 = 2*((A-1) - (A+1)   *Math.cos(w0));
+        a2 = (A+1) - (A-1)      *Math.cos(w0) - 2*Math.sqrt(A)*alpha;
 	}
 
-	protected Complex evaluateTransfer(Complex z) {
-		Complex zSquared = z.mul(z);
-		Complex nom = b0.add(b1.div(z)).add(b2.div(zSquared));
-		Complex den = a0.add(a1.div(z)).add(a2.div(zSquared));
-		return nom.div(den);
+	protected void setPeaking(double centerFrequency, double samplingFrequency, double dbGain, double q) {
+		double w0 = 2 * Math.PI * centerFrequency / samplingFrequency;
+		double A = Math.pow(10, dbGain/40);
+		double alpha = Math.sin(w0) / (2*q);
+
+		b0 = 1 + alpha*A;
+		b1 = -2*Math.cos(w0);
+		b2 = 1 - alpha*A;
+		a0 = 1 + alpha/A;
+		a1 = -2*Math.cos(w0);
+		a2 = 1 - alpha/A;
+	}
+
+	/**
+	 * Power response at one frequency, without going through complex
+	 * numbers: with real coefficients, |b0 + b1/z + b2/z^2|^2 on the unit
+	 * circle is a cosine series.
+	 *
+	 * @param cosOmega cos(w) of the frequency w in radians per sample
+	 * @param cos2Omega cos(2w)
+	 * @return squared magnitude
+	 */
+	protected double evaluatePower(double cosOmega, double cos2Omega) {
+		double nom = b0*b0 + b1*b1 + b2*b2 + 2*b1*(b0 + b2)*cosOmega + 2*b0*b2*cos2Omega;
+		double den = a0*a0 + a1*a1 + a2*a2 + 2*a1*(a0 + a2)*cosOmega + 2*a0*a2*cos2Omega;
+		return nom / den;
+	}
+
+	protected double evaluateMagnitudeDb(double cosOmega, double cos2Omega) {
+		return 10 * Math.log10(evaluatePower(cosOmega, cos2Omega));
 	}
-}
\ No newline at end of file
+}
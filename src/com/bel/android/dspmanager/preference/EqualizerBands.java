@@ -0,0 +1,215 @@
+package com.bel.android.dspmanager.preference;
+
+import java.util.Locale;
+
+/**
+ * Equalizer settings as they are kept in the dsp.tone.eq.custom preference.
+ * The six shelving bands of the presets are stored as their levels,
+ * "level;" each. Parametric bands carry their own center frequency and Q,
+ * "frequency,level,q;" each. Levels are in dB, frequencies in Hz.
+ *
+ * @author alankila
+ */
+public final class EqualizerBands {
+	/** Number of bands of the shelving equalizer */
+	public static final int SHELVES = 6;
+	/** Most parametric bands the effect takes, EQ_MAX_PARAMETRIC_BANDS */
+	public static final int MAX_BANDS = 31;
+	/** Rate the responses are drawn and fitted at */
+	static final int SAMPLING_RATE = 44100;
+	/** Range of the parametric layouts */
+	private static final double LOWEST_BAND = 20;
+	private static final double HIGHEST_BAND = 20000;
+
+	private final float[] mFrequencies;
+	private final float[] mLevels;
+	private final float[] mQs;
+	private final boolean mParametric;
+
+	private EqualizerBands(float[] frequencies, float[] levels, float[] qs, boolean parametric) {
+		mFrequencies = frequencies;
+		mLevels = levels;
+		mQs = qs;
+		mParametric = parametric;
+	}
+
+	/**
+	 * Flat shelving equalizer, bands at 15.625 * 4^i Hz.
+	 */
+	public static EqualizerBands shelves() {
+		float[] frequencies = new float[SHELVES];
+		float[] qs = new float[SHELVES];
+		for (int i = 0; i < SHELVES; i ++) {
+			frequencies[i] = (float) (15.625 * Math.pow(4, i));
+			qs[i] = 1;
+		}
+		return new EqualizerBands(frequencies, new float[SHELVES], qs, false);
+	}
+
+	/**
+	 * Flat parametric equalizer with the bands spread evenly over the
+	 * octaves from 20 Hz to 20 kHz, each as wide as the spacing.
+	 *
+	 * @param count number of bands, 2 to MAX_BANDS
+	 */
+	public static EqualizerBands parametric(int count) {
+		float[] frequencies = new float[count];
+		float[] qs = new float[count];
+		double octaves = Math.log(HIGHEST_BAND / LOWEST_BAND) / Math.log(2) / (count - 1);
+		double q = Math.sqrt(Math.pow(2, octaves)) / (Math.pow(2, octaves) - 1);
+		for (int i = 0; i < count; i ++) {
+			frequencies[i] = Math.round(LOWEST_BAND * Math.pow(2, octaves * i));
+			qs[i] = Math.round(q * 100) / 100f;
+		}
+		return new EqualizerBands(frequencies, new float[count], qs, true);
+	}
+
+	/**
+	 * Bands of a persisted value. Anything unreadable is a flat shelving
+	 * equalizer.
+	 */
+	public static EqualizerBands parse(String value) {
+		if (value == null || value.length() == 0) {
+			return shelves();
+		}
+		String[] bands = value.split(";");
+		try {
+			if (value.indexOf(',') == -1) {
+				EqualizerBands shelves = shelves();
+				for (int i = 0; i < Math.min(bands.length, SHELVES); i ++) {
+					shelves.mLevels[i] = Float.valueOf(bands[i]);
+				}
+				return shelves;
+			}
+
+			int count = Math.min(bands.length, MAX_BANDS);
+			float[] frequencies = new float[count];
+			float[] levels = new float[count];
+			float[] qs = new float[count];
+			for (int i = 0; i < count; i ++) {
+				String[] fields = bands[i].split(",");
+				frequencies[i] = Float.valueOf(fields[0]);
+				levels[i] = Float.valueOf(fields[1]);
+				qs[i] = Float.valueOf(fields[2]);
+			}
+			return new EqualizerBands(frequencies, levels, qs, true);
+		}
+		catch (RuntimeException e) {
+			return shelves();
+		}
+	}
+
+	/**
+	 * The persisted value, levels rounded to 0.1 dB.
+	 */
+	public String format() {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < mLevels.length; i ++) {
+			float level = Math.round(mLevels[i] * 10.f) / 10.f;
+			if (mParametric) {
+				value.append(String.format(Locale.ROOT, "%.0f,%.1f,%.2f;", mFrequencies[i], level, mQs[i]));
+			} else {
+				value.append(String.format(Locale.ROOT, "%.1f;", level));
+			}
+		}
+		return value.toString();
+	}
+
+	public EqualizerBands copy() {
+		return new EqualizerBands(mFrequencies.clone(), mLevels.clone(), mQs.clone(), mParametric);
+	}
+
+	public boolean isParametric() {
+		return mParametric;
+	}
+
+	public int size() {
+		return mLevels.length;
+	}
+
+	public float getFrequency(int band) {
+		return mFrequencies[band];
+	}
+
+	public float getLevel(int band) {
+		return mLevels[band];
+	}
+
+	public void setLevel(int band, float level) {
+		mLevels[band] = level;
+	}
+
+	public float getQ(int band) {
+		return mQs[band];
+	}
+
+	/**
+	 * Number of filters that realize the bands. The shelving equalizer has
+	 * a high shelf between each two bands, plus the level of the first
+	 * band as a fixed gain. Parametric bands are a peaking filter each.
+	 */
+	int getFilterCount() {
+		return mParametric ? mLevels.length : mLevels.length - 1;
+	}
+
+	/**
+	 * Gain of a filter at the current levels, dB: a shelf rises from one
+	 * band's level to the next.
+	 */
+	double getFilterGain(int filter) {
+		return mParametric ? mLevels[filter] : mLevels[filter + 1] - mLevels[filter];
+	}
+
+	/**
+	 * Fixed gain on top of the filters, dB.
+	 */
+	double getOverallGain() {
+		return mParametric ? 0 : mLevels[0];
+	}
+
+	/**
+	 * Design one filter with a given gain, as the effect does. The center
+	 * point of each shelf is between the bands, and the effect keeps
+	 * parametric bands clear of the Nyquist frequency.
+	 */
+	Biquad designFilter(int filter, double gain) {
+		Biquad biquad = new Biquad();
+		if (mParametric) {
+			double freq = Math.min(mFrequencies[filter], SAMPLING_RATE * 0.45);
+			biquad.setPeaking(freq, SAMPLING_RATE, gain, mQs[filter]);
+		} else {
+			biquad.setHighShelf(mFrequencies[filter] * 2, SAMPLING_RATE, gain, 1);
+		}
+		return biquad;
+	}
+
+	/**
+	 * Levels in millibels, as the effect takes them.
+	 */
+	public short[] toMillibels() {
+		short[] levels = new short[mLevels.length];
+		for (int i = 0; i < levels.length; i ++) {
+			levels[i] = (short) Math.round(mLevels[i] * 100);
+		}
+		return levels;
+	}
+
+	/**
+	 * Value of the parametric parameter of the effect: number of bands,
+	 * then frequency in Hz, level in millibels and Q in hundredths of each.
+	 * Shelves are no parametric bands at all.
+	 */
+	public short[] toParametric() {
+		if (!mParametric) {
+			return new short[] { 0 };
+		}
+		short[] value = new short[1 + mLevels.length * 3];
+		value[0] = (short) mLevels.length;
+		for (int i = 0; i < mLevels.length; i ++) {
+			value[1 + i * 3] = (short) Math.round(mFrequencies[i]);
+			value[2 + i * 3] = (short) Math.round(mLevels[i] * 100);
+			value[3 + i * 3] = (short) Math.round(mQs[i] * 100);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,295 @@
+package com.bel.android.dspmanager.preference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fits the levels of an equalizer layout to a target response, in dB,
+ * sampled on a log frequency grid.
+ *
+ * The response of each band at a level of 1 dB, measured from the same
+ * filters EqualizerSurface draws, makes a basis whose sum approximates the
+ * response of any setting. Solving for the levels is then a least squares
+ * problem with the levels bounded to the range of the sliders, done by
+ * projected Gauss-Seidel on the normal equations, whose matrix only
+ * depends on the layout and is worked out once. The filters are not quite
+ * linear in their gain, so the fit is refined against their exact
+ * response a few times, which takes it to well within 0.1 dB of the best
+ * a layout can do.
+ *
+ * @author alankila
+ */
+public final class EqualizerFitter {
+	/** Range of the levels, as on the sliders */
+	public static final double MIN_DB = -12;
+	public static final double MAX_DB = 12;
+	/** Points of the grid, spaced evenly over the octaves of its range */
+	public static final int GRID_POINTS = 96;
+	private static final double GRID_LOW = 20;
+	private static final double GRID_HIGH = 20000;
+	/** Keeps bands that barely affect the grid from running off */
+	private static final double RIDGE = 1e-3;
+	/** Exact responses to refine against, and the change that ends it, dB */
+	private static final int REFINEMENTS = 8;
+	private static final double CONVERGED_DB = 0.01;
+	/** Sweeps of Gauss-Seidel per solve, and the change that ends them */
+	private static final int SWEEPS = 200;
+	private static final double SWEEP_CONVERGED_DB = 1e-4;
+
+	private static final double[] GRID = new double[GRID_POINTS];
+	private static final double[] GRID_COS = new double[GRID_POINTS];
+	private static final double[] GRID_COS2 = new double[GRID_POINTS];
+	static {
+		for (int i = 0; i < GRID_POINTS; i ++) {
+			GRID[i] = GRID_LOW * Math.pow(GRID_HIGH / GRID_LOW, i / (GRID_POINTS - 1.0));
+			double omega = GRID[i] / EqualizerBands.SAMPLING_RATE * Math.PI * 2;
+			GRID_COS[i] = Math.cos(omega);
+			GRID_COS2[i] = Math.cos(2 * omega);
+		}
+	}
+
+	private final EqualizerBands mLayout;
+	/* Response of each band per dB of its level, at the grid */
+	private final double[][] mBasis;
+	/* Normal equations: basis times basis, with the ridge on the diagonal */
+	private final double[][] mGram;
+
+	/**
+	 * Precomputes the basis of a layout. The levels of the layout don't
+	 * matter, only its bands.
+	 */
+	public EqualizerFitter(EqualizerBands layout) {
+		mLayout = layout.copy();
+		int bands = mLayout.size();
+		int filters = mLayout.getFilterCount();
+		for (int j = 0; j < bands; j ++) {
+			mLayout.setLevel(j, 0);
+		}
+
+		/* Per filter, the slope of its response around 0 dB, from +1 and
+		 * -1 dB: half the dB of the ratio of their powers. */
+		double[][] unit = new double[filters][GRID_POINTS];
+		for (int f = 0; f < filters; f ++) {
+			Biquad up = mLayout.designFilter(f, 1);
+			Biquad down = mLayout.designFilter(f, -1);
+			for (int i = 0; i < GRID_POINTS; i ++) {
+				unit[f][i] = 5 * Math.log10(up.evaluatePower(GRID_COS[i], GRID_COS2[i])
+						/ down.evaluatePower(GRID_COS[i], GRID_COS2[i]));
+			}
+		}
+
+		/* A parametric band is its filter. A shelving band is the fixed gain
+		 * for the first, then the rise into it and out of it. */
+		mBasis = new double[bands][GRID_POINTS];
+		for (int j = 0; j < bands; j ++) {
+			for (int i = 0; i < GRID_POINTS; i ++) {
+				if (mLayout.isParametric()) {
+					mBasis[j][i] = unit[j][i];
+				} else {
+					mBasis[j][i] = (j == 0 ? 1 : unit[j - 1][i]) - (j < filters ? unit[j][i] : 0);
+				}
+			}
+		}
+
+		mGram = new double[bands][bands];
+		for (int j = 0; j < bands; j ++) {
+			for (int k = j; k < bands; k ++) {
+				double sum = 0;
+				for (int i = 0; i < GRID_POINTS; i ++) {
+					sum += mBasis[j][i] * mBasis[k][i];
+				}
+				mGram[j][k] = mGram[k][j] = sum;
+			}
+			mGram[j][j] += RIDGE;
+		}
+	}
+
+	/**
+	 * Frequencies of the grid, Hz.
+	 */
+	public static double[] getGrid() {
+		return GRID.clone();
+	}
+
+	/**
+	 * Sample a curve given at some frequencies on the grid, interpolating
+	 * linearly over log frequency. Outside of the points given, the curve
+	 * holds its first or last level.
+	 *
+	 * @param frequencies in Hz, ascending
+	 * @param levels in dB
+	 */
+	public static double[] sampleCurve(double[] frequencies, double[] levels) {
+		double[] target = new double[GRID_POINTS];
+		int k = 0;
+		for (int i = 0; i < GRID_POINTS; i ++) {
+			while (k < frequencies.length && frequencies[k] < GRID[i]) {
+				k ++;
+			}
+			if (k == 0) {
+				target[i] = levels[0];
+			} else if (k == frequencies.length) {
+				target[i] = levels[k - 1];
+			} else {
+				double x = Math.log(GRID[i] / frequencies[k - 1]) / Math.log(frequencies[k] / frequencies[k - 1]);
+				target[i] = levels[k - 1] + (levels[k] - levels[k - 1]) * x;
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * Target curve from text: pairs of frequency in Hz and level in dB,
+	 * separated by whitespace, commas or semicolons, such as the measurements
+	 * of headphones are published in. Anything that isn't a number, like a
+	 * header line, is skipped, as is any point not above the frequency of
+	 * the one before.
+	 *
+	 * @return the curve sampled on the grid, or null without any points
+	 */
+	public static double[] parseCurve(String value) {
+		if (value == null) {
+			return null;
+		}
+		List<double[]> points = new ArrayList<double[]>();
+		Double frequency = null;
+		for (String token : value.split("[\\s,;]+")) {
+			double number;
+			try {
+				number = Double.parseDouble(token);
+			}
+			catch (NumberFormatException e) {
+				frequency = null;
+				continue;
+			}
+			if (frequency == null) {
+				frequency = number;
+				continue;
+			}
+			if (frequency > 0 && (points.isEmpty() || frequency > points.get(points.size() - 1)[0])) {
+				points.add(new double[] { frequency, number });
+			}
+			frequency = null;
+		}
+		if (points.isEmpty()) {
+			return null;
+		}
+
+		double[] frequencies = new double[points.size()];
+		double[] levels = new double[points.size()];
+		for (int i = 0; i < frequencies.length; i ++) {
+			frequencies[i] = points.get(i)[0];
+			levels[i] = points.get(i)[1];
+		}
+		return sampleCurve(frequencies, levels);
+	}
+
+	/**
+	 * Levels of the layout that come closest to a target.
+	 *
+	 * @param target dB at the points of the grid
+	 * @return the layout with the fitted levels
+	 */
+	public EqualizerBands fit(double[] target) {
+		int bands = mLayout.size();
+		EqualizerBands result = mLayout.copy();
+		double[] levels = new double[bands];
+		double[] rhs = new double[bands];
+		double[] linear = new double[GRID_POINTS];
+
+		for (int pass = 0; pass < REFINEMENTS; pass ++) {
+			/* Solve for the levels where the exact response at the current
+			 * levels, moved along the basis, meets the target. */
+			double[] response = response(result);
+			for (int i = 0; i < GRID_POINTS; i ++) {
+				double at = 0;
+				for (int j = 0; j < bands; j ++) {
+					at += mBasis[j][i] * levels[j];
+				}
+				linear[i] = target[i] - response[i] + at;
+			}
+			for (int j = 0; j < bands; j ++) {
+				double sum = 0;
+				for (int i = 0; i < GRID_POINTS; i ++) {
+					sum += mBasis[j][i] * linear[i];
+				}
+				rhs[j] = sum;
+			}
+
+			double change = solve(rhs, levels);
+			for (int j = 0; j < bands; j ++) {
+				result.setLevel(j, (float) levels[j]);
+			}
+			if (pass != 0 && change < CONVERGED_DB) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Projected Gauss-Seidel, from the levels as given. Returns the largest
+	 * change of a level from where it started.
+	 */
+	private double solve(double[] rhs, double[] levels) {
+		int bands = levels.length;
+		double[] start = levels.clone();
+		for (int sweep = 0; sweep < SWEEPS; sweep ++) {
+			double largest = 0;
+			for (int j = 0; j < bands; j ++) {
+				double sum = rhs[j];
+				for (int k = 0; k < bands; k ++) {
+					if (k != j) {
+						sum -= mGram[j][k] * levels[k];
+					}
+				}
+				double level = Math.max(MIN_DB, Math.min(MAX_DB, sum / mGram[j][j]));
+				largest = Math.max(largest, Math.abs(level - levels[j]));
+				levels[j] = level;
+			}
+			if (largest < SWEEP_CONVERGED_DB) {
+				break;
+			}
+		}
+
+		double change = 0;
+		for (int j = 0; j < bands; j ++) {
+			change = Math.max(change, Math.abs(levels[j] - start[j]));
+		}
+		return change;
+	}
+
+	/**
+	 * Exact response of a setting at the grid, dB. The powers of the
+	 * filters multiply, which takes a single logarithm per point.
+	 */
+	public static double[] response(EqualizerBands bands) {
+		double[] power = new double[GRID_POINTS];
+		Arrays.fill(power, 1);
+		for (int f = 0; f < bands.getFilterCount(); f ++) {
+			Biquad biquad = bands.designFilter(f, bands.getFilterGain(f));
+			for (int i = 0; i < GRID_POINTS; i ++) {
+				power[i] *= biquad.evaluatePower(GRID_COS[i], GRID_COS2[i]);
+			}
+		}
+		double[] response = new double[GRID_POINTS];
+		for (int i = 0; i < GRID_POINTS; i ++) {
+			response[i] = bands.getOverallGain() + 10 * Math.log10(power[i]);
+		}
+		return response;
+	}
+
+	/**
+	 * RMS difference between the response of a setting and a target, dB.
+	 */
+	public static double rmsError(EqualizerBands bands, double[] target) {
+		double[] response = response(bands);
+		double sum = 0;
+		for (int i = 0; i < GRID_POINTS; i ++) {
+			double error = response[i] - target[i];
+			sum += error * error;
+		}
+		return Math.sqrt(sum / GRID_POINTS);
+	}
+}
@@ -1,7 +1,5 @@
 package com.bel.android.dspmanager.preference;
 
-import java.util.Locale;
-
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -46,21 +44,14 @@ public class EqualizerPreference extends DialogPreference {
 
 	protected void updateDspFromDialogEqualizer() {
 		if (mHeadsetService != null) {
-			float[] levels = new float[6];
-			for (int i = 0; i < levels.length; i ++) {
-				levels[i] = mDialogEqualizer.getBand(i);
-			}
-			mHeadsetService.setEqualizerLevels(levels);
+			mHeadsetService.setEqualizerBands(mDialogEqualizer.getBands().copy());
 		}
 	}
 
 	private void updateListEqualizerFromValue() {
 		String value = getPersistedString(null);
 		if (value != null && mListEqualizer != null) {
-			String[] levelsStr = value.split(";");
-			for (int i = 0; i < 6; i ++) {
-				mListEqualizer.setBand(i, Float.valueOf(levelsStr[i]));
-			}
+			mListEqualizer.setBands(EqualizerBands.parse(value));
 		}
 	}
 
@@ -94,9 +85,7 @@ public class EqualizerPreference extends DialogPreference {
 		});
 
 		if (mListEqualizer != null) {
-			for (int i = 0; i < 6; i ++) {
-				mDialogEqualizer.setBand(i, mListEqualizer.getBand(i));
-			}
+			mDialogEqualizer.setBands(mListEqualizer.getBands().copy());
 		}
 
 		getContext().bindService(new Intent(getContext(), HeadsetService.class), connectionForDialog, 0);
@@ -105,16 +94,12 @@ public class EqualizerPreference extends DialogPreference {
 	@Override
 	protected void onDialogClosed(boolean positiveResult) {
 		if (positiveResult) {
-			String value = "";
-			for (int i = 0; i < 6; i ++) {
-				value += String.format(Locale.ROOT, "%.1f", Math.round(mDialogEqualizer.getBand(i) * 10.f) / 10.f) + ";";
-			}
-			persistString(value);
+			persistString(mDialogEqualizer.getBands().format());
 			updateListEqualizerFromValue();
 		}
 
 		if (mHeadsetService != null) {
-			mHeadsetService.setEqualizerLevels(null);
+			mHeadsetService.setEqualizerBands(null);
 		}
 		getContext().unbindService(connectionForDialog);
 	}
@@ -1,5 +1,7 @@
 package com.bel.android.dspmanager.preference;
 
+import java.util.Arrays;
+
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.LinearGradient;
@@ -17,15 +19,22 @@ import android.view.View;
 public class EqualizerSurface extends SurfaceView {
 	private static int MIN_FREQ = 10;
 	private static int MAX_FREQ = 21000;
-	private static int SAMPLING_RATE = 44100;
 	public static int MIN_DB = -12;
 	public static int MAX_DB = 12;
+	/* Points of the response curve; enough for a few on each third octave band */
+	private static final int RESPONSE_POINTS = 281;
 
 	private int mWidth;
 	private int mHeight;
 
-	/* Fixme: generalize with frequencies read from equalizer object */
-	private float[] mLevels = new float[6];
+	private EqualizerBands mBands = EqualizerBands.shelves();
+	/* cos(w) and cos(2w) at the points of the response curve */
+	private final double[] mResponseCos = new double[RESPONSE_POINTS];
+	private final double[] mResponseCos2 = new double[RESPONSE_POINTS];
+	/* Response of each filter at the points, dB, or null if a band it
+	 * depends on has changed. Only those are evaluated again. */
+	private double[][] mFilterResponse = new double[EqualizerBands.SHELVES - 1][];
+	private final double[] mResponse = new double[RESPONSE_POINTS];
 	private final Paint mWhite, mGridLines, mControlBarText, mControlBar, mControlBarKnob;
 	private final Paint mFrequencyResponseBg, mFrequencyResponseHighlight, mFrequencyResponseHighlight2;
 
@@ -33,6 +42,12 @@ public class EqualizerSurface extends SurfaceView {
 		super(context, attributeSet);
 		setWillNotDraw(false);
 
+		for (int i = 0; i < RESPONSE_POINTS; i ++) {
+			double omega = reverseProjectX(i / (RESPONSE_POINTS - 1f)) / EqualizerBands.SAMPLING_RATE * Math.PI * 2;
+			mResponseCos[i] = Math.cos(omega);
+			mResponseCos2[i] = Math.cos(2 * omega);
+		}
+
 		mWhite = new Paint();
 		mWhite.setColor(0xffffffff);
 		mWhite.setStyle(Style.STROKE);
@@ -80,7 +95,7 @@ public class EqualizerSurface extends SurfaceView {
 	protected Parcelable onSaveInstanceState() {
 		Bundle b = new Bundle();
 		b.putParcelable("super", super.onSaveInstanceState());
-		b.putFloatArray("levels", mLevels);
+		b.putString("bands", mBands.format());
 		return b;
 	}
 
@@ -88,7 +103,7 @@ public class EqualizerSurface extends SurfaceView {
 	protected void onRestoreInstanceState(Parcelable p) {
 		Bundle b = (Bundle) p;
 		super.onRestoreInstanceState(b.getBundle("super"));
-		mLevels = b.getFloatArray("levels");
+		setBands(EqualizerBands.parse(b.getString("bands")));
 	}
 
 	@Override
@@ -139,9 +154,7 @@ public class EqualizerSurface extends SurfaceView {
 
 		mWidth = right - left;
 		mHeight = bottom - top;
-		float barWidth = (mWidth/(mLevels.length+1)) / 6f;
-		mControlBar.setStrokeWidth(barWidth);
-		mControlBarKnob.setShadowLayer(barWidth * 0.5f, 0, 0, 0xffffffff);
+		updateBarWidth();
 		mFrequencyResponseBg.setShader(new LinearGradient(0, 0, 0, mHeight,
 				new int[] { color(0.20f, 0, 0, 0.5f), color(0.05f, 0.05f, 0, 0.5f),
 							color(0, 0.02f, 0, 0.5f), color(0, 0.01f, 0, 0.5f) },
@@ -153,13 +166,56 @@ public class EqualizerSurface extends SurfaceView {
 				Shader.TileMode.CLAMP));
 	}
 
+	private void updateBarWidth() {
+		float barWidth = (mWidth/(mBands.size()+1)) / 6f;
+		mControlBar.setStrokeWidth(barWidth);
+		mControlBarKnob.setShadowLayer(barWidth * 0.5f, 0, 0, 0xffffffff);
+	}
+
+	/**
+	 * Show another set of bands, which the surface then edits.
+	 */
+	public void setBands(EqualizerBands bands) {
+		mBands = bands;
+		mFilterResponse = new double[bands.getFilterCount()][];
+		updateBarWidth();
+		postInvalidate();
+	}
+
+	public EqualizerBands getBands() {
+		return mBands;
+	}
+
 	public void setBand(int i, float value) {
-		mLevels[i] = value;
+		mBands.setLevel(i, value);
+		if (mBands.isParametric()) {
+			mFilterResponse[i] = null;
+		} else {
+			/* The shelves on either side of the band */
+			if (i > 0) {
+				mFilterResponse[i - 1] = null;
+			}
+			if (i < mFilterResponse.length) {
+				mFilterResponse[i] = null;
+			}
+		}
 		postInvalidate();
 	}
 
 	public float getBand(int i) {
-		return mLevels[i];
+		return mBands.getLevel(i);
+	}
+
+	/**
+	 * Response of one filter at the points of the curve, in dB.
+	 */
+	private double[] evaluateFilter(int filter) {
+		Biquad biquad = mBands.designFilter(filter, mBands.getFilterGain(filter));
+		double[] response = new double[RESPONSE_POINTS];
+		for (int i = 0; i < RESPONSE_POINTS; i ++) {
+			response[i] = biquad.evaluateMagnitudeDb(mResponseCos[i], mResponseCos2[i]);
+		}
+		return response;
 	}
 
 	@Override
@@ -167,45 +223,22 @@ public class EqualizerSurface extends SurfaceView {
 		/* clear canvas */
 		canvas.drawRGB(0, 0, 0);
 
-		Biquad[] biquads = new Biquad[] {
-				new Biquad(),
-				new Biquad(),
-				new Biquad(),
-				new Biquad(),
-				new Biquad(),
-		};
-
-		/* The filtering is realized with 2nd order high shelf filters, and each band
-		 * is realized as a transition relative to the previous band. The center point for
-		 * each filter is actually between the bands.
-		 *
-		 * 1st band has no previous band, so it's just a fixed gain.
-		 */
-		double gain = Math.pow(10, mLevels[0] / 20);
-		for (int i = 0; i < biquads.length; i ++) {
-			double freq = 15.625 * Math.pow(4, i);
-			biquads[i].setHighShelf(freq * 2, SAMPLING_RATE, mLevels[i + 1] - mLevels[i], 1);
+		/* Magnitude response, dB: the sum of the filters' */
+		Arrays.fill(mResponse, mBands.getOverallGain());
+		for (int f = 0; f < mFilterResponse.length; f ++) {
+			if (mFilterResponse[f] == null) {
+				mFilterResponse[f] = evaluateFilter(f);
+			}
+			double[] response = mFilterResponse[f];
+			for (int i = 0; i < RESPONSE_POINTS; i ++) {
+				mResponse[i] += response[i];
+			}
 		}
 
 		Path freqResponse = new Path();
-		for (int i = 0; i < 71; i ++) {
-			double freq = reverseProjectX(i / 70f);
-			double omega = freq / SAMPLING_RATE * Math.PI * 2;
-			Complex z = new Complex(Math.cos(omega), Math.sin(omega));
-
-			/* Evaluate the response at frequency z */
-
-			/* Complex z1 = z.mul(gain); */
-			Complex z2 = biquads[0].evaluateTransfer(z);
-			Complex z3 = biquads[1].evaluateTransfer(z);
-			Complex z4 = biquads[2].evaluateTransfer(z);
-			Complex z5 = biquads[3].evaluateTransfer(z);
-			Complex z6 = biquads[4].evaluateTransfer(z);
-
-			/* Magnitude response, dB */
-			double dB = lin2dB(gain * z2.rho() * z3.rho() * z4.rho() * z5.rho() * z6.rho());
-			float x = projectX(freq) * mWidth;
-			float y = projectY(dB) * mHeight;
+		for (int i = 0; i < RESPONSE_POINTS; i ++) {
+			float x = i / (RESPONSE_POINTS - 1f) * mWidth;
+			float y = projectY(mResponse[i]) * mHeight;
 
 			/* Set starting point at first point */
 			if (i == 0) {
@@ -251,14 +284,19 @@ public class EqualizerSurface extends SurfaceView {
 			canvas.drawText(String.format("%+d", dB), 1, (y - 1), mWhite);
 		}
 
-		for (int i = 0; i < mLevels.length; i ++) {
-			double freq = 15.625 * Math.pow(4, i);
+		/* Labels on as many bands as they fit over */
+		int labelEvery = Math.max(1, (int) Math.ceil(mBands.size() * mWhite.getTextSize() * 3 / Math.max(mWidth, 1)));
+		for (int i = 0; i < mBands.size(); i ++) {
+			double freq = mBands.getFrequency(i);
 			float x = projectX(freq) * mWidth;
-			float y = projectY(mLevels[i]) * mHeight;
+			float y = projectY(mBands.getLevel(i)) * mHeight;
 			canvas.drawLine(x, mHeight, x, y, mControlBar);
 			canvas.drawCircle(x, y, mControlBar.getStrokeWidth() * 0.66f, mControlBarKnob);
-			canvas.drawText(String.format("%+1.1f", mLevels[i]), x, mHeight - 2, mControlBarText);
-			canvas.drawText(String.format(freq < 1000 ? "%.0f" : "%.0fk", freq < 1000 ? freq : freq/1000), x, mWhite.getTextSize(), mControlBarText);
+			if (i % labelEvery != 0) {
+				continue;
+			}
+			canvas.drawText(String.format("%+1.1f", mBands.getLevel(i)), x, mHeight - 2, mControlBarText);
+			canvas.drawText(String.format(freq < 1000 ? "%.0f" : freq % 1000 == 0 ? "%.0fk" : "%.1fk", freq < 1000 ? freq : freq/1000), x, mWhite.getTextSize(), mControlBarText);
 		}
 	}
 
@@ -280,10 +318,6 @@ public class EqualizerSurface extends SurfaceView {
 		return (float) (1 - pos);
 	}
 
-	private double lin2dB(double rho) {
-		return rho != 0 ? Math.log(rho) / Math.log(10) * 20 : -99.9;
-	}
-
 	/**
 	 * Find the closest control to given horizontal pixel for adjustment
 	 *
@@ -293,8 +327,8 @@ public class EqualizerSurface extends SurfaceView {
 	public int findClosest(float px) {
 		int idx = 0;
 		float best = 1e9f;
-		for (int i = 0; i < mLevels.length; i ++) {
-			double freq = 15.625 * Math.pow(4, i);
+		for (int i = 0; i < mBands.size(); i ++) {
+			double freq = mBands.getFrequency(i);
 			float cx = projectX(freq) * mWidth;
 			float distance = Math.abs(cx - px);
 
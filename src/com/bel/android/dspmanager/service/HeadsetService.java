@@ -1,9 +1,16 @@
 package com.bel.android.dspmanager.service;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import android.app.Service;
@@ -25,6 +32,7 @@ import android.os.IBinder;
 import android.util.Log;
 
 import com.bel.android.dspmanager.activity.DSPManager;
+import com.bel.android.dspmanager.preference.EqualizerBands;
 
 /**
  * <p>This calls listen to events that affect DSP function and responds to them.</p>
@@ -37,9 +45,33 @@ import com.bel.android.dspmanager.activity.DSPManager;
  * @author alankila
  */
 public class HeadsetService extends Service {
+	/**
+	 * Processing cost of the effects of one audio session, as the effects
+	 * measure it themselves. For a session with separate effects, the
+	 * figures are the sums over the effects.
+	 */
+	public static class DspCost {
+		/** Average time spent processing, in nanoseconds per frame */
+		public float nsPerFrame;
+		/** Recent peak of the time spent processing, in nanoseconds per frame */
+		public float peakNsPerFrame;
+		/** Average share of real time spent processing, 0 .. 1 */
+		public float load;
+		/** Memory held by the effects, in bytes */
+		public int memory;
+
+		@Override
+		public String toString() {
+			return String.format("%.2f %% CPU, %.1f ns/frame average, %.1f ns/frame peak, %d kB",
+					load * 100, nsPerFrame, peakNsPerFrame, memory / 1024);
+		}
+	}
+
 	/**
 	 * Helper class representing the full complement of effects attached to one
-	 * audio session.
+	 * audio session. If the effect library provides the fused effect chain, it
+	 * is used as the only effect of the session; otherwise the four separate
+	 * effects are created.
 	 *
 	 * @author alankila
 	 */
@@ -48,38 +80,503 @@ public class HeadsetService extends Service {
 				.fromString("09e8ede0-ddde-11db-b4f6-0002a5d5c51b");
 		private static final UUID EFFECT_TYPE_NULL = UUID
 				.fromString("ec7178ec-e5e1-4432-a3f4-4657e6795210");
+		private static final UUID EFFECT_TYPE_CHAIN = UUID
+				.fromString("19aff1c5-3a40-4ac3-80f7-25b876b0a05f");
+		private static final UUID EFFECT_CHAIN = UUID
+				.fromString("218239a9-1715-4f5d-bc62-2ed8b595405e");
+		private static final UUID EFFECT_TYPE_LIMITER = UUID
+				.fromString("8dcd18a7-071a-4c4a-8b1f-56520c15b2bf");
+		private static final UUID EFFECT_LIMITER = UUID
+				.fromString("e910c7ea-8a45-4c41-b800-7ccbba0cc85b");
+		private static final UUID EFFECT_TYPE_MULTIBAND = UUID
+				.fromString("b2db71cb-f88c-4d0e-ae19-57ba01497f43");
+		private static final UUID EFFECT_MULTIBAND = UUID
+				.fromString("6266b995-93bd-4898-98d6-d992adf3da31");
+
+		/* Stages of the fused chain, see EffectChain.h */
+		private static final int CHAIN_STAGE_COMPRESSION = 0;
+		private static final int CHAIN_STAGE_EQUALIZER = 1;
+		private static final int CHAIN_STAGE_BASSBOOST = 2;
+		private static final int CHAIN_STAGE_VIRTUALIZER = 3;
+		private static final int CHAIN_STAGE_MULTIBAND = 4;
+		private static final int CHAIN_STAGE_LIMITER = 5;
+		private static final int CHAIN_STAGE_PARAM_ENABLE = 0xffff;
+
+		/**
+		 * Parameter that takes all settings of a cyanogen-dsp effect in one
+		 * transaction. The layout of the value is given with each effect's
+		 * definition of it, and with CHAIN_PARAM_PROFILE in EffectChain.h.
+		 */
+		private static final int PARAM_PROFILE = 2000;
+
+		/**
+		 * Parametric bands of the cyanogen-dsp equalizer,
+		 * CUSTOM_EQ_PARAM_PARAMETRIC in EffectEqualizer.h.
+		 */
+		private static final int PARAM_EQ_PARAMETRIC = 1001;
+
+		/**
+		 * Outcome of the last impulse response load of the cyanogen-dsp
+		 * virtualizer, CUSTOM_VIRTUALIZER_PARAM_IMPULSE_RESPONSE_STATUS in
+		 * EffectVirtualizer.h. PARAM_PROFILE does not fail on it.
+		 */
+		private static final int PARAM_IMPULSE_RESPONSE_STATUS = 1002;
 
+		/**
+		 * Parameter every cyanogen-dsp effect answers with what it costs,
+		 * EFFECT_PARAM_COST in Effect.h.
+		 */
+		private static final int PARAM_COST = 3000;
+		private static final int COST_VALUES = 5;
+		/** Output level counters of every cyanogen-dsp effect, EFFECT_PARAM_LEVELS */
+		private static final int PARAM_LEVELS = 3001;
+		private static final int LEVEL_VALUES = 4;
+		/** Automatic headroom of every cyanogen-dsp effect, EFFECT_PARAM_AUTO_HEADROOM */
+		private static final int PARAM_AUTO_HEADROOM = 3002;
+
+		/** Session-specific effect chain, or null if the separate effects are used */
+		private final AudioEffect mChain;
+		/** Stages to enable in mChain */
+		private final boolean[] mChainStageEnabled = new boolean[6];
+		/** Settings for the stages of mChain, sent together by commit() */
+		private short mChainCompression;
+		private final short[] mChainLevels = new short[6];
+		private short[] mChainParametric = new short[] { 0 };
+		private short mChainLoudness;
+		private short mChainBassBoost;
+		private short mChainVirtualizer;
+		private short mChainEngine;
+		private short mChainMultiband;
+		private byte[] mChainImpulse = new byte[0];
+		/** Effects that rejected PARAM_PROFILE, and get one parameter at a time */
+		private final Set<AudioEffect> mNoProfile = new HashSet<AudioEffect>();
+		/** Impulse response path whose load was last checked, or null */
+		private byte[] mCheckedImpulse;
+		/** Value of PARAM_EQ_PARAMETRIC as last sent, or null */
+		private short[] mSentParametric;
 		/** Session-specific dynamic range compressor */
-		public final AudioEffect mCompression;
+		private final AudioEffect mCompression;
 		/** Session-specific equalizer */
 		private final Equalizer mEqualizer;
 		/** Session-specific bassboost */
 		private final BassBoost mBassBoost;
 		/** Session-specific virtualizer */
 		private final Virtualizer mVirtualizer;
+		/** Session-specific multiband compressor, or null if the library has none */
+		private final AudioEffect mMultiband;
+		/** Session-specific limiter, or null if the library has none */
+		private final AudioEffect mLimiter;
+		/** Automatic headroom as last set, or null if not set yet */
+		private Boolean mAutoHeadroom;
+		/** Level counters of each effect as of the last takeLevels() */
+		private final Map<AudioEffect, int[]> mLastLevels = new HashMap<AudioEffect, int[]>();
 
 		protected EffectSet(int sessionId) {
+			mChain = createEffect(EFFECT_TYPE_CHAIN, EFFECT_CHAIN, sessionId);
+			if (mChain != null) {
+				mCompression = null;
+				mEqualizer = null;
+				mBassBoost = null;
+				mVirtualizer = null;
+				mMultiband = null;
+				mLimiter = null;
+				return;
+			}
+
+			Log.i(TAG, "Effect chain not available, using separate effects");
+			mCompression = createEffect(EFFECT_TYPE_VOLUME, EFFECT_TYPE_NULL, sessionId);
+			if (mCompression == null) {
+				throw new RuntimeException("Can't create compression effect");
+			}
+			mEqualizer = new Equalizer(0, sessionId);
+			mBassBoost = new BassBoost(0, sessionId);
+			/* The limiter, the multiband compressor and the virtualizer all
+			 * insert last, and AudioFlinger puts a new such effect in front
+			 * of the ones already there. Created in reverse, they run in the
+			 * order of the chain: virtualizer, multiband, limiter. */
+			mLimiter = createEffect(EFFECT_TYPE_LIMITER, EFFECT_LIMITER, sessionId);
+			mMultiband = createEffect(EFFECT_TYPE_MULTIBAND, EFFECT_MULTIBAND, sessionId);
+			mVirtualizer = new Virtualizer(0, sessionId);
+		}
+
+		/**
+		 * AudioEffect constructor is not part of SDK. We use reflection
+		 * to access it.
+		 *
+		 * @return the effect, or null if the platform doesn't have it
+		 */
+		private static AudioEffect createEffect(UUID type, UUID uuid, int sessionId) {
 			try {
-				/*
-				 * AudioEffect constructor is not part of SDK. We use reflection
-				 * to access it.
-				 */
-				mCompression = AudioEffect.class.getConstructor(UUID.class,
+				return AudioEffect.class.getConstructor(UUID.class,
 						UUID.class, Integer.TYPE, Integer.TYPE).newInstance(
-						EFFECT_TYPE_VOLUME, EFFECT_TYPE_NULL, 0, sessionId);
+						type, uuid, 0, sessionId);
+			} catch (InvocationTargetException e) {
+				Log.w(TAG, "Can't create effect " + uuid, e.getCause());
+				return null;
 			} catch (Exception e) {
 				throw new RuntimeException(e);
 			}
-			mEqualizer = new Equalizer(0, sessionId);
-			mBassBoost = new BassBoost(0, sessionId);
-			mVirtualizer = new Virtualizer(0, sessionId);
 		}
 
 		protected void release() {
+			if (mChain != null) {
+				mChain.release();
+				return;
+			}
 			mCompression.release();
 			mEqualizer.release();
 			mBassBoost.release();
 			mVirtualizer.release();
+			if (mMultiband != null) {
+				mMultiband.release();
+			}
+			if (mLimiter != null) {
+				mLimiter.release();
+			}
+		}
+
+		private AudioEffect[] getEffects() {
+			if (mChain != null) {
+				return new AudioEffect[] { mChain };
+			}
+			ArrayList<AudioEffect> effects = new ArrayList<AudioEffect>();
+			effects.add(mCompression);
+			effects.add(mEqualizer);
+			effects.add(mBassBoost);
+			effects.add(mVirtualizer);
+			if (mMultiband != null) {
+				effects.add(mMultiband);
+			}
+			if (mLimiter != null) {
+				effects.add(mLimiter);
+			}
+			return effects.toArray(new AudioEffect[effects.size()]);
+		}
+
+		/**
+		 * Let the effects back off their gain when their output keeps
+		 * clipping. Applies to the chain as a whole.
+		 */
+		protected void setAutoHeadroom(boolean enabled) {
+			if (mAutoHeadroom != null && mAutoHeadroom == enabled) {
+				return;
+			}
+			mAutoHeadroom = enabled;
+			for (AudioEffect audioEffect : getEffects()) {
+				setParameter(audioEffect, PARAM_AUTO_HEADROOM, (short) (enabled ? 1 : 0));
+			}
+		}
+
+		/**
+		 * Samples written, and how many of them clipped, since the previous
+		 * call, by the effect of the session that clipped the most of its
+		 * output. The chain counts its final output only; separate effects
+		 * each count their own, so adding them up would thin out the rate by
+		 * their number. The counters of the effects wrap, which is fine as
+		 * long as they are read at least once in about half a day.
+		 *
+		 * @return samples and clipped samples
+		 */
+		protected long[] takeLevels() {
+			long[] levels = new long[2];
+			for (AudioEffect audioEffect : getEffects()) {
+				int[] values = getParameter(audioEffect, PARAM_LEVELS, LEVEL_VALUES);
+				if (values == null) {
+					continue;
+				}
+				/* The counters of a new effect start from zero. */
+				int[] last = mLastLevels.put(audioEffect, values);
+				if (last == null) {
+					last = new int[LEVEL_VALUES];
+				}
+				long samples = (values[0] - last[0]) & 0xffffffffL;
+				long clipped = (values[1] - last[1]) & 0xffffffffL;
+				/* Higher rate, or the same rate over more samples. */
+				double order = (double) clipped * levels[0] - (double) levels[1] * samples;
+				if (order > 0 || (order == 0 && samples > levels[0])) {
+					levels[0] = samples;
+					levels[1] = clipped;
+				}
+			}
+			return levels;
+		}
+
+		/**
+		 * Ask the effects what they cost. This is one parameter query per
+		 * effect, and nothing is measured here.
+		 *
+		 * @return the cost, or null if no effect of the session reports it
+		 */
+		protected DspCost getCost() {
+			DspCost cost = null;
+			for (AudioEffect audioEffect : getEffects()) {
+				int[] values = getParameter(audioEffect, PARAM_COST, COST_VALUES);
+				if (values == null) {
+					continue;
+				}
+				if (cost == null) {
+					cost = new DspCost();
+				}
+				cost.nsPerFrame += values[0] / 1000f;
+				cost.peakNsPerFrame += values[1] / 1000f;
+				cost.load += values[2] / 1000000f;
+				cost.memory += values[3];
+			}
+			return cost;
+		}
+
+		private static int chainParameter(int stage, int parameter) {
+			return ((stage + 1) << 16) | parameter;
+		}
+
+		/**
+		 * Enable or disable an effect, skipping the transaction if it is
+		 * already in that state.
+		 */
+		private static void setEnabled(AudioEffect audioEffect, boolean enabled) {
+			if (audioEffect.getEnabled() != enabled) {
+				audioEffect.setEnabled(enabled);
+			}
+		}
+
+		/**
+		 * Send all settings of an effect in one transaction, if the effect
+		 * accepts that.
+		 *
+		 * @return false if the settings must be sent one at a time instead
+		 */
+		private boolean setProfile(AudioEffect audioEffect, int parameter, byte[] value) {
+			if (mNoProfile.contains(audioEffect)) {
+				return false;
+			}
+			/* Only an unknown parameter means there is no profile. Other
+			 * errors would fail one parameter at a time just the same. */
+			if (setParameter(audioEffect, parameter, value) == AudioEffect.ERROR_BAD_VALUE) {
+				Log.i(TAG, "Effect doesn't take a profile, setting parameters one at a time");
+				mNoProfile.add(audioEffect);
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Report an impulse response the virtualizer could not load with its
+		 * profile. Asked once per path, as the load only happens when the path
+		 * changes.
+		 *
+		 * @param parameter PARAM_IMPULSE_RESPONSE_STATUS, as addressed in the effect
+		 */
+		private void checkImpulseResponse(AudioEffect audioEffect, int parameter, byte[] impulse) {
+			if (impulse.length == 0 || Arrays.equals(impulse, mCheckedImpulse)) {
+				return;
+			}
+			mCheckedImpulse = impulse;
+			int[] status = getParameter(audioEffect, parameter, 1);
+			if (status != null && status[0] != 0) {
+				Log.w(TAG, String.format("Can't load impulse response %s: error %d",
+						new String(impulse), status[0]));
+			}
+		}
+
+		protected void setCompression(boolean enabled, short mode) {
+			if (mChain != null) {
+				mChainStageEnabled[CHAIN_STAGE_COMPRESSION] = enabled;
+				mChainCompression = mode;
+				return;
+			}
+			setEnabled(mCompression, enabled);
+			if (!setProfile(mCompression, PARAM_PROFILE, toBytes(new short[] { mode }, null))) {
+				setParameter(mCompression, 0, mode);
+			}
+		}
+
+		protected void setBassBoost(boolean enabled, short strength) {
+			if (mChain != null) {
+				mChainStageEnabled[CHAIN_STAGE_BASSBOOST] = enabled;
+				mChainBassBoost = strength;
+				return;
+			}
+			setEnabled(mBassBoost, enabled);
+			if (!setProfile(mBassBoost, PARAM_PROFILE, toBytes(new short[] { strength }, null))) {
+				mBassBoost.setStrength(strength);
+			}
+		}
+
+		/**
+		 * @param levels band levels in millibels of the shelving equalizer
+		 * @param parametric value of PARAM_EQ_PARAMETRIC, which when it has
+		 *            bands replaces the levels
+		 * @param loudness loudness correction reference level in centibels
+		 */
+		protected void setEqualizer(boolean enabled, short[] levels, short[] parametric, short loudness) {
+			if (mChain != null) {
+				mChainStageEnabled[CHAIN_STAGE_EQUALIZER] = enabled;
+				System.arraycopy(levels, 0, mChainLevels, 0, Math.min(levels.length, mChainLevels.length));
+				mChainParametric = parametric;
+				mChainLoudness = loudness;
+				return;
+			}
+			setEnabled(mEqualizer, enabled);
+			short[] profile = new short[1 + Math.min(levels.length, 6)];
+			profile[0] = loudness;
+			System.arraycopy(levels, 0, profile, 1, profile.length - 1);
+			if (!setProfile(mEqualizer, PARAM_PROFILE, toBytes(profile, null))) {
+				for (short i = 0; i < levels.length; i ++) {
+					mEqualizer.setBandLevel(i, levels[i]);
+				}
+				setParameter(mEqualizer, 1000, loudness);
+			}
+			/* The profile leaves the parametric bands alone, so they are only
+			 * sent when they change. Equalizers of other libraries refuse it. */
+			if (!mNoProfile.contains(mEqualizer) && !Arrays.equals(parametric, mSentParametric)) {
+				if (setParameter(mEqualizer, PARAM_EQ_PARAMETRIC, toBytes(parametric, null)) == 0) {
+					mSentParametric = parametric;
+				}
+			}
+		}
+
+		/**
+		 * @param impulse path of the impulse response for convolution mode
+		 * @param engine virtualizer mode: room, convolution or diffuse room
+		 */
+		protected void setVirtualizer(boolean enabled, short strength, byte[] impulse, short engine) {
+			if (mChain != null) {
+				mChainStageEnabled[CHAIN_STAGE_VIRTUALIZER] = enabled;
+				mChainVirtualizer = strength;
+				mChainImpulse = impulse;
+				mChainEngine = engine;
+				return;
+			}
+			setEnabled(mVirtualizer, enabled);
+			if (!setProfile(mVirtualizer, PARAM_PROFILE, toBytes(new short[] { strength, engine }, impulse))) {
+				mVirtualizer.setStrength(strength);
+				/* The impulse response must be in place before convolution mode is selected. */
+				setParameter(mVirtualizer, 1001, impulse);
+				setParameter(mVirtualizer, 1000, engine);
+			} else {
+				checkImpulseResponse(mVirtualizer, PARAM_IMPULSE_RESPONSE_STATUS, impulse);
+			}
+		}
+
+		/**
+		 * Compress bass, mids and treble each on its own, so that loud bass
+		 * does not pull the rest of the mix down with it. Without the chain,
+		 * this needs the library's separate multiband compressor.
+		 *
+		 * @param strength 0 .. 1000, for a ratio of 1 .. 5
+		 */
+		protected void setMultiband(boolean enabled, short strength) {
+			if (mChain != null) {
+				mChainStageEnabled[CHAIN_STAGE_MULTIBAND] = enabled;
+				mChainMultiband = strength;
+				return;
+			}
+			if (mMultiband == null) {
+				return;
+			}
+			setEnabled(mMultiband, enabled);
+			if (!setProfile(mMultiband, PARAM_PROFILE, toBytes(new short[] { strength }, null))) {
+				setParameter(mMultiband, 0, strength);
+			}
+		}
+
+		/**
+		 * Keep the final output from clipping with the lookahead limiter.
+		 * Without the chain, this needs the library's separate limiter.
+		 */
+		protected void setLimiter(boolean enabled) {
+			if (mChain != null) {
+				mChainStageEnabled[CHAIN_STAGE_LIMITER] = enabled;
+				return;
+			}
+			if (mLimiter != null) {
+				setEnabled(mLimiter, enabled);
+			}
+		}
+
+		/**
+		 * Send the settings collected by the set methods to the chain. The
+		 * separate effects have already received theirs. The chain itself is
+		 * only enabled while one of its stages is.
+		 */
+		protected void commit() {
+			if (mChain == null) {
+				return;
+			}
+
+			short stages = 0;
+			for (int i = 0; i < mChainStageEnabled.length; i ++) {
+				if (mChainStageEnabled[i]) {
+					stages |= 1 << i;
+				}
+			}
+			short[] profile = new short[] {
+					stages, mChainCompression, mChainLoudness,
+					mChainLevels[0], mChainLevels[1], mChainLevels[2],
+					mChainLevels[3], mChainLevels[4], mChainLevels[5],
+					mChainBassBoost, mChainVirtualizer, mChainEngine,
+					mChainMultiband
+			};
+			if (!setProfile(mChain, PARAM_PROFILE, toBytes(profile, mChainImpulse))) {
+				commitChainParameters();
+			} else {
+				/* The parametric bands vary in number, and are not part of
+				 * the profile; they take a transaction of their own, but only
+				 * when they change. */
+				if (!Arrays.equals(mChainParametric, mSentParametric)
+						&& setParameter(mChain, chainParameter(CHAIN_STAGE_EQUALIZER, PARAM_EQ_PARAMETRIC),
+								toBytes(mChainParametric, null)) == 0) {
+					mSentParametric = mChainParametric;
+				}
+				checkImpulseResponse(mChain, chainParameter(CHAIN_STAGE_VIRTUALIZER, PARAM_IMPULSE_RESPONSE_STATUS),
+						mChainImpulse);
+			}
+			setEnabled(mChain, stages != 0);
+		}
+
+		/**
+		 * Send the chain settings one parameter at a time.
+		 */
+		private void commitChainParameters() {
+			for (int i = 0; i < mChainStageEnabled.length; i ++) {
+				setParameter(mChain, chainParameter(i, CHAIN_STAGE_PARAM_ENABLE), (short) (mChainStageEnabled[i] ? 1 : 0));
+			}
+			setParameter(mChain, chainParameter(CHAIN_STAGE_COMPRESSION, 0), mChainCompression);
+			for (short i = 0; i < mChainLevels.length; i ++) {
+				setParameter(mChain, chainParameter(CHAIN_STAGE_EQUALIZER, Equalizer.PARAM_BAND_LEVEL), i, mChainLevels[i]);
+			}
+			setParameter(mChain, chainParameter(CHAIN_STAGE_EQUALIZER, 1000), mChainLoudness);
+			/* After the band levels, which address the parametric bands
+			 * while there are any. */
+			if (setParameter(mChain, chainParameter(CHAIN_STAGE_EQUALIZER, PARAM_EQ_PARAMETRIC),
+					toBytes(mChainParametric, null)) == 0) {
+				mSentParametric = mChainParametric;
+			}
+			setParameter(mChain, chainParameter(CHAIN_STAGE_BASSBOOST, BassBoost.PARAM_STRENGTH), mChainBassBoost);
+			setParameter(mChain, chainParameter(CHAIN_STAGE_VIRTUALIZER, Virtualizer.PARAM_STRENGTH), mChainVirtualizer);
+			/* The impulse response must be in place before convolution mode is selected. */
+			setParameter(mChain, chainParameter(CHAIN_STAGE_VIRTUALIZER, 1001), mChainImpulse);
+			setParameter(mChain, chainParameter(CHAIN_STAGE_VIRTUALIZER, 1000), mChainEngine);
+			setParameter(mChain, chainParameter(CHAIN_STAGE_MULTIBAND, 0), mChainMultiband);
+		}
+
+		/**
+		 * Little-endian int16 values, followed by raw bytes.
+		 *
+		 * @param values
+		 * @param tail bytes to append, or null
+		 */
+		private static byte[] toBytes(short[] values, byte[] tail) {
+			int tailLength = tail != null ? tail.length : 0;
+			byte[] bytes = new byte[values.length * 2 + tailLength];
+			for (int i = 0; i < values.length; i ++) {
+				bytes[i * 2] = (byte) values[i];
+				bytes[i * 2 + 1] = (byte) (values[i] >> 8);
+			}
+			if (tail != null) {
+				System.arraycopy(tail, 0, bytes, values.length * 2, tailLength);
+			}
+			return bytes;
 		}
 
 		/**
@@ -91,26 +588,108 @@ public class HeadsetService extends Service {
 		 * @param value
 		 */
 		private static void setParameter(AudioEffect audioEffect, int parameter, short value) {
+			setParameter(audioEffect, parameter, new byte[] {
+					(byte) (value), (byte) (value >> 8)
+			});
+		}
+
+		/**
+		 * Proxies call to AudioEffect.setParameter(byte[], byte[]) which is
+		 * available via reflection.
+		 *
+		 * @param audioEffect
+		 * @param parameter
+		 * @param value raw parameter value
+		 */
+		private static int setParameter(AudioEffect audioEffect, int parameter, byte[] value) {
+			return setParameter(audioEffect, new byte[] {
+					(byte) (parameter), (byte) (parameter >> 8),
+					(byte) (parameter >> 16), (byte) (parameter >> 24)
+			}, value);
+		}
+
+		/**
+		 * Proxies call to AudioEffect.setParameter(byte[], byte[]) for a
+		 * parameter that takes an argument, such as an equalizer band.
+		 *
+		 * @param audioEffect
+		 * @param parameter
+		 * @param argument
+		 * @param value
+		 */
+		private static void setParameter(AudioEffect audioEffect, int parameter, int argument, short value) {
+			setParameter(audioEffect, new byte[] {
+					(byte) (parameter), (byte) (parameter >> 8),
+					(byte) (parameter >> 16), (byte) (parameter >> 24),
+					(byte) (argument), (byte) (argument >> 8),
+					(byte) (argument >> 16), (byte) (argument >> 24)
+			}, new byte[] {
+					(byte) (value), (byte) (value >> 8)
+			});
+		}
+
+		/**
+		 * Proxies call to AudioEffect.getParameter(byte[], byte[]) which is
+		 * available via reflection, for a value of little-endian int32.
+		 *
+		 * @param audioEffect
+		 * @param parameter
+		 * @param count number of int32 in the value
+		 * @return the value, or null if the effect did not return all of it
+		 */
+		private static int[] getParameter(AudioEffect audioEffect, int parameter, int count) {
+			byte[] value = new byte[count * 4];
 			try {
-				byte[] arguments = new byte[] {
+				Method getParameter = AudioEffect.class.getMethod(
+						"getParameter", byte[].class, byte[].class);
+				int returnValue = (Integer) getParameter.invoke(audioEffect, new byte[] {
 						(byte) (parameter), (byte) (parameter >> 8),
 						(byte) (parameter >> 16), (byte) (parameter >> 24)
-				};
-				byte[] result = new byte[] {
-						(byte) (value), (byte) (value >> 8)
-				};
+				}, value);
+				/* Some platforms return the size of the value, others just the status. */
+				if (returnValue != 0 && returnValue != value.length) {
+					return null;
+				}
+			} catch (InvocationTargetException e) {
+				/* The session went away meanwhile. */
+				return null;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
 
+			int[] values = new int[count];
+			for (int i = 0; i < count; i ++) {
+				values[i] = (value[i * 4] & 0xff) | (value[i * 4 + 1] & 0xff) << 8
+						| (value[i * 4 + 2] & 0xff) << 16 | (value[i * 4 + 3] & 0xff) << 24;
+			}
+			return values;
+		}
+
+		/**
+		 * Proxies call to AudioEffect.setParameter(byte[], byte[]) which is
+		 * available via reflection.
+		 *
+		 * @param audioEffect
+		 * @param arguments parameter id and its arguments, little-endian
+		 * @param value raw parameter value
+		 * @return status of the call, 0 on success
+		 */
+		private static int setParameter(AudioEffect audioEffect, byte[] arguments, byte[] value) {
+			try {
 				Method setParameter = AudioEffect.class.getMethod(
 						"setParameter", byte[].class, byte[].class);
 				int returnValue = (Integer) setParameter.invoke(audioEffect,
-						arguments, result);
+						arguments, value);
 
 				if (returnValue != 0) {
+					int parameter = (arguments[0] & 0xff) | (arguments[1] & 0xff) << 8
+							| (arguments[2] & 0xff) << 16 | (arguments[3] & 0xff) << 24;
 					Log.e(TAG,
 							String.format(
-									"Invalid argument error in setParameter(%d, (short) %d) == %d",
-									parameter, value, returnValue));
+									"Invalid argument error in setParameter(0x%x, byte[%d]) == %d",
+									parameter, value.length, returnValue));
 				}
+				return returnValue;
 			} catch (Exception e) {
 				throw new RuntimeException(e);
 			}
@@ -127,17 +706,52 @@ public class HeadsetService extends Service {
 
 	private final LocalBinder mBinder = new LocalBinder();
 
-	/** Known audio sessions and their associated audioeffect suites. */
+	/** Session of the output mix, which effects attached to see all sessions mixed */
+	private static final int OUTPUT_MIX_SESSION = 0;
+
+	/**
+	 * Audioeffect suites by session: one for each known audio session, or
+	 * in output mix mode, just the one of OUTPUT_MIX_SESSION.
+	 */
 	protected final Map<Integer, EffectSet> mAudioSessions = new HashMap<Integer, EffectSet>();
 
+	/** Known audio sessions, attached to or not. Guarded by mAudioSessions. */
+	private final Set<Integer> mOpenSessions = new HashSet<Integer>();
+
+	/**
+	 * Are the effects on the output mix instead of on each session? The
+	 * cost then stays the same however many sessions play. Guarded by
+	 * mAudioSessions.
+	 */
+	private boolean mOutputMixMode;
+
+	/**
+	 * The platform did not let effects on the output mix; don't ask again
+	 * until the routing or the setting changes. Guarded by mAudioSessions.
+	 */
+	private boolean mOutputMixRefused;
+
+	/** Routing and output mix setting updateDsp() last saw. Guarded by mAudioSessions. */
+	private String mOutputMixRouting;
+	private boolean mOutputMixRequested;
+
 	/** Is a wired headset plugged in? */
 	protected boolean mUseHeadset;
 
 	/** Is bluetooth headset plugged in? */
 	protected boolean mUseBluetooth;
 
+	/**
+	 * Samples written and clipped by the effects, by the configuration that
+	 * was in use, since the service started. Guarded by mAudioSessions.
+	 */
+	private final Map<String, long[]> mClipCounts = new TreeMap<String, long[]>();
+
+	/** Configuration the sessions have run with since the last takeLevels() */
+	private String mLevelsConfiguration;
+
 	/** Has DSPManager assumed control of equalizer levels? */
-	private float[] mOverriddenEqualizerLevels;
+	private EqualizerBands mOverriddenEqualizerBands;
 
 	/**
 	 * Receive new broadcast intents for adding DSP to session
@@ -149,13 +763,21 @@ public class HeadsetService extends Service {
 			int sessionId = intent.getIntExtra(AudioEffect.EXTRA_AUDIO_SESSION, 0);
 			if (action.equals(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION)) {
 				Log.i(TAG, String.format("New audio session: %d", sessionId));
-				if (! mAudioSessions.containsKey(sessionId)) {
-					mAudioSessions.put(sessionId, new EffectSet(sessionId));
+				synchronized (mAudioSessions) {
+					mOpenSessions.add(sessionId);
+					if (!mOutputMixMode && ! mAudioSessions.containsKey(sessionId)) {
+						mAudioSessions.put(sessionId, new EffectSet(sessionId));
+					}
 				}
 			}
 			if (action.equals(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION)) {
 				Log.i(TAG, String.format("Audio session removed: %d", sessionId));
-				EffectSet gone = mAudioSessions.remove(sessionId);
+				EffectSet gone;
+				synchronized (mAudioSessions) {
+					collectLevels();
+					mOpenSessions.remove(sessionId);
+					gone = mOutputMixMode ? null : mAudioSessions.remove(sessionId);
+				}
 				if (gone != null) {
 					gone.release();
 				}
@@ -257,6 +879,14 @@ public class HeadsetService extends Service {
 		unregisterReceiver(mAudioSessionReceiver);
 		unregisterReceiver(mRoutingReceiver);
 		unregisterReceiver(mPreferenceUpdateReceiver);
+
+		/* The output mix never closes, so its effects would outlive the service. */
+		synchronized (mAudioSessions) {
+			if (mOutputMixMode) {
+				mAudioSessions.remove(OUTPUT_MIX_SESSION).release();
+				mOutputMixMode = false;
+			}
+		}
 	}
 
 	@Override
@@ -268,10 +898,10 @@ public class HeadsetService extends Service {
 	 * Gain temporary control over the global equalizer.
 	 * Used by DSPManager when testing a new equalizer setting.
 	 *
-	 * @param levels
+	 * @param bands the bands to try, or null to go back to the preferences
 	 */
-	public void setEqualizerLevels(float[] levels) {
-		mOverriddenEqualizerLevels = levels;
+	public void setEqualizerBands(EqualizerBands bands) {
+		mOverriddenEqualizerBands = bands;
 		updateDsp();
 	}
 
@@ -310,6 +940,130 @@ public class HeadsetService extends Service {
 		return "speaker";
 	}
 
+	/**
+	 * What the DSP costs in each known audio session. The effects keep
+	 * account of their own cost all the time, so this only asks them.
+	 *
+	 * @return cost by session id, leaving out sessions whose effects do not report it
+	 */
+	public Map<Integer, DspCost> getSessionCosts() {
+		Map<Integer, EffectSet> sessions;
+		synchronized (mAudioSessions) {
+			sessions = new TreeMap<Integer, EffectSet>(mAudioSessions);
+		}
+		Map<Integer, DspCost> costs = new TreeMap<Integer, DspCost>();
+		for (Map.Entry<Integer, EffectSet> entry : sessions.entrySet()) {
+			DspCost cost = entry.getValue().getCost();
+			if (cost != null) {
+				costs.put(entry.getKey(), cost);
+			}
+		}
+		return costs;
+	}
+
+	/**
+	 * Add what the sessions have clipped since the last time to the counts
+	 * of the configuration they ran with. Caller holds mAudioSessions.
+	 */
+	private void collectLevels() {
+		if (mLevelsConfiguration == null) {
+			return;
+		}
+		long[] counts = mClipCounts.get(mLevelsConfiguration);
+		if (counts == null) {
+			counts = new long[2];
+			mClipCounts.put(mLevelsConfiguration, counts);
+		}
+		for (EffectSet session : mAudioSessions.values()) {
+			long[] levels = session.takeLevels();
+			counts[0] += levels[0];
+			counts[1] += levels[1];
+		}
+	}
+
+	/**
+	 * How often the output of the effects clipped, by configuration, since
+	 * the service started. Sessions are asked for their counters now and
+	 * at every change of configuration; nothing is polled in between.
+	 *
+	 * @return share of samples clipped, 0 .. 1, by configuration name
+	 */
+	public Map<String, Float> getClipRates() {
+		Map<String, Float> rates = new TreeMap<String, Float>();
+		synchronized (mAudioSessions) {
+			collectLevels();
+			for (Map.Entry<String, long[]> entry : mClipCounts.entrySet()) {
+				long[] counts = entry.getValue();
+				rates.put(entry.getKey(), counts[0] != 0 ? (float) counts[1] / counts[0] : 0f);
+			}
+		}
+		return rates;
+	}
+
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+		int sessions;
+		boolean outputMix, refused;
+		synchronized (mAudioSessions) {
+			sessions = mOpenSessions.size();
+			outputMix = mOutputMixMode;
+			refused = mOutputMixRefused;
+		}
+		Map<Integer, DspCost> costs = getSessionCosts();
+		pw.println("Routing: " + getAudioOutputRouting());
+		pw.println("Output mix: " + (outputMix ? "yes" : "no") + (refused ? " (refused by the platform)" : ""));
+		pw.println(String.format("Audio sessions: %d, reporting cost: %d", sessions, costs.size()));
+		for (Map.Entry<Integer, DspCost> entry : costs.entrySet()) {
+			pw.println(String.format("  session %d: %s", entry.getKey(), entry.getValue()));
+		}
+		pw.println("Clipped samples:");
+		for (Map.Entry<String, Float> entry : getClipRates().entrySet()) {
+			pw.println(String.format("  %s: %.4f %%", entry.getKey(), entry.getValue() * 100));
+		}
+	}
+
+	/**
+	 * Attach the effects to the output mix, or to each known session, as
+	 * the configuration asks. Where the platform refuses effects on the
+	 * output mix, the sessions keep theirs. Caller holds mAudioSessions.
+	 */
+	private void selectOutputMixMode(boolean outputMix) {
+		outputMix &= !mOutputMixRefused;
+		if (outputMix == mOutputMixMode) {
+			return;
+		}
+		collectLevels();
+
+		if (outputMix) {
+			EffectSet output;
+			try {
+				output = new EffectSet(OUTPUT_MIX_SESSION);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Can't attach effects to the output mix, keeping them per session", e);
+				mOutputMixRefused = true;
+				return;
+			}
+			Log.i(TAG, "Attaching effects to the output mix");
+			for (EffectSet session : mAudioSessions.values()) {
+				session.release();
+			}
+			mAudioSessions.clear();
+			mAudioSessions.put(OUTPUT_MIX_SESSION, output);
+			mOutputMixMode = true;
+			return;
+		}
+
+		Log.i(TAG, "Attaching effects to each audio session");
+		EffectSet output = mAudioSessions.remove(OUTPUT_MIX_SESSION);
+		if (output != null) {
+			output.release();
+		}
+		mOutputMixMode = false;
+		for (Integer sessionId : mOpenSessions) {
+			mAudioSessions.put(sessionId, new EffectSet(sessionId));
+		}
+	}
+
 	/**
 	 * Push new configuration to audio stack.
 	 */
@@ -317,40 +1071,85 @@ public class HeadsetService extends Service {
 		final String mode = getAudioOutputRouting();
 		SharedPreferences preferences = getSharedPreferences(DSPManager.SHARED_PREFERENCES_BASENAME + "." + mode, 0);
 		Log.i(TAG, "Selected configuration: " + mode);
+		boolean outputMix = preferences.getBoolean("dsp.global.enable", false);
+		Map<Integer, EffectSet> sessions;
+		synchronized (mAudioSessions) {
+			collectLevels();
+			mLevelsConfiguration = mode;
+			/* A refusal holds for the configuration it happened with. */
+			if (!mode.equals(mOutputMixRouting) || outputMix != mOutputMixRequested) {
+				mOutputMixRefused = false;
+			}
+			mOutputMixRouting = mode;
+			mOutputMixRequested = outputMix;
+			selectOutputMixMode(outputMix);
+			sessions = new HashMap<Integer, EffectSet>(mAudioSessions);
+		}
 
-		for (Integer sessionId : new ArrayList<Integer>(mAudioSessions.keySet())) {
+		boolean outputMixFailed = false;
+		for (Map.Entry<Integer, EffectSet> session : sessions.entrySet()) {
+			int sessionId = session.getKey();
+			EffectSet effectSet = session.getValue();
 			try {
-				updateDsp(preferences, mAudioSessions.get(sessionId));
+				updateDsp(preferences, effectSet);
 			}
 			catch (Exception e) {
 				Log.w(TAG, String.format("Trouble trying to manage session %d, removing...", sessionId), e);
-				mAudioSessions.remove(sessionId);
+				synchronized (mAudioSessions) {
+					/* Unless the session was closed or replaced meanwhile. */
+					if (mAudioSessions.get(sessionId) != effectSet) {
+						continue;
+					}
+					mAudioSessions.remove(sessionId);
+					if (mOutputMixMode) {
+						mOutputMixRefused = true;
+						outputMixFailed = true;
+					}
+				}
+				effectSet.release();
+			}
+		}
+
+		/* The output mix took the effects, but not their settings: go back to
+		 * the sessions, and configure them instead. */
+		if (outputMixFailed) {
+			synchronized (mAudioSessions) {
+				mOutputMixMode = false;
+				for (Integer sessionId : mOpenSessions) {
+					mAudioSessions.put(sessionId, new EffectSet(sessionId));
+				}
 			}
+			updateDsp();
 		}
 	}
 
 	private void updateDsp(SharedPreferences preferences, EffectSet session) {
-		session.mCompression.setEnabled(preferences.getBoolean("dsp.compression.enable", false));
-		EffectSet.setParameter(session.mCompression, 0, Short.valueOf(preferences.getString("dsp.compression.mode", "0")));
+		session.setCompression(preferences.getBoolean("dsp.compression.enable", false),
+				Short.valueOf(preferences.getString("dsp.compression.mode", "0")));
 
-		session.mBassBoost.setEnabled(preferences.getBoolean("dsp.bass.enable", false));
-		session.mBassBoost.setStrength(Short.valueOf(preferences.getString("dsp.bass.mode", "0")));
+		session.setBassBoost(preferences.getBoolean("dsp.bass.enable", false),
+				Short.valueOf(preferences.getString("dsp.bass.mode", "0")));
 
 		/* Equalizer state is in a single string preference with all values separated by ; */
-		session.mEqualizer.setEnabled(preferences.getBoolean("dsp.tone.enable", false));
-		if (mOverriddenEqualizerLevels != null) {
-			for (short i = 0; i < mOverriddenEqualizerLevels.length; i ++) {
-				session.mEqualizer.setBandLevel(i, (short) Math.round(Float.valueOf(mOverriddenEqualizerLevels[i]) * 100));
-			}
-		} else {
-			String[] levels = preferences.getString("dsp.tone.eq.custom", "0;0;0;0;0").split(";");
-			for (short i = 0; i < levels.length; i ++) {
-				session.mEqualizer.setBandLevel(i, (short) Math.round(Float.valueOf(levels[i]) * 100));
-			}
+		EqualizerBands bands = mOverriddenEqualizerBands;
+		if (bands == null) {
+			bands = EqualizerBands.parse(preferences.getString("dsp.tone.eq.custom", null));
 		}
-		EffectSet.setParameter(session.mEqualizer, 1000, Short.valueOf(preferences.getString("dsp.tone.loudness", "10000")));
+		/* Parametric bands leave the shelves flat. */
+		short[] levels = bands.isParametric() ? new short[EqualizerBands.SHELVES] : bands.toMillibels();
+		session.setEqualizer(preferences.getBoolean("dsp.tone.enable", false), levels, bands.toParametric(),
+				Short.valueOf(preferences.getString("dsp.tone.loudness", "10000")));
+
+		session.setVirtualizer(preferences.getBoolean("dsp.headphone.enable", false),
+				Short.valueOf(preferences.getString("dsp.headphone.mode", "0")),
+				preferences.getString("dsp.headphone.impulse", "").getBytes(),
+				Short.valueOf(preferences.getString("dsp.headphone.engine", "0")));
+
+		session.setMultiband(preferences.getBoolean("dsp.multiband.enable", false),
+				Short.valueOf(preferences.getString("dsp.multiband.mode", "500")));
 
-		session.mVirtualizer.setEnabled(preferences.getBoolean("dsp.headphone.enable", false));
-		session.mVirtualizer.setStrength(Short.valueOf(preferences.getString("dsp.headphone.mode", "0")));
+		session.setLimiter(preferences.getBoolean("dsp.limiter.enable", false));
+		session.setAutoHeadroom(preferences.getBoolean("dsp.headroom.enable", false));
+		session.commit();
 	}
 }